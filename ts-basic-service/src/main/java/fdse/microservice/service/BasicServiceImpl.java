@@ -1,5 +1,6 @@
 package fdse.microservice.service;
 
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.JsonUtils;
 import edu.fudan.common.util.Response;
 import edu.fudan.common.util.ConsistencyCheckedCache;
@@ -14,6 +15,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.function.BiFunction;
 import java.util.AbstractMap.SimpleImmutableEntry;
@@ -102,26 +104,28 @@ public class BasicServiceImpl implements BasicService {
     };
 
     private final ConsistencyCheckedCache<String, HttpHeaders, Boolean> stationExistsCache = new ConsistencyCheckedCache<String, HttpHeaders, Boolean>(
-            "stationExistsCache", 100, false, checkStationExists);
+            "stationExistsCache", 100, false, checkStationExists)
+            .withTags(stationName -> Collections.singletonList(CacheTags.station(stationName)));
 
     private final ConsistencyCheckedCache<String, HttpHeaders, Response> stationIdCache = new ConsistencyCheckedCache<String, HttpHeaders, Response>(
-            "stationIdCache", 100, false, stationIdQuery);
+            "stationIdCache", 100, false, stationIdQuery)
+            .withTags(stationName -> Collections.singletonList(CacheTags.station(stationName)));
 
     private final ConsistencyCheckedCache<String, HttpHeaders, TrainType> trainTypeCache = new ConsistencyCheckedCache<String, HttpHeaders, TrainType>(
-            "trainTypeCache", 100, false, queryTrainType);
+            "trainTypeCache", 100, false, queryTrainType)
+            .withTags(trainTypeId -> Collections.singletonList(CacheTags.trainType(trainTypeId)));
 
     private final ConsistencyCheckedCache<String, HttpHeaders, Route> routeIdCache = new ConsistencyCheckedCache<String, HttpHeaders, Route>(
-            "routeIdCache", 100, false, getRouteByRouteId);
+            "routeIdCache", 100, false, getRouteByRouteId)
+            .withTags(routeId -> Collections.singletonList(CacheTags.route(routeId)));
 
     private final ConsistencyCheckedCache<SimpleImmutableEntry<String, String>, HttpHeaders, PriceConfig> priceCache = new ConsistencyCheckedCache<SimpleImmutableEntry<String, String>, HttpHeaders, PriceConfig>(
-            "priceCache", 100, false, queryPriceConfigByRouteIdAndTrainType);
+            "priceCache", 100, false, queryPriceConfigByRouteIdAndTrainType)
+            .withTags(pair -> Collections.singletonList(CacheTags.price(pair.getKey(), pair.getValue())));
 
     @Override
     public Response queryForTravel(Travel info, HttpHeaders headers) {
         String id = "0";
-        if (headers.containsKey("invalidation_id")) {
-            id = headers.getFirst("invalidation_id");
-        }
 
         Response response = new Response<>();
         TravelResult result = new TravelResult();
@@ -198,11 +202,6 @@ public class BasicServiceImpl implements BasicService {
     @Override
     public Response queryForStationId(String stationName, HttpHeaders headers) {
         String id = "0";
-        if (headers.containsKey("invalidation_id")) {
-            id = headers.getFirst("invalidation_id");
-            LOGGER.info("invalidation protocol : " + id);
-        }
-        LOGGER.info("basicServiceImpl: invalidation protocol - id: " + id + ", stationName: " + stationName);
         return stationIdCache.getOrInsert(id, stationName, headers);
     }
 
@@ -0,0 +1,92 @@
+package edu.fudan.common.config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.client.RestTemplateCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Puts a pooled, keep-alive Apache HttpClient behind every RestTemplate built
+ * from the RestTemplateBuilder, which is how the *Application classes build
+ * theirs. Without it each call opens a new connection and has no timeouts.
+ *
+ * @author fdse
+ */
+@Configuration
+@ConditionalOnClass({CloseableHttpClient.class, RestTemplateCustomizer.class})
+@EnableConfigurationProperties(HttpClientProperties.class)
+public class HttpClientAutoConfiguration {
+
+    @Bean
+    @ConditionalOnMissingBean
+    public PoolingHttpClientConnectionManager pooledConnectionManager(HttpClientProperties properties) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(properties.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(properties.getMaxPerRoute());
+        // a connection idle for a while may have been dropped by the peer, check it before reuse
+        connectionManager.setValidateAfterInactivity(properties.getIdleTimeout() / 3);
+        return connectionManager;
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public CloseableHttpClient pooledHttpClient(PoolingHttpClientConnectionManager connectionManager,
+            HttpClientProperties properties) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(properties.getConnectTimeout())
+                .setSocketTimeout(properties.getReadTimeout())
+                .setConnectionRequestTimeout(properties.getPoolAcquireTimeout())
+                .build();
+        long idleTimeout = properties.getIdleTimeout();
+        ConnectionKeepAliveStrategy keepAlive = (response, context) -> {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? Math.min(duration, idleTimeout) : idleTimeout;
+        };
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAlive)
+                .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+                .evictExpiredConnections()
+                .build();
+    }
+
+    @Bean
+    public RestTemplateCustomizer pooledHttpClientCustomizer(CloseableHttpClient pooledHttpClient) {
+        return restTemplate -> restTemplate.setRequestFactory(new HttpComponentsClientHttpRequestFactory(pooledHttpClient));
+    }
+
+    /**
+     * Leased, idle and waiting connections, exposed like the cache metrics through spring-boot-actuator
+     */
+    @Bean
+    public MeterBinder pooledHttpClientMetrics(PoolingHttpClientConnectionManager connectionManager) {
+        return registry -> {
+            Gauge.builder("http.client.pool.leased", connectionManager, cm -> cm.getTotalStats().getLeased())
+                    .description("Connections in use")
+                    .register(registry);
+            Gauge.builder("http.client.pool.available", connectionManager, cm -> cm.getTotalStats().getAvailable())
+                    .description("Idle connections kept alive for reuse")
+                    .register(registry);
+            Gauge.builder("http.client.pool.pending", connectionManager, cm -> cm.getTotalStats().getPending())
+                    .description("Requests waiting for a connection")
+                    .register(registry);
+            Gauge.builder("http.client.pool.max", connectionManager, cm -> cm.getTotalStats().getMax())
+                    .description("Maximum number of connections")
+                    .register(registry);
+        };
+    }
+}
@@ -0,0 +1,76 @@
+package edu.fudan.common.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+/**
+ * Pool size and timeouts of the HTTP client behind every service RestTemplate,
+ * set per service under ts.http-client in application.yml. Times are in milliseconds.
+ *
+ * @author fdse
+ */
+@ConfigurationProperties(prefix = "ts.http-client")
+public class HttpClientProperties {
+
+    private int maxTotal = 200;
+
+    // a call chain such as preserve fans out to a dozen services, one route per service
+    private int maxPerRoute = 50;
+
+    private int connectTimeout = 2000;
+
+    private int readTimeout = 10000;
+
+    // how long a request waits for a free pooled connection
+    private int poolAcquireTimeout = 1000;
+
+    // below Tomcat's default keep-alive timeout of 20s, so the server never closes a connection we are about to reuse
+    private int idleTimeout = 15000;
+
+    public int getMaxTotal() {
+        return maxTotal;
+    }
+
+    public void setMaxTotal(int maxTotal) {
+        this.maxTotal = maxTotal;
+    }
+
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    public void setMaxPerRoute(int maxPerRoute) {
+        this.maxPerRoute = maxPerRoute;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public int getPoolAcquireTimeout() {
+        return poolAcquireTimeout;
+    }
+
+    public void setPoolAcquireTimeout(int poolAcquireTimeout) {
+        this.poolAcquireTimeout = poolAcquireTimeout;
+    }
+
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+}
@@ -0,0 +1,15 @@
+package edu.fudan.common.exception;
+
+/**
+ * @author fdse
+ */
+public class CacheLoadException extends BaseException {
+
+    public CacheLoadException(String message) {
+        super(message);
+    }
+
+    public CacheLoadException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,91 @@
+package edu.fudan.common.invalidation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers events to the caches of this JVM and POSTs them to the
+ * {@link InvalidationReceiverFilter#PATH} of every subscriber service.
+ *
+ * The fan-out runs on one background thread per subscriber so that the owner's
+ * write does not wait for its consumers, a slow subscriber does not hold up the
+ * others and every subscriber receives the events in the order they were sent.
+ * A subscriber that is down misses the event and falls back to its verification
+ * and eviction; events are not retried. Every
+ * post carries the shared secret the subscriber authenticates it with.
+ *
+ * @author fdse
+ */
+public class HttpInvalidationTransport implements InvalidationTransport {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HttpInvalidationTransport.class);
+
+    private static final int MAX_PENDING = 1000;
+
+    private final RestTemplate restTemplate;
+    private final HttpHeaders headers = new HttpHeaders();
+    // subscriber url to the thread posting to it
+    private final Map<String, ExecutorService> executors = new LinkedHashMap<>();
+
+    /**
+     * @param subscribers base urls of the caching services, e.g. http://ts-travel-service:12346
+     * @param secret      secret shared by the services of the bus
+     */
+    public HttpInvalidationTransport(RestTemplate restTemplate, List<String> subscribers, String secret) {
+        this.restTemplate = restTemplate;
+        this.headers.set(InvalidationSecretFilter.SECRET_HEADER, secret);
+        for (String subscriber : subscribers) {
+            String url = subscriber.replaceAll("/+$", "") + InvalidationReceiverFilter.PATH;
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(MAX_PENDING), runnable -> {
+                        Thread thread = new Thread(runnable, "invalidation-fanout");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executors.put(url, pool);
+        }
+    }
+
+    @Override
+    public void send(InvalidationEvent event) {
+        InvalidationBus.deliver(event);
+        for (Map.Entry<String, ExecutorService> subscriber : executors.entrySet()) {
+            String url = subscriber.getKey();
+            try {
+                subscriber.getValue().execute(() -> post(url, event));
+            } catch (RejectedExecutionException e) {
+                HttpInvalidationTransport.LOGGER.warn("[Invalidation Transport] Queue full, dropped. Event: {}, url: {}",
+                        event, url);
+            }
+        }
+    }
+
+    private void post(String url, InvalidationEvent event) {
+        try {
+            restTemplate.postForEntity(url, new HttpEntity<>(event, headers), Integer.class);
+        } catch (RestClientException e) {
+            HttpInvalidationTransport.LOGGER.warn("[Invalidation Transport] Delivery failed. Event: {}, url: {}, reason: {}",
+                    event, url, e.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        for (ExecutorService executor : executors.values()) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package edu.fudan.common.invalidation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpMethod;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
+import org.springframework.util.StringUtils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sets up the invalidation bus for every service that depends on ts-common.
+ *
+ * Owning services list their consumers in ts.invalidation.subscribers, e.g.
+ * http://ts-travel-service:12346,http://ts-basic-service:15680, and inject
+ * the InvalidationPublisher. Without subscribers events stay in this JVM.
+ *
+ * Every service of the bus shares ts.invalidation.secret, e.g. from the
+ * TS_INVALIDATION_SECRET environment variable. Posts without it are rejected,
+ * and without a secret events stay in this JVM.
+ *
+ * @author fdse
+ */
+@Configuration
+@ConditionalOnWebApplication
+public class InvalidationAutoConfiguration {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InvalidationAutoConfiguration.class);
+
+    @Value("${ts.invalidation.subscribers:}")
+    private String subscribers;
+
+    @Value("${ts.invalidation.secret:}")
+    private String secret;
+
+    @Bean
+    @ConditionalOnMissingBean
+    public InvalidationTransport invalidationTransport(RestTemplateBuilder builder) {
+        List<String> urls = Arrays.asList(StringUtils.commaDelimitedListToStringArray(
+                StringUtils.trimAllWhitespace(subscribers)));
+        if (urls.isEmpty()) {
+            return new LocalInvalidationTransport();
+        }
+        if (StringUtils.isEmpty(secret)) {
+            InvalidationAutoConfiguration.LOGGER.warn("[Invalidation Bus] ts.invalidation.secret not set, events to {} are not sent", urls);
+            return new LocalInvalidationTransport();
+        }
+        return new HttpInvalidationTransport(builder.build(), urls, secret);
+    }
+
+    @Bean
+    @ConditionalOnMissingBean
+    public InvalidationPublisher invalidationPublisher(InvalidationTransport invalidationTransport) {
+        return new InvalidationPublisher(invalidationTransport);
+    }
+
+    /**
+     * Runs after the security filter chain, which lets through only the posts carrying the secret
+     */
+    @Bean
+    public FilterRegistrationBean invalidationReceiverFilter() {
+        FilterRegistrationBean registration = new FilterRegistrationBean(new InvalidationReceiverFilter());
+        registration.addUrlPatterns(InvalidationReceiverFilter.PATH);
+        registration.setOrder(SecurityProperties.DEFAULT_FILTER_ORDER + 1);
+        return registration;
+    }
+
+    /**
+     * Security of the invalidation path, ahead of the service's own configuration which
+     * matches every path. The owning services post without a user token.
+     */
+    @Configuration
+    @Order(Ordered.HIGHEST_PRECEDENCE)
+    public static class InvalidationSecurityConfiguration extends WebSecurityConfigurerAdapter {
+
+        @Value("${ts.invalidation.secret:}")
+        private String secret;
+
+        @Override
+        protected void configure(HttpSecurity httpSecurity) throws Exception {
+            httpSecurity.antMatcher(InvalidationReceiverFilter.PATH)
+                    .httpBasic().disable()
+                    .csrf().disable()
+                    .sessionManagement().sessionCreationPolicy(SessionCreationPolicy.STATELESS)
+                    .and()
+                    .authorizeRequests()
+                    .antMatchers(HttpMethod.POST, InvalidationReceiverFilter.PATH).hasRole(InvalidationSecretFilter.ROLE)
+                    .anyRequest().denyAll()
+                    .and()
+                    .addFilterBefore(new InvalidationSecretFilter(secret), UsernamePasswordAuthenticationFilter.class);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package edu.fudan.common.invalidation;
+
+import edu.fudan.common.util.ConsistencyCheckedCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The caches of this JVM that receive invalidation events.
+ *
+ * Every ConsistencyCheckedCache subscribes on construction, which happens in
+ * field initializers before any Spring bean could be injected, so the
+ * subscribers are kept here rather than in the application context. Caches are
+ * held weakly.
+ *
+ * Listeners are registered by beans that apply the changes an event carries,
+ * they are held until unlistened.
+ *
+ * @author fdse
+ */
+public final class InvalidationBus {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InvalidationBus.class);
+
+    private static final Set<ConsistencyCheckedCache<?, ?, ?>> SUBSCRIBERS =
+            Collections.newSetFromMap(new WeakHashMap<ConsistencyCheckedCache<?, ?, ?>, Boolean>());
+
+    private static final Map<String, List<InvalidationListener>> LISTENERS = new ConcurrentHashMap<>();
+
+    private InvalidationBus() {
+    }
+
+    public static void subscribe(ConsistencyCheckedCache<?, ?, ?> cache) {
+        synchronized (SUBSCRIBERS) {
+            SUBSCRIBERS.add(cache);
+        }
+    }
+
+    public static void unsubscribe(ConsistencyCheckedCache<?, ?, ?> cache) {
+        synchronized (SUBSCRIBERS) {
+            SUBSCRIBERS.remove(cache);
+        }
+    }
+
+    /**
+     * @param entityType one of the entity types in CacheTags
+     */
+    public static void listen(String entityType, InvalidationListener listener) {
+        LISTENERS.computeIfAbsent(entityType, type -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    public static void unlisten(String entityType, InvalidationListener listener) {
+        List<InvalidationListener> listeners = LISTENERS.get(entityType);
+        if (listeners != null) {
+            listeners.remove(listener);
+        }
+    }
+
+    /**
+     * Drops the entries tagged with the event's tag from every subscribed cache,
+     * then passes the event to the listeners of its entity type.
+     *
+     * @return number of entries dropped
+     */
+    public static int deliver(InvalidationEvent event) {
+        List<ConsistencyCheckedCache<?, ?, ?>> caches;
+        synchronized (SUBSCRIBERS) {
+            caches = new ArrayList<>(SUBSCRIBERS);
+        }
+        String tag = event.getTag();
+        int removed = 0;
+        for (ConsistencyCheckedCache<?, ?, ?> cache : caches) {
+            removed += cache.invalidateTag(tag);
+        }
+        InvalidationBus.LOGGER.debug("[Invalidation Bus] Event: {}, caches: {}, entries dropped: {}",
+                tag, caches.size(), removed);
+        List<InvalidationListener> listeners = LISTENERS.get(event.getEntityType());
+        if (listeners != null) {
+            for (InvalidationListener listener : listeners) {
+                try {
+                    listener.onEvent(event);
+                } catch (RuntimeException e) {
+                    InvalidationBus.LOGGER.warn("[Invalidation Bus] Listener failed. Event: {}", tag, e);
+                }
+            }
+        }
+        return removed;
+    }
+}
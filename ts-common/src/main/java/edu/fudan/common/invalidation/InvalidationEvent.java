@@ -0,0 +1,93 @@
+package edu.fudan.common.invalidation;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.fudan.common.util.CacheTags;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Change of one entity, published by the service that owns it after a
+ * successful write. Caches drop every entry tagged with {@link #getTag()}.
+ *
+ * An event may also carry the changes themselves, for the listeners that keep
+ * a view up to date instead of dropping it, see InvalidationBus#listen.
+ *
+ * @author fdse
+ */
+public class InvalidationEvent {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    // one of the entity types in CacheTags, e.g. route
+    private String entityType;
+
+    private String key;
+
+    // entities of the owner's own classes, JSON objects once posted to a subscriber
+    private List<Object> changes;
+
+    public InvalidationEvent() {
+        // for JSON deserialization
+    }
+
+    public InvalidationEvent(String entityType, String key) {
+        this.entityType = entityType;
+        this.key = key;
+    }
+
+    public InvalidationEvent(String entityType, String key, List<?> changes) {
+        this(entityType, key);
+        this.changes = changes == null ? null : new ArrayList<Object>(changes);
+    }
+
+    public String getEntityType() {
+        return entityType;
+    }
+
+    public void setEntityType(String entityType) {
+        this.entityType = entityType;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public List<Object> getChanges() {
+        return changes;
+    }
+
+    public void setChanges(List<Object> changes) {
+        this.changes = changes;
+    }
+
+    /**
+     * The changes converted to the listener's own class, matched by property names
+     */
+    public <C> List<C> changesAs(Class<C> type) {
+        if (changes == null) {
+            return Collections.emptyList();
+        }
+        List<C> converted = new ArrayList<>(changes.size());
+        for (Object change : changes) {
+            converted.add(MAPPER.convertValue(change, type));
+        }
+        return converted;
+    }
+
+    public String getTag() {
+        return CacheTags.of(entityType, key);
+    }
+
+    @Override
+    public String toString() {
+        return getTag();
+    }
+}
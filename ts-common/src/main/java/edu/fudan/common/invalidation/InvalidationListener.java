@@ -0,0 +1,12 @@
+package edu.fudan.common.invalidation;
+
+/**
+ * Receives the events of one entity type, after the caches of this JVM dropped
+ * the entries tagged with them.
+ *
+ * @author fdse
+ */
+public interface InvalidationListener {
+
+    void onEvent(InvalidationEvent event);
+}
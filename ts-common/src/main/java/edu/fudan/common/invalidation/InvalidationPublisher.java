@@ -0,0 +1,48 @@
+package edu.fudan.common.invalidation;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Publishes changes of entities owned by this service, call after the write succeeded.
+ *
+ * @author fdse
+ */
+public class InvalidationPublisher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(InvalidationPublisher.class);
+
+    private final InvalidationTransport transport;
+
+    public InvalidationPublisher(InvalidationTransport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * @param entityType one of the entity types in CacheTags
+     */
+    public void publish(String entityType, String key) {
+        publish(entityType, key, null);
+    }
+
+    /**
+     * Publishes the changes along with the event, for the listeners of entityType.
+     * Delivery is asynchronous and not retried, a listener must tolerate a lost change.
+     *
+     * @param entityType one of the entity types in CacheTags
+     */
+    public void publish(String entityType, String key, List<?> changes) {
+        if (key == null) {
+            return;
+        }
+        InvalidationEvent event = new InvalidationEvent(entityType, key, changes);
+        try {
+            transport.send(event);
+        } catch (RuntimeException e) {
+            // the write already succeeded, caches fall back to verification and eviction
+            InvalidationPublisher.LOGGER.warn("[Invalidation Publisher] Publish failed. Event: {}", event, e);
+        }
+    }
+}
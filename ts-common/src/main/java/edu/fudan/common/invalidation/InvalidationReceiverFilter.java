@@ -0,0 +1,51 @@
+package edu.fudan.common.invalidation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.HttpMethod;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Receives invalidation events posted by owning services and delivers them to
+ * the caches of this JVM. The answer is the number of entries dropped.
+ *
+ * Registered after the security filter chain, which has already rejected the
+ * posts without the shared secret, see InvalidationSecretFilter.
+ *
+ * @author fdse
+ */
+public class InvalidationReceiverFilter extends OncePerRequestFilter {
+
+    public static final String PATH = "/invalidations";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        if (!HttpMethod.POST.matches(request.getMethod())
+                || !(request.getContextPath() + PATH).equals(request.getRequestURI())) {
+            filterChain.doFilter(request, response);
+            return;
+        }
+        InvalidationEvent event;
+        try {
+            event = objectMapper.readValue(request.getInputStream(), InvalidationEvent.class);
+        } catch (IOException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Malformed invalidation event");
+            return;
+        }
+        if (event.getEntityType() == null || event.getKey() == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalidation event needs entityType and key");
+            return;
+        }
+        int removed = InvalidationBus.deliver(event);
+        response.setContentType("application/json");
+        response.getWriter().write(String.valueOf(removed));
+    }
+}
@@ -0,0 +1,45 @@
+package edu.fudan.common.invalidation;
+
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.authentication.preauth.PreAuthenticatedAuthenticationToken;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Authenticates an invalidation post that carries the secret shared by the services
+ * of the bus. Without a configured secret no post is authenticated.
+ *
+ * @author fdse
+ */
+public class InvalidationSecretFilter extends OncePerRequestFilter {
+
+    public static final String SECRET_HEADER = "X-Invalidation-Secret";
+
+    static final String ROLE = "INVALIDATION";
+
+    private final byte[] secret;
+
+    public InvalidationSecretFilter(String secret) {
+        this.secret = secret == null ? new byte[0] : secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String given = request.getHeader(SECRET_HEADER);
+        if (secret.length > 0 && given != null
+                && MessageDigest.isEqual(secret, given.getBytes(StandardCharsets.UTF_8))) {
+            SecurityContextHolder.getContext().setAuthentication(new PreAuthenticatedAuthenticationToken(
+                    "invalidation-bus", null, AuthorityUtils.createAuthorityList("ROLE_" + ROLE)));
+        }
+        filterChain.doFilter(request, response);
+    }
+}
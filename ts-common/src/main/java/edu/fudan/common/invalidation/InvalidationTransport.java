@@ -0,0 +1,11 @@
+package edu.fudan.common.invalidation;
+
+/**
+ * Carries invalidation events from the owning service to the caching services.
+ *
+ * @author fdse
+ */
+public interface InvalidationTransport {
+
+    void send(InvalidationEvent event);
+}
@@ -0,0 +1,15 @@
+package edu.fudan.common.invalidation;
+
+/**
+ * Delivers events to the caches of this JVM only. Used when no subscriber
+ * services are configured, and in tests in place of the HTTP fan-out.
+ *
+ * @author fdse
+ */
+public class LocalInvalidationTransport implements InvalidationTransport {
+
+    @Override
+    public void send(InvalidationEvent event) {
+        InvalidationBus.deliver(event);
+    }
+}
@@ -1,5 +1,6 @@
 package edu.fudan.common.security.jwt;
 
+import edu.fudan.common.exception.TokenException;
 import io.jsonwebtoken.JwtException;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
@@ -18,15 +19,13 @@ public class JWTFilter extends OncePerRequestFilter {
 
     @Override
     protected void doFilterInternal(HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse, FilterChain filterChain) throws ServletException, IOException {
-        // try {
-        //     Authentication authentication =
-        //             JWTUtil.
-        //                     getJWTAuthentication(httpServletRequest);
-        //     SecurityContextHolder.getContext().setAuthentication(authentication);
-        //     filterChain.doFilter(httpServletRequest, httpServletResponse);
-        // } catch (JwtException e) {
-        //     httpServletResponse.setStatus(HttpServletResponse.SC_UNAUTHORIZED);
-        // }
-	filterChain.doFilter(httpServletRequest, httpServletResponse);
+        try {
+            Authentication authentication = JWTUtil.getJWTAuthentication(httpServletRequest);
+            SecurityContextHolder.getContext().setAuthentication(authentication);
+        } catch (TokenException | JwtException e) {
+            // left unauthenticated, endpoints requiring a role reject the request themselves
+            SecurityContextHolder.clearContext();
+        }
+        filterChain.doFilter(httpServletRequest, httpServletResponse);
     }
 }
@@ -1,6 +1,7 @@
 package edu.fudan.common.security.jwt;
 
 import edu.fudan.common.exception.TokenException;
+import edu.fudan.common.security.jwt.VerifiedTokenCache.VerifiedToken;
 import io.jsonwebtoken.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,6 +15,7 @@ import javax.servlet.ServletRequest;
 import javax.servlet.http.HttpServletRequest;
 import java.util.Base64;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -30,60 +32,79 @@ public class JWTUtil {
     private static final Logger LOGGER = LoggerFactory.getLogger(JWTUtil.class);
     private static String secretKey = Base64.getEncoder().encodeToString("secret".getBytes());
 
+    // verified tokens of the last requests, so a repeated bearer token is parsed and verified once
+    static final VerifiedTokenCache VERIFIED_TOKENS = new VerifiedTokenCache(10000);
 
     public static Authentication getJWTAuthentication(ServletRequest request) {
         String token = getTokenFromHeader((HttpServletRequest) request);
-        if (token != null && validateToken(token)) {
-
-            UserDetails userDetails = new UserDetails() {
-                @Override
-                public Collection<? extends GrantedAuthority> getAuthorities() {
-                    return getRole(token).stream().map(SimpleGrantedAuthority::new).collect(Collectors.toList());
-                }
-
-                @Override
-                public String getPassword() {
-                    return "";
-                }
-
-                @Override
-                public String getUsername() {
-                    return getUserName(token);
-                }
-
-                @Override
-                public boolean isAccountNonExpired() {
-                    return true;
-                }
-
-                @Override
-                public boolean isAccountNonLocked() {
-                    return true;
-                }
-
-                @Override
-                public boolean isCredentialsNonExpired() {
-                    return true;
-                }
-
-                @Override
-                public boolean isEnabled() {
-                    return true;
-                }
-            };
-            // send to spring security
-            return new UsernamePasswordAuthenticationToken(userDetails, "", userDetails.getAuthorities());
+        if (token != null) {
+            return authenticationOf(token);
         }
         return null;
     }
 
-    private static String getUserName(String token) {
-        return getClaims(token).getBody().getSubject();
+    static Authentication authenticationOf(String token) {
+        VerifiedToken verified = verify(token);
+        UserDetails userDetails = new UserDetails() {
+            @Override
+            public Collection<? extends GrantedAuthority> getAuthorities() {
+                return verified.getAuthorities();
+            }
+
+            @Override
+            public String getPassword() {
+                return "";
+            }
+
+            @Override
+            public String getUsername() {
+                return verified.getUsername();
+            }
+
+            @Override
+            public boolean isAccountNonExpired() {
+                return true;
+            }
+
+            @Override
+            public boolean isAccountNonLocked() {
+                return true;
+            }
+
+            @Override
+            public boolean isCredentialsNonExpired() {
+                return true;
+            }
+
+            @Override
+            public boolean isEnabled() {
+                return true;
+            }
+        };
+        // send to spring security
+        return new UsernamePasswordAuthenticationToken(userDetails, "", userDetails.getAuthorities());
     }
 
-    private static List<String> getRole(String token) {
-        Jws<Claims> claimsJws = getClaims(token);
-        return (List<String>) (claimsJws.getBody().get("roles", List.class));
+    static VerifiedToken verify(String token) {
+        long now = System.currentTimeMillis();
+        String key = VerifiedTokenCache.keyOf(token);
+        VerifiedToken verified = VERIFIED_TOKENS.get(key, now);
+        if (verified == null) {
+            verified = verifiedTokenOf(validateToken(token));
+            VERIFIED_TOKENS.put(key, verified, now);
+        }
+        return verified;
+    }
+
+    private static VerifiedToken verifiedTokenOf(Claims claims) {
+        List<String> roles = (List<String>) claims.get("roles", List.class);
+        List<GrantedAuthority> authorities = Collections.emptyList();
+        if (roles != null) {
+            authorities = Collections.unmodifiableList(roles.stream()
+                    .map(role -> (GrantedAuthority) new SimpleGrantedAuthority(role))
+                    .collect(Collectors.toList()));
+        }
+        return new VerifiedToken(claims.getSubject(), authorities, claims.getExpiration().getTime());
     }
 
     private static String getTokenFromHeader(HttpServletRequest request) {
@@ -94,10 +115,19 @@ public class JWTUtil {
         return null;
     }
 
-    private static boolean validateToken(String token) {
+    private static Claims validateToken(String token) {
         try {
-            Jws<Claims> claimsJws = getClaims(token);
-            return !claimsJws.getBody().getExpiration().before(new Date());
+            Claims claims = getClaims(token).getBody();
+            // a token is cached until it expires, one that never does is not accepted
+            if (claims.getExpiration() == null) {
+                LOGGER.error("Token without expiration");
+                throw new TokenException("Token format error");
+            }
+            if (claims.getExpiration().before(new Date())) {
+                LOGGER.error("Token expired: {}", claims.getExpiration());
+                throw new TokenException("Token expired");
+            }
+            return claims;
         } catch (ExpiredJwtException e) {
             LOGGER.error("Token expired: {} " + e);
             throw new TokenException("Token expired");
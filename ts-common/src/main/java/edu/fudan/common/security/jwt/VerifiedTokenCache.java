@@ -0,0 +1,132 @@
+package edu.fudan.common.security.jwt;
+
+import org.springframework.security.core.GrantedAuthority;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tokens whose signature was verified, keyed by the SHA-256 digest of the token and
+ * kept until the token expires, so that a client sending the same bearer token again
+ * is not parsed and verified again. Only verified tokens get in, and a digest only
+ * matches its own token, so a hit is as good as a verification.
+ *
+ * @author fdse
+ */
+final class VerifiedTokenCache {
+
+    private final int maxEntries;
+
+    private final Map<String, VerifiedToken> tokens = new ConcurrentHashMap<>();
+
+    private final LongAdder hitCount = new LongAdder();
+
+    private final LongAdder missCount = new LongAdder();
+
+    private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    VerifiedTokenCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    static String keyOf(String token) {
+        return Base64.getEncoder().encodeToString(DIGESTS.get().digest(token.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @return the verified token, null when it is not cached or expired at now
+     */
+    VerifiedToken get(String key, long now) {
+        VerifiedToken verified = tokens.get(key);
+        if (verified != null && verified.getExpiresAt() > now) {
+            hitCount.increment();
+            return verified;
+        }
+        if (verified != null) {
+            tokens.remove(key, verified);
+        }
+        missCount.increment();
+        return null;
+    }
+
+    void put(String key, VerifiedToken verified, long now) {
+        tokens.put(key, verified);
+        if (tokens.size() > maxEntries) {
+            evict(now);
+        }
+    }
+
+    int size() {
+        return tokens.size();
+    }
+
+    long getHitCount() {
+        return hitCount.sum();
+    }
+
+    long getMissCount() {
+        return missCount.sum();
+    }
+
+    void clear() {
+        tokens.clear();
+        hitCount.reset();
+        missCount.reset();
+    }
+
+    private void evict(long now) {
+        tokens.values().removeIf(verified -> verified.getExpiresAt() <= now);
+        // then any token, it is verified again on its next request
+        Iterator<String> keys = tokens.keySet().iterator();
+        while (tokens.size() > maxEntries && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    /**
+     * What a request needs from a verified token
+     */
+    static final class VerifiedToken {
+
+        private final String username;
+
+        private final List<GrantedAuthority> authorities;
+
+        private final long expiresAt;
+
+        VerifiedToken(String username, List<GrantedAuthority> authorities, long expiresAt) {
+            this.username = username;
+            this.authorities = authorities;
+            this.expiresAt = expiresAt;
+        }
+
+        String getUsername() {
+            return username;
+        }
+
+        List<GrantedAuthority> getAuthorities() {
+            return authorities;
+        }
+
+        long getExpiresAt() {
+            return expiresAt;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package edu.fudan.common.util;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Registers the meters of a ConsistencyCheckedCache, tagged with the cache name.
+ *
+ * Caches are created before Spring's MeterRegistry, so the meters go to the
+ * global registry, which forwards them to the registry that spring-boot-actuator
+ * exposes once it is added. Counters and gauges read the cache's own counters
+ * when scraped and hold the cache weakly.
+ *
+ * @author fdse
+ */
+public final class CacheMetrics {
+
+    private CacheMetrics() {
+    }
+
+    static <K, T, V> Timer bind(ConsistencyCheckedCache<K, T, V> cache) {
+        return bind(cache, Metrics.globalRegistry);
+    }
+
+    /**
+     * @return the timer to record loader latency with
+     */
+    private static <K, T, V> Timer bind(ConsistencyCheckedCache<K, T, V> cache, MeterRegistry registry) {
+        Tags tags = Tags.of("cache", cache.getName());
+
+        FunctionCounter.builder("cache.gets", cache, ConsistencyCheckedCache::getHitCount)
+                .tags(tags).tag("result", "hit")
+                .description("Lookups answered from the cache")
+                .register(registry);
+        FunctionCounter.builder("cache.gets", cache, ConsistencyCheckedCache::getColdMiss)
+                .tags(tags).tag("result", "miss")
+                .description("Lookups that had to call the loader or wait for another caller's load")
+                .register(registry);
+        FunctionCounter.builder("cache.coalesced", cache, ConsistencyCheckedCache::getCoalescedCount)
+                .tags(tags)
+                .description("Misses that waited for an in-flight load instead of calling the loader")
+                .register(registry);
+        FunctionCounter.builder("cache.verifications", cache, ConsistencyCheckedCache::getVerifyCount)
+                .tags(tags)
+                .description("Hits checked against the loader")
+                .register(registry);
+        FunctionCounter.builder("cache.not.modified", cache, ConsistencyCheckedCache::getNotModifiedCount)
+                .tags(tags)
+                .description("Verifications the owner confirmed with 304 Not Modified")
+                .register(registry);
+        FunctionCounter.builder("cache.divergences", cache, ConsistencyCheckedCache::getDivergeCount)
+                .tags(tags)
+                .description("Verified hits whose cached value differed from the loader's")
+                .register(registry);
+        FunctionCounter.builder("cache.evictions", cache, ConsistencyCheckedCache::getEvictionCount)
+                .tags(tags)
+                .description("Entries dropped by the eviction policy")
+                .register(registry);
+        FunctionCounter.builder("cache.invalidations", cache, ConsistencyCheckedCache::getInvalidateCount)
+                .tags(tags)
+                .description("Invalidation requests by request id or tag")
+                .register(registry);
+        FunctionCounter.builder("cache.invalidations.redundant", cache, ConsistencyCheckedCache::getRedundantInvalidateCount)
+                .tags(tags)
+                .description("Invalidations by request id that found nothing to drop")
+                .register(registry);
+
+        Gauge.builder("cache.size", cache, ConsistencyCheckedCache::size)
+                .tags(tags)
+                .description("Number of cached entries")
+                .register(registry);
+        Gauge.builder("cache.hit.ratio", cache, CacheMetrics::hitRatio)
+                .tags(tags)
+                .description("Hits over all lookups since start")
+                .register(registry);
+        Gauge.builder("cache.invalidation.index.bytes", cache, ConsistencyCheckedCache::getIndexBytes)
+                .tags(tags)
+                .description("Estimated heap used by the request id invalidation index")
+                .register(registry);
+
+        return Timer.builder("cache.load")
+                .tags(tags)
+                .description("Loader latency on misses and verifications")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(registry);
+    }
+
+    private static double hitRatio(ConsistencyCheckedCache<?, ?, ?> cache) {
+        long queries = cache.getQueryCount();
+        return queries == 0 ? Double.NaN : (double) cache.getHitCount() / queries;
+    }
+}
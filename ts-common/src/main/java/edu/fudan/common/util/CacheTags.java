@@ -0,0 +1,102 @@
+package edu.fudan.common.util;
+
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Tag names shared by the services that cache data owned by other services,
+ * so that a tag built in one service matches the entries tagged in another.
+ *
+ * A tag is an entity type and a key, e.g. route:92708982-77af-4318-be25-57ccb0ff69ad,
+ * the same pair an owning service publishes on the invalidation bus.
+ *
+ * @author fdse
+ */
+public final class CacheTags {
+
+    public static final String TRIP = "trip";
+
+    public static final String DATE = "date";
+
+    public static final String ROUTE = "route";
+
+    public static final String TRAIN_TYPE = "train";
+
+    public static final String PRICE = "price";
+
+    public static final String STATION = "station";
+
+    public static final String SECURITY_CONFIG = "securityConfig";
+
+    // orders of one account, carries the changes to the order counts kept by ts-security-service
+    public static final String ACCOUNT_ORDERS = "accountOrders";
+
+    private CacheTags() {
+    }
+
+    public static String of(String entityType, String key) {
+        return entityType + ":" + key;
+    }
+
+    public static String trip(String tripId) {
+        return of(TRIP, tripId);
+    }
+
+    public static String date(Date date) {
+        return of(DATE, day(date));
+    }
+
+    /**
+     * Tag of everything cached for one train on one travel day, e.g. trip:G1234@2026-10-20
+     */
+    public static String tripDate(String tripId, Date date) {
+        return of(TRIP, tripDateKey(tripId, date));
+    }
+
+    public static String tripDateKey(String tripId, Date date) {
+        return tripId + "@" + day(date);
+    }
+
+    public static String route(String routeId) {
+        return of(ROUTE, routeId);
+    }
+
+    public static String trainType(String trainTypeId) {
+        return of(TRAIN_TYPE, trainTypeId);
+    }
+
+    public static String price(String routeId, String trainType) {
+        return of(PRICE, priceKey(routeId, trainType));
+    }
+
+    public static String priceKey(String routeId, String trainType) {
+        return routeId + "/" + trainType;
+    }
+
+    public static String station(String stationName) {
+        return of(STATION, stationName);
+    }
+
+    public static String securityConfig(String name) {
+        return of(SECURITY_CONFIG, name);
+    }
+
+    /**
+     * Tags of a travel query result, which ts-basic-service computes from the
+     * trip's route, train type and price config and the two stations
+     */
+    public static List<String> travel(String tripId, String routeId, String trainTypeId,
+            String startingPlace, String endPlace) {
+        return Arrays.asList(trip(tripId), route(routeId), trainType(trainTypeId),
+                price(routeId, trainTypeId), station(startingPlace), station(endPlace));
+    }
+
+    private static String day(Date date) {
+        if (date == null) {
+            return "";
+        }
+        return date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toString();
+    }
+}
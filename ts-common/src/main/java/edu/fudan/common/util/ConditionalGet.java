@@ -0,0 +1,52 @@
+package edu.fudan.common.util;
+
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * GET with If-None-Match, for endpoints served behind a ShallowEtagHeaderFilter.
+ * A 304 answer has no body, so nothing is transferred or deserialized when the
+ * cached value is still current.
+ *
+ * @author fdse
+ */
+public final class ConditionalGet {
+
+    private ConditionalGet() {
+    }
+
+    public static <V> Versioned<V> exchange(RestTemplate restTemplate, String url, HttpHeaders headers, String etag,
+            Class<V> responseType) {
+        ResponseEntity<V> re = restTemplate.exchange(url, HttpMethod.GET, request(headers, etag), responseType);
+        return toVersioned(re);
+    }
+
+    public static <V> Versioned<V> exchange(RestTemplate restTemplate, String url, HttpHeaders headers, String etag,
+            ParameterizedTypeReference<V> responseType) {
+        ResponseEntity<V> re = restTemplate.exchange(url, HttpMethod.GET, request(headers, etag), responseType);
+        return toVersioned(re);
+    }
+
+    private static HttpEntity<Void> request(HttpHeaders headers, String etag) {
+        HttpHeaders requestHeaders = new HttpHeaders();
+        if (headers != null) {
+            requestHeaders.putAll(headers);
+        }
+        if (etag != null) {
+            requestHeaders.setIfNoneMatch(etag);
+        }
+        return new HttpEntity<>(requestHeaders);
+    }
+
+    private static <V> Versioned<V> toVersioned(ResponseEntity<V> re) {
+        if (re.getStatusCode() == HttpStatus.NOT_MODIFIED) {
+            return Versioned.notModified();
+        }
+        return Versioned.of(re.getBody(), re.getHeaders().getETag());
+    }
+}
@@ -0,0 +1,17 @@
+package edu.fudan.common.util;
+
+/**
+ * Loader of a ConsistencyCheckedCache that can revalidate a cached value.
+ *
+ * @author fdse
+ */
+@FunctionalInterface
+public interface ConditionalLoader<K, T, V> {
+
+    /**
+     * @param etag ETag of the cached value, null on a miss
+     * @return the current value with its ETag, or {@link Versioned#notModified()}
+     * if the owner reports that the value behind etag is still current
+     */
+    Versioned<V> load(K key, T extraArg, String etag);
+}
@@ -1,114 +1,596 @@
 package edu.fudan.common.util;
 
+import edu.fudan.common.exception.CacheLoadException;
+import edu.fudan.common.invalidation.InvalidationBus;
+import edu.fudan.common.util.eviction.ClockPolicy;
+import edu.fudan.common.util.eviction.EvictionPolicy;
+import io.micrometer.core.instrument.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiFunction;
-import java.util.HashMap;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * Bounded cache in front of a remote lookup, shared by all request threads.
+ *
+ * By default the cache is read-through: a hit is answered from the map and
+ * the getter is only called on a miss. A positive verifyInterval turns on
+ * sampled verification, where on average every Nth hit also calls the getter,
+ * compares the fresh value with the cached one and replaces it on divergence.
+ * A verifyInterval of 1 verifies every hit.
+ *
+ * With a {@link ConditionalLoader} the cache keeps the ETag of every entry and
+ * verification sends it along; an owner answering 304 confirms the cached
+ * value without sending or deserializing it again.
+ *
+ * Entries live in a ConcurrentHashMap, so readers never take a lock. Which
+ * entries are dropped when the cache is full is decided by a pluggable
+ * {@link EvictionPolicy}, CLOCK by default. Inserts and removals are
+ * serialized by a write lock; they only happen after a remote call anyway.
+ *
+ * Concurrent misses on the same key are coalesced: only the first caller runs
+ * the getter, the others wait up to the load timeout for its result and see
+ * the same value or the same exception.
+ *
+ * Entries can carry tags derived from their key (see {@link CacheTags}), and
+ * invalidateTag drops every entry with a tag through a tag to keys index,
+ * without scanning the cache. Every cache subscribes to the {@link InvalidationBus},
+ * so a change published by the owning service drops the entries tagged with it.
+ *
+ * Hit, miss, eviction and loader latency metrics are registered per cache
+ * name, see {@link CacheMetrics}; cache names must be unique per service.
+ *
+ * @author fdse
+ */
+public class ConsistencyCheckedCache<K, T, V> {
 
-public class ConsistencyCheckedCache<K, T, V> extends LinkedHashMap<K, V> {
+    /**
+     * verifyInterval value that never calls the getter on a hit
+     */
+    public static final int READ_THROUGH = 0;
+
+    public static final long DEFAULT_LOAD_TIMEOUT_MILLIS = 10000;
 
     private String name;
     private boolean logging;
-    // currently cacheSize is not used
     private int cacheSize;
-    private int queryCount;
-    private int hitCount;
-    private int coldMiss;
-    private int invalidateCount;
-    private int invalidateRedundant;
-    // Key, extra argument, value
-    private BiFunction<K, T, V> getter;
-    // request id to cached keys mapping
-    private HashMap<String, K> idTokeys = new HashMap<>();
+    // verify every verifyInterval-th hit against the getter, 0 disables verification
+    private int verifyInterval;
+    // how long a caller waits for another caller's in-flight load of the same key
+    private volatile long loadTimeoutMillis = DEFAULT_LOAD_TIMEOUT_MILLIS;
+    private final LongAdder queryCount = new LongAdder();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder coldMiss = new LongAdder();
+    private final LongAdder coalescedCount = new LongAdder();
+    private final LongAdder verifyCount = new LongAdder();
+    private final LongAdder notModifiedCount = new LongAdder();
+    private final LongAdder divergeCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder invalidateCount = new LongAdder();
+    private final LongAdder invalidateRedundant = new LongAdder();
+    private final LongAdder tagInvalidateCount = new LongAdder();
+    private final Timer loadTimer;
+    // Key, extra argument, ETag of the cached value
+    private ConditionalLoader<K, T, V> loader;
+    // key to tags, null for untagged caches
+    private volatile Function<K, Collection<String>> tagger;
+    // request id to cached keys mapping, bounded and expiring
+    private final InvalidationIndex<K> idTokeys = new InvalidationIndex<>();
+
+    private final ConcurrentHashMap<K, Node<K, V>> entries = new ConcurrentHashMap<>();
+    // loads currently running, used to coalesce concurrent misses of the same key
+    private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+    // tag to keys index, guarded by writeLock
+    private final Map<String, Set<K>> tagIndex = new HashMap<>();
+    private volatile EvictionPolicy<K> evictionPolicy;
+    // guards inserts, removals, the eviction policy's bookkeeping and the tag index
+    private final ReentrantLock writeLock = new ReentrantLock();
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ConsistencyCheckedCache.class);
 
     public ConsistencyCheckedCache(String name, int cacheSize, boolean doLogging, BiFunction<K, T, V> getter) {
-        super(16, 0.75f, true);
+        this(name, cacheSize, doLogging, READ_THROUGH, getter);
+    }
+
+    public ConsistencyCheckedCache(String name, int cacheSize, boolean doLogging, int verifyInterval,
+            BiFunction<K, T, V> getter) {
+        this(name, cacheSize, doLogging, verifyInterval,
+                (ConditionalLoader<K, T, V>) (key, extraArg, etag) -> Versioned.of(getter.apply(key, extraArg), null));
+    }
+
+    public ConsistencyCheckedCache(String name, int cacheSize, boolean doLogging, int verifyInterval,
+            ConditionalLoader<K, T, V> loader) {
+        if (cacheSize <= 0) {
+            throw new IllegalArgumentException("cacheSize must be positive: " + cacheSize);
+        }
+        if (verifyInterval < 0) {
+            throw new IllegalArgumentException("verifyInterval must not be negative: " + verifyInterval);
+        }
         this.name = name;
         this.cacheSize = cacheSize;
-        this.getter = getter;
+        this.verifyInterval = verifyInterval;
+        this.loader = loader;
         this.logging = doLogging;
-        queryCount = 0;
-        hitCount = 0;
-        invalidateCount = 0;
-        invalidateRedundant = 0;
-        coldMiss = 0;
+        this.evictionPolicy = new ClockPolicy<>(cacheSize);
+        this.loadTimer = CacheMetrics.bind(this);
+        InvalidationBus.subscribe(this);
     }
 
-    public V getOrInsert(String id, K key, T extraArg) {
-        long t0 = System.nanoTime();
-        V result = getter.apply(key, extraArg);
-        long t1 = System.nanoTime();
-        V cached = get(key);
-        long t2 = System.nanoTime();
-        printLog("time period 1: " + (t1 - t0) + ", time period 2: " + (t2 - t1), false);
+    /**
+     * Replaces the default CLOCK eviction, e.g. with WindowTinyLfuPolicy::new.
+     * Must be called before the cache is used.
+     *
+     * @param policyFactory creates the policy for the cache size
+     * @return this cache
+     */
+    public ConsistencyCheckedCache<K, T, V> withEvictionPolicy(IntFunction<EvictionPolicy<K>> policyFactory) {
+        writeLock.lock();
+        try {
+            if (!entries.isEmpty()) {
+                throw new IllegalStateException("[" + name + "] eviction policy must be set before the cache is used");
+            }
+            this.evictionPolicy = policyFactory.apply(cacheSize);
+        } finally {
+            writeLock.unlock();
+        }
+        return this;
+    }
 
-        queryCount += 1;
+    /**
+     * Tags every entry with the tags computed from its key.
+     *
+     * @return this cache
+     */
+    public ConsistencyCheckedCache<K, T, V> withTags(Function<K, Collection<String>> tagger) {
+        this.tagger = tagger;
+        return this;
+    }
 
-        if (cached == null) {
-            coldMiss += 1;
+    public V getOrInsert(String id, K key, T extraArg) {
+        queryCount.increment();
+        idTokeys.record(id, key);
 
-            printLog("insert key: " + key + ", value: " + result, false);
+        Node<K, V> node = entries.get(key);
+        if (node == null) {
+            coldMiss.increment();
+            return load(key, extraArg);
+        }
 
-            idTokeys.put(id, key);
-            put(key, result);
+        evictionPolicy.onHit(key);
+        hitCount.increment();
+        V cached = node.value;
 
-            printLog("", true);
+        if (!shouldVerify()) {
+            if (logging) {
+                LOGGER.info("[{}] cache hit, key: {}", name, key);
+            }
+            return cached;
+        }
 
-            return result;
+        verifyCount.increment();
+        Versioned<V> fresh = timedLoad(key, extraArg, node.etag);
+        if (fresh.isNotModified()) {
+            notModifiedCount.increment();
+            if (logging) {
+                LOGGER.info("[{}] cache hit, not modified, key: {}", name, key);
+            }
+            return cached;
+        }
+        V result = fresh.getValue();
+        if (cached.equals(result)) {
+            if (node.etag == null ? fresh.getEtag() != null : !node.etag.equals(fresh.getEtag())) {
+                insert(key, result, fresh.getEtag());
+            }
+            if (logging) {
+                LOGGER.info("[{}] cache hit, verified, key: {}", name, key);
+            }
+            return cached;
+        }
+
+        divergeCount.increment();
+        LOGGER.warn("[{}] cache diverged, key: {}, cached value: {}, actual value: {}", name, key, cached, result);
+        if (result == null) {
+            removeEntry(key);
         } else {
+            insert(key, result, fresh.getEtag());
+        }
+        return result;
+    }
+
+    /**
+     * getOrInsert for many keys with one remote call. Hits are answered from the
+     * map as usual; every key that misses or is picked for verification is loaded
+     * by a single bulkGetter call, which must return one value per key in order.
+     * Verified keys are compared by equality, bulk loads do not use ETags.
+     *
+     * @return the values in the order of keys
+     */
+    public List<V> getAllOrInsert(String id, List<K> keys, T extraArg, BiFunction<List<K>, T, List<V>> bulkGetter) {
+        List<V> results = new ArrayList<>(Collections.<V>nCopies(keys.size(), null));
+        List<Integer> pending = new ArrayList<>();
+        List<K> pendingKeys = new ArrayList<>();
+        // cached node of every pending key, null for misses
+        List<Node<K, V>> pendingNodes = new ArrayList<>();
+        // flights this call owns for its misses, so single loads of the same keys wait for it
+        Map<K, Flight<V>> flights = new HashMap<>();
 
-            if (cached.equals(result)) {
-                hitCount += 1;
-                printLog("cache hit!!", false);
+        for (int i = 0; i < keys.size(); i++) {
+            K key = keys.get(i);
+            queryCount.increment();
+            idTokeys.record(id, key);
+
+            Node<K, V> node = entries.get(key);
+            if (node == null) {
+                coldMiss.increment();
+                Flight<V> flight = new Flight<>();
+                if (!flights.containsKey(key) && inFlight.putIfAbsent(key, flight) == null) {
+                    flights.put(key, flight);
+                }
             } else {
-                printLog("cache miss, key: " + key + ", cached value: " + cached + ", actual value: " + result, false);
-                put(key, result);
+                evictionPolicy.onHit(key);
+                hitCount.increment();
+                if (!shouldVerify()) {
+                    results.set(i, node.value);
+                    continue;
+                }
+                verifyCount.increment();
+            }
+            pending.add(i);
+            pendingKeys.add(key);
+            pendingNodes.add(node);
+        }
+        if (pending.isEmpty()) {
+            if (logging) {
+                LOGGER.info("[{}] cache hit, keys: {}", name, keys);
             }
+            return results;
+        }
 
-            idTokeys.put(id, key);
-            printLog("", true);
-            return cached;
+        List<V> loaded;
+        long start = System.nanoTime();
+        try {
+            loaded = bulkGetter.apply(pendingKeys, extraArg);
+            if (loaded == null || loaded.size() != pendingKeys.size()) {
+                throw new CacheLoadException("[" + name + "] bulk load returned "
+                        + (loaded == null ? "null" : loaded.size() + " values") + " for " + pendingKeys.size() + " keys");
+            }
+        } catch (RuntimeException | Error e) {
+            for (Map.Entry<K, Flight<V>> flight : flights.entrySet()) {
+                flight.getValue().completeExceptionally(e);
+                inFlight.remove(flight.getKey(), flight.getValue());
+            }
+            throw e;
+        } finally {
+            loadTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+        if (logging) {
+            LOGGER.info("[{}] bulk loaded keys: {}", name, pendingKeys);
+        }
+
+        for (int j = 0; j < pending.size(); j++) {
+            K key = pendingKeys.get(j);
+            Node<K, V> node = pendingNodes.get(j);
+            V result = loaded.get(j);
+            results.set(pending.get(j), result);
+
+            if (node == null) {
+                Flight<V> flight = flights.remove(key);
+                if (flight != null) {
+                    if (result != null && !flight.invalidated) {
+                        insert(key, result, null);
+                    }
+                    flight.complete(result);
+                    inFlight.remove(key, flight);
+                }
+            } else if (node.value.equals(result)) {
+                results.set(pending.get(j), node.value);
+            } else {
+                divergeCount.increment();
+                LOGGER.warn("[{}] cache diverged, key: {}, cached value: {}, actual value: {}", name, key, node.value, result);
+                if (result == null) {
+                    removeEntry(key);
+                } else {
+                    insert(key, result, null);
+                }
+            }
         }
+        return results;
     }
 
-    private void printLog(String s, Boolean logMetrics) {
-        String logString = "[" + name + "] " + s;
-        if (logMetrics) {
-            logString += "query count: " + queryCount + " "
-            + "hit count: " + hitCount + " "
-            + "cold miss: " + coldMiss + " "
-            + "invalidate count: " + invalidateCount + " "
-            + "redundant invalidation count: " + invalidateRedundant;
+    private V load(K key, T extraArg) {
+        Flight<V> flight = new Flight<>();
+        Flight<V> running = inFlight.putIfAbsent(key, flight);
+        if (running != null) {
+            coalescedCount.increment();
+            return await(key, running);
         }
-        if (logging) {
-            ConsistencyCheckedCache.LOGGER.info(logString);
+
+        try {
+            Versioned<V> loaded = timedLoad(key, extraArg, null);
+            V result = loaded.getValue();
+            if (logging) {
+                LOGGER.info("[{}] cache miss, loaded key: {}, value: {}", name, key, result);
+            }
+
+            // a value loaded across an invalidation of its key may already be stale
+            if (result != null && !flight.invalidated) {
+                insert(key, result, loaded.getEtag());
+            }
+            flight.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+
+    private V await(K key, Flight<V> flight) {
+        try {
+            return flight.get(loadTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CacheLoadException("[" + name + "] load failed, key: " + key, cause);
+        } catch (TimeoutException e) {
+            throw new CacheLoadException("[" + name + "] timed out after " + loadTimeoutMillis
+                    + " ms waiting for in-flight load, key: " + key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CacheLoadException("[" + name + "] interrupted waiting for in-flight load, key: " + key, e);
+        }
+    }
+
+    private Versioned<V> timedLoad(K key, T extraArg, String etag) {
+        long start = System.nanoTime();
+        try {
+            return loader.load(key, extraArg, etag);
+        } finally {
+            loadTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private boolean shouldVerify() {
+        if (verifyInterval == READ_THROUGH) {
+            return false;
+        }
+        return verifyInterval == 1 || ThreadLocalRandom.current().nextInt(verifyInterval) == 0;
+    }
+
+    private void insert(K key, V value, String etag) {
+        Function<K, Collection<String>> currentTagger = tagger;
+        Collection<String> tags = currentTagger == null ? Collections.<String>emptyList() : currentTagger.apply(key);
+        Node<K, V> node = new Node<>(key, value, etag, tags);
+
+        writeLock.lock();
+        try {
+            Node<K, V> previous = entries.put(key, node);
+            if (previous != null) {
+                evictionPolicy.onHit(key);
+                return;
+            }
+            tag(key, tags);
+            for (K victim : evictionPolicy.onInsert(key)) {
+                Node<K, V> evicted = entries.remove(victim);
+                if (evicted != null) {
+                    untag(evicted);
+                    evictionCount.increment();
+                }
+            }
+        } finally {
+            writeLock.unlock();
         }
     }
 
-    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-        return size() >= cacheSize;
+    private void removeEntry(K key) {
+        Flight<V> flight = inFlight.get(key);
+        if (flight != null) {
+            flight.invalidated = true;
+        }
+        writeLock.lock();
+        try {
+            Node<K, V> node = entries.remove(key);
+            if (node != null) {
+                untag(node);
+                evictionPolicy.onRemove(key);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void tag(K key, Collection<String> tags) {
+        for (String tag : tags) {
+            tagIndex.computeIfAbsent(tag, t -> new HashSet<>()).add(key);
+        }
+    }
+
+    private void untag(Node<K, V> node) {
+        for (String tag : node.tags) {
+            Set<K> keys = tagIndex.get(tag);
+            if (keys != null && keys.remove(node.key) && keys.isEmpty()) {
+                tagIndex.remove(tag);
+            }
+        }
+    }
+
+    /**
+     * Drops every entry tagged with tag.
+     *
+     * @return number of entries dropped
+     */
+    public int invalidateTag(String tag) {
+        tagInvalidateCount.increment();
+        Function<K, Collection<String>> currentTagger = tagger;
+        if (currentTagger != null) {
+            // loads still running are not in the tag index yet, keep them from caching what they fetched
+            for (Map.Entry<K, Flight<V>> flight : inFlight.entrySet()) {
+                if (currentTagger.apply(flight.getKey()).contains(tag)) {
+                    flight.getValue().invalidated = true;
+                }
+            }
+        }
+
+        int removed = 0;
+        writeLock.lock();
+        try {
+            Set<K> keys = tagIndex.remove(tag);
+            if (keys == null) {
+                return 0;
+            }
+            for (K key : keys) {
+                Node<K, V> node = entries.remove(key);
+                if (node != null) {
+                    untag(node);
+                    evictionPolicy.onRemove(key);
+                    removed += 1;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        if (logging) {
+            LOGGER.info("[{}] invalidated tag: {}, entries: {}", name, tag, removed);
+        }
+        return removed;
     }
 
     public void invalidate(String id, K key, T extraArg, boolean forward) {
-        invalidateCount += 1;
+        invalidateCount.increment();
 
-        if (idTokeys.get(id) == null) {
-            invalidateRedundant += 1;
+        List<K> cachedKeys = idTokeys.take(id);
+        if (cachedKeys.isEmpty()) {
+            invalidateRedundant.increment();
             return;
         }
 
-        printLog("!!invalidate!! " + idTokeys.get(id), true);
+        if (logging) {
+            LOGGER.info("[{}] invalidated id: {}, keys: {}", name, id, cachedKeys);
+        }
 
-        remove(idTokeys.get(id));
-        idTokeys.remove(id);
+        for (K cachedKey : cachedKeys) {
+            removeEntry(cachedKey);
+        }
 
         if (forward) {
-            getter.apply(key, extraArg);
+            loader.load(key, extraArg, null);
+        }
+    }
+
+    public void setLoadTimeoutMillis(long loadTimeoutMillis) {
+        if (loadTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("loadTimeoutMillis must be positive: " + loadTimeoutMillis);
+        }
+        this.loadTimeoutMillis = loadTimeoutMillis;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return request ids currently held by the invalidation index
+     */
+    public int getIndexedIds() {
+        return idTokeys.size();
+    }
+
+    /**
+     * @return estimated heap used by the invalidation index
+     */
+    public long getIndexBytes() {
+        return idTokeys.estimatedBytes();
+    }
+
+    public long getQueryCount() {
+        return queryCount.sum();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getColdMiss() {
+        return coldMiss.sum();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.sum();
+    }
+
+    public long getDivergeCount() {
+        return divergeCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public long getVerifyCount() {
+        return verifyCount.sum();
+    }
+
+    /**
+     * @return verifications the owner answered with 304 Not Modified
+     */
+    public long getNotModifiedCount() {
+        return notModifiedCount.sum();
+    }
+
+    /**
+     * @return invalidations by request id and by tag, including redundant ones
+     */
+    public long getInvalidateCount() {
+        return invalidateCount.sum() + tagInvalidateCount.sum();
+    }
+
+    public long getRedundantInvalidateCount() {
+        return invalidateRedundant.sum();
+    }
+
+    private static final class Flight<V> extends CompletableFuture<V> {
+        volatile boolean invalidated;
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final String etag;
+        final Collection<String> tags;
+
+        Node(K key, V value, String etag, Collection<String> tags) {
+            this.key = key;
+            this.value = value;
+            this.etag = etag;
+            this.tags = tags;
         }
     }
 }
@@ -0,0 +1,191 @@
+package edu.fudan.common.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded request id to cache keys index used by the invalidation protocol.
+ *
+ * Every key a request id touched is recorded, up to maxKeysPerId keys per id
+ * (the oldest key is dropped beyond that). Ids expire after ttlMillis and the
+ * oldest ids are dropped once more than maxIds are indexed, so ids that are
+ * never invalidated cannot grow the index without bound.
+ *
+ * @author fdse
+ */
+public class InvalidationIndex<K> {
+
+    public static final int DEFAULT_MAX_IDS = 10000;
+
+    public static final long DEFAULT_TTL_MILLIS = 60000;
+
+    public static final int DEFAULT_MAX_KEYS_PER_ID = 64;
+
+    // rough per-object footprints on a 64-bit JVM with compressed oops, keys and ids themselves excluded
+    private static final long BYTES_PER_ID = 160;
+    private static final long BYTES_PER_KEY = 48;
+
+    private final int maxIds;
+    private final long ttlMillis;
+    private final int maxKeysPerId;
+    private final LongSupplier clock;
+
+    private final ConcurrentHashMap<String, Keys<K>> index = new ConcurrentHashMap<>();
+    // ids in insertion order, may hold ids that were already taken until expiry passes them
+    private final ConcurrentLinkedQueue<Keys<K>> order = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger orderSize = new AtomicInteger();
+    private final AtomicLong keyCount = new AtomicLong();
+    private final ReentrantLock expiryLock = new ReentrantLock();
+
+    public InvalidationIndex() {
+        this(DEFAULT_MAX_IDS, DEFAULT_TTL_MILLIS, DEFAULT_MAX_KEYS_PER_ID);
+    }
+
+    public InvalidationIndex(int maxIds, long ttlMillis, int maxKeysPerId) {
+        this(maxIds, ttlMillis, maxKeysPerId, System::currentTimeMillis);
+    }
+
+    InvalidationIndex(int maxIds, long ttlMillis, int maxKeysPerId, LongSupplier clock) {
+        if (maxIds <= 0 || ttlMillis <= 0 || maxKeysPerId <= 0) {
+            throw new IllegalArgumentException("maxIds, ttlMillis and maxKeysPerId must be positive");
+        }
+        this.maxIds = maxIds;
+        this.ttlMillis = ttlMillis;
+        this.maxKeysPerId = maxKeysPerId;
+        this.clock = clock;
+    }
+
+    /**
+     * Records that the request with the given id touched key.
+     */
+    public void record(String id, K key) {
+        long now = clock.getAsLong();
+        while (true) {
+            Keys<K> keys = index.get(id);
+            if (keys == null) {
+                Keys<K> created = new Keys<>(id, now);
+                keys = index.putIfAbsent(id, created);
+                if (keys == null) {
+                    keys = created;
+                    order.offer(created);
+                    orderSize.incrementAndGet();
+                }
+            }
+            int added = keys.add(key, maxKeysPerId);
+            if (added >= 0) {
+                keyCount.addAndGet(added);
+                break;
+            }
+            // the id was taken or expired concurrently, record it again
+            index.remove(id, keys);
+        }
+        expire(now);
+    }
+
+    /**
+     * Removes the id and returns every key recorded for it.
+     */
+    public List<K> take(String id) {
+        Keys<K> keys = index.remove(id);
+        if (keys == null) {
+            return Collections.emptyList();
+        }
+        List<K> taken = keys.close();
+        keyCount.addAndGet(-taken.size());
+        return taken;
+    }
+
+    private void expire(long now) {
+        if (!needsExpiry(order.peek(), now) || !expiryLock.tryLock()) {
+            return;
+        }
+        try {
+            Keys<K> head;
+            while (needsExpiry(head = order.peek(), now)) {
+                order.poll();
+                orderSize.decrementAndGet();
+                if (index.remove(head.id, head)) {
+                    keyCount.addAndGet(-head.close().size());
+                }
+            }
+        } finally {
+            expiryLock.unlock();
+        }
+    }
+
+    private boolean needsExpiry(Keys<K> head, long now) {
+        if (head == null) {
+            return false;
+        }
+        return index.size() > maxIds || orderSize.get() > 2 * maxIds || now - head.createdAt >= ttlMillis;
+    }
+
+    /**
+     * @return number of indexed request ids
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return number of keys recorded over all indexed request ids
+     */
+    public long keyCount() {
+        return keyCount.get();
+    }
+
+    /**
+     * @return estimated heap used by the index structure, excluding the id strings and keys
+     */
+    public long estimatedBytes() {
+        return (long) orderSize.get() * BYTES_PER_ID + keyCount.get() * BYTES_PER_KEY;
+    }
+
+    private static final class Keys<K> {
+        final String id;
+        final long createdAt;
+        private LinkedHashSet<K> keys = new LinkedHashSet<>(4);
+
+        Keys(String id, long createdAt) {
+            this.id = id;
+            this.createdAt = createdAt;
+        }
+
+        /**
+         * @return change in the number of keys, or -1 if this id is no longer indexed
+         */
+        synchronized int add(K key, int maxKeys) {
+            if (keys == null) {
+                return -1;
+            }
+            if (!keys.add(key)) {
+                return 0;
+            }
+            if (keys.size() <= maxKeys) {
+                return 1;
+            }
+            Iterator<K> eldest = keys.iterator();
+            eldest.next();
+            eldest.remove();
+            return 0;
+        }
+
+        synchronized List<K> close() {
+            if (keys == null) {
+                return Collections.emptyList();
+            }
+            List<K> closed = new ArrayList<>(keys);
+            keys = null;
+            return closed;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package edu.fudan.common.util;
+
+import java.util.function.Function;
+
+/**
+ * A loaded value together with the ETag its owner sent, or the marker that a
+ * conditional request found the cached version still current.
+ *
+ * @author fdse
+ */
+public final class Versioned<V> {
+
+    private static final Versioned<?> NOT_MODIFIED = new Versioned<>(null, null, true);
+
+    private final V value;
+    private final String etag;
+    private final boolean notModified;
+
+    private Versioned(V value, String etag, boolean notModified) {
+        this.value = value;
+        this.etag = etag;
+        this.notModified = notModified;
+    }
+
+    /**
+     * @param etag the owner's entity tag, null if it sent none
+     */
+    public static <V> Versioned<V> of(V value, String etag) {
+        return new Versioned<>(value, etag, false);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> Versioned<V> notModified() {
+        return (Versioned<V>) NOT_MODIFIED;
+    }
+
+    public V getValue() {
+        return value;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+    /**
+     * Converts the value, keeping the ETag and the not modified marker.
+     */
+    public <R> Versioned<R> map(Function<? super V, ? extends R> mapper) {
+        if (notModified) {
+            return notModified();
+        }
+        return new Versioned<>(mapper.apply(value), etag, false);
+    }
+}
@@ -0,0 +1,87 @@
+package edu.fudan.common.util.eviction;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * CLOCK, an approximate LRU: a hit only sets the key's reference bit and the
+ * clock hand gives referenced keys a second chance before evicting them.
+ *
+ * @author fdse
+ */
+public class ClockPolicy<K> implements EvictionPolicy<K> {
+
+    private final int capacity;
+    private final ConcurrentHashMap<K, Slot<K>> slots = new ConcurrentHashMap<>();
+    // the clock ring, may hold removed slots until the hand passes them
+    private final ArrayDeque<Slot<K>> ring = new ArrayDeque<>();
+
+    public ClockPolicy(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void onHit(K key) {
+        Slot<K> slot = slots.get(key);
+        if (slot != null) {
+            slot.referenced = true;
+        }
+    }
+
+    @Override
+    public Collection<K> onInsert(K key) {
+        if (slots.containsKey(key)) {
+            onHit(key);
+            return Collections.emptyList();
+        }
+        Slot<K> slot = new Slot<>(key);
+        slots.put(key, slot);
+        ring.addLast(slot);
+
+        List<K> victims = null;
+        while (slots.size() > capacity || ring.size() > 2 * capacity) {
+            Slot<K> hand = ring.pollFirst();
+            if (hand.removed) {
+                continue;
+            }
+            if (hand.referenced || slots.size() <= capacity) {
+                // second chance, or only compacting the ring
+                hand.referenced = false;
+                ring.addLast(hand);
+            } else {
+                hand.removed = true;
+                slots.remove(hand.key);
+                if (victims == null) {
+                    victims = new ArrayList<>(1);
+                }
+                victims.add(hand.key);
+            }
+        }
+        return victims == null ? Collections.<K>emptyList() : victims;
+    }
+
+    @Override
+    public void onRemove(K key) {
+        Slot<K> slot = slots.remove(key);
+        if (slot != null) {
+            slot.removed = true;
+        }
+    }
+
+    private static final class Slot<K> {
+        final K key;
+        volatile boolean referenced;
+        boolean removed;
+
+        Slot(K key) {
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package edu.fudan.common.util.eviction;
+
+import java.util.Collection;
+
+/**
+ * Decides which keys a bounded cache drops.
+ *
+ * onInsert and onRemove are called by the cache while it holds its write
+ * lock, so they never run concurrently with each other. onHit is called by
+ * readers without any lock and must neither block nor assume exclusive access.
+ *
+ * @author fdse
+ */
+public interface EvictionPolicy<K> {
+
+    /**
+     * Records a hit on a cached key.
+     */
+    void onHit(K key);
+
+    /**
+     * Records a newly cached key.
+     *
+     * @return keys the cache has to drop to stay within capacity, possibly key itself when it is not admitted
+     */
+    Collection<K> onInsert(K key);
+
+    /**
+     * Forgets a key dropped by invalidation.
+     */
+    void onRemove(K key);
+}
@@ -0,0 +1,151 @@
+package edu.fudan.common.util.eviction;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * W-TinyLFU: a scan resistant policy for caches with high key cardinality.
+ *
+ * New keys enter a small LRU window (1% of the capacity). A key leaving the
+ * window only enters the main segmented LRU if a frequency sketch says it is
+ * seen more often than the main segment's eviction victim, so a one-off sweep
+ * over many keys cannot flush the frequently used ones. The main segment is
+ * split into probation and protected (80%) LRUs, and a hit in probation
+ * promotes a key to protected.
+ *
+ * Hits are queued in a lossy buffer and applied by whichever thread next gets
+ * the policy lock, so readers do not wait on each other.
+ *
+ * @author fdse
+ */
+public class WindowTinyLfuPolicy<K> implements EvictionPolicy<K> {
+
+    private static final int DRAIN_THRESHOLD = 32;
+    private static final int MAX_PENDING_HITS = 256;
+
+    private final int windowCapacity;
+    private final int mainCapacity;
+    private final int protectedCapacity;
+
+    private final FrequencySketch<K> sketch;
+    // access ordered, the eldest key is the least recently used
+    private final LinkedHashMap<K, Boolean> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Boolean> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<K, Boolean> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final ConcurrentLinkedQueue<K> pendingHits = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public WindowTinyLfuPolicy(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        windowCapacity = Math.max(1, capacity / 100);
+        mainCapacity = capacity - windowCapacity;
+        protectedCapacity = (int) (mainCapacity * 0.8);
+        sketch = new FrequencySketch<>(capacity);
+    }
+
+    @Override
+    public void onHit(K key) {
+        // drop the hit when the buffer is full, it only sharpens the estimate
+        if (pendingCount.get() >= MAX_PENDING_HITS) {
+            return;
+        }
+        pendingHits.offer(key);
+        if (pendingCount.incrementAndGet() >= DRAIN_THRESHOLD && lock.tryLock()) {
+            try {
+                drainHits();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Collection<K> onInsert(K key) {
+        lock.lock();
+        try {
+            drainHits();
+            if (isTracked(key)) {
+                access(key);
+                return Collections.emptyList();
+            }
+
+            sketch.increment(key);
+            window.put(key, Boolean.TRUE);
+            if (window.size() <= windowCapacity) {
+                return Collections.emptyList();
+            }
+
+            K candidate = eldest(window);
+            window.remove(candidate);
+            if (mainCapacity == 0) {
+                return Collections.singletonList(candidate);
+            }
+            if (probation.size() + protectedSegment.size() < mainCapacity) {
+                probation.put(candidate, Boolean.TRUE);
+                return Collections.emptyList();
+            }
+
+            LinkedHashMap<K, Boolean> victimSegment = probation.isEmpty() ? protectedSegment : probation;
+            K victim = eldest(victimSegment);
+            if (sketch.frequency(candidate) > sketch.frequency(victim)) {
+                victimSegment.remove(victim);
+                probation.put(candidate, Boolean.TRUE);
+                return Collections.singletonList(victim);
+            }
+            return Collections.singletonList(candidate);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void onRemove(K key) {
+        lock.lock();
+        try {
+            if (window.remove(key) == null && probation.remove(key) == null) {
+                protectedSegment.remove(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void drainHits() {
+        K key;
+        while ((key = pendingHits.poll()) != null) {
+            pendingCount.decrementAndGet();
+            sketch.increment(key);
+            access(key);
+        }
+    }
+
+    private void access(K key) {
+        if (window.get(key) != null || protectedSegment.get(key) != null) {
+            return;
+        }
+        if (probation.remove(key) != null) {
+            protectedSegment.put(key, Boolean.TRUE);
+            if (protectedSegment.size() > protectedCapacity) {
+                K demoted = eldest(protectedSegment);
+                protectedSegment.remove(demoted);
+                probation.put(demoted, Boolean.TRUE);
+            }
+        }
+    }
+
+    private boolean isTracked(K key) {
+        return window.containsKey(key) || probation.containsKey(key) || protectedSegment.containsKey(key);
+    }
+
+    private static <K> K eldest(LinkedHashMap<K, Boolean> segment) {
+        return segment.keySet().iterator().next();
+    }
+}
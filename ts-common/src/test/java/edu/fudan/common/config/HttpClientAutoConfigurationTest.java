@@ -0,0 +1,90 @@
+package edu.fudan.common.config;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+@RunWith(JUnit4.class)
+public class HttpClientAutoConfigurationTest {
+
+    private final HttpClientAutoConfiguration configuration = new HttpClientAutoConfiguration();
+
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+
+    private HttpServer server;
+
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            if (exchange.getRequestURI().getPath().startsWith("/slow")) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = "{\"status\":1}".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testSequentialCallsReuseOneConnection() throws Exception {
+        HttpClientProperties properties = new HttpClientProperties();
+        PoolingHttpClientConnectionManager connectionManager = configuration.pooledConnectionManager(properties);
+        try (CloseableHttpClient client = configuration.pooledHttpClient(connectionManager, properties)) {
+            RestTemplate restTemplate = restTemplate(client);
+            for (int i = 0; i < 50; i++) {
+                Assert.assertEquals("{\"status\":1}", restTemplate.getForObject(baseUrl + "/routes/" + i, String.class));
+            }
+            Assert.assertEquals(1, clientPorts.size());
+            Assert.assertEquals(1, connectionManager.getTotalStats().getAvailable());
+            Assert.assertEquals(0, connectionManager.getTotalStats().getLeased());
+        }
+    }
+
+    @Test(expected = ResourceAccessException.class)
+    public void testReadTimeout() throws Exception {
+        HttpClientProperties properties = new HttpClientProperties();
+        properties.setReadTimeout(100);
+        PoolingHttpClientConnectionManager connectionManager = configuration.pooledConnectionManager(properties);
+        try (CloseableHttpClient client = configuration.pooledHttpClient(connectionManager, properties)) {
+            restTemplate(client).getForObject(baseUrl + "/slow", String.class);
+        }
+    }
+
+    private RestTemplate restTemplate(CloseableHttpClient client) {
+        RestTemplate restTemplate = new RestTemplate();
+        configuration.pooledHttpClientCustomizer(client).customize(restTemplate);
+        return restTemplate;
+    }
+}
@@ -0,0 +1,118 @@
+package edu.fudan.common.invalidation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.fudan.common.util.CacheTags;
+import edu.fudan.common.util.ConsistencyCheckedCache;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class InvalidationBusTest {
+
+    private final InvalidationPublisher publisher = new InvalidationPublisher(new LocalInvalidationTransport());
+
+    @Test
+    public void testPublishedChangeDropsTaggedEntriesOfEveryCache() {
+        AtomicInteger loads = new AtomicInteger();
+        ConsistencyCheckedCache<String, Object, String> routeCache = new ConsistencyCheckedCache<String, Object, String>(
+                "busRouteCache", 10, false, (key, arg) -> key + loads.incrementAndGet())
+                .withTags(routeId -> Collections.singletonList(CacheTags.route(routeId)));
+        ConsistencyCheckedCache<String, Object, String> travelCache = new ConsistencyCheckedCache<String, Object, String>(
+                "busTravelCache", 10, false, (key, arg) -> key + loads.incrementAndGet())
+                .withTags(trip -> Arrays.asList(CacheTags.trip(trip), CacheTags.route("r1")));
+
+        routeCache.getOrInsert("0", "r1", null);
+        routeCache.getOrInsert("0", "r2", null);
+        travelCache.getOrInsert("0", "G1234", null);
+
+        publisher.publish(CacheTags.ROUTE, "r1");
+
+        Assert.assertEquals(1, routeCache.size());
+        Assert.assertEquals(0, travelCache.size());
+        Assert.assertEquals("r14", routeCache.getOrInsert("0", "r1", null));
+        Assert.assertEquals("r22", routeCache.getOrInsert("0", "r2", null));
+    }
+
+    @Test
+    public void testEventTagMatchesCacheTags() {
+        Assert.assertEquals(CacheTags.price("r1", "G"),
+                new InvalidationEvent(CacheTags.PRICE, CacheTags.priceKey("r1", "G")).getTag());
+        Assert.assertEquals(CacheTags.station("Shang Hai"), new InvalidationEvent(CacheTags.STATION, "Shang Hai").getTag());
+    }
+
+    @Test
+    public void testFailingTransportDoesNotFailTheWrite() {
+        InvalidationPublisher failing = new InvalidationPublisher(event -> {
+            throw new IllegalStateException("ts-travel-service unavailable");
+        });
+        failing.publish(CacheTags.TRAIN_TYPE, "GaoTieOne");
+    }
+
+    @Test
+    public void testListenerReceivesChangesOfItsEntityType() {
+        List<Change> received = new ArrayList<>();
+        InvalidationListener listener = event -> received.addAll(event.changesAs(Change.class));
+        InvalidationBus.listen(CacheTags.TRIP, listener);
+        try {
+            publisher.publish(CacheTags.TRIP, "G1234", Collections.singletonList(new Change("G1234", 1)));
+            publisher.publish(CacheTags.ROUTE, "r1", Collections.singletonList(new Change("r1", 1)));
+        } finally {
+            InvalidationBus.unlisten(CacheTags.TRIP, listener);
+        }
+        Assert.assertEquals(1, received.size());
+        Assert.assertEquals("G1234", received.get(0).getTrainNumber());
+        Assert.assertEquals(1, received.get(0).getCount());
+    }
+
+    @Test
+    public void testChangesSurviveThePost() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        InvalidationEvent sent = new InvalidationEvent(CacheTags.TRIP, "G1234",
+                Collections.singletonList(new Change("G1234", -1)));
+        InvalidationEvent received = mapper.readValue(mapper.writeValueAsString(sent), InvalidationEvent.class);
+        List<Change> changes = received.changesAs(Change.class);
+        Assert.assertEquals(1, changes.size());
+        Assert.assertEquals("G1234", changes.get(0).getTrainNumber());
+        Assert.assertEquals(-1, changes.get(0).getCount());
+        Assert.assertTrue(new InvalidationEvent(CacheTags.TRIP, "G1234").changesAs(Change.class).isEmpty());
+    }
+
+    public static class Change {
+
+        private String trainNumber;
+
+        private int count;
+
+        public Change() {
+        }
+
+        Change(String trainNumber, int count) {
+            this.trainNumber = trainNumber;
+            this.count = count;
+        }
+
+        public String getTrainNumber() {
+            return trainNumber;
+        }
+
+        public void setTrainNumber(String trainNumber) {
+            this.trainNumber = trainNumber;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public void setCount(int count) {
+            this.count = count;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package edu.fudan.common.invalidation;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+
+@RunWith(JUnit4.class)
+public class InvalidationSecretFilterTest {
+
+    @After
+    public void tearDown() {
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    public void testPostWithSecretIsAuthenticated() throws Exception {
+        Authentication authentication = filter("secret", "secret");
+        Assert.assertNotNull(authentication);
+        Assert.assertEquals("ROLE_" + InvalidationSecretFilter.ROLE,
+                authentication.getAuthorities().iterator().next().getAuthority());
+    }
+
+    @Test
+    public void testPostWithWrongOrNoSecretIsNotAuthenticated() throws Exception {
+        Assert.assertNull(filter("secret", "guess"));
+        Assert.assertNull(filter("secret", null));
+    }
+
+    @Test
+    public void testNothingIsAuthenticatedWithoutConfiguredSecret() throws Exception {
+        Assert.assertNull(filter("", ""));
+        Assert.assertNull(filter(null, ""));
+    }
+
+    private static Authentication filter(String secret, String given) throws Exception {
+        SecurityContextHolder.clearContext();
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", InvalidationReceiverFilter.PATH);
+        if (given != null) {
+            request.addHeader(InvalidationSecretFilter.SECRET_HEADER, given);
+        }
+        MockFilterChain chain = new MockFilterChain();
+        new InvalidationSecretFilter(secret).doFilter(request, new MockHttpServletResponse(), chain);
+        Assert.assertNotNull(chain.getRequest());
+        return SecurityContextHolder.getContext().getAuthentication();
+    }
+}
@@ -0,0 +1,126 @@
+package edu.fudan.common.security.jwt;
+
+import edu.fudan.common.exception.TokenException;
+import edu.fudan.common.security.jwt.VerifiedTokenCache.VerifiedToken;
+import io.jsonwebtoken.Jwts;
+import io.jsonwebtoken.SignatureAlgorithm;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.stream.Collectors;
+
+@RunWith(JUnit4.class)
+public class JWTUtilTest {
+
+    private static final String SECRET_KEY = Base64.getEncoder().encodeToString("secret".getBytes());
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Before
+    public void setUp() {
+        JWTUtil.VERIFIED_TOKENS.clear();
+    }
+
+    @Test
+    public void testAuthenticationOfToken() {
+        Authentication authentication = JWTUtil.authenticationOf(token("fdse_microservice", SECRET_KEY, HOUR));
+        Assert.assertEquals("fdse_microservice", ((UserDetails) authentication.getPrincipal()).getUsername());
+        Assert.assertEquals(Arrays.asList("ROLE_USER", "ROLE_ADMIN"), authentication.getAuthorities().stream()
+                .map(GrantedAuthority::getAuthority).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void testRepeatedTokenIsVerifiedOnce() {
+        String token = token("fdse_microservice", SECRET_KEY, HOUR);
+        VerifiedToken first = JWTUtil.verify(token);
+        Assert.assertSame(first, JWTUtil.verify(token));
+        Assert.assertSame(first, JWTUtil.verify(token));
+        Assert.assertEquals(1, JWTUtil.VERIFIED_TOKENS.getMissCount());
+        Assert.assertEquals(2, JWTUtil.VERIFIED_TOKENS.getHitCount());
+    }
+
+    @Test
+    public void testForgedTokenIsRejectedAndNotCached() {
+        String forged = token("admin", Base64.getEncoder().encodeToString("guess".getBytes()), HOUR);
+        for (int i = 0; i < 2; i++) {
+            try {
+                JWTUtil.verify(forged);
+                Assert.fail();
+            } catch (TokenException e) {
+                Assert.assertEquals("Signature failure", e.getMessage());
+            }
+        }
+        Assert.assertEquals(0, JWTUtil.VERIFIED_TOKENS.size());
+    }
+
+    @Test(expected = TokenException.class)
+    public void testExpiredTokenIsRejected() {
+        JWTUtil.verify(token("fdse_microservice", SECRET_KEY, -HOUR));
+    }
+
+    @Test(expected = TokenException.class)
+    public void testTokenWithoutExpirationIsRejected() {
+        JWTUtil.verify(Jwts.builder().setSubject("fdse_microservice")
+                .signWith(SignatureAlgorithm.HS256, SECRET_KEY).compact());
+    }
+
+    @Test
+    public void testCachedTokenExpires() {
+        VerifiedTokenCache cache = new VerifiedTokenCache(10);
+        long now = System.currentTimeMillis();
+        cache.put("key", new VerifiedToken("fdse_microservice", Collections.emptyList(), now + 1000), now);
+        Assert.assertNotNull(cache.get("key", now + 999));
+        Assert.assertNull(cache.get("key", now + 1000));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEvictsExpiredFirstThenBeyondMaxEntries() {
+        VerifiedTokenCache cache = new VerifiedTokenCache(10);
+        long now = System.currentTimeMillis();
+        cache.put("expired", new VerifiedToken("fdse_microservice", Collections.emptyList(), now - 1), now - 2);
+        for (int i = 0; i < 10; i++) {
+            cache.put("key_" + i, new VerifiedToken("fdse_microservice", Collections.emptyList(), now + HOUR), now);
+        }
+        Assert.assertEquals(10, cache.size());
+        Assert.assertNull(cache.get("expired", now));
+        for (int i = 10; i < 20; i++) {
+            cache.put("key_" + i, new VerifiedToken("fdse_microservice", Collections.emptyList(), now + HOUR), now);
+        }
+        Assert.assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void testRepeatedRequestsParseTheTokenOnce() {
+        // every request of a logged in user carries the same token
+        String token = token("fdse_microservice", SECRET_KEY, HOUR);
+        for (int i = 0; i < 100; i++) {
+            Authentication authentication = JWTUtil.authenticationOf(token);
+            Assert.assertEquals("fdse_microservice", ((UserDetails) authentication.getPrincipal()).getUsername());
+            Assert.assertEquals(2, authentication.getAuthorities().size());
+        }
+        // only the first request parsed the claims and checked the signature
+        Assert.assertEquals(1, JWTUtil.VERIFIED_TOKENS.getMissCount());
+        Assert.assertEquals(99, JWTUtil.VERIFIED_TOKENS.getHitCount());
+    }
+
+    private static String token(String username, String key, long validMillis) {
+        return Jwts.builder()
+                .setSubject(username)
+                .claim("roles", Arrays.asList("ROLE_USER", "ROLE_ADMIN"))
+                .setIssuedAt(new Date())
+                .setExpiration(new Date(System.currentTimeMillis() + validMillis))
+                .signWith(SignatureAlgorithm.HS256, key)
+                .compact();
+    }
+}
@@ -0,0 +1,52 @@
+package edu.fudan.common.util;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class CacheMetricsTest {
+
+    private MeterRegistry registry;
+
+    @Before
+    public void setUp() {
+        registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+    }
+
+    @After
+    public void tearDown() {
+        Metrics.removeRegistry(registry);
+    }
+
+    @Test
+    public void testMetersFollowCacheCounters() {
+        ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<>(
+                "metricsRouteCache", 2, false, (key, arg) -> key);
+
+        cache.getOrInsert("0", "Shang Hai", null);
+        cache.getOrInsert("0", "Shang Hai", null);
+        cache.getOrInsert("0", "Su Zhou", null);
+        cache.getOrInsert("0", "Nan Jing", null);
+        cache.invalidate("1", "Tai Yuan", null, false);
+
+        Assert.assertEquals(1.0, registry.get("cache.gets").tag("cache", "metricsRouteCache").tag("result", "hit")
+                .functionCounter().count(), 0);
+        Assert.assertEquals(3.0, registry.get("cache.gets").tag("cache", "metricsRouteCache").tag("result", "miss")
+                .functionCounter().count(), 0);
+        Assert.assertEquals(1.0, registry.get("cache.evictions").tag("cache", "metricsRouteCache")
+                .functionCounter().count(), 0);
+        Assert.assertEquals(1.0, registry.get("cache.invalidations.redundant").tag("cache", "metricsRouteCache")
+                .functionCounter().count(), 0);
+        Assert.assertEquals(2.0, registry.get("cache.size").tag("cache", "metricsRouteCache").gauge().value(), 0);
+        Assert.assertEquals(0.25, registry.get("cache.hit.ratio").tag("cache", "metricsRouteCache").gauge().value(), 0.001);
+        Assert.assertEquals(3, registry.get("cache.load").tag("cache", "metricsRouteCache").timer().count());
+    }
+}
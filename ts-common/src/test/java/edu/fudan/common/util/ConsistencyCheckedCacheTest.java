@@ -0,0 +1,324 @@
+package edu.fudan.common.util;
+
+import edu.fudan.common.exception.CacheLoadException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+@RunWith(JUnit4.class)
+public class ConsistencyCheckedCacheTest {
+
+    private static final int THREADS = 16;
+
+    @Test
+    public void testReadThroughHitSkipsGetter() {
+        AtomicInteger loads = new AtomicInteger();
+        ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<>(
+                "readThrough", 10, false, (key, arg) -> key + loads.incrementAndGet());
+        Assert.assertEquals("a1", cache.getOrInsert("0", "a", null));
+        Assert.assertEquals("a1", cache.getOrInsert("0", "a", null));
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testVerifyEveryHitReturnsFreshValue() {
+        AtomicInteger loads = new AtomicInteger();
+        ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<>(
+                "verify", 10, false, 1, (key, arg) -> key + loads.incrementAndGet());
+        Assert.assertEquals("a1", cache.getOrInsert("0", "a", null));
+        Assert.assertEquals("a2", cache.getOrInsert("0", "a", null));
+        Assert.assertEquals(1, cache.getDivergeCount());
+    }
+
+    @Test
+    public void testRevalidationKeepsValueWhenNotModified() {
+        AtomicInteger version = new AtomicInteger(1);
+        List<String> sentEtags = new ArrayList<>();
+        ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<String, Object, String>(
+                "conditional", 10, false, 1, (key, arg, etag) -> {
+                    sentEtags.add(etag);
+                    String current = "\"" + version.get() + "\"";
+                    if (current.equals(etag)) {
+                        return Versioned.notModified();
+                    }
+                    return Versioned.of(key + version.get(), current);
+                });
+        Assert.assertEquals("a1", cache.getOrInsert("0", "a", null));
+        Assert.assertEquals("a1", cache.getOrInsert("0", "a", null));
+        Assert.assertEquals(1, cache.getNotModifiedCount());
+
+        version.set(2);
+        Assert.assertEquals("a2", cache.getOrInsert("0", "a", null));
+        Assert.assertEquals("a2", cache.getOrInsert("0", "a", null));
+        Assert.assertEquals(2, cache.getNotModifiedCount());
+        Assert.assertEquals(1, cache.getDivergeCount());
+        Assert.assertEquals(Arrays.asList(null, "\"1\"", "\"1\"", "\"2\""), sentEtags);
+    }
+
+    @Test
+    public void testBulkLoadFetchesOnlyMisses() {
+        List<List<String>> batches = new ArrayList<>();
+        ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<>(
+                "bulk", 10, false, (key, arg) -> key + "-single");
+        Assert.assertEquals("b-single", cache.getOrInsert("0", "b", null));
+
+        List<String> values = cache.getAllOrInsert("0", Arrays.asList("a", "b", "c"), null, (keys, arg) -> {
+            batches.add(keys);
+            List<String> loaded = new ArrayList<>();
+            for (String key : keys) {
+                loaded.add(key + "-bulk");
+            }
+            return loaded;
+        });
+
+        Assert.assertEquals(Arrays.asList("a-bulk", "b-single", "c-bulk"), values);
+        Assert.assertEquals(Collections.singletonList(Arrays.asList("a", "c")), batches);
+        Assert.assertEquals("c-bulk", cache.getOrInsert("0", "c", null));
+        Assert.assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testBulkVerificationReplacesDivergedValues() {
+        AtomicInteger version = new AtomicInteger(1);
+        ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<>(
+                "bulkVerify", 10, false, 1, (key, arg) -> key + version.get());
+        BiFunction<List<String>, Object, List<String>> bulk = (keys, arg) -> {
+            List<String> loaded = new ArrayList<>();
+            for (String key : keys) {
+                loaded.add(key + version.get());
+            }
+            return loaded;
+        };
+        Assert.assertEquals(Arrays.asList("a1", "b1"), cache.getAllOrInsert("0", Arrays.asList("a", "b"), null, bulk));
+        Assert.assertEquals(Arrays.asList("a1", "b1"), cache.getAllOrInsert("0", Arrays.asList("a", "b"), null, bulk));
+        Assert.assertEquals(0, cache.getDivergeCount());
+
+        version.set(2);
+        Assert.assertEquals(Arrays.asList("a2", "b2"), cache.getAllOrInsert("0", Arrays.asList("a", "b"), null, bulk));
+        Assert.assertEquals(2, cache.getDivergeCount());
+        Assert.assertEquals(4, cache.getVerifyCount());
+    }
+
+    @Test(expected = CacheLoadException.class)
+    public void testBulkLoadRejectsShortResult() {
+        ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<>(
+                "bulkShort", 10, false, (key, arg) -> key);
+        cache.getAllOrInsert("0", Arrays.asList("a", "b"), null, (keys, arg) -> Collections.singletonList("a"));
+    }
+
+    @Test
+    public void testInvalidateRemovesKeyOfRequest() {
+        AtomicInteger loads = new AtomicInteger();
+        ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<>(
+                "invalidate", 10, false, (key, arg) -> key + loads.incrementAndGet());
+        cache.getOrInsert("1", "a", null);
+        cache.invalidate("1", "a", null, false);
+        Assert.assertEquals("a2", cache.getOrInsert("2", "a", null));
+    }
+
+    @Test
+    public void testInvalidateTagDropsMatchingEntries() {
+        AtomicInteger loads = new AtomicInteger();
+        ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<String, Object, String>(
+                "tags", 10, false, (key, arg) -> key + loads.incrementAndGet())
+                .withTags(key -> Arrays.asList(CacheTags.trip(key.split("/")[0]), "all"));
+        cache.getOrInsert("0", "G1234/first", null);
+        cache.getOrInsert("0", "G1234/second", null);
+        cache.getOrInsert("0", "D1345/first", null);
+
+        Assert.assertEquals(2, cache.invalidateTag(CacheTags.trip("G1234")));
+        Assert.assertEquals(0, cache.invalidateTag(CacheTags.trip("G1234")));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals("D1345/first3", cache.getOrInsert("0", "D1345/first", null));
+        Assert.assertEquals("G1234/first4", cache.getOrInsert("0", "G1234/first", null));
+        Assert.assertEquals(2, cache.invalidateTag("all"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testConcurrentInsertKeepsAllEntries() throws Exception {
+        int keys = 2000;
+        AtomicInteger loads = new AtomicInteger();
+        ConsistencyCheckedCache<Integer, Object, Integer> cache = new ConsistencyCheckedCache<>(
+                "stress", keys, false, (key, arg) -> {
+                    loads.incrementAndGet();
+                    return key;
+                });
+
+        runConcurrently(thread -> {
+            for (int i = 0; i < keys; i++) {
+                int key = (i + thread * 131) % keys;
+                Assert.assertEquals(Integer.valueOf(key), cache.getOrInsert(String.valueOf(thread), key, null));
+            }
+        });
+
+        Assert.assertEquals(keys, cache.size());
+        Assert.assertEquals(0, cache.getEvictionCount());
+        int loadsAfterWarmUp = loads.get();
+        for (int i = 0; i < keys; i++) {
+            Assert.assertEquals(Integer.valueOf(i), cache.getOrInsert("check", i, null));
+        }
+        Assert.assertEquals(loadsAfterWarmUp, loads.get());
+        Assert.assertEquals(THREADS * keys + keys, cache.getQueryCount());
+    }
+
+    @Test
+    public void testConcurrentEvictionAndInvalidationStayBounded() throws Exception {
+        int cacheSize = 100;
+        ConsistencyCheckedCache<Integer, Object, Integer> cache = new ConsistencyCheckedCache<>(
+                "evict", cacheSize, false, 4, (key, arg) -> key);
+
+        runConcurrently(thread -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < 20000; i++) {
+                String id = thread + "-" + i;
+                int key = random.nextInt(1000);
+                Assert.assertEquals(Integer.valueOf(key), cache.getOrInsert(id, key, null));
+                if (i % 7 == 0) {
+                    cache.invalidate(id, key, null, false);
+                }
+            }
+        });
+
+        Assert.assertTrue(cache.size() <= cacheSize);
+        Assert.assertTrue(cache.getEvictionCount() > 0);
+        Assert.assertEquals(0, cache.getDivergeCount());
+        Assert.assertEquals(THREADS * 20000, cache.getQueryCount());
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<>(
+                "singleFlight", 10, false, (key, arg) -> {
+                    loads.incrementAndGet();
+                    await(release);
+                    return "G1234";
+                });
+
+        ExecutorService releaser = Executors.newSingleThreadExecutor();
+        Future<?> released = releaser.submit(() -> {
+            // complete the load only once every other worker is waiting on it
+            while (cache.getCoalescedCount() < THREADS - 1) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            return null;
+        });
+        runConcurrently(thread -> Assert.assertEquals("G1234", cache.getOrInsert(String.valueOf(thread), "trip", null)));
+        released.get();
+        releaser.shutdown();
+
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(THREADS - 1, cache.getCoalescedCount());
+    }
+
+    @Test
+    public void testLoaderFailurePropagatesToWaiters() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<>(
+                "failure", 10, false, (key, arg) -> {
+                    loads.incrementAndGet();
+                    await(release);
+                    throw new IllegalStateException("ts-seat-service unavailable");
+                });
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<String> leader = executor.submit(() -> cache.getOrInsert("1", "trip", null));
+            while (loads.get() == 0) {
+                Thread.sleep(1);
+            }
+            Future<String> waiter = executor.submit(() -> cache.getOrInsert("2", "trip", null));
+            while (cache.getCoalescedCount() == 0) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            assertFailsWith(leader, IllegalStateException.class);
+            assertFailsWith(waiter, IllegalStateException.class);
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, loads.get());
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test(expected = CacheLoadException.class)
+    public void testWaiterTimesOut() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<>(
+                "timeout", 10, false, (key, arg) -> {
+                    started.countDown();
+                    await(release);
+                    return "G1234";
+                });
+        cache.setLoadTimeoutMillis(50);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> cache.getOrInsert("1", "trip", null));
+            started.await();
+            cache.getOrInsert("2", "trip", null);
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void assertFailsWith(Future<?> future, Class<? extends Throwable> type) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            Assert.fail("expected " + type.getSimpleName());
+        } catch (ExecutionException e) {
+            Assert.assertTrue(type.isInstance(e.getCause()));
+        }
+    }
+
+    private interface Task {
+        void run(int thread) throws Exception;
+    }
+
+    private static void runConcurrently(Task task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    task.run(thread);
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                // rethrows ConcurrentModificationException or assertion errors from the workers
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package edu.fudan.common.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+@RunWith(JUnit4.class)
+public class InvalidationIndexTest {
+
+    @Test
+    public void testTakeReturnsEveryKeyOfId() {
+        InvalidationIndex<String> index = new InvalidationIndex<>();
+        index.record("1", "Shang Hai");
+        index.record("1", "Su Zhou");
+        index.record("1", "Shang Hai");
+        Assert.assertEquals(2, index.keyCount());
+        Assert.assertEquals(Arrays.asList("Shang Hai", "Su Zhou"), index.take("1"));
+        Assert.assertTrue(index.take("1").isEmpty());
+        Assert.assertEquals(0, index.keyCount());
+    }
+
+    @Test
+    public void testKeysPerIdAreBounded() {
+        InvalidationIndex<Integer> index = new InvalidationIndex<>(10, 60000, 3);
+        for (int i = 0; i < 10; i++) {
+            index.record("0", i);
+        }
+        Assert.assertEquals(Arrays.asList(7, 8, 9), index.take("0"));
+    }
+
+    @Test
+    public void testIdsExpireAfterTtl() {
+        AtomicLong now = new AtomicLong();
+        InvalidationIndex<String> index = new InvalidationIndex<>(100, 1000, 8, now::get);
+        index.record("1", "G1234");
+        now.set(1500);
+        index.record("2", "G1235");
+        Assert.assertEquals(1, index.size());
+        Assert.assertTrue(index.take("1").isEmpty());
+        Assert.assertEquals(Arrays.asList("G1235"), index.take("2"));
+    }
+
+    @Test
+    public void testMillionsOfIdsAtConstantHeap() {
+        int maxIds = 10000;
+        InvalidationIndex<String> index = new InvalidationIndex<>(maxIds, 60000, 8);
+        String[] keys = {"Shang Hai", "Su Zhou", "Nan Jing", "Tai Yuan"};
+
+        for (int id = 0; id < 100000; id++) {
+            record(index, id, keys);
+        }
+        long warmHeap = usedHeap();
+        long warmBytes = index.estimatedBytes();
+
+        for (int id = 100000; id < 3000000; id++) {
+            record(index, id, keys);
+            Assert.assertTrue(index.size() <= maxIds);
+        }
+
+        Assert.assertTrue(index.estimatedBytes() <= warmBytes);
+        Assert.assertTrue(index.keyCount() <= 2L * maxIds);
+        // allow for GC noise, an unbounded index would hold several hundred MB here
+        Assert.assertTrue(usedHeap() - warmHeap < 32L * 1024 * 1024);
+    }
+
+    private static void record(InvalidationIndex<String> index, int id, String[] keys) {
+        String requestId = String.valueOf(id);
+        index.record(requestId, keys[id % keys.length]);
+        index.record(requestId, keys[(id + 1) % keys.length]);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
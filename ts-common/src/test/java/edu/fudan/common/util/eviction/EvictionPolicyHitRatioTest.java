@@ -0,0 +1,109 @@
+package edu.fudan.common.util.eviction;
+
+import edu.fudan.common.util.ConsistencyCheckedCache;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+/**
+ * Replays key traces through ConsistencyCheckedCache with each eviction policy
+ * and compares hit ratios.
+ */
+@RunWith(JUnit4.class)
+public class EvictionPolicyHitRatioTest {
+
+    private static final int CACHE_SIZE = 100;
+
+    @Test
+    public void testTinyLfuResistsScans() {
+        List<String> trace = searchTraceWithSweeps(200000, 42);
+        double clock = hitRatio(trace, CACHE_SIZE, ClockPolicy::new);
+        double tinyLfu = hitRatio(trace, CACHE_SIZE, WindowTinyLfuPolicy::new);
+        Assert.assertTrue(String.format("CLOCK %.3f, W-TinyLFU %.3f", clock, tinyLfu), tinyLfu > clock + 0.05);
+    }
+
+    @Test
+    public void testTinyLfuOnSkewedTrace() {
+        List<String> trace = new ArrayList<>();
+        Zipf zipf = new Zipf(10000, 0.9, new Random(7));
+        for (int i = 0; i < 200000; i++) {
+            trace.add("trip-" + zipf.next());
+        }
+        double clock = hitRatio(trace, CACHE_SIZE, ClockPolicy::new);
+        double tinyLfu = hitRatio(trace, CACHE_SIZE, WindowTinyLfuPolicy::new);
+        Assert.assertTrue(String.format("CLOCK %.3f, W-TinyLFU %.3f", clock, tinyLfu), tinyLfu >= clock);
+    }
+
+    @Test
+    public void testPolicyStaysWithinCapacity() {
+        for (IntFunction<EvictionPolicy<String>> factory : Arrays.<IntFunction<EvictionPolicy<String>>>asList(
+                ClockPolicy::new, WindowTinyLfuPolicy::new)) {
+            ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<String, Object, String>(
+                    "capacity", 10, false, (key, arg) -> key).withEvictionPolicy(factory);
+            for (String key : searchTraceWithSweeps(5000, 1)) {
+                Assert.assertEquals(key, cache.getOrInsert("0", key, null));
+                Assert.assertTrue(cache.size() <= 10);
+            }
+        }
+    }
+
+    private static double hitRatio(List<String> trace, int size, IntFunction<EvictionPolicy<String>> policy) {
+        ConsistencyCheckedCache<String, Object, String> cache = new ConsistencyCheckedCache<String, Object, String>(
+                "replay", size, false, (key, arg) -> key).withEvictionPolicy(policy);
+        for (String key : trace) {
+            cache.getOrInsert("0", key, null);
+        }
+        return (double) cache.getHitCount() / cache.getQueryCount();
+    }
+
+    /**
+     * Skewed trip searches, interrupted every 2000 requests by a sweep over 500
+     * keys that are never requested again, like adminQueryAll or a crawler.
+     */
+    private static List<String> searchTraceWithSweeps(int length, long seed) {
+        Random random = new Random(seed);
+        Zipf zipf = new Zipf(2000, 1.0, random);
+        List<String> trace = new ArrayList<>(length);
+        int sweep = 0;
+        while (trace.size() < length) {
+            if (trace.size() % 2000 == 0) {
+                for (int i = 0; i < 500; i++) {
+                    trace.add("sweep-" + sweep + "-" + i);
+                }
+                sweep++;
+            }
+            trace.add("trip-" + zipf.next());
+        }
+        return trace;
+    }
+
+    private static final class Zipf {
+        private final double[] cdf;
+        private final Random random;
+
+        Zipf(int keys, double skew, Random random) {
+            this.random = random;
+            cdf = new double[keys];
+            double sum = 0;
+            for (int i = 0; i < keys; i++) {
+                sum += 1 / Math.pow(i + 1, skew);
+                cdf[i] = sum;
+            }
+            for (int i = 0; i < keys; i++) {
+                cdf[i] /= sum;
+            }
+        }
+
+        int next() {
+            int index = Arrays.binarySearch(cdf, random.nextDouble());
+            return index >= 0 ? index : Math.min(-index - 1, cdf.length - 1);
+        }
+    }
+}
@@ -55,6 +55,11 @@ public class InsidePaymentController {
         return ok(service.queryAccount(headers));
     }
 
+    @GetMapping(value = "/inside_payment/account/verify")
+    public HttpEntity verifyAccounts(@RequestHeader HttpHeaders headers) {
+        return ok(service.verifyAccounts(headers));
+    }
+
     @GetMapping(value = "/inside_payment/drawback/{userId}/{money}")
     public HttpEntity drawBack(@PathVariable String userId, @PathVariable String money, @RequestHeader HttpHeaders headers) {
         return ok(service.drawBack(userId, money, headers));
@@ -0,0 +1,49 @@
+package inside_payment.entity;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Balance of a user kept next to the append-only addMoney and payment rows, in cents.
+ * Every row written through the service is applied to it first, so the balance is
+ * read without summing the rows.
+ *
+ * @author fdse
+ */
+@Data
+@AllArgsConstructor
+@Document(collection = "accountBalance")
+public class AccountBalance {
+
+    @Id
+    private String userId;
+
+    /**
+     * addedCents - paidCents, kept as a field so that a debit can require it in its query
+     */
+    private long balanceCents;
+
+    private long addedCents;
+
+    private long paidCents;
+
+    /**
+     * millis of the last debit or add, the row of a write is saved right after its balance update
+     */
+    private long updatedAt;
+
+    public AccountBalance() {
+        //Default Constructor
+    }
+
+    public AccountBalance(String userId, long addedCents, long paidCents) {
+        this(userId, addedCents - paidCents, addedCents, paidCents, 0);
+    }
+
+    public boolean hasSameAmounts(AccountBalance other) {
+        return balanceCents == other.balanceCents && addedCents == other.addedCents && paidCents == other.paidCents;
+    }
+
+}
@@ -36,6 +36,9 @@ public class InitData implements CommandLineRunner {
         payment.setUserId("4d2a46c7-71cb-4cf1-b5bb-b68406d9da6f");
         payment.setType(PaymentType.P);
         service.initPayment(payment,null);
+
+        // balances of rows written before they were kept
+        service.verifyAccounts(null);
     }
 }
 
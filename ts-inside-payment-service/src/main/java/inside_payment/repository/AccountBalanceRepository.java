@@ -0,0 +1,19 @@
+package inside_payment.repository;
+
+import inside_payment.entity.AccountBalance;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+import java.util.stream.Stream;
+
+/**
+ * @author fdse
+ */
+public interface AccountBalanceRepository extends MongoRepository<AccountBalance, String>, AccountBalanceRepositoryCustom {
+
+    /**
+     * stream all balances, the caller closes the stream
+     *
+     * @return Stream<AccountBalance>
+     */
+    Stream<AccountBalance> findAllBy();
+}
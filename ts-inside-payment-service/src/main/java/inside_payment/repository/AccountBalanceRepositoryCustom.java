@@ -0,0 +1,46 @@
+package inside_payment.repository;
+
+import inside_payment.entity.AccountBalance;
+
+import java.util.Set;
+
+/**
+ * @author fdse
+ */
+public interface AccountBalanceRepositoryCustom {
+
+    /**
+     * take money from a balance if it covers it, in one update
+     *
+     * @param userId user id
+     * @param cents  amount in cents
+     * @return false when the balance does not exist or does not cover the amount
+     */
+    boolean debit(String userId, long cents);
+
+    /**
+     * add money and payments to a balance whatever it is
+     *
+     * @param userId     user id
+     * @param addedCents money added, negative to take it back
+     * @param paidCents  payments made, negative to take them back
+     * @return false when the balance does not exist
+     */
+    boolean add(String userId, long addedCents, long paidCents);
+
+    /**
+     * replace a balance if no debit or add reached it since it was seen
+     *
+     * @param seen    balance read before rebuilding
+     * @param rebuilt balance summed from the rows
+     * @return false when the balance changed meanwhile
+     */
+    boolean replace(AccountBalance seen, AccountBalance rebuilt);
+
+    /**
+     * find the users having addMoney or payment rows
+     *
+     * @return Set<String> user ids
+     */
+    Set<String> findLedgerUserIds();
+}
@@ -0,0 +1,59 @@
+package inside_payment.repository;
+
+import inside_payment.entity.AccountBalance;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author fdse
+ */
+public class AccountBalanceRepositoryImpl implements AccountBalanceRepositoryCustom {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public boolean debit(String userId, long cents) {
+        Query query = new Query(Criteria.where("_id").is(userId).and("balanceCents").gte(cents));
+        Update update = new Update().inc("balanceCents", -cents).inc("paidCents", cents)
+                .set("updatedAt", System.currentTimeMillis());
+        return mongoTemplate.updateFirst(query, update, AccountBalance.class).getN() == 1;
+    }
+
+    @Override
+    public boolean add(String userId, long addedCents, long paidCents) {
+        Query query = new Query(Criteria.where("_id").is(userId));
+        Update update = new Update().inc("balanceCents", addedCents - paidCents)
+                .inc("addedCents", addedCents).inc("paidCents", paidCents)
+                .set("updatedAt", System.currentTimeMillis());
+        return mongoTemplate.updateFirst(query, update, AccountBalance.class).getN() == 1;
+    }
+
+    @Override
+    public boolean replace(AccountBalance seen, AccountBalance rebuilt) {
+        Query query = new Query(Criteria.where("_id").is(seen.getUserId())
+                .and("addedCents").is(seen.getAddedCents())
+                .and("paidCents").is(seen.getPaidCents())
+                .and("updatedAt").is(seen.getUpdatedAt()));
+        Update update = new Update().set("balanceCents", rebuilt.getBalanceCents())
+                .set("addedCents", rebuilt.getAddedCents()).set("paidCents", rebuilt.getPaidCents());
+        return mongoTemplate.updateFirst(query, update, AccountBalance.class).getN() == 1;
+    }
+
+    @Override
+    public Set<String> findLedgerUserIds() {
+        Set<String> userIds = new HashSet<>();
+        for (String collection : new String[]{"addMoney", "payment"}) {
+            for (Object userId : mongoTemplate.getCollection(collection).distinct("userId")) {
+                userIds.add(String.valueOf(userId));
+            }
+        }
+        return userIds;
+    }
+}
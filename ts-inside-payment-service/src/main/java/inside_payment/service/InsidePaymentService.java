@@ -91,4 +91,12 @@ public interface InsidePaymentService {
      */
     void initPayment(Payment payment, HttpHeaders headers);
 
+    /**
+     * rebuild missing balances and repair the ones that differ from their rows
+     *
+     * @param headers headers
+     * @return Response
+     */
+    Response verifyAccounts(HttpHeaders headers);
+
 }
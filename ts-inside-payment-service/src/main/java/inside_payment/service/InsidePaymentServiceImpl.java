@@ -2,12 +2,14 @@ package inside_payment.service;
 
 import edu.fudan.common.util.Response;
 import inside_payment.entity.*;
+import inside_payment.repository.AccountBalanceRepository;
 import inside_payment.repository.AddMoneyRepository;
 import inside_payment.repository.PaymentRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -16,7 +18,9 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
 import java.util.*;
+import java.util.stream.Stream;
 
 /**
  * @author fdse
@@ -30,11 +34,19 @@ public class InsidePaymentServiceImpl implements InsidePaymentService {
     @Autowired
     public PaymentRepository paymentRepository;
 
+    @Autowired
+    public AccountBalanceRepository accountBalanceRepository;
+
     @Autowired
     public RestTemplate restTemplate;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(InsidePaymentServiceImpl.class);
 
+    /**
+     * a balance written within this window is not repaired, its rows may still be on their way
+     */
+    static final long VERIFY_GRACE_MILLIS = 60 * 1000L;
+
     @Override
     public Response pay(PaymentInfo info, HttpHeaders headers) {
 
@@ -67,27 +79,14 @@ public class InsidePaymentServiceImpl implements InsidePaymentService {
             payment.setOrderId(info.getOrderId());
             payment.setPrice(order.getPrice());
             payment.setUserId(userId);
-
-            //判断一下账户余额够不够，不够要去站外支付
-            List<Payment> payments = paymentRepository.findByUserId(userId);
-            List<Money> addMonies = addMoneyRepository.findByUserId(userId);
-            Iterator<Payment> paymentsIterator = payments.iterator();
-            Iterator<Money> addMoniesIterator = addMonies.iterator();
-
-            BigDecimal totalExpand = new BigDecimal("0");
-            while (paymentsIterator.hasNext()) {
-                Payment p = paymentsIterator.next();
-                totalExpand = totalExpand.add(new BigDecimal(p.getPrice()));
-            }
-            totalExpand = totalExpand.add(new BigDecimal(order.getPrice()));
-
-            BigDecimal money = new BigDecimal("0");
-            while (addMoniesIterator.hasNext()) {
-                Money addMoney = addMoniesIterator.next();
-                money = money.add(new BigDecimal(addMoney.getMoney()));
+            Long cents = centsOf(order.getPrice());
+            if (cents == null) {
+                InsidePaymentServiceImpl.LOGGER.info("[Inside Payment Service][Pay] Error. Order price: {}", order.getPrice());
+                return new Response<>(0, "Payment Failed, Invalid Price", null);
             }
 
-            if (totalExpand.compareTo(money) > 0) {
+            //判断一下账户余额够不够，不够要去站外支付
+            if (!debit(userId, cents)) {
                 //站外支付
                 Payment outsidePaymentInfo = new Payment();
                 outsidePaymentInfo.setOrderId(info.getOrderId());
@@ -107,7 +106,9 @@ public class InsidePaymentServiceImpl implements InsidePaymentService {
                 InsidePaymentServiceImpl.LOGGER.info("Out pay result: {}", outsidePaySuccess.toString());
                 if (outsidePaySuccess.getStatus() == 1) {
                     payment.setType(PaymentType.O);
-                    paymentRepository.save(payment);
+                    // paid outside, still counted against the balance like every payment
+                    add(userId, 0, cents);
+                    savePayment(payment, cents);
                     setOrderStatus(info.getTripId(), info.getOrderId(), headers);
                     return new Response<>(1, "Payment Success " +    outsidePaySuccess.getMsg(), null);
                 } else {
@@ -116,7 +117,7 @@ public class InsidePaymentServiceImpl implements InsidePaymentService {
             } else {
                 setOrderStatus(info.getTripId(), info.getOrderId(), headers);
                 payment.setType(PaymentType.P);
-                paymentRepository.save(payment);
+                savePayment(payment, cents);
             }
             return new Response<>(1, "Payment Success", null);
 
@@ -127,13 +128,18 @@ public class InsidePaymentServiceImpl implements InsidePaymentService {
 
     @Override
     public Response createAccount(AccountInfo info, HttpHeaders headers) {
+        Long cents = centsOf(info.getMoney());
+        if (cents == null) {
+            return new Response<>(0, "Create Account Failed, Invalid Money", null);
+        }
         List<Money> list = addMoneyRepository.findByUserId(info.getUserId());
         if (list.isEmpty()) {
             Money addMoney = new Money();
             addMoney.setMoney(info.getMoney());
             addMoney.setUserId(info.getUserId());
             addMoney.setType(MoneyType.A);
-            addMoneyRepository.save(addMoney);
+            add(info.getUserId(), cents, 0);
+            saveMoney(addMoney, cents);
             return new Response<>(1, "Create Account Success", null);
         } else {
             return new Response<>(0, "Create Account Failed, Account already Exists", null);
@@ -142,12 +148,14 @@ public class InsidePaymentServiceImpl implements InsidePaymentService {
 
     @Override
     public Response addMoney(String userId, String money, HttpHeaders headers) {
-        if (addMoneyRepository.findByUserId(userId) != null) {
+        Long cents = centsOf(money);
+        if (cents != null && addMoneyRepository.findByUserId(userId) != null) {
             Money addMoney = new Money();
             addMoney.setUserId(userId);
             addMoney.setMoney(money);
             addMoney.setType(MoneyType.A);
-            addMoneyRepository.save(addMoney);
+            add(userId, cents, 0);
+            saveMoney(addMoney, cents);
             return new Response<>(1, "Add Money Success", null);
         } else {
             return new Response<>(0, "Add Money Failed", null);
@@ -157,62 +165,24 @@ public class InsidePaymentServiceImpl implements InsidePaymentService {
     @Override
     public Response queryAccount(HttpHeaders headers) {
         List<Balance> result = new ArrayList<>();
-        List<Money> list = addMoneyRepository.findAll();
-        Iterator<Money> ite = list.iterator();
-        HashMap<String, String> map = new HashMap<>();
-        while (ite.hasNext()) {
-            Money addMoney = ite.next();
-            if (map.containsKey(addMoney.getUserId())) {
-                BigDecimal money = new BigDecimal(map.get(addMoney.getUserId()));
-                map.put(addMoney.getUserId(), money.add(new BigDecimal(addMoney.getMoney())).toString());
-            } else {
-                map.put(addMoney.getUserId(), addMoney.getMoney());
-            }
-        }
-
-        Iterator ite1 = map.entrySet().iterator();
-        while (ite1.hasNext()) {
-            Map.Entry entry = (Map.Entry) ite1.next();
-            String userId = (String) entry.getKey();
-            String money = (String) entry.getValue();
-
-            List<Payment> payments = paymentRepository.findByUserId(userId);
-            Iterator<Payment> iterator = payments.iterator();
-            String totalExpand = "0";
-            while (iterator.hasNext()) {
-                Payment p = iterator.next();
-                BigDecimal expand = new BigDecimal(totalExpand);
-                totalExpand = expand.add(new BigDecimal(p.getPrice())).toString();
-            }
-            String balanceMoney = new BigDecimal(money).subtract(new BigDecimal(totalExpand)).toString();
-            Balance balance = new Balance();
-            balance.setUserId(userId);
-            balance.setBalance(balanceMoney);
-            result.add(balance);
+        try (Stream<AccountBalance> balances = accountBalanceRepository.findAllBy()) {
+            balances.forEach(accountBalance -> {
+                Balance balance = new Balance();
+                balance.setUserId(accountBalance.getUserId());
+                balance.setBalance(amountOf(accountBalance.getBalanceCents()));
+                result.add(balance);
+            });
         }
-
         return new Response<>(1, "Success", result);
     }
 
     public String queryAccount(String userId, HttpHeaders headers) {
-        List<Payment> payments = paymentRepository.findByUserId(userId);
-        List<Money> addMonies = addMoneyRepository.findByUserId(userId);
-        Iterator<Payment> paymentsIterator = payments.iterator();
-        Iterator<Money> addMoniesIterator = addMonies.iterator();
-
-        BigDecimal totalExpand = new BigDecimal("0");
-        while (paymentsIterator.hasNext()) {
-            Payment p = paymentsIterator.next();
-            totalExpand.add(new BigDecimal(p.getPrice()));
-        }
-
-        BigDecimal money = new BigDecimal("0");
-        while (addMoniesIterator.hasNext()) {
-            Money addMoney = addMoniesIterator.next();
-            money.add(new BigDecimal(addMoney.getMoney()));
+        AccountBalance balance = accountBalanceRepository.findOne(userId);
+        if (balance == null) {
+            ensureBalance(userId);
+            balance = accountBalanceRepository.findOne(userId);
         }
-
-        return money.subtract(totalExpand).toString();
+        return amountOf(balance == null ? 0 : balance.getBalanceCents());
     }
 
     @Override
@@ -227,12 +197,14 @@ public class InsidePaymentServiceImpl implements InsidePaymentService {
 
     @Override
     public Response drawBack(String userId, String money, HttpHeaders headers) {
-        if (addMoneyRepository.findByUserId(userId) != null) {
+        Long cents = centsOf(money);
+        if (cents != null && addMoneyRepository.findByUserId(userId) != null) {
             Money addMoney = new Money();
             addMoney.setUserId(userId);
             addMoney.setMoney(money);
             addMoney.setType(MoneyType.D);
-            addMoneyRepository.save(addMoney);
+            add(userId, cents, 0);
+            saveMoney(addMoney, cents);
             return new Response<>(1, "Draw Back Money Success", null);
         } else {
             return new Response<>(0, "Draw Back Money Failed", null);
@@ -248,27 +220,12 @@ public class InsidePaymentServiceImpl implements InsidePaymentService {
         payment.setOrderId(info.getOrderId());
         payment.setPrice(info.getPrice());
         payment.setUserId(info.getUserId());
-
-
-        List<Payment> payments = paymentRepository.findByUserId(userId);
-        List<Money> addMonies = addMoneyRepository.findByUserId(userId);
-        Iterator<Payment> paymentsIterator = payments.iterator();
-        Iterator<Money> addMoniesIterator = addMonies.iterator();
-
-        BigDecimal totalExpand = new BigDecimal("0");
-        while (paymentsIterator.hasNext()) {
-            Payment p = paymentsIterator.next();
-            totalExpand.add(new BigDecimal(p.getPrice()));
-        }
-        totalExpand.add(new BigDecimal(info.getPrice()));
-
-        BigDecimal money = new BigDecimal("0");
-        while (addMoniesIterator.hasNext()) {
-            Money addMoney = addMoniesIterator.next();
-            money.add(new BigDecimal(addMoney.getMoney()));
+        Long cents = centsOf(info.getPrice());
+        if (cents == null) {
+            return new Response<>(0, "Pay Difference Failed", null);
         }
 
-        if (totalExpand.compareTo(money) > 0) {
+        if (!debit(userId, cents)) {
             //站外支付
             Payment outsidePaymentInfo = new Payment();
             outsidePaymentInfo.setOrderId(info.getOrderId());
@@ -285,14 +242,15 @@ public class InsidePaymentServiceImpl implements InsidePaymentService {
 
             if (outsidePaySuccess.getStatus() == 1) {
                 payment.setType(PaymentType.E);
-                paymentRepository.save(payment);
+                add(userId, 0, cents);
+                savePayment(payment, cents);
                 return new Response<>(1, "Pay Difference Success", null);
             } else {
                 return new Response<>(0, "Pay Difference Failed", null);
             }
         } else {
             payment.setType(PaymentType.E);
-            paymentRepository.save(payment);
+            savePayment(payment, cents);
         }
         return new Response<>(1, "Pay Difference Success", null);
     }
@@ -339,10 +297,143 @@ public class InsidePaymentServiceImpl implements InsidePaymentService {
     public void initPayment(Payment payment, HttpHeaders headers) {
         Payment paymentTemp = paymentRepository.findById(payment.getId());
         if (paymentTemp == null) {
-            paymentRepository.save(payment);
+            Long cents = centsOf(payment.getPrice());
+            add(payment.getUserId(), 0, cents == null ? 0 : cents);
+            savePayment(payment, cents == null ? 0 : cents);
         } else {
             InsidePaymentServiceImpl.LOGGER.info("[Inside Payment Service][Init Payment] Already Exists: {}", payment.getId());
         }
     }
 
+    @Override
+    public Response verifyAccounts(HttpHeaders headers) {
+        int rebuilt = 0;
+        int repaired = 0;
+        int pending = 0;
+        long now = System.currentTimeMillis();
+        Set<String> userIds = accountBalanceRepository.findLedgerUserIds();
+        for (String userId : userIds) {
+            AccountBalance seen = accountBalanceRepository.findOne(userId);
+            if (seen == null) {
+                ensureBalance(userId);
+                rebuilt++;
+                continue;
+            }
+            AccountBalance actual = rebuildBalance(userId);
+            if (seen.hasSameAmounts(actual)) {
+                continue;
+            }
+            if (now - seen.getUpdatedAt() < VERIFY_GRACE_MILLIS) {
+                // written lately, the row of that write may not be saved yet
+                InsidePaymentServiceImpl.LOGGER.info("[Inside Payment Service][Verify Accounts] Pending balance: {} Rows: {}", seen, actual);
+                pending++;
+            } else if (accountBalanceRepository.replace(seen, actual)) {
+                InsidePaymentServiceImpl.LOGGER.warn("[Inside Payment Service][Verify Accounts] Repaired balance: {} Rows: {}", seen, actual);
+                repaired++;
+            }
+        }
+        Map<String, Integer> report = new LinkedHashMap<>();
+        report.put("accounts", userIds.size());
+        report.put("rebuilt", rebuilt);
+        report.put("repaired", repaired);
+        report.put("pending", pending);
+        InsidePaymentServiceImpl.LOGGER.info("[Inside Payment Service][Verify Accounts] {}", report);
+        return new Response<>(1, "Verify Accounts Success", report);
+    }
+
+    /**
+     * Takes the amount from the balance of the user if the balance covers it
+     */
+    private boolean debit(String userId, long cents) {
+        if (accountBalanceRepository.debit(userId, cents)) {
+            return true;
+        }
+        if (accountBalanceRepository.findOne(userId) != null) {
+            return false;
+        }
+        ensureBalance(userId);
+        return accountBalanceRepository.debit(userId, cents);
+    }
+
+    private void add(String userId, long addedCents, long paidCents) {
+        if (!accountBalanceRepository.add(userId, addedCents, paidCents)) {
+            ensureBalance(userId);
+            if (!accountBalanceRepository.add(userId, addedCents, paidCents)) {
+                InsidePaymentServiceImpl.LOGGER.warn("[Inside Payment Service] Balance of {} not updated, left to verifyAccounts", userId);
+            }
+        }
+    }
+
+    /**
+     * The balance goes first, a row that is not saved gives its amount back
+     */
+    private void savePayment(Payment payment, long cents) {
+        try {
+            paymentRepository.save(payment);
+        } catch (RuntimeException e) {
+            accountBalanceRepository.add(payment.getUserId(), 0, -cents);
+            throw e;
+        }
+    }
+
+    private void saveMoney(Money money, long cents) {
+        try {
+            addMoneyRepository.save(money);
+        } catch (RuntimeException e) {
+            accountBalanceRepository.add(money.getUserId(), -cents, 0);
+            throw e;
+        }
+    }
+
+    /**
+     * Sums the rows of a user that has no balance yet, once, a concurrent write may have done so first
+     */
+    private void ensureBalance(String userId) {
+        try {
+            accountBalanceRepository.insert(rebuildBalance(userId));
+        } catch (DuplicateKeyException e) {
+            InsidePaymentServiceImpl.LOGGER.info("[Inside Payment Service] Balance of {} already built", userId);
+        }
+    }
+
+    AccountBalance rebuildBalance(String userId) {
+        long addedCents = 0;
+        for (Money money : addMoneyRepository.findByUserId(userId)) {
+            Long cents = centsOf(money.getMoney());
+            if (cents == null) {
+                InsidePaymentServiceImpl.LOGGER.warn("[Inside Payment Service] Skipped money {}: {}", money.getId(), money.getMoney());
+            } else {
+                addedCents += cents;
+            }
+        }
+        long paidCents = 0;
+        for (Payment payment : paymentRepository.findByUserId(userId)) {
+            Long cents = centsOf(payment.getPrice());
+            if (cents == null) {
+                InsidePaymentServiceImpl.LOGGER.warn("[Inside Payment Service] Skipped payment {}: {}", payment.getId(), payment.getPrice());
+            } else {
+                paidCents += cents;
+            }
+        }
+        return new AccountBalance(userId, addedCents, paidCents);
+    }
+
+    /**
+     * Amounts are strings in the rows and cents in the balances, null when not a number
+     */
+    static Long centsOf(String amount) {
+        if (amount == null) {
+            return null;
+        }
+        try {
+            return new BigDecimal(amount.trim()).setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+        } catch (NumberFormatException | ArithmeticException e) {
+            return null;
+        }
+    }
+
+    static String amountOf(long cents) {
+        return BigDecimal.valueOf(cents, 2).toString();
+    }
+
 }
@@ -2,6 +2,7 @@ package inside_payment.service;
 
 import edu.fudan.common.util.Response;
 import inside_payment.entity.*;
+import inside_payment.repository.AccountBalanceRepository;
 import inside_payment.repository.AddMoneyRepository;
 import inside_payment.repository.PaymentRepository;
 import org.junit.Assert;
@@ -18,7 +19,12 @@ import org.springframework.http.*;
 import org.springframework.web.client.RestTemplate;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 import static org.mockito.internal.verification.VerificationModeFactory.times;
 
@@ -34,6 +40,9 @@ public class InsidePaymentServiceImplTest {
     @Mock
     private PaymentRepository paymentRepository;
 
+    @Mock
+    private AccountBalanceRepository accountBalanceRepository;
+
     @Mock
     private RestTemplate restTemplate;
 
@@ -60,13 +69,7 @@ public class InsidePaymentServiceImplTest {
                 new ParameterizedTypeReference<Response<Order>>() {
                 })).thenReturn(re);
 
-        List<Payment> payments = new ArrayList<>();
-        List<Money> monies = new ArrayList<>();
-        Money money = new Money();
-        money.setMoney("2.0");
-        monies.add(money);
-        Mockito.when(paymentRepository.findByUserId(Mockito.anyString())).thenReturn(payments);
-        Mockito.when(addMoneyRepository.findByUserId(Mockito.anyString())).thenReturn(monies);
+        Mockito.when(accountBalanceRepository.debit("user_id", 100)).thenReturn(true);
         //mock setOrderStatus()
         Response response2 = new Response(1, "", null);
         ResponseEntity<Response> re2 = new ResponseEntity<>(response2, HttpStatus.OK);
@@ -78,14 +81,71 @@ public class InsidePaymentServiceImplTest {
         Mockito.when(paymentRepository.save(Mockito.any(Payment.class))).thenReturn(null);
         Response result = insidePaymentServiceImpl.pay(info, headers);
         Assert.assertEquals(new Response<>(1, "Payment Success", null), result);
+        Mockito.verify(paymentRepository, times(0)).findByUserId(Mockito.anyString());
+    }
+
+    @Test
+    public void testPayOutsideWhenBalanceShort() {
+        PaymentInfo info = new PaymentInfo("user_id", "order_id", "G", "1.0");
+        Order order = new Order();
+        order.setStatus(0);
+        order.setPrice("1.0");
+        Response<Order> response = new Response<>(1, null, order);
+        ResponseEntity<Response<Order>> re = new ResponseEntity<>(response, HttpStatus.OK);
+        Mockito.when(restTemplate.exchange(
+                "http://ts-order-service:12031/api/v1/orderservice/order/order_id",
+                HttpMethod.GET,
+                httpEntity,
+                new ParameterizedTypeReference<Response<Order>>() {
+                })).thenReturn(re);
+        Mockito.when(accountBalanceRepository.debit("user_id", 100)).thenReturn(false);
+        Mockito.when(accountBalanceRepository.findOne("user_id")).thenReturn(new AccountBalance("user_id", 50, 0));
+        Mockito.when(accountBalanceRepository.add("user_id", 0, 100)).thenReturn(true);
+        ResponseEntity<Response> re2 = new ResponseEntity<>(new Response(1, "outside", null), HttpStatus.OK);
+        Mockito.when(restTemplate.exchange(
+                Mockito.eq("http://ts-payment-service:19001/api/v1/paymentservice/payment"),
+                Mockito.eq(HttpMethod.POST),
+                Mockito.any(HttpEntity.class),
+                Mockito.eq(Response.class))).thenReturn(re2);
+        Mockito.when(restTemplate.exchange(
+                "http://ts-order-service:12031/api/v1/orderservice/order/status/" + "order_id" + "/" + 1,
+                HttpMethod.GET,
+                httpEntity,
+                Response.class)).thenReturn(re2);
+        Response result = insidePaymentServiceImpl.pay(info, headers);
+        Assert.assertEquals(new Response<>(1, "Payment Success outside", null), result);
+        // an outside payment is counted against the balance like before
+        Mockito.verify(accountBalanceRepository).add("user_id", 0, 100);
+        Mockito.verify(accountBalanceRepository, times(0)).insert(Mockito.any(AccountBalance.class));
+    }
+
+    @Test
+    public void testPayDifferenceBuildsMissingBalanceFromRows() {
+        PaymentInfo info = new PaymentInfo("user_id", "order_id", "G", "1.0");
+        List<Money> monies = new ArrayList<>();
+        Money money = new Money();
+        money.setMoney("2.0");
+        monies.add(money);
+        Payment payment = new Payment();
+        payment.setPrice("0.5");
+        Mockito.when(addMoneyRepository.findByUserId("user_id")).thenReturn(monies);
+        Mockito.when(paymentRepository.findByUserId("user_id")).thenReturn(Arrays.asList(payment));
+        Mockito.when(accountBalanceRepository.debit("user_id", 100)).thenReturn(false, true);
+        Mockito.when(accountBalanceRepository.findOne("user_id")).thenReturn(null);
+        Response result = insidePaymentServiceImpl.payDifference(info, headers);
+        Assert.assertEquals(new Response<>(1, "Pay Difference Success", null), result);
+        Mockito.verify(accountBalanceRepository).insert(new AccountBalance("user_id", 200, 50));
     }
 
     @Test
     public void testCreateAccount1() {
         AccountInfo info = new AccountInfo();
+        info.setUserId("user_id");
+        info.setMoney("10000");
         List<Money> list = new ArrayList<>();
         Mockito.when(addMoneyRepository.findByUserId(Mockito.anyString())).thenReturn(list);
         Mockito.when(addMoneyRepository.save(Mockito.any(Money.class))).thenReturn(null);
+        Mockito.when(accountBalanceRepository.add("user_id", 1000000, 0)).thenReturn(true);
         Response result = insidePaymentServiceImpl.createAccount(info, headers);
         Assert.assertEquals(new Response<>(1, "Create Account Success", null), result);
     }
@@ -93,6 +153,7 @@ public class InsidePaymentServiceImplTest {
     @Test
     public void testCreateAccount2() {
         AccountInfo info = new AccountInfo();
+        info.setMoney("10000");
         List<Money> list = new ArrayList<>();
         list.add(new Money());
         Mockito.when(addMoneyRepository.findByUserId(Mockito.anyString())).thenReturn(list);
@@ -105,23 +166,34 @@ public class InsidePaymentServiceImplTest {
         List<Money> list = new ArrayList<>();
         Mockito.when(addMoneyRepository.findByUserId(Mockito.anyString())).thenReturn(list);
         Mockito.when(addMoneyRepository.save(Mockito.any(Money.class))).thenReturn(null);
-        Response result = insidePaymentServiceImpl.addMoney("user_id", "money", headers);
+        Response result = insidePaymentServiceImpl.addMoney("user_id", "100", headers);
         Assert.assertEquals(new Response<>(1, "Add Money Success", null), result);
+        Mockito.verify(accountBalanceRepository).add("user_id", 10000, 0);
+    }
+
+    @Test
+    public void testAddMoneyNotANumber() {
+        Response result = insidePaymentServiceImpl.addMoney("user_id", "money", headers);
+        Assert.assertEquals(new Response<>(0, "Add Money Failed", null), result);
+        Mockito.verify(addMoneyRepository, times(0)).save(Mockito.any(Money.class));
     }
 
     @Test
     public void testAddMoney2() {
         Mockito.when(addMoneyRepository.findByUserId(Mockito.anyString())).thenReturn(null);
-        Response result = insidePaymentServiceImpl.addMoney("user_id", "money", headers);
+        Response result = insidePaymentServiceImpl.addMoney("user_id", "100", headers);
         Assert.assertEquals(new Response<>(0, "Add Money Failed", null), result);
     }
 
     @Test
     public void testQueryAccount() {
-        List<Money> list = new ArrayList<>();
-        Mockito.when(addMoneyRepository.findAll()).thenReturn(list);
+        Mockito.when(accountBalanceRepository.findAllBy()).thenReturn(Stream.of(new AccountBalance("user_id", 1000, 250)));
         Response result = insidePaymentServiceImpl.queryAccount(headers);
         Assert.assertEquals("Success", result.getMsg());
+        Balance balance = ((List<Balance>) result.getData()).get(0);
+        Assert.assertEquals("user_id", balance.getUserId());
+        Assert.assertEquals("7.50", balance.getBalance());
+        Mockito.verify(paymentRepository, times(0)).findByUserId(Mockito.anyString());
     }
 
     @Test
@@ -145,27 +217,21 @@ public class InsidePaymentServiceImplTest {
         List<Money> list = new ArrayList<>();
         Mockito.when(addMoneyRepository.findByUserId(Mockito.anyString())).thenReturn(list);
         Mockito.when(addMoneyRepository.save(Mockito.any(Money.class))).thenReturn(null);
-        Response result = insidePaymentServiceImpl.drawBack("user_id", "money", headers);
+        Response result = insidePaymentServiceImpl.drawBack("user_id", "100", headers);
         Assert.assertEquals(new Response<>(1, "Draw Back Money Success", null), result);
     }
 
     @Test
     public void testDrawBack2() {
         Mockito.when(addMoneyRepository.findByUserId(Mockito.anyString())).thenReturn(null);
-        Response result = insidePaymentServiceImpl.drawBack("user_id", "money", headers);
+        Response result = insidePaymentServiceImpl.drawBack("user_id", "100", headers);
         Assert.assertEquals(new Response<>(0, "Draw Back Money Failed", null), result);
     }
 
     @Test
     public void testPayDifference() {
         PaymentInfo info = new PaymentInfo("user_id", "order_id", "G", "1.0");
-        List<Payment> payments = new ArrayList<>();
-        List<Money> monies = new ArrayList<>();
-        Money money = new Money();
-        money.setMoney("2.0");
-        monies.add(money);
-        Mockito.when(paymentRepository.findByUserId(Mockito.anyString())).thenReturn(payments);
-        Mockito.when(addMoneyRepository.findByUserId(Mockito.anyString())).thenReturn(monies);
+        Mockito.when(accountBalanceRepository.debit("user_id", 100)).thenReturn(true);
         Mockito.when(paymentRepository.save(Mockito.any(Payment.class))).thenReturn(null);
         Response result = insidePaymentServiceImpl.payDifference(info, headers);
         Assert.assertEquals(new Response<>(1, "Pay Difference Success", null), result);
@@ -205,4 +271,60 @@ public class InsidePaymentServiceImplTest {
         Mockito.verify(paymentRepository, times(0)).save(Mockito.any(Payment.class));
     }
 
+    @Test
+    public void testVerifyAccounts() {
+        Mockito.when(accountBalanceRepository.findLedgerUserIds()).thenReturn(new HashSet<>(Arrays.asList("user_1", "user_2", "user_3")));
+        List<Money> monies = new ArrayList<>();
+        Money money = new Money();
+        money.setMoney("2.0");
+        monies.add(money);
+        Mockito.when(addMoneyRepository.findByUserId(Mockito.anyString())).thenReturn(monies);
+        Mockito.when(accountBalanceRepository.findOne("user_1")).thenReturn(null);
+        Mockito.when(accountBalanceRepository.findOne("user_2")).thenReturn(new AccountBalance("user_2", 300, 0));
+        Mockito.when(accountBalanceRepository.findOne("user_3")).thenReturn(new AccountBalance("user_3", 200, 0));
+        Mockito.when(accountBalanceRepository.replace(Mockito.any(AccountBalance.class), Mockito.any(AccountBalance.class))).thenReturn(true);
+        Response result = insidePaymentServiceImpl.verifyAccounts(headers);
+        Map<String, Integer> report = new LinkedHashMap<>();
+        report.put("accounts", 3);
+        report.put("rebuilt", 1);
+        report.put("repaired", 1);
+        report.put("pending", 0);
+        Assert.assertEquals(new Response<>(1, "Verify Accounts Success", report), result);
+        Mockito.verify(accountBalanceRepository).insert(new AccountBalance("user_1", 200, 0));
+        Mockito.verify(accountBalanceRepository).replace(new AccountBalance("user_2", 300, 0), new AccountBalance("user_2", 200, 0));
+    }
+
+    @Test
+    public void testVerifyAccountsLeavesLatelyWrittenBalance() {
+        Mockito.when(accountBalanceRepository.findLedgerUserIds()).thenReturn(new HashSet<>(Arrays.asList("user_id")));
+        List<Money> monies = new ArrayList<>();
+        Money money = new Money();
+        money.setMoney("2.0");
+        monies.add(money);
+        Mockito.when(addMoneyRepository.findByUserId("user_id")).thenReturn(monies);
+        // a payment took its amount from the balance, its row is not saved yet
+        AccountBalance seen = new AccountBalance("user_id", 200, 50);
+        seen.setUpdatedAt(System.currentTimeMillis());
+        Mockito.when(accountBalanceRepository.findOne("user_id")).thenReturn(seen);
+        Response result = insidePaymentServiceImpl.verifyAccounts(headers);
+        Map<String, Integer> report = new LinkedHashMap<>();
+        report.put("accounts", 1);
+        report.put("rebuilt", 0);
+        report.put("repaired", 0);
+        report.put("pending", 1);
+        Assert.assertEquals(new Response<>(1, "Verify Accounts Success", report), result);
+        Mockito.verify(accountBalanceRepository, times(0)).replace(Mockito.any(AccountBalance.class), Mockito.any(AccountBalance.class));
+    }
+
+    @Test
+    public void testCentsOf() {
+        Assert.assertEquals(Long.valueOf(10000), InsidePaymentServiceImpl.centsOf("100.0"));
+        Assert.assertEquals(Long.valueOf(13), InsidePaymentServiceImpl.centsOf("0.125"));
+        Assert.assertEquals(Long.valueOf(-50), InsidePaymentServiceImpl.centsOf(" -0.5 "));
+        Assert.assertNull(InsidePaymentServiceImpl.centsOf("money"));
+        Assert.assertNull(InsidePaymentServiceImpl.centsOf(null));
+        Assert.assertEquals("7.50", InsidePaymentServiceImpl.amountOf(750));
+        Assert.assertEquals("-0.05", InsidePaymentServiceImpl.amountOf(-5));
+    }
+
 }
@@ -0,0 +1,38 @@
+package other.entity;
+
+import lombok.Data;
+
+import java.util.Date;
+
+/**
+ * An order added to (count 1) or removed from (count -1) an account, sent to ts-security-service
+ * after the order write succeeded. An update is sent as the old order removed and the new one added.
+ *
+ * @author fdse
+ */
+@Data
+public class AccountOrderChange {
+
+    private String accountId;
+
+    private Date boughtDate;
+
+    /**
+     * not paid, paid or collected
+     */
+    private boolean valid;
+
+    private int count;
+
+    public AccountOrderChange(){
+
+    }
+
+    public AccountOrderChange(String accountId, Date boughtDate, boolean valid, int count) {
+        this.accountId = accountId;
+        this.boughtDate = boughtDate;
+        this.valid = valid;
+        this.count = count;
+    }
+
+}
@@ -3,6 +3,9 @@ package other.entity;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
+import java.util.Date;
+import java.util.List;
+
 /**
  * @author fdse
  */
@@ -14,8 +17,18 @@ public class OrderSecurity {
 
     private int orderNumOfValidOrder;
 
+    /**
+     * lets ts-security-service count each order only as long as it is in the last hour
+     */
+    private List<Date> boughtDatesInLastOneHour;
+
     public OrderSecurity() {
         //Default Constructor
     }
 
+    public OrderSecurity(int orderNumInLastOneHour, int orderNumOfValidOrder) {
+        this.orderNumInLastOneHour = orderNumInLastOneHour;
+        this.orderNumOfValidOrder = orderNumOfValidOrder;
+    }
+
 }
@@ -31,6 +31,16 @@ public class QueryInfo {
 
     private boolean enableStateQuery;
 
+    /**
+     * id of the last order of the previous page, null for the first page
+     */
+    private String cursor;
+
+    /**
+     * page size, 0 for all orders
+     */
+    private int limit;
+
     public QueryInfo() {
         //Default Constructor
     }
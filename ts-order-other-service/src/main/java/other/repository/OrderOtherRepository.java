@@ -12,7 +12,7 @@ import java.util.UUID;
  * @author fdse
  */
 @Repository
-public interface OrderOtherRepository extends MongoRepository<Order, String> {
+public interface OrderOtherRepository extends MongoRepository<Order, String>, OrderOtherRepositoryCustom {
 
     /**
      * find order by id
@@ -31,6 +31,24 @@ public interface OrderOtherRepository extends MongoRepository<Order, String> {
     @Override
     ArrayList<Order> findAll();
 
+    /**
+     * find the bought date of an order, it positions the next page of an order query
+     *
+     * @param id id
+     * @return Order
+     */
+    @Query(value = "{ 'id': ?0 }", fields = "{ 'boughtDate' : 1 }")
+    Order findBoughtDateById(UUID id);
+
+    /**
+     * find order by idempotency key
+     *
+     * @param idempotencyKey idempotency key
+     * @return Order
+     */
+    @Query("{ 'idempotencyKey' : ?0 }")
+    Order findByIdempotencyKey(String idempotencyKey);
+
     /**
      * find orders by account id
      *
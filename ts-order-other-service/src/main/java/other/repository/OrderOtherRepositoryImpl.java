@@ -0,0 +1,82 @@
+package other.repository;
+
+import com.mongodb.DBObject;
+import other.entity.Order;
+import other.entity.OrderStatus;
+import other.entity.QueryInfo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * @author fdse
+ */
+public class OrderOtherRepositoryImpl implements OrderOtherRepositoryCustom {
+
+    @Autowired
+    private MongoTemplate mongoTemplate;
+
+    @Override
+    public ArrayList<Order> findByQuery(UUID accountId, QueryInfo qi, Order after, int limit) {
+        return new ArrayList<>(mongoTemplate.find(queryOf(accountId, qi, after, limit), Order.class));
+    }
+
+    /**
+     * The requirements are matched by the account_bought_date index, the bounds are
+     * exclusive like Date.before and Date.after. Pages continue after the bought date
+     * and id of the last order, so orders written meanwhile do not shift them.
+     */
+    static Query queryOf(UUID accountId, QueryInfo qi, Order after, int limit) {
+        Criteria criteria = Criteria.where("accountId").is(accountId);
+        if (qi.isEnableStateQuery()) {
+            criteria.and("status").is(qi.getState());
+        }
+        if (qi.isEnableTravelDateQuery()) {
+            // the travel date has always been bounded below by the bought date start
+            criteria.and("travelDate").lt(qi.getTravelDateEnd()).gt(qi.getBoughtDateStart());
+        }
+        if (qi.isEnableBoughtDateQuery()) {
+            criteria.and("boughtDate").lt(qi.getBoughtDateEnd()).gt(qi.getBoughtDateStart());
+        }
+        if (after != null) {
+            criteria.orOperator(Criteria.where("boughtDate").lt(after.getBoughtDate()),
+                    Criteria.where("boughtDate").is(after.getBoughtDate()).and("id").gt(after.getId()));
+        }
+        Query query = new Query(criteria)
+                .with(new Sort(new Sort.Order(Sort.Direction.DESC, "boughtDate"), new Sort.Order(Sort.Direction.ASC, "id")));
+        if (limit > 0) {
+            query.limit(limit);
+        }
+        return query;
+    }
+
+    @Override
+    public Map<Integer, Integer> countSeatClasses(Date travelDate, String trainNumber) {
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (DBObject group : mongoTemplate.aggregate(seatClassCountsOf(travelDate, trainNumber), DBObject.class)) {
+            counts.put(((Number) group.get("_id")).intValue(), ((Number) group.get("count")).intValue());
+        }
+        return counts;
+    }
+
+    /**
+     * Counted in Mongo over the train_travel_date index, only one counter per seat class
+     * comes back. Orders cancelled, rebooked, refunded or used no longer take their seat.
+     */
+    static TypedAggregation<Order> seatClassCountsOf(Date travelDate, String trainNumber) {
+        return Aggregation.newAggregation(Order.class,
+                Aggregation.match(Criteria.where("trainNumber").is(trainNumber).and("travelDate").is(travelDate)
+                        .and("status").lt(OrderStatus.CHANGE.getCode())),
+                Aggregation.group("seatClass").count().as("count"));
+    }
+}
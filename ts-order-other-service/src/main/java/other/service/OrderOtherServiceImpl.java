@@ -1,9 +1,12 @@
 package other.service;
 
+import edu.fudan.common.invalidation.InvalidationPublisher;
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -14,6 +17,7 @@ import other.repository.OrderOtherRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -28,6 +32,9 @@ public class OrderOtherServiceImpl implements OrderOtherService {
     @Autowired
     private RestTemplate restTemplate;
 
+    @Autowired
+    private InvalidationPublisher invalidationPublisher;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(OrderOtherServiceImpl.class);
 
     String success = "Success";
@@ -70,13 +77,17 @@ public class OrderOtherServiceImpl implements OrderOtherService {
     @Override
     public Response create(Order order, HttpHeaders headers) {
         OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Create Order] Ready Create Order");
-        ArrayList<Order> accountOrders = orderOtherRepository.findByAccountId(order.getAccountId());
-        if (accountOrders.contains(order)) {
+        boolean keyed = order.getIdempotencyKey() != null;
+        Order existing = insertOnce(order);
+        if (existing != null && keyed) {
+            OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Order Create] Replayed. Order ID: {}", existing.getId());
+            return new Response<>(1, success, existing);
+        } else if (existing != null) {
             OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Order Create] Fail.Order already exists.");
             return new Response<>(0, "Order already exist", order);
         } else {
-            order.setId(UUID.randomUUID());
-            orderOtherRepository.save(order);
+            publishSoldTicketsChange(order);
+            publishAccountChanges(accountOrderChange(order, 1));
             OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Order Create] Success.");
             OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Order Create] Price: {}", order.getPrice());
             return new Response<>(1, success, order);
@@ -94,6 +105,62 @@ public class OrderOtherServiceImpl implements OrderOtherService {
     }
 
 
+    /**
+     * Saves a new order once per idempotency key. An order without a key gets one from the
+     * fields Order.equals compares, so an order equal to one created before is still rejected,
+     * by the unique index instead of a scan over all orders of the account.
+     *
+     * @return the order created before under the same key, null when the new order was saved
+     */
+    private Order insertOnce(Order order) {
+        if (order.getIdempotencyKey() == null) {
+            order.setIdempotencyKey(contentKeyOf(order));
+        }
+        order.setId(UUID.randomUUID());
+        try {
+            orderOtherRepository.insert(order);
+            return null;
+        } catch (DuplicateKeyException e) {
+            Order existing = orderOtherRepository.findByIdempotencyKey(order.getIdempotencyKey());
+            if (existing == null) {
+                throw e;
+            }
+            return existing;
+        }
+    }
+
+    static String contentKeyOf(Order order) {
+        String content = String.join("|", String.valueOf(order.getAccountId()), timeOf(order.getBoughtDate()),
+                timeOf(order.getTravelDate()), timeOf(order.getTravelTime()), order.getContactsName(),
+                order.getContactsDocumentNumber(), String.valueOf(order.getDocumentType()), order.getTrainNumber(),
+                String.valueOf(order.getCoachNumber()), String.valueOf(order.getSeatClass()), order.getSeatNumber(),
+                order.getFrom(), order.getTo(), String.valueOf(order.getStatus()), order.getPrice());
+        return "content_" + UUID.nameUUIDFromBytes(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Saves a changed order. A content key is recomputed from the new fields, so new orders equal
+     * to the changed one are rejected and ones equal to its old content are accepted again.
+     */
+    private void saveChanged(Order order) {
+        String key = order.getIdempotencyKey();
+        if (key == null || key.startsWith("content_")) {
+            order.setIdempotencyKey(contentKeyOf(order));
+            try {
+                orderOtherRepository.save(order);
+                return;
+            } catch (DuplicateKeyException e) {
+                // an equal order holds the key and keeps rejecting copies, this one gets a key of its own
+                order.setIdempotencyKey(contentKeyOf(order) + "_" + order.getId());
+            }
+        }
+        orderOtherRepository.save(order);
+    }
+
+    private static String timeOf(Date date) {
+        return date == null ? "" : String.valueOf(date.getTime());
+    }
+
     @Override
     public Response alterOrder(OrderAlterInfo oai, HttpHeaders headers) {
 
@@ -118,68 +185,33 @@ public class OrderOtherServiceImpl implements OrderOtherService {
 
     @Override
     public Response<ArrayList<Order>> queryOrders(QueryInfo qi, String accountId, HttpHeaders headers) {
-        //1.Get all orders of the user
-        ArrayList<Order> list = orderOtherRepository.findByAccountId(UUID.fromString(accountId));
-        OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Query Order][Step 1] Get Orders Number of Account: {}", list.size());
-        //2.Check is these orders fit the requirement/
-        if (qi.isEnableStateQuery() || qi.isEnableBoughtDateQuery() || qi.isEnableTravelDateQuery()) {
-            ArrayList<Order> finalList = new ArrayList<>();
-            for (Order tempOrder : list) {
-                boolean statePassFlag = false;
-                boolean boughtDatePassFlag = false;
-                boolean travelDatePassFlag = false;
-                //3.Check order state requirement.
-                if (qi.isEnableStateQuery()) {
-                    if (tempOrder.getStatus() != qi.getState()) {
-                        statePassFlag = false;
-                    } else {
-                        statePassFlag = true;
-                    }
-                } else {
-                    statePassFlag = true;
-                }
-                OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Query Order][Step 2][Check Status Fits End]");
-                //4.Check order travel date requirement.
-                if (qi.isEnableTravelDateQuery()) {
-                    if (tempOrder.getTravelDate().before(qi.getTravelDateEnd()) &&
-                            tempOrder.getTravelDate().after(qi.getBoughtDateStart())) {
-                        travelDatePassFlag = true;
-                    } else {
-                        travelDatePassFlag = false;
-                    }
-                } else {
-                    travelDatePassFlag = true;
-                }
-                OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Query Order][Step 2][Check Travel Date End]");
-                //5.Check order bought date requirement.
-                if (qi.isEnableBoughtDateQuery()) {
-                    if (tempOrder.getBoughtDate().before(qi.getBoughtDateEnd()) &&
-                            tempOrder.getBoughtDate().after(qi.getBoughtDateStart())) {
-                        boughtDatePassFlag = true;
-                    } else {
-                        boughtDatePassFlag = false;
-                    }
-                } else {
-                    boughtDatePassFlag = true;
-                }
-                OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Query Order][Step 2][Check Bought Date End]");
-                //6.check if all requirement fits.
-                if (statePassFlag && boughtDatePassFlag && travelDatePassFlag) {
-                    finalList.add(tempOrder);
-                }
-                OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Query Order][Step 2][Check All Requirement End]");
+        Order after = null;
+        if (qi.getCursor() != null) {
+            UUID cursorId;
+            try {
+                cursorId = UUID.fromString(qi.getCursor());
+            } catch (IllegalArgumentException e) {
+                OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Query Order] Invalid cursor: {}", qi.getCursor());
+                return new Response<>(0, "Invalid Cursor", null);
+            }
+            after = orderOtherRepository.findBoughtDateById(cursorId);
+            if (after == null) {
+                OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Query Order] Cursor order not found: {}", qi.getCursor());
+                return new Response<>(0, orderNotFound, null);
             }
-            OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Query Order] Get order num: {}", finalList.size());
-            return new Response<>(1, "Get order num", finalList);
-        } else {
-            OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Query Order] Get order num: {}", list.size());
-            return new Response<>(1, "Get order num", list);
         }
+        ArrayList<Order> list = orderOtherRepository.findByQuery(UUID.fromString(accountId), qi, after, qi.getLimit());
+        OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Query Order] Get order num: {}", list.size());
+        return new Response<>(1, "Get order num", list);
     }
 
     @Override
     public Response queryOrdersForRefresh(QueryInfo qi, String accountId, HttpHeaders headers) {
-        ArrayList<Order> orders = queryOrders(qi, accountId, headers).getData();
+        Response<ArrayList<Order>> queried = queryOrders(qi, accountId, headers);
+        if (queried.getStatus() != 1) {
+            return queried;
+        }
+        ArrayList<Order> orders = queried.getData();
         ArrayList<String> stationIds = new ArrayList<>();
         for (Order order : orders) {
             stationIds.add(order.getFrom());
@@ -213,6 +245,8 @@ public class OrderOtherServiceImpl implements OrderOtherService {
             OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Modify Order] Fail.Order not found.");
             return new Response<>(0, orderNotFound, null);
         } else {
+            String oldTripDate = CacheTags.tripDateKey(oldOrder.getTrainNumber(), oldOrder.getTravelDate());
+            AccountOrderChange oldAccountOrder = accountOrderChange(oldOrder, -1);
             oldOrder.setAccountId(order.getAccountId());
             oldOrder.setBoughtDate(order.getBoughtDate());
             oldOrder.setTravelDate(order.getTravelDate());
@@ -230,7 +264,10 @@ public class OrderOtherServiceImpl implements OrderOtherService {
             oldOrder.setDocumentType(order.getDocumentType());
             oldOrder.setContactsDocumentNumber(order.getContactsDocumentNumber());
 
-            orderOtherRepository.save(oldOrder);
+            saveChanged(oldOrder);
+            invalidationPublisher.publish(CacheTags.TRIP, oldTripDate);
+            publishSoldTicketsChange(oldOrder);
+            publishAccountChanges(oldAccountOrder, accountOrderChange(oldOrder, 1));
             OrderOtherServiceImpl.LOGGER.info("[Order Other Service] Success.");
             return new Response<>(1, success, oldOrder);
         }
@@ -244,8 +281,11 @@ public class OrderOtherServiceImpl implements OrderOtherService {
             OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Cancel Order] Fail.Order not found.");
             return new Response<>(0, orderNotFound, null);
         } else {
+            AccountOrderChange oldAccountOrder = accountOrderChange(oldOrder, -1);
             oldOrder.setStatus(OrderStatus.CANCEL.getCode());
-            orderOtherRepository.save(oldOrder);
+            saveChanged(oldOrder);
+            publishSoldTicketsChange(oldOrder);
+            publishAccountChanges(oldAccountOrder, accountOrderChange(oldOrder, 1));
             OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Cancel Order] Success.");
             return new Response<>(1, success, oldOrder);
         }
@@ -253,37 +293,20 @@ public class OrderOtherServiceImpl implements OrderOtherService {
 
     @Override
     public Response queryAlreadySoldOrders(Date travelDate, String trainNumber, HttpHeaders headers) {
-        ArrayList<Order> orders = orderOtherRepository.findByTravelDateAndTrainNumber(travelDate, trainNumber);
+        Map<Integer, Integer> counts = orderOtherRepository.countSeatClasses(travelDate, trainNumber);
         SoldTicket cstr = new SoldTicket();
         cstr.setTravelDate(travelDate);
         cstr.setTrainNumber(trainNumber);
-        OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Calculate Sold Ticket] Get Orders Number: {}", orders.size());
-        for (Order order : orders) {
-            if (order.getStatus() >= OrderStatus.CHANGE.getCode()) {
-                continue;
-            }
-            if (order.getSeatClass() == SeatClass.NONE.getCode()) {
-                cstr.setNoSeat(cstr.getNoSeat() + 1);
-            } else if (order.getSeatClass() == SeatClass.BUSINESS.getCode()) {
-                cstr.setBusinessSeat(cstr.getBusinessSeat() + 1);
-            } else if (order.getSeatClass() == SeatClass.FIRSTCLASS.getCode()) {
-                cstr.setFirstClassSeat(cstr.getFirstClassSeat() + 1);
-            } else if (order.getSeatClass() == SeatClass.SECONDCLASS.getCode()) {
-                cstr.setSecondClassSeat(cstr.getSecondClassSeat() + 1);
-            } else if (order.getSeatClass() == SeatClass.HARDSEAT.getCode()) {
-                cstr.setHardSeat(cstr.getHardSeat() + 1);
-            } else if (order.getSeatClass() == SeatClass.SOFTSEAT.getCode()) {
-                cstr.setSoftSeat(cstr.getSoftSeat() + 1);
-            } else if (order.getSeatClass() == SeatClass.HARDBED.getCode()) {
-                cstr.setHardBed(cstr.getHardBed() + 1);
-            } else if (order.getSeatClass() == SeatClass.SOFTBED.getCode()) {
-                cstr.setSoftBed(cstr.getSoftBed() + 1);
-            } else if (order.getSeatClass() == SeatClass.HIGHSOFTBED.getCode()) {
-                cstr.setHighSoftBed(cstr.getHighSoftBed() + 1);
-            } else {
-                OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Calculate Sold Tickets] Seat class not exists. Order ID: {}", order.getId());
-            }
-        }
+        OrderOtherServiceImpl.LOGGER.info("[Order Other Service][Calculate Sold Ticket] Get Seat Class Counts: {}", counts);
+        cstr.setNoSeat(counts.getOrDefault(SeatClass.NONE.getCode(), 0));
+        cstr.setBusinessSeat(counts.getOrDefault(SeatClass.BUSINESS.getCode(), 0));
+        cstr.setFirstClassSeat(counts.getOrDefault(SeatClass.FIRSTCLASS.getCode(), 0));
+        cstr.setSecondClassSeat(counts.getOrDefault(SeatClass.SECONDCLASS.getCode(), 0));
+        cstr.setHardSeat(counts.getOrDefault(SeatClass.HARDSEAT.getCode(), 0));
+        cstr.setSoftSeat(counts.getOrDefault(SeatClass.SOFTSEAT.getCode(), 0));
+        cstr.setHardBed(counts.getOrDefault(SeatClass.HARDBED.getCode(), 0));
+        cstr.setSoftBed(counts.getOrDefault(SeatClass.SOFTBED.getCode(), 0));
+        cstr.setHighSoftBed(counts.getOrDefault(SeatClass.HIGHSOFTBED.getCode(), 0));
         return new Response<>(1, success, cstr);
     }
 
@@ -303,8 +326,11 @@ public class OrderOtherServiceImpl implements OrderOtherService {
         if (order == null) {
             return new Response<>(0, orderNotFound, null);
         } else {
+            AccountOrderChange oldAccountOrder = accountOrderChange(order, -1);
             order.setStatus(status);
-            orderOtherRepository.save(order);
+            saveChanged(order);
+            publishSoldTicketsChange(order);
+            publishAccountChanges(oldAccountOrder, accountOrderChange(order, 1));
             return new Response<>(1, success, order);
         }
     }
@@ -326,8 +352,10 @@ public class OrderOtherServiceImpl implements OrderOtherService {
         if (order == null) {
             return new Response<>(0, orderNotFound, null);
         } else {
+            AccountOrderChange oldAccountOrder = accountOrderChange(order, -1);
             order.setStatus(OrderStatus.PAID.getCode());
-            orderOtherRepository.save(order);
+            saveChanged(order);
+            publishAccountChanges(oldAccountOrder, accountOrderChange(order, 1));
             return new Response<>(1, success, order);
         }
     }
@@ -349,22 +377,23 @@ public class OrderOtherServiceImpl implements OrderOtherService {
         ArrayList<Order> orders = orderOtherRepository.findByAccountId(UUID.fromString(accountId));
         int countOrderInOneHour = 0;
         int countTotalValidOrder = 0;
+        List<Date> boughtDates = new ArrayList<>();
         Calendar ca = Calendar.getInstance();
         ca.setTime(dateFrom);
         ca.add(Calendar.HOUR_OF_DAY, -1);
         dateFrom = ca.getTime();
         for (Order order : orders) {
-            if (order.getStatus() == OrderStatus.NOTPAID.getCode() ||
-                    order.getStatus() == OrderStatus.PAID.getCode() ||
-                    order.getStatus() == OrderStatus.COLLECTED.getCode()) {
+            if (isValid(order.getStatus())) {
                 countTotalValidOrder += 1;
             }
             if (order.getBoughtDate().after(dateFrom)) {
                 countOrderInOneHour += 1;
+                boughtDates.add(order.getBoughtDate());
             }
         }
         result.setOrderNumInLastOneHour(countOrderInOneHour);
         result.setOrderNumOfValidOrder(countTotalValidOrder);
+        result.setBoughtDatesInLastOneHour(boughtDates);
         return new Response<>(1, success, result);
     }
 
@@ -376,6 +405,8 @@ public class OrderOtherServiceImpl implements OrderOtherService {
             return new Response<>(0, "Order Not Exist.", null);
         } else {
             orderOtherRepository.deleteById(orderUuid);
+            publishSoldTicketsChange(order);
+            publishAccountChanges(accountOrderChange(order, -1));
             return new Response<>(1, success, orderUuid);
         }
     }
@@ -383,13 +414,17 @@ public class OrderOtherServiceImpl implements OrderOtherService {
     @Override
     public Response addNewOrder(Order order, HttpHeaders headers) {
         OrderOtherServiceImpl.LOGGER.info("[Order Service][Admin Add Order] Ready Add Order.");
-        ArrayList<Order> accountOrders = orderOtherRepository.findByAccountId(order.getAccountId());
-        if (accountOrders.contains(order)) {
+        boolean keyed = order.getIdempotencyKey() != null;
+        Order existing = insertOnce(order);
+        if (existing != null && keyed) {
+            OrderOtherServiceImpl.LOGGER.info("[Order Service][Admin Add Order] Replayed. Order ID: {}", existing.getId());
+            return new Response<>(1, success, existing);
+        } else if (existing != null) {
             OrderOtherServiceImpl.LOGGER.info("[Order Service][Admin Add Order] Fail.Order already exists.");
             return new Response<>(0, "Order already exist", null);
         } else {
-            order.setId(UUID.randomUUID());
-            orderOtherRepository.save(order);
+            publishSoldTicketsChange(order);
+            publishAccountChanges(accountOrderChange(order, 1));
             OrderOtherServiceImpl.LOGGER.info("[Order Service][Admin Add Order] Success.");
             OrderOtherServiceImpl.LOGGER.info("[Order Service][Admin Add Order] Price: {}", order.getPrice());
             return new Response<>(1, success, order);
@@ -405,6 +440,8 @@ public class OrderOtherServiceImpl implements OrderOtherService {
             return new Response<>(0, orderNotFound, null);
         } else {
             OrderOtherServiceImpl.LOGGER.info("{}", oldOrder.toString());
+            String oldTripDate = CacheTags.tripDateKey(oldOrder.getTrainNumber(), oldOrder.getTravelDate());
+            AccountOrderChange oldAccountOrder = accountOrderChange(oldOrder, -1);
             oldOrder.setAccountId(order.getAccountId());
             oldOrder.setBoughtDate(order.getBoughtDate());
             oldOrder.setTravelDate(order.getTravelDate());
@@ -420,10 +457,52 @@ public class OrderOtherServiceImpl implements OrderOtherService {
             oldOrder.setContactsName(order.getContactsName());
             oldOrder.setContactsDocumentNumber(order.getContactsDocumentNumber());
             oldOrder.setDocumentType(order.getDocumentType());
-            orderOtherRepository.save(oldOrder);
+            saveChanged(oldOrder);
+            invalidationPublisher.publish(CacheTags.TRIP, oldTripDate);
+            publishSoldTicketsChange(oldOrder);
+            publishAccountChanges(oldAccountOrder, accountOrderChange(oldOrder, 1));
             OrderOtherServiceImpl.LOGGER.info("[Order Service] [Admin Update Order] Success.");
             return new Response<>(1, success, oldOrder);
         }
     }
-}
 
+    /**
+     * Sold and left ticket counts of the order's train and day may be cached by other services
+     */
+    private void publishSoldTicketsChange(Order order) {
+        invalidationPublisher.publish(CacheTags.TRIP, CacheTags.tripDateKey(order.getTrainNumber(), order.getTravelDate()));
+    }
+
+    private AccountOrderChange accountOrderChange(Order order, int count) {
+        return new AccountOrderChange(String.valueOf(order.getAccountId()), order.getBoughtDate(),
+                isValid(order.getStatus()), count);
+    }
+
+    /**
+     * The orders checkSecurityAboutOrder counts as valid
+     */
+    private static boolean isValid(int status) {
+        return status == OrderStatus.NOTPAID.getCode() ||
+                status == OrderStatus.PAID.getCode() ||
+                status == OrderStatus.COLLECTED.getCode();
+    }
+
+    /**
+     * ts-security-service keeps the order counts of every checked account in memory and applies
+     * these changes instead of asking for them on every check. They go as an event of the account,
+     * a change that leaves the counts as they were is not sent.
+     */
+    private void publishAccountChanges(AccountOrderChange... changes) {
+        if (changes.length == 2 && changes[0].equals(new AccountOrderChange(changes[1].getAccountId(),
+                changes[1].getBoughtDate(), changes[1].isValid(), -changes[1].getCount()))) {
+            return;
+        }
+        Map<String, List<AccountOrderChange>> byAccount = new LinkedHashMap<>();
+        for (AccountOrderChange change : changes) {
+            byAccount.computeIfAbsent(change.getAccountId(), accountId -> new ArrayList<>()).add(change);
+        }
+        for (Map.Entry<String, List<AccountOrderChange>> account : byAccount.entrySet()) {
+            invalidationPublisher.publish(CacheTags.ACCOUNT_ORDERS, account.getKey(), account.getValue());
+        }
+    }
+}
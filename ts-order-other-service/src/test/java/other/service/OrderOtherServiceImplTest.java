@@ -1,5 +1,7 @@
 package other.service;
 
+import edu.fudan.common.invalidation.InvalidationPublisher;
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.Response;
 import org.junit.Assert;
 import org.junit.Before;
@@ -10,7 +12,9 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.stubbing.Answer;
 import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.http.*;
 import org.springframework.web.client.RestTemplate;
 import other.entity.*;
@@ -18,7 +22,9 @@ import other.repository.OrderOtherRepository;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import static org.mockito.internal.verification.VerificationModeFactory.times;
@@ -35,6 +41,9 @@ public class OrderOtherServiceImplTest {
     @Mock
     private RestTemplate restTemplate;
 
+    @Mock
+    private InvalidationPublisher invalidationPublisher;
+
     private HttpHeaders headers = new HttpHeaders();
 
     @Before
@@ -80,13 +89,36 @@ public class OrderOtherServiceImplTest {
     @Test
     public void testCreate1() {
         Order order = new Order();
-        ArrayList<Order> accountOrders = new ArrayList<>();
-        accountOrders.add(order);
-        Mockito.when(orderOtherRepository.findByAccountId(Mockito.any(UUID.class))).thenReturn(accountOrders);
+        Mockito.when(orderOtherRepository.insert(Mockito.any(Order.class))).thenThrow(new DuplicateKeyException("idempotencyKey"));
+        Mockito.when(orderOtherRepository.findByIdempotencyKey(OrderOtherServiceImpl.contentKeyOf(order))).thenReturn(new Order());
         Response result = orderOtherServiceImpl.create(order, headers);
         Assert.assertEquals(new Response<>(0, "Order already exist", order), result);
     }
 
+    @Test
+    public void testCreateReplaysIdempotencyKey() {
+        Order order = new Order();
+        order.setIdempotencyKey("G1235_2_hold");
+        Order existing = new Order();
+        existing.setId(UUID.randomUUID());
+        Mockito.when(orderOtherRepository.insert(Mockito.any(Order.class))).thenThrow(new DuplicateKeyException("idempotencyKey"));
+        Mockito.when(orderOtherRepository.findByIdempotencyKey("G1235_2_hold")).thenReturn(existing);
+        Response result = orderOtherServiceImpl.create(order, headers);
+        Assert.assertEquals(new Response<>(1, "Success", existing), result);
+        Mockito.verifyZeroInteractions(restTemplate);
+    }
+
+    @Test
+    public void testContentKeyOfEqualOrders() {
+        Order order = new Order();
+        Order same = new Order();
+        same.setBoughtDate(order.getBoughtDate());
+        same.setId(UUID.randomUUID());
+        Assert.assertEquals(OrderOtherServiceImpl.contentKeyOf(order), OrderOtherServiceImpl.contentKeyOf(same));
+        same.setSeatNumber("2");
+        Assert.assertNotEquals(OrderOtherServiceImpl.contentKeyOf(order), OrderOtherServiceImpl.contentKeyOf(same));
+    }
+
     @Test
     public void testCreate2() {
         Order order = new Order();
@@ -97,6 +129,58 @@ public class OrderOtherServiceImplTest {
         Assert.assertEquals("Success", result.getMsg());
     }
 
+    @Test
+    public void testChangedOrderIsComparedByItsNewContent() {
+        storeOrdersByKey();
+        Order order = new Order();
+        Date boughtDate = order.getBoughtDate();
+        Assert.assertEquals("Success", orderOtherServiceImpl.create(order, headers).getMsg());
+
+        Order changes = order(boughtDate, "2");
+        changes.setId(order.getId());
+        Assert.assertEquals("Success", orderOtherServiceImpl.saveChanges(changes, headers).getMsg());
+
+        // a copy of the order as it is now is rejected, a copy of its old content is a new order
+        Assert.assertEquals("Order already exist", orderOtherServiceImpl.create(order(boughtDate, "2"), headers).getMsg());
+        Assert.assertEquals("Success", orderOtherServiceImpl.create(order(boughtDate, "1"), headers).getMsg());
+    }
+
+    /**
+     * Keeps the saved orders in memory with a unique idempotency key, like the index does
+     */
+    private void storeOrdersByKey() {
+        Map<UUID, Order> stored = new HashMap<>();
+        Answer<Order> store = invocation -> {
+            Order order = (Order) invocation.getArguments()[0];
+            for (Order other : stored.values()) {
+                if (!other.getId().equals(order.getId()) && other.getIdempotencyKey().equals(order.getIdempotencyKey())) {
+                    throw new DuplicateKeyException("idempotencyKey");
+                }
+            }
+            stored.put(order.getId(), order);
+            return order;
+        };
+        Mockito.when(orderOtherRepository.insert(Mockito.any(Order.class))).thenAnswer(store);
+        Mockito.when(orderOtherRepository.save(Mockito.any(Order.class))).thenAnswer(store);
+        Mockito.when(orderOtherRepository.findById(Mockito.any(UUID.class)))
+                .thenAnswer(invocation -> stored.get((UUID) invocation.getArguments()[0]));
+        Mockito.when(orderOtherRepository.findByIdempotencyKey(Mockito.anyString())).thenAnswer(invocation -> {
+            for (Order order : stored.values()) {
+                if (order.getIdempotencyKey().equals(invocation.getArguments()[0])) {
+                    return order;
+                }
+            }
+            return null;
+        });
+    }
+
+    private static Order order(Date boughtDate, String seatNumber) {
+        Order order = new Order();
+        order.setBoughtDate(boughtDate);
+        order.setSeatNumber(seatNumber);
+        return order;
+    }
+
     @Test
     public void testInitOrder1() {
         Order order = new Order();
@@ -142,20 +226,64 @@ public class OrderOtherServiceImplTest {
         Order order = new Order();
         order.setStatus(1);
         list.add(order);
-        Mockito.when(orderOtherRepository.findByAccountId(Mockito.any(UUID.class))).thenReturn(list);
         QueryInfo qi = new QueryInfo();
         qi.setEnableStateQuery(true);
         qi.setEnableBoughtDateQuery(false);
         qi.setEnableTravelDateQuery(false);
         qi.setState(1);
+        Mockito.when(orderOtherRepository.findByQuery(Mockito.any(UUID.class), Mockito.eq(qi), (Order) Mockito.isNull(), Mockito.eq(0))).thenReturn(list);
+        Response result = orderOtherServiceImpl.queryOrders(qi, UUID.randomUUID().toString(), headers);
+        Assert.assertEquals(new Response<>(1, "Get order num", list), result);
+    }
+
+    @Test
+    public void testQueryOrdersContinuesAfterCursor() {
+        Order last = new Order();
+        last.setId(UUID.randomUUID());
+        Mockito.when(orderOtherRepository.findBoughtDateById(last.getId())).thenReturn(last);
+        ArrayList<Order> list = new ArrayList<>();
+        list.add(new Order());
+        QueryInfo qi = new QueryInfo();
+        qi.setCursor(last.getId().toString());
+        qi.setLimit(10);
+        Mockito.when(orderOtherRepository.findByQuery(Mockito.any(UUID.class), Mockito.eq(qi), Mockito.eq(last), Mockito.eq(10))).thenReturn(list);
         Response result = orderOtherServiceImpl.queryOrders(qi, UUID.randomUUID().toString(), headers);
         Assert.assertEquals(new Response<>(1, "Get order num", list), result);
     }
 
+    @Test
+    public void testQueryOrdersAfterMissingCursor() {
+        Mockito.when(orderOtherRepository.findBoughtDateById(Mockito.any(UUID.class))).thenReturn(null);
+        QueryInfo qi = new QueryInfo();
+        qi.setCursor(UUID.randomUUID().toString());
+        Response result = orderOtherServiceImpl.queryOrders(qi, UUID.randomUUID().toString(), headers);
+        Assert.assertEquals(new Response<>(0, "Order Not Found", null), result);
+    }
+
+    @Test
+    public void testQueryOrdersAfterInvalidCursor() {
+        QueryInfo qi = new QueryInfo();
+        qi.setCursor("not-an-order-id");
+        Response result = orderOtherServiceImpl.queryOrders(qi, UUID.randomUUID().toString(), headers);
+        Assert.assertEquals(new Response<>(0, "Invalid Cursor", null), result);
+        Mockito.verify(orderOtherRepository, Mockito.never()).findBoughtDateById(Mockito.any(UUID.class));
+    }
+
+    @Test
+    public void testQueryOrdersForRefreshAfterMissingCursor() {
+        Mockito.when(orderOtherRepository.findBoughtDateById(Mockito.any(UUID.class))).thenReturn(null);
+        QueryInfo qi = new QueryInfo();
+        qi.setCursor(UUID.randomUUID().toString());
+        Response result = orderOtherServiceImpl.queryOrdersForRefresh(qi, UUID.randomUUID().toString(), headers);
+        Assert.assertEquals(new Response<>(0, "Order Not Found", null), result);
+        Mockito.verify(restTemplate, Mockito.never()).exchange(Mockito.anyString(), Mockito.any(HttpMethod.class),
+                Mockito.any(HttpEntity.class), Mockito.any(ParameterizedTypeReference.class));
+    }
+
     @Test
     public void testQueryOrdersForRefresh() {
         ArrayList<Order> list = new ArrayList<>();
-        Mockito.when(orderOtherRepository.findByAccountId(Mockito.any(UUID.class))).thenReturn(list);
+        Mockito.when(orderOtherRepository.findByQuery(Mockito.any(UUID.class), Mockito.any(QueryInfo.class), (Order) Mockito.isNull(), Mockito.anyInt())).thenReturn(list);
         //mock queryForStationId()
         Response<List<String>> response = new Response<>();
         ResponseEntity<Response<List<String>>> re = new ResponseEntity<>(response, HttpStatus.OK);
@@ -222,12 +350,29 @@ public class OrderOtherServiceImplTest {
         Assert.assertEquals("Success", result.getMsg());
     }
 
+    @Test
+    public void testCancelOrderPublishesTripDateChange() {
+        Order oldOrder = new Order();
+        oldOrder.setTrainNumber("K1345");
+        oldOrder.setTravelDate(new Date());
+        Mockito.when(orderOtherRepository.findById(Mockito.any(UUID.class))).thenReturn(oldOrder);
+        orderOtherServiceImpl.cancelOrder(UUID.randomUUID(), UUID.randomUUID(), headers);
+        Mockito.verify(invalidationPublisher).publish(CacheTags.TRIP, CacheTags.tripDateKey("K1345", oldOrder.getTravelDate()));
+    }
+
     @Test
     public void testQueryAlreadySoldOrders() {
-        ArrayList<Order> orders = new ArrayList<>();
-        Mockito.when(orderOtherRepository.findByTravelDateAndTrainNumber(Mockito.any(Date.class), Mockito.anyString())).thenReturn(orders);
+        Map<Integer, Integer> counts = new HashMap<>();
+        counts.put(SeatClass.FIRSTCLASS.getCode(), 3);
+        counts.put(SeatClass.SECONDCLASS.getCode(), 5);
+        Mockito.when(orderOtherRepository.countSeatClasses(Mockito.any(Date.class), Mockito.anyString())).thenReturn(counts);
         Response result = orderOtherServiceImpl.queryAlreadySoldOrders(new Date(), "G1234", headers);
         Assert.assertEquals("Success", result.getMsg());
+        SoldTicket soldTicket = (SoldTicket) result.getData();
+        Assert.assertEquals("G1234", soldTicket.getTrainNumber());
+        Assert.assertEquals(3, soldTicket.getFirstClassSeat());
+        Assert.assertEquals(5, soldTicket.getSecondClassSeat());
+        Assert.assertEquals(0, soldTicket.getBusinessSeat());
     }
 
     @Test
@@ -312,7 +457,7 @@ public class OrderOtherServiceImplTest {
         ArrayList<Order> orders = new ArrayList<>();
         Mockito.when(orderOtherRepository.findByAccountId(Mockito.any(UUID.class))).thenReturn(orders);
         Response result = orderOtherServiceImpl.checkSecurityAboutOrder(new Date(), UUID.randomUUID().toString(), headers);
-        Assert.assertEquals(new Response<>(1, "Success", new OrderSecurity(0, 0)), result);
+        Assert.assertEquals(new Response<>(1, "Success", new OrderSecurity(0, 0, new ArrayList<>())), result);
     }
 
     @Test
@@ -335,9 +480,8 @@ public class OrderOtherServiceImplTest {
     @Test
     public void testAddNewOrder1() {
         Order order = new Order();
-        ArrayList<Order> accountOrders = new ArrayList<>();
-        accountOrders.add(order);
-        Mockito.when(orderOtherRepository.findByAccountId(Mockito.any(UUID.class))).thenReturn(accountOrders);
+        Mockito.when(orderOtherRepository.insert(Mockito.any(Order.class))).thenThrow(new DuplicateKeyException("idempotencyKey"));
+        Mockito.when(orderOtherRepository.findByIdempotencyKey(OrderOtherServiceImpl.contentKeyOf(order))).thenReturn(new Order());
         Response result = orderOtherServiceImpl.addNewOrder(order, headers);
         Assert.assertEquals(new Response<>(0, "Order already exist", null), result);
     }
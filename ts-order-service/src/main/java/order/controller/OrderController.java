@@ -38,6 +38,12 @@ public class OrderController {
         return ok(orderService.getSoldTickets(seatRequest, headers));
     }
 
+    @PostMapping(value = "/order/tickets/compact")
+    public HttpEntity getCompactTicketListByDateAndTripId(@RequestBody Seat seatRequest, @RequestHeader HttpHeaders headers) {
+        OrderController.LOGGER.info("[Order Service][Get Compact Sold Ticket] Date: {}", seatRequest.getTravelDate().toString());
+        return ok(orderService.getCompactSoldTickets(seatRequest, headers));
+    }
+
     @CrossOrigin(origins = "*")
     @PostMapping(path = "/order")
     public HttpEntity createNewOrder(@RequestBody Order createOrder, @RequestHeader HttpHeaders headers) {
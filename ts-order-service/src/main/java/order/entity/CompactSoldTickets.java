@@ -0,0 +1,29 @@
+package order.entity;
+
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * The sold tickets of a train and travel date in a compact form: the station ids
+ * are listed once and ticket i is seat seatNumbers[i] from stations[startStations[i]]
+ * to stations[destStations[i]].
+ *
+ * @author fdse
+ */
+@Data
+public class CompactSoldTickets {
+
+    private List<String> stations;
+
+    private int[] seatNumbers;
+
+    private int[] startStations;
+
+    private int[] destStations;
+
+    public CompactSoldTickets(){
+        //Default Constructor
+    }
+
+}
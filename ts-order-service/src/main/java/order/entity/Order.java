@@ -4,6 +4,9 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import lombok.Data;
 import lombok.ToString;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 import java.util.Date;
 import java.util.UUID;
@@ -13,6 +16,10 @@ import java.util.UUID;
  */
 @Data
 @Document(collection = "orders")
+@CompoundIndexes({
+        @CompoundIndex(name = "account_bought_date", def = "{ 'accountId' : 1, 'boughtDate' : -1, '_id' : 1 }"),
+        @CompoundIndex(name = "train_travel_date", def = "{ 'trainNumber' : 1, 'travelDate' : 1, 'status' : 1, 'seatClass' : 1 }")
+})
 @ToString
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class Order {
@@ -58,6 +65,12 @@ public class Order {
 
     private String price;
 
+    /**
+     * Creating an order again with the same key returns the order created first
+     */
+    @Indexed(unique = true, sparse = true)
+    private String idempotencyKey;
+
 
 
     public Order(){
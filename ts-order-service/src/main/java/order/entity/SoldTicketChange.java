@@ -0,0 +1,35 @@
+package order.entity;
+
+import lombok.Data;
+
+import java.util.Date;
+
+/**
+ * A ticket sold (count 1) or given back (count -1) on a train and travel date,
+ * sent to ts-seat-service after the order write succeeded
+ *
+ * @author fdse
+ */
+@Data
+public class SoldTicketChange {
+
+    private String trainNumber;
+
+    private Date travelDate;
+
+    private Ticket ticket;
+
+    private int count;
+
+    public SoldTicketChange(){
+
+    }
+
+    public SoldTicketChange(String trainNumber, Date travelDate, Ticket ticket, int count) {
+        this.trainNumber = trainNumber;
+        this.travelDate = travelDate;
+        this.ticket = ticket;
+        this.count = count;
+    }
+
+}
@@ -12,7 +12,7 @@ import java.util.UUID;
  * @author fdse
  */
 @Repository
-public interface OrderRepository extends MongoRepository<Order, String> {
+public interface OrderRepository extends MongoRepository<Order, String>, OrderRepositoryCustom {
 
     @Query("{ 'id': ?0 }")
     Order findById(UUID id);
@@ -20,11 +20,26 @@ public interface OrderRepository extends MongoRepository<Order, String> {
     @Override
     ArrayList<Order> findAll();
 
+    /**
+     * only the bought date is read, it positions the next page of an order query
+     */
+    @Query(value = "{ 'id': ?0 }", fields = "{ 'boughtDate' : 1 }")
+    Order findBoughtDateById(UUID id);
+
+    @Query("{ 'idempotencyKey' : ?0 }")
+    Order findByIdempotencyKey(String idempotencyKey);
+
     @Query("{ 'accountId' : ?0 }")
     ArrayList<Order> findByAccountId(UUID accountId);
 
     @Query("{ 'travelDate' : ?0 , trainNumber : ?1 }")
     ArrayList<Order> findByTravelDateAndTrainNumber(Date travelDate,String trainNumber);
 
+    /**
+     * only the fields of the sold ticket are read
+     */
+    @Query(value = "{ 'travelDate' : ?0 , trainNumber : ?1 }", fields = "{ 'seatNumber' : 1, 'from' : 1, 'to' : 1 }")
+    ArrayList<Order> findSeatsByTravelDateAndTrainNumber(Date travelDate, String trainNumber);
+
     void deleteById(UUID id);
 }
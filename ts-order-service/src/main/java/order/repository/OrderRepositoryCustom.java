@@ -0,0 +1,35 @@
+package order.repository;
+
+import order.entity.Order;
+import order.entity.OrderInfo;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * @author fdse
+ */
+public interface OrderRepositoryCustom {
+
+    /**
+     * find the orders of an account that fit the query, the latest bought first
+     *
+     * @param accountId account id
+     * @param qi        state, travel date and bought date requirements
+     * @param after     the last order of the previous page, null for the first page
+     * @param limit     at most this many orders, 0 for all of them
+     * @return ArrayList<Order>
+     */
+    ArrayList<Order> findByQuery(UUID accountId, OrderInfo qi, Order after, int limit);
+
+    /**
+     * count the orders of a train and travel date that still take a seat, per seat class
+     *
+     * @param travelDate  travel date
+     * @param trainNumber train number
+     * @return Map<Integer, Integer> seat class code to number of orders
+     */
+    Map<Integer, Integer> countSeatClasses(Date travelDate, String trainNumber);
+}
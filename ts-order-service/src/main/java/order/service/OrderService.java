@@ -46,6 +46,8 @@ public interface OrderService {
 
     Response getSoldTickets(Seat seatRequest, HttpHeaders headers);
 
+    Response getCompactSoldTickets(Seat seatRequest, HttpHeaders headers);
+
     Response addNewOrder(Order order, HttpHeaders headers);
 
     Response updateOrder(Order order, HttpHeaders headers);
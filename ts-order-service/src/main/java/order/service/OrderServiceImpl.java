@@ -1,5 +1,7 @@
 package order.service;
 
+import edu.fudan.common.invalidation.InvalidationPublisher;
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.Response;
 import order.entity.*;
 import order.repository.OrderRepository;
@@ -7,6 +9,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
@@ -14,6 +17,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 /**
@@ -28,6 +32,9 @@ public class OrderServiceImpl implements OrderService {
     @Autowired
     private RestTemplate restTemplate;
 
+    @Autowired
+    private InvalidationPublisher invalidationPublisher;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(OrderServiceImpl.class);
 
     String success = "Success";
@@ -40,26 +47,7 @@ public class OrderServiceImpl implements OrderService {
         if (list != null && !list.isEmpty()) {
             Set ticketSet = new HashSet();
             for (Order tempOrder : list) {
-                int seatNumber = -1;
-                String seatString = tempOrder.getSeatNumber();
-                while (seatNumber < 0) {
-                    try {
-                        seatNumber = Integer.parseInt(seatString);
-                        if (seatNumber < 0) {
-                            seatString = seatString.substring(1);
-                            if (seatString.length() == 0) {
-                                seatNumber = (int) (Math.random() * 50);
-                            }
-                        }
-                    } catch (NumberFormatException e) {
-                        seatString = seatString.substring(1);
-                        if (seatString.length() == 0) {
-                            seatNumber = (int) (Math.random() * 50);
-                        }
-                    }
-                }
-                ticketSet.add(new Ticket(seatNumber,
-                        tempOrder.getFrom(), tempOrder.getTo()));
+                ticketSet.add(ticketOf(tempOrder));
             }
             LeftTicketInfo leftTicketInfo = new LeftTicketInfo();
             leftTicketInfo.setSoldTickets(ticketSet);
@@ -71,6 +59,75 @@ public class OrderServiceImpl implements OrderService {
         }
     }
 
+    @Override
+    public Response getCompactSoldTickets(Seat seatRequest, HttpHeaders headers) {
+        ArrayList<Order> list = orderRepository.findSeatsByTravelDateAndTrainNumber(seatRequest.getTravelDate(),
+                seatRequest.getTrainNumber());
+        if (list == null || list.isEmpty()) {
+            OrderServiceImpl.LOGGER.info("Left ticket info is empty");
+            return new Response<>(0, "Order is Null.", null);
+        }
+        Set<Ticket> tickets = new LinkedHashSet<>();
+        for (Order tempOrder : list) {
+            tickets.add(ticketOf(tempOrder));
+        }
+        List<String> stations = new ArrayList<>();
+        Map<String, Integer> positions = new HashMap<>();
+        int[] seatNumbers = new int[tickets.size()];
+        int[] startStations = new int[tickets.size()];
+        int[] destStations = new int[tickets.size()];
+        int i = 0;
+        for (Ticket ticket : tickets) {
+            seatNumbers[i] = ticket.getSeatNo();
+            startStations[i] = positionOf(ticket.getStartStation(), stations, positions);
+            destStations[i] = positionOf(ticket.getDestStation(), stations, positions);
+            i++;
+        }
+        CompactSoldTickets compactSoldTickets = new CompactSoldTickets();
+        compactSoldTickets.setStations(stations);
+        compactSoldTickets.setSeatNumbers(seatNumbers);
+        compactSoldTickets.setStartStations(startStations);
+        compactSoldTickets.setDestStations(destStations);
+        OrderServiceImpl.LOGGER.info("Left ticket info: {} sold tickets between {} stations", tickets.size(),
+                stations.size());
+        return new Response<>(1, success, compactSoldTickets);
+    }
+
+    private static int positionOf(String station, List<String> stations, Map<String, Integer> positions) {
+        Integer position = positions.get(station);
+        if (position == null) {
+            position = stations.size();
+            positions.put(station, position);
+            stations.add(station);
+        }
+        return position;
+    }
+
+    private Ticket ticketOf(Order order) {
+        return new Ticket(seatNumberOf(order.getSeatNumber()), order.getFrom(), order.getTo());
+    }
+
+    /**
+     * The number at the end of a seat string, e.g. 12 of "A12", a random seat below 50
+     * when the string does not end with a digit
+     */
+    static int seatNumberOf(String seatString) {
+        int end = seatString == null ? 0 : seatString.length();
+        int start = end;
+        while (start > 0 && Character.isDigit(seatString.charAt(start - 1))) {
+            start--;
+        }
+        // leading digits that overflow an int are dropped, as parsing ever shorter suffixes did
+        while (start < end) {
+            long seatNumber = end - start > 10 ? Long.MAX_VALUE : Long.parseLong(seatString.substring(start, end));
+            if (seatNumber <= Integer.MAX_VALUE) {
+                return (int) seatNumber;
+            }
+            start++;
+        }
+        return (int) (Math.random() * 50);
+    }
+
     @Override
     public Response findOrderById(UUID id, HttpHeaders headers) {
         Order order = orderRepository.findById(id);
@@ -84,19 +141,79 @@ public class OrderServiceImpl implements OrderService {
     @Override
     public Response create(Order order, HttpHeaders headers) {
         OrderServiceImpl.LOGGER.info("[Order Service][Create Order] Ready Create Order.");
-        ArrayList<Order> accountOrders = orderRepository.findByAccountId(order.getAccountId());
-        if (accountOrders.contains(order)) {
+        boolean keyed = order.getIdempotencyKey() != null;
+        Order existing = insertOnce(order);
+        if (existing != null && keyed) {
+            OrderServiceImpl.LOGGER.info("[Order Service][Order Create] Replayed. Order ID: {}", existing.getId());
+            return new Response<>(1, success, existing);
+        } else if (existing != null) {
             OrderServiceImpl.LOGGER.info("[Order Service][Order Create] Fail.Order already exists.");
             return new Response<>(0, "Order already exist", null);
         } else {
-            order.setId(UUID.randomUUID());
-            orderRepository.save(order);
+            publishSoldTicketsChange(soldTicketChange(order, 1));
+            publishAccountChanges(accountOrderChange(order, 1));
             OrderServiceImpl.LOGGER.info("[Order Service][Order Create] Success.");
             OrderServiceImpl.LOGGER.info("[Order Service][Order Create] Price: {}", order.getPrice());
             return new Response<>(1, success, order);
         }
     }
 
+    /**
+     * Saves a new order once per idempotency key. An order without a key gets one from the
+     * fields Order.equals compares, so an order equal to one created before is still rejected,
+     * by the unique index instead of a scan over all orders of the account.
+     *
+     * @return the order created before under the same key, null when the new order was saved
+     */
+    private Order insertOnce(Order order) {
+        if (order.getIdempotencyKey() == null) {
+            order.setIdempotencyKey(contentKeyOf(order));
+        }
+        order.setId(UUID.randomUUID());
+        try {
+            orderRepository.insert(order);
+            return null;
+        } catch (DuplicateKeyException e) {
+            Order existing = orderRepository.findByIdempotencyKey(order.getIdempotencyKey());
+            if (existing == null) {
+                throw e;
+            }
+            return existing;
+        }
+    }
+
+    static String contentKeyOf(Order order) {
+        String content = String.join("|", String.valueOf(order.getAccountId()), timeOf(order.getBoughtDate()),
+                timeOf(order.getTravelDate()), timeOf(order.getTravelTime()), order.getContactsName(),
+                order.getContactsDocumentNumber(), String.valueOf(order.getDocumentType()), order.getTrainNumber(),
+                String.valueOf(order.getCoachNumber()), String.valueOf(order.getSeatClass()), order.getSeatNumber(),
+                order.getFrom(), order.getTo(), String.valueOf(order.getStatus()), order.getPrice());
+        return "content_" + UUID.nameUUIDFromBytes(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Saves a changed order. A content key is recomputed from the new fields, so new orders equal
+     * to the changed one are rejected and ones equal to its old content are accepted again.
+     */
+    private void saveChanged(Order order) {
+        String key = order.getIdempotencyKey();
+        if (key == null || key.startsWith("content_")) {
+            order.setIdempotencyKey(contentKeyOf(order));
+            try {
+                orderRepository.save(order);
+                return;
+            } catch (DuplicateKeyException e) {
+                // an equal order holds the key and keeps rejecting copies, this one gets a key of its own
+                order.setIdempotencyKey(contentKeyOf(order) + "_" + order.getId());
+            }
+        }
+        orderRepository.save(order);
+    }
+
+    private static String timeOf(Date date) {
+        return date == null ? "" : String.valueOf(date.getTime());
+    }
+
     @Override
     public Response alterOrder(OrderAlterInfo oai, HttpHeaders headers) {
 
@@ -121,69 +238,33 @@ public class OrderServiceImpl implements OrderService {
 
     @Override
     public Response<ArrayList<Order>> queryOrders(OrderInfo qi, String accountId, HttpHeaders headers) {
-        // 1.Get all orders of the user
-        ArrayList<Order> list = orderRepository.findByAccountId(UUID.fromString(accountId));
-        OrderServiceImpl.LOGGER.info("[Order Service][Query Order][Step 1] Get Orders Number of Account: {}",
-                list.size());
-        // 2.Check is these orders fit the requirement/
-        if (qi.isEnableStateQuery() || qi.isEnableBoughtDateQuery() || qi.isEnableTravelDateQuery()) {
-            ArrayList<Order> finalList = new ArrayList<>();
-            for (Order tempOrder : list) {
-                boolean statePassFlag = false;
-                boolean boughtDatePassFlag = false;
-                boolean travelDatePassFlag = false;
-                // 3.Check order state requirement.
-                if (qi.isEnableStateQuery()) {
-                    if (tempOrder.getStatus() != qi.getState()) {
-                        statePassFlag = false;
-                    } else {
-                        statePassFlag = true;
-                    }
-                } else {
-                    statePassFlag = true;
-                }
-                OrderServiceImpl.LOGGER.info("[Order Service][Query Order][Step 2][Check Status Fits End]");
-                // 4.Check order travel date requirement.
-                if (qi.isEnableTravelDateQuery()) {
-                    if (tempOrder.getTravelDate().before(qi.getTravelDateEnd()) &&
-                            tempOrder.getTravelDate().after(qi.getBoughtDateStart())) {
-                        travelDatePassFlag = true;
-                    } else {
-                        travelDatePassFlag = false;
-                    }
-                } else {
-                    travelDatePassFlag = true;
-                }
-                OrderServiceImpl.LOGGER.info("[Order Service][Query Order][Step 2][Check Travel Date End]");
-                // 5.Check order bought date requirement.
-                if (qi.isEnableBoughtDateQuery()) {
-                    if (tempOrder.getBoughtDate().before(qi.getBoughtDateEnd()) &&
-                            tempOrder.getBoughtDate().after(qi.getBoughtDateStart())) {
-                        boughtDatePassFlag = true;
-                    } else {
-                        boughtDatePassFlag = false;
-                    }
-                } else {
-                    boughtDatePassFlag = true;
-                }
-                OrderServiceImpl.LOGGER.info("[Order Service][Query Order][Step 2][Check Bought Date End]");
-                // 6.check if all requirement fits.
-                if (statePassFlag && boughtDatePassFlag && travelDatePassFlag) {
-                    finalList.add(tempOrder);
-                }
-                OrderServiceImpl.LOGGER.info("[Order Service][Query Order][Step 2][Check All Requirement End]");
+        Order after = null;
+        if (qi.getCursor() != null) {
+            UUID cursorId;
+            try {
+                cursorId = UUID.fromString(qi.getCursor());
+            } catch (IllegalArgumentException e) {
+                OrderServiceImpl.LOGGER.info("[Order Service][Query Order] Invalid cursor: {}", qi.getCursor());
+                return new Response<>(0, "Invalid Cursor", null);
+            }
+            after = orderRepository.findBoughtDateById(cursorId);
+            if (after == null) {
+                OrderServiceImpl.LOGGER.info("[Order Service][Query Order] Cursor order not found: {}", qi.getCursor());
+                return new Response<>(0, orderNotFound, null);
             }
-            OrderServiceImpl.LOGGER.info("[Order Service][Query Order] Get order num: {}", finalList.size());
-            return new Response<>(1, "Get order num", finalList);
-        } else {
-            OrderServiceImpl.LOGGER.info("[Order Service][Query Order] Get order num: {}", list.size());
-            return new Response<>(1, "Get order num", list);
         }
+        ArrayList<Order> list = orderRepository.findByQuery(UUID.fromString(accountId), qi, after, qi.getLimit());
+        OrderServiceImpl.LOGGER.info("[Order Service][Query Order] Get order num: {}", list.size());
+        return new Response<>(1, "Get order num", list);
     }
 
     @Override
     public Response queryOrdersForRefresh(OrderInfo qi, String accountId, HttpHeaders headers) {
-        ArrayList<Order> orders = queryOrders(qi, accountId, headers).getData();
+        Response<ArrayList<Order>> queried = queryOrders(qi, accountId, headers);
+        if (queried.getStatus() != 1) {
+            return queried;
+        }
+        ArrayList<Order> orders = queried.getData();
         ArrayList<String> stationIds = new ArrayList<>();
         for (Order order : orders) {
             stationIds.add(order.getFrom());
@@ -219,6 +300,8 @@ public class OrderServiceImpl implements OrderService {
             OrderServiceImpl.LOGGER.info("[Order Service][Modify Order] Fail.Order not found.");
             return new Response<>(0, orderNotFound, null);
         } else {
+            SoldTicketChange oldTicket = soldTicketChange(oldOrder, -1);
+            AccountOrderChange oldAccountOrder = accountOrderChange(oldOrder, -1);
             oldOrder.setAccountId(order.getAccountId());
             oldOrder.setBoughtDate(order.getBoughtDate());
             oldOrder.setTravelDate(order.getTravelDate());
@@ -234,7 +317,9 @@ public class OrderServiceImpl implements OrderService {
             oldOrder.setContactsName(order.getContactsName());
             oldOrder.setContactsDocumentNumber(order.getContactsDocumentNumber());
             oldOrder.setDocumentType(order.getDocumentType());
-            orderRepository.save(oldOrder);
+            saveChanged(oldOrder);
+            publishSoldTicketsChange(oldTicket, soldTicketChange(oldOrder, 1));
+            publishAccountChanges(oldAccountOrder, accountOrderChange(oldOrder, 1));
             OrderServiceImpl.LOGGER.info("[Order Service] Success.");
             return new Response<>(1, success, oldOrder);
         }
@@ -247,8 +332,11 @@ public class OrderServiceImpl implements OrderService {
             OrderServiceImpl.LOGGER.info("[Cancel Service][Cancel Order] Fail.Order not found.");
             return new Response<>(0, orderNotFound, null);
         } else {
+            AccountOrderChange oldAccountOrder = accountOrderChange(oldOrder, -1);
             oldOrder.setStatus(OrderStatus.CANCEL.getCode());
-            orderRepository.save(oldOrder);
+            saveChanged(oldOrder);
+            publishSoldTicketsChange(oldOrder);
+            publishAccountChanges(oldAccountOrder, accountOrderChange(oldOrder, 1));
             OrderServiceImpl.LOGGER.info("[Cancel Service][Cancel Order] Success.");
             return new Response<>(1, success, oldOrder);
         }
@@ -256,38 +344,20 @@ public class OrderServiceImpl implements OrderService {
 
     @Override
     public Response queryAlreadySoldOrders(Date travelDate, String trainNumber, HttpHeaders headers) {
-        ArrayList<Order> orders = orderRepository.findByTravelDateAndTrainNumber(travelDate, trainNumber);
+        Map<Integer, Integer> counts = orderRepository.countSeatClasses(travelDate, trainNumber);
         SoldTicket cstr = new SoldTicket();
         cstr.setTravelDate(travelDate);
         cstr.setTrainNumber(trainNumber);
-        OrderServiceImpl.LOGGER.info("[Order Service][Calculate Sold Ticket] Get Orders Number: {}", orders.size());
-        for (Order order : orders) {
-            if (order.getStatus() >= OrderStatus.CHANGE.getCode()) {
-                continue;
-            }
-            if (order.getSeatClass() == SeatClass.NONE.getCode()) {
-                cstr.setNoSeat(cstr.getNoSeat() + 1);
-            } else if (order.getSeatClass() == SeatClass.BUSINESS.getCode()) {
-                cstr.setBusinessSeat(cstr.getBusinessSeat() + 1);
-            } else if (order.getSeatClass() == SeatClass.FIRSTCLASS.getCode()) {
-                cstr.setFirstClassSeat(cstr.getFirstClassSeat() + 1);
-            } else if (order.getSeatClass() == SeatClass.SECONDCLASS.getCode()) {
-                cstr.setSecondClassSeat(cstr.getSecondClassSeat() + 1);
-            } else if (order.getSeatClass() == SeatClass.HARDSEAT.getCode()) {
-                cstr.setHardSeat(cstr.getHardSeat() + 1);
-            } else if (order.getSeatClass() == SeatClass.SOFTSEAT.getCode()) {
-                cstr.setSoftSeat(cstr.getSoftSeat() + 1);
-            } else if (order.getSeatClass() == SeatClass.HARDBED.getCode()) {
-                cstr.setHardBed(cstr.getHardBed() + 1);
-            } else if (order.getSeatClass() == SeatClass.SOFTBED.getCode()) {
-                cstr.setSoftBed(cstr.getSoftBed() + 1);
-            } else if (order.getSeatClass() == SeatClass.HIGHSOFTBED.getCode()) {
-                cstr.setHighSoftBed(cstr.getHighSoftBed() + 1);
-            } else {
-                OrderServiceImpl.LOGGER.info(
-                        "[Order Service][Calculate Sold Tickets] Seat class not exists. Order ID: {}", order.getId());
-            }
-        }
+        OrderServiceImpl.LOGGER.info("[Order Service][Calculate Sold Ticket] Get Seat Class Counts: {}", counts);
+        cstr.setNoSeat(counts.getOrDefault(SeatClass.NONE.getCode(), 0));
+        cstr.setBusinessSeat(counts.getOrDefault(SeatClass.BUSINESS.getCode(), 0));
+        cstr.setFirstClassSeat(counts.getOrDefault(SeatClass.FIRSTCLASS.getCode(), 0));
+        cstr.setSecondClassSeat(counts.getOrDefault(SeatClass.SECONDCLASS.getCode(), 0));
+        cstr.setHardSeat(counts.getOrDefault(SeatClass.HARDSEAT.getCode(), 0));
+        cstr.setSoftSeat(counts.getOrDefault(SeatClass.SOFTSEAT.getCode(), 0));
+        cstr.setHardBed(counts.getOrDefault(SeatClass.HARDBED.getCode(), 0));
+        cstr.setSoftBed(counts.getOrDefault(SeatClass.SOFTBED.getCode(), 0));
+        cstr.setHighSoftBed(counts.getOrDefault(SeatClass.HIGHSOFTBED.getCode(), 0));
         return new Response<>(1, success, cstr);
     }
 
@@ -307,8 +377,11 @@ public class OrderServiceImpl implements OrderService {
         if (order == null) {
             return new Response<>(0, orderNotFound, null);
         } else {
+            AccountOrderChange oldAccountOrder = accountOrderChange(order, -1);
             order.setStatus(status);
-            orderRepository.save(order);
+            saveChanged(order);
+            publishSoldTicketsChange(order);
+            publishAccountChanges(oldAccountOrder, accountOrderChange(order, 1));
             return new Response<>(1, "Modify Order Success", order);
         }
     }
@@ -331,8 +404,10 @@ public class OrderServiceImpl implements OrderService {
         if (order == null) {
             return new Response<>(0, orderNotFound, null);
         } else {
+            AccountOrderChange oldAccountOrder = accountOrderChange(order, -1);
             order.setStatus(OrderStatus.PAID.getCode());
-            orderRepository.save(order);
+            saveChanged(order);
+            publishAccountChanges(oldAccountOrder, accountOrderChange(order, 1));
             return new Response<>(1, "Pay Order Success.", order);
         }
     }
@@ -363,22 +438,23 @@ public class OrderServiceImpl implements OrderService {
         ArrayList<Order> orders = orderRepository.findByAccountId(UUID.fromString(accountId));
         int countOrderInOneHour = 0;
         int countTotalValidOrder = 0;
+        List<Date> boughtDates = new ArrayList<>();
         Calendar ca = Calendar.getInstance();
         ca.setTime(dateFrom);
         ca.add(Calendar.HOUR_OF_DAY, -1);
         dateFrom = ca.getTime();
         for (Order order : orders) {
-            if (order.getStatus() == OrderStatus.NOTPAID.getCode() ||
-                    order.getStatus() == OrderStatus.PAID.getCode() ||
-                    order.getStatus() == OrderStatus.COLLECTED.getCode()) {
+            if (isValid(order.getStatus())) {
                 countTotalValidOrder += 1;
             }
             if (order.getBoughtDate().after(dateFrom)) {
                 countOrderInOneHour += 1;
+                boughtDates.add(order.getBoughtDate());
             }
         }
         result.setOrderNumInLastOneHour(countOrderInOneHour);
         result.setOrderNumOfValidOrder(countTotalValidOrder);
+        result.setBoughtDatesInLastOneHour(boughtDates);
         return new Response<>(1, "Check Security Success . ", result);
     }
 
@@ -391,6 +467,8 @@ public class OrderServiceImpl implements OrderService {
             return new Response<>(0, "Order Not Exist.", null);
         } else {
             orderRepository.deleteById(orderUuid);
+            publishSoldTicketsChange(soldTicketChange(order, -1));
+            publishAccountChanges(accountOrderChange(order, -1));
             return new Response<>(1, "Delete Order Success", order);
         }
     }
@@ -398,13 +476,17 @@ public class OrderServiceImpl implements OrderService {
     @Override
     public Response addNewOrder(Order order, HttpHeaders headers) {
         OrderServiceImpl.LOGGER.info("[Order Service][Admin Add Order] Ready Add Order.");
-        ArrayList<Order> accountOrders = orderRepository.findByAccountId(order.getAccountId());
-        if (accountOrders.contains(order)) {
+        boolean keyed = order.getIdempotencyKey() != null;
+        Order existing = insertOnce(order);
+        if (existing != null && keyed) {
+            OrderServiceImpl.LOGGER.info("[Order Service][Admin Add Order] Replayed. Order ID: {}", existing.getId());
+            return new Response<>(1, "Add new Order Success", existing);
+        } else if (existing != null) {
             OrderServiceImpl.LOGGER.info("[Order Service][Admin Add Order] Fail.Order already exists.");
             return new Response<>(0, "Order already exist", null);
         } else {
-            order.setId(UUID.randomUUID());
-            orderRepository.save(order);
+            publishSoldTicketsChange(soldTicketChange(order, 1));
+            publishAccountChanges(accountOrderChange(order, 1));
             OrderServiceImpl.LOGGER.info("[Order Service][Admin Add Order] Success.");
             OrderServiceImpl.LOGGER.info("[Order Service][Admin Add Order] Price: {}", order.getPrice());
             return new Response<>(1, "Add new Order Success", order);
@@ -420,6 +502,8 @@ public class OrderServiceImpl implements OrderService {
             return new Response<>(0, "Order Not Found, Can't update", null);
         } else {
             OrderServiceImpl.LOGGER.info("{}", oldOrder.toString());
+            SoldTicketChange oldTicket = soldTicketChange(oldOrder, -1);
+            AccountOrderChange oldAccountOrder = accountOrderChange(oldOrder, -1);
             oldOrder.setAccountId(order.getAccountId());
             oldOrder.setBoughtDate(order.getBoughtDate());
             oldOrder.setTravelDate(order.getTravelDate());
@@ -435,9 +519,72 @@ public class OrderServiceImpl implements OrderService {
             oldOrder.setContactsName(order.getContactsName());
             oldOrder.setContactsDocumentNumber(order.getContactsDocumentNumber());
             oldOrder.setDocumentType(order.getDocumentType());
-            orderRepository.save(oldOrder);
+            saveChanged(oldOrder);
+            publishSoldTicketsChange(oldTicket, soldTicketChange(oldOrder, 1));
+            publishAccountChanges(oldAccountOrder, accountOrderChange(oldOrder, 1));
             OrderServiceImpl.LOGGER.info("[Order Service] [Admin Update Order] Success.");
             return new Response<>(1, "Admin Update Order Success", oldOrder);
         }
     }
+
+    /**
+     * Sold and left ticket counts of the order's train and day are cached by the travel, seat and preserve services
+     */
+    private void publishSoldTicketsChange(Order order) {
+        invalidationPublisher.publish(CacheTags.TRIP, CacheTags.tripDateKey(order.getTrainNumber(), order.getTravelDate()));
+    }
+
+    /**
+     * The changes go with the event of their train and day. ts-seat-service keeps the sold tickets
+     * of every train and day in memory and applies them instead of reloading. The status of an order
+     * is not part of its sold ticket, so paying or cancelling carries no change, the same as
+     * getSoldTickets answers.
+     */
+    private void publishSoldTicketsChange(SoldTicketChange... changes) {
+        Map<String, List<SoldTicketChange>> byTripDate = new LinkedHashMap<>();
+        for (SoldTicketChange change : changes) {
+            byTripDate.computeIfAbsent(CacheTags.tripDateKey(change.getTrainNumber(), change.getTravelDate()),
+                    tripDate -> new ArrayList<>()).add(change);
+        }
+        for (Map.Entry<String, List<SoldTicketChange>> tripDate : byTripDate.entrySet()) {
+            invalidationPublisher.publish(CacheTags.TRIP, tripDate.getKey(), tripDate.getValue());
+        }
+    }
+
+    private SoldTicketChange soldTicketChange(Order order, int count) {
+        return new SoldTicketChange(order.getTrainNumber(), order.getTravelDate(), ticketOf(order), count);
+    }
+
+    private AccountOrderChange accountOrderChange(Order order, int count) {
+        return new AccountOrderChange(String.valueOf(order.getAccountId()), order.getBoughtDate(),
+                isValid(order.getStatus()), count);
+    }
+
+    /**
+     * The orders checkSecurityAboutOrder counts as valid
+     */
+    private static boolean isValid(int status) {
+        return status == OrderStatus.NOTPAID.getCode() ||
+                status == OrderStatus.PAID.getCode() ||
+                status == OrderStatus.COLLECTED.getCode();
+    }
+
+    /**
+     * ts-security-service keeps the order counts of every checked account in memory and applies
+     * these changes instead of asking for them on every check. They go as an event of the account,
+     * a change that leaves the counts as they were is not sent.
+     */
+    private void publishAccountChanges(AccountOrderChange... changes) {
+        if (changes.length == 2 && changes[0].equals(new AccountOrderChange(changes[1].getAccountId(),
+                changes[1].getBoughtDate(), changes[1].isValid(), -changes[1].getCount()))) {
+            return;
+        }
+        Map<String, List<AccountOrderChange>> byAccount = new LinkedHashMap<>();
+        for (AccountOrderChange change : changes) {
+            byAccount.computeIfAbsent(change.getAccountId(), accountId -> new ArrayList<>()).add(change);
+        }
+        for (Map.Entry<String, List<AccountOrderChange>> account : byAccount.entrySet()) {
+            invalidationPublisher.publish(CacheTags.ACCOUNT_ORDERS, account.getKey(), account.getValue());
+        }
+    }
 }
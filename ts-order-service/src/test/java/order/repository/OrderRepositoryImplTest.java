@@ -0,0 +1,89 @@
+package order.repository;
+
+import com.mongodb.DBObject;
+import order.entity.Order;
+import order.entity.OrderInfo;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Query;
+
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+@RunWith(JUnit4.class)
+public class OrderRepositoryImplTest {
+
+    private UUID accountId = UUID.randomUUID();
+
+    @Test
+    public void testQueryWithoutRequirementsReadsAllOrdersOfAccount() {
+        Query query = OrderRepositoryImpl.queryOf(accountId, new OrderInfo(), null, 0);
+        DBObject filter = query.getQueryObject();
+        Assert.assertEquals(1, filter.keySet().size());
+        Assert.assertEquals(accountId, filter.get("accountId"));
+        Assert.assertEquals(0, query.getLimit());
+        Assert.assertEquals(-1, query.getSortObject().get("boughtDate"));
+        Assert.assertEquals(1, query.getSortObject().get("id"));
+    }
+
+    @Test
+    public void testQueryMatchesRequirementsWithExclusiveBounds() {
+        Date start = new Date(1000);
+        Date travelEnd = new Date(5000);
+        Date boughtEnd = new Date(3000);
+        OrderInfo qi = new OrderInfo();
+        qi.enableStateQuery(1);
+        qi.enableTravelDateQuery(new Date(2000), travelEnd);
+        qi.enableBoughtDateQuery(start, boughtEnd);
+        DBObject filter = OrderRepositoryImpl.queryOf(accountId, qi, null, 0).getQueryObject();
+        Assert.assertEquals(1, filter.get("status"));
+
+        // the travel date start is not used, the bought date start bounds the travel date as well
+        DBObject travelDate = (DBObject) filter.get("travelDate");
+        Assert.assertEquals(travelEnd, travelDate.get("$lt"));
+        Assert.assertEquals(start, travelDate.get("$gt"));
+        DBObject boughtDate = (DBObject) filter.get("boughtDate");
+        Assert.assertEquals(boughtEnd, boughtDate.get("$lt"));
+        Assert.assertEquals(start, boughtDate.get("$gt"));
+    }
+
+    @Test
+    public void testNextPageStartsAfterLastOrder() {
+        Order last = new Order();
+        last.setId(UUID.randomUUID());
+        last.setBoughtDate(new Date(4000));
+        Query query = OrderRepositoryImpl.queryOf(accountId, new OrderInfo(), last, 20);
+        Assert.assertEquals(20, query.getLimit());
+
+        List<?> or = (List<?>) query.getQueryObject().get("$or");
+        Assert.assertEquals(2, or.size());
+        DBObject earlier = (DBObject) or.get(0);
+        Assert.assertEquals(last.getBoughtDate(), ((DBObject) earlier.get("boughtDate")).get("$lt"));
+        DBObject sameDate = (DBObject) or.get(1);
+        Assert.assertEquals(last.getBoughtDate(), sameDate.get("boughtDate"));
+        Assert.assertEquals(last.getId(), ((DBObject) sameDate.get("id")).get("$gt"));
+    }
+
+    @Test
+    public void testSeatClassesAreCountedInMongo() {
+        Date travelDate = new Date(1000);
+        DBObject command = OrderRepositoryImpl.seatClassCountsOf(travelDate, "G1234")
+                .toDbObject("orders", Aggregation.DEFAULT_CONTEXT);
+        List<?> pipeline = (List<?>) command.get("pipeline");
+        Assert.assertEquals(2, pipeline.size());
+
+        DBObject match = (DBObject) ((DBObject) pipeline.get(0)).get("$match");
+        Assert.assertEquals("G1234", match.get("trainNumber"));
+        Assert.assertEquals(travelDate, match.get("travelDate"));
+        // orders from cancel & rebook on no longer take their seat
+        Assert.assertEquals(3, ((DBObject) match.get("status")).get("$lt"));
+
+        DBObject group = (DBObject) ((DBObject) pipeline.get(1)).get("$group");
+        Assert.assertEquals("$seatClass", group.get("_id"));
+        Assert.assertEquals(1, ((DBObject) group.get("count")).get("$sum"));
+    }
+}
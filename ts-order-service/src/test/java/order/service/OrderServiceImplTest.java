@@ -1,5 +1,8 @@
 package order.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.fudan.common.invalidation.InvalidationPublisher;
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.Response;
 import order.entity.*;
 import order.repository.OrderRepository;
@@ -8,17 +11,24 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.stubbing.Answer;
 import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.http.*;
 import org.springframework.web.client.RestTemplate;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import static org.mockito.internal.verification.VerificationModeFactory.times;
@@ -35,6 +45,9 @@ public class OrderServiceImplTest {
     @Mock
     private RestTemplate restTemplate;
 
+    @Mock
+    private InvalidationPublisher invalidationPublisher;
+
     private HttpHeaders headers = new HttpHeaders();
 
     @Before
@@ -60,6 +73,65 @@ public class OrderServiceImplTest {
         Assert.assertEquals(new Response<>(0, "Order is Null.", null), result);
     }
 
+    @Test
+    public void testGetCompactSoldTickets() throws Exception {
+        // a full 1000 seat train, every seat sold twice on the same interval
+        ArrayList<Order> list = new ArrayList<>();
+        Set<Ticket> soldTickets = new HashSet<>();
+        for (int seat = 1; seat <= 1000; seat++) {
+            String from = "station_" + (seat % 5);
+            list.add(seatOrder("" + seat, from, "station_9"));
+            list.add(seatOrder("" + seat, from, "station_9"));
+            soldTickets.add(new Ticket(seat, from, "station_9"));
+        }
+        Mockito.when(orderRepository.findSeatsByTravelDateAndTrainNumber(Mockito.any(Date.class), Mockito.anyString())).thenReturn(list);
+        Response result = orderServiceImpl.getCompactSoldTickets(new Seat(), headers);
+        CompactSoldTickets compact = (CompactSoldTickets) result.getData();
+        Assert.assertEquals(1000, compact.getSeatNumbers().length);
+        Assert.assertEquals(6, compact.getStations().size());
+
+        Set<Ticket> decoded = new HashSet<>();
+        for (int i = 0; i < compact.getSeatNumbers().length; i++) {
+            decoded.add(new Ticket(compact.getSeatNumbers()[i], compact.getStations().get(compact.getStartStations()[i]),
+                    compact.getStations().get(compact.getDestStations()[i])));
+        }
+        Assert.assertEquals(soldTickets, decoded);
+
+        LeftTicketInfo leftTicketInfo = new LeftTicketInfo();
+        leftTicketInfo.setSoldTickets(soldTickets);
+        ObjectMapper mapper = new ObjectMapper();
+        int setBytes = mapper.writeValueAsBytes(leftTicketInfo).length;
+        int compactBytes = mapper.writeValueAsBytes(compact).length;
+        Assert.assertTrue(compactBytes + " bytes compact, " + setBytes + " bytes as a set", compactBytes * 4 < setBytes);
+    }
+
+    @Test
+    public void testGetCompactSoldTicketsOfEmptyTrain() {
+        Mockito.when(orderRepository.findSeatsByTravelDateAndTrainNumber(Mockito.any(Date.class), Mockito.anyString())).thenReturn(new ArrayList<>());
+        Response result = orderServiceImpl.getCompactSoldTickets(new Seat(), headers);
+        Assert.assertEquals(new Response<>(0, "Order is Null.", null), result);
+    }
+
+    @Test
+    public void testSeatNumberOf() {
+        Assert.assertEquals(12, OrderServiceImpl.seatNumberOf("12"));
+        Assert.assertEquals(12, OrderServiceImpl.seatNumberOf("A12"));
+        Assert.assertEquals(5, OrderServiceImpl.seatNumberOf("-5"));
+        Assert.assertEquals(999999999, OrderServiceImpl.seatNumberOf("99999999999"));
+        int random = OrderServiceImpl.seatNumberOf("12A");
+        Assert.assertTrue(random >= 0 && random < 50);
+        random = OrderServiceImpl.seatNumberOf(null);
+        Assert.assertTrue(random >= 0 && random < 50);
+    }
+
+    private static Order seatOrder(String seatNumber, String from, String to) {
+        Order order = new Order();
+        order.setSeatNumber(seatNumber);
+        order.setFrom(from);
+        order.setTo(to);
+        return order;
+    }
+
     @Test
     public void testFindOrderById1() {
         UUID id = UUID.randomUUID();
@@ -80,13 +152,36 @@ public class OrderServiceImplTest {
     @Test
     public void testCreate1() {
         Order order = new Order();
-        ArrayList<Order> accountOrders = new ArrayList<>();
-        accountOrders.add(order);
-        Mockito.when(orderRepository.findByAccountId(Mockito.any(UUID.class))).thenReturn(accountOrders);
+        Mockito.when(orderRepository.insert(Mockito.any(Order.class))).thenThrow(new DuplicateKeyException("idempotencyKey"));
+        Mockito.when(orderRepository.findByIdempotencyKey(OrderServiceImpl.contentKeyOf(order))).thenReturn(new Order());
         Response result = orderServiceImpl.create(order, headers);
         Assert.assertEquals(new Response<>(0, "Order already exist", null), result);
     }
 
+    @Test
+    public void testCreateReplaysIdempotencyKey() {
+        Order order = new Order();
+        order.setIdempotencyKey("G1235_2_hold");
+        Order existing = new Order();
+        existing.setId(UUID.randomUUID());
+        Mockito.when(orderRepository.insert(Mockito.any(Order.class))).thenThrow(new DuplicateKeyException("idempotencyKey"));
+        Mockito.when(orderRepository.findByIdempotencyKey("G1235_2_hold")).thenReturn(existing);
+        Response result = orderServiceImpl.create(order, headers);
+        Assert.assertEquals(new Response<>(1, "Success", existing), result);
+        Mockito.verifyZeroInteractions(restTemplate);
+    }
+
+    @Test
+    public void testContentKeyOfEqualOrders() {
+        Order order = new Order();
+        Order same = new Order();
+        same.setBoughtDate(order.getBoughtDate());
+        same.setId(UUID.randomUUID());
+        Assert.assertEquals(OrderServiceImpl.contentKeyOf(order), OrderServiceImpl.contentKeyOf(same));
+        same.setSeatNumber("2");
+        Assert.assertNotEquals(OrderServiceImpl.contentKeyOf(order), OrderServiceImpl.contentKeyOf(same));
+    }
+
     @Test
     public void testCreate2() {
         Order order = new Order();
@@ -97,6 +192,92 @@ public class OrderServiceImplTest {
         Assert.assertEquals("Success", result.getMsg());
     }
 
+    @Test
+    public void testCreateSendsSoldTicketChange() {
+        Order order = new Order();
+        Mockito.when(orderRepository.findByAccountId(Mockito.any(UUID.class))).thenReturn(new ArrayList<>());
+        Mockito.when(orderRepository.save(Mockito.any(Order.class))).thenReturn(null);
+        Response result = orderServiceImpl.create(order, headers);
+        Assert.assertEquals("Success", result.getMsg());
+
+        ArgumentCaptor<List> changes = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(invalidationPublisher).publish(Mockito.eq(CacheTags.TRIP),
+                Mockito.eq(CacheTags.tripDateKey("G1235", order.getTravelDate())), changes.capture());
+        Assert.assertEquals(1, changes.getValue().size());
+        Assert.assertEquals(new SoldTicketChange("G1235", order.getTravelDate(), new Ticket(1, "shanghai", "taiyuan"), 1),
+                changes.getValue().get(0));
+    }
+
+    @Test
+    public void testSaveChangesSendsBothTicketsInOneEvent() {
+        Order oldOrder = new Order();
+        Order order = new Order();
+        order.setId(oldOrder.getId());
+        order.setSeatNumber("2");
+        Mockito.when(orderRepository.findById(Mockito.any(UUID.class))).thenReturn(oldOrder);
+        orderServiceImpl.saveChanges(order, headers);
+
+        ArgumentCaptor<List> changes = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(invalidationPublisher, times(1)).publish(Mockito.eq(CacheTags.TRIP),
+                Mockito.eq(CacheTags.tripDateKey("G1235", order.getTravelDate())), changes.capture());
+        Assert.assertEquals(new SoldTicketChange("G1235", order.getTravelDate(), new Ticket(1, "shanghai", "taiyuan"), -1),
+                changes.getValue().get(0));
+        Assert.assertEquals(new SoldTicketChange("G1235", order.getTravelDate(), new Ticket(2, "shanghai", "taiyuan"), 1),
+                changes.getValue().get(1));
+    }
+
+    @Test
+    public void testChangedOrderIsComparedByItsNewContent() {
+        storeOrdersByKey();
+        Order order = new Order();
+        Date boughtDate = order.getBoughtDate();
+        Assert.assertEquals("Success", orderServiceImpl.create(order, headers).getMsg());
+
+        Order changes = order(boughtDate, "2");
+        changes.setId(order.getId());
+        Assert.assertEquals("Success", orderServiceImpl.saveChanges(changes, headers).getMsg());
+
+        // a copy of the order as it is now is rejected, a copy of its old content is a new order
+        Assert.assertEquals(new Response<>(0, "Order already exist", null), orderServiceImpl.create(order(boughtDate, "2"), headers));
+        Assert.assertEquals("Success", orderServiceImpl.create(order(boughtDate, "1"), headers).getMsg());
+    }
+
+    /**
+     * Keeps the saved orders in memory with a unique idempotency key, like the index does
+     */
+    private void storeOrdersByKey() {
+        Map<UUID, Order> stored = new HashMap<>();
+        Answer<Order> store = invocation -> {
+            Order order = (Order) invocation.getArguments()[0];
+            for (Order other : stored.values()) {
+                if (!other.getId().equals(order.getId()) && other.getIdempotencyKey().equals(order.getIdempotencyKey())) {
+                    throw new DuplicateKeyException("idempotencyKey");
+                }
+            }
+            stored.put(order.getId(), order);
+            return order;
+        };
+        Mockito.when(orderRepository.insert(Mockito.any(Order.class))).thenAnswer(store);
+        Mockito.when(orderRepository.save(Mockito.any(Order.class))).thenAnswer(store);
+        Mockito.when(orderRepository.findById(Mockito.any(UUID.class)))
+                .thenAnswer(invocation -> stored.get((UUID) invocation.getArguments()[0]));
+        Mockito.when(orderRepository.findByIdempotencyKey(Mockito.anyString())).thenAnswer(invocation -> {
+            for (Order order : stored.values()) {
+                if (order.getIdempotencyKey().equals(invocation.getArguments()[0])) {
+                    return order;
+                }
+            }
+            return null;
+        });
+    }
+
+    private static Order order(Date boughtDate, String seatNumber) {
+        Order order = new Order();
+        order.setBoughtDate(boughtDate);
+        order.setSeatNumber(seatNumber);
+        return order;
+    }
+
     @Test
     public void testInitOrder1() {
         Order order = new Order();
@@ -142,20 +323,64 @@ public class OrderServiceImplTest {
         Order order = new Order();
         order.setStatus(1);
         list.add(order);
-        Mockito.when(orderRepository.findByAccountId(Mockito.any(UUID.class))).thenReturn(list);
         OrderInfo qi = new OrderInfo();
         qi.setEnableStateQuery(true);
         qi.setEnableBoughtDateQuery(false);
         qi.setEnableTravelDateQuery(false);
         qi.setState(1);
+        Mockito.when(orderRepository.findByQuery(Mockito.any(UUID.class), Mockito.eq(qi), (Order) Mockito.isNull(), Mockito.eq(0))).thenReturn(list);
         Response result = orderServiceImpl.queryOrders(qi, UUID.randomUUID().toString(), headers);
         Assert.assertEquals(new Response<>(1, "Get order num", list), result);
     }
 
+    @Test
+    public void testQueryOrdersContinuesAfterCursor() {
+        Order last = new Order();
+        last.setId(UUID.randomUUID());
+        Mockito.when(orderRepository.findBoughtDateById(last.getId())).thenReturn(last);
+        ArrayList<Order> list = new ArrayList<>();
+        list.add(new Order());
+        OrderInfo qi = new OrderInfo();
+        qi.setCursor(last.getId().toString());
+        qi.setLimit(10);
+        Mockito.when(orderRepository.findByQuery(Mockito.any(UUID.class), Mockito.eq(qi), Mockito.eq(last), Mockito.eq(10))).thenReturn(list);
+        Response result = orderServiceImpl.queryOrders(qi, UUID.randomUUID().toString(), headers);
+        Assert.assertEquals(new Response<>(1, "Get order num", list), result);
+    }
+
+    @Test
+    public void testQueryOrdersAfterMissingCursor() {
+        Mockito.when(orderRepository.findBoughtDateById(Mockito.any(UUID.class))).thenReturn(null);
+        OrderInfo qi = new OrderInfo();
+        qi.setCursor(UUID.randomUUID().toString());
+        Response result = orderServiceImpl.queryOrders(qi, UUID.randomUUID().toString(), headers);
+        Assert.assertEquals(new Response<>(0, "Order Not Found", null), result);
+    }
+
+    @Test
+    public void testQueryOrdersAfterInvalidCursor() {
+        OrderInfo qi = new OrderInfo();
+        qi.setCursor("not-an-order-id");
+        Response result = orderServiceImpl.queryOrders(qi, UUID.randomUUID().toString(), headers);
+        Assert.assertEquals(new Response<>(0, "Invalid Cursor", null), result);
+        Mockito.verify(orderRepository, Mockito.never()).findBoughtDateById(Mockito.any(UUID.class));
+    }
+
+    @Test
+    public void testQueryOrdersForRefreshAfterMissingCursor() {
+        Mockito.when(orderRepository.findBoughtDateById(Mockito.any(UUID.class))).thenReturn(null);
+        OrderInfo qi = new OrderInfo();
+        qi.setCursor(UUID.randomUUID().toString());
+        Response result = orderServiceImpl.queryOrdersForRefresh(qi, UUID.randomUUID().toString(), headers);
+        Assert.assertEquals(new Response<>(0, "Order Not Found", null), result);
+        Mockito.verify(restTemplate, Mockito.never()).exchange(Mockito.anyString(), Mockito.any(HttpMethod.class),
+                Mockito.any(HttpEntity.class), Mockito.any(ParameterizedTypeReference.class));
+    }
+
     @Test
     public void testQueryOrdersForRefresh() {
         ArrayList<Order> list = new ArrayList<>();
-        Mockito.when(orderRepository.findByAccountId(Mockito.any(UUID.class))).thenReturn(list);
+        Mockito.when(orderRepository.findByQuery(Mockito.any(UUID.class), Mockito.any(OrderInfo.class), (Order) Mockito.isNull(), Mockito.anyInt())).thenReturn(list);
         //mock queryForStationId()
         Response<List<String>> response = new Response<>();
         ResponseEntity<Response<List<String>>> re = new ResponseEntity<>(response, HttpStatus.OK);
@@ -222,12 +447,46 @@ public class OrderServiceImplTest {
         Assert.assertEquals("Success", result.getMsg());
     }
 
+    @Test
+    public void testCancelOrderSendsAccountOrderChanges() {
+        Order oldOrder = new Order();
+        oldOrder.setAccountId(UUID.randomUUID());
+        Mockito.when(orderRepository.findById(Mockito.any(UUID.class))).thenReturn(oldOrder);
+        orderServiceImpl.cancelOrder(oldOrder.getAccountId(), UUID.randomUUID(), headers);
+
+        String accountId = oldOrder.getAccountId().toString();
+        ArgumentCaptor<List> changes = ArgumentCaptor.forClass(List.class);
+        Mockito.verify(invalidationPublisher).publish(Mockito.eq(CacheTags.ACCOUNT_ORDERS), Mockito.eq(accountId),
+                changes.capture());
+        // the paid order is no longer valid but still bought in the last hour
+        Assert.assertEquals(new AccountOrderChange(accountId, oldOrder.getBoughtDate(), true, -1), changes.getValue().get(0));
+        Assert.assertEquals(new AccountOrderChange(accountId, oldOrder.getBoughtDate(), false, 1), changes.getValue().get(1));
+    }
+
+    @Test
+    public void testPayOrderSendsNoAccountOrderChanges() {
+        Order order = new Order();
+        order.setStatus(OrderStatus.NOTPAID.getCode());
+        Mockito.when(orderRepository.findById(Mockito.any(UUID.class))).thenReturn(order);
+        orderServiceImpl.payOrder(UUID.randomUUID().toString(), headers);
+        // a paid order is as valid as an unpaid one
+        Mockito.verify(invalidationPublisher, times(0)).publish(Mockito.eq(CacheTags.ACCOUNT_ORDERS), Mockito.anyString(),
+                Mockito.anyList());
+    }
+
     @Test
     public void testQueryAlreadySoldOrders() {
-        ArrayList<Order> orders = new ArrayList<>();
-        Mockito.when(orderRepository.findByTravelDateAndTrainNumber(Mockito.any(Date.class), Mockito.anyString())).thenReturn(orders);
+        Map<Integer, Integer> counts = new HashMap<>();
+        counts.put(SeatClass.FIRSTCLASS.getCode(), 3);
+        counts.put(SeatClass.SECONDCLASS.getCode(), 5);
+        Mockito.when(orderRepository.countSeatClasses(Mockito.any(Date.class), Mockito.anyString())).thenReturn(counts);
         Response result = orderServiceImpl.queryAlreadySoldOrders(new Date(), "G1234", headers);
         Assert.assertEquals("Success", result.getMsg());
+        SoldTicket soldTicket = (SoldTicket) result.getData();
+        Assert.assertEquals("G1234", soldTicket.getTrainNumber());
+        Assert.assertEquals(3, soldTicket.getFirstClassSeat());
+        Assert.assertEquals(5, soldTicket.getSecondClassSeat());
+        Assert.assertEquals(0, soldTicket.getBusinessSeat());
     }
 
     @Test
@@ -313,7 +572,7 @@ public class OrderServiceImplTest {
         ArrayList<Order> orders = new ArrayList<>();
         Mockito.when(orderRepository.findByAccountId(Mockito.any(UUID.class))).thenReturn(orders);
         Response result = orderServiceImpl.checkSecurityAboutOrder(new Date(), UUID.randomUUID().toString(), headers);
-        Assert.assertEquals(new Response<>(1, "Check Security Success . ", new OrderSecurity(0, 0)), result);
+        Assert.assertEquals(new Response<>(1, "Check Security Success . ", new OrderSecurity(0, 0, new ArrayList<>())), result);
     }
 
     @Test
@@ -336,9 +595,8 @@ public class OrderServiceImplTest {
     @Test
     public void testAddNewOrder1() {
         Order order = new Order();
-        ArrayList<Order> accountOrders = new ArrayList<>();
-        accountOrders.add(order);
-        Mockito.when(orderRepository.findByAccountId(Mockito.any(UUID.class))).thenReturn(accountOrders);
+        Mockito.when(orderRepository.insert(Mockito.any(Order.class))).thenThrow(new DuplicateKeyException("idempotencyKey"));
+        Mockito.when(orderRepository.findByIdempotencyKey(OrderServiceImpl.contentKeyOf(order))).thenReturn(new Order());
         Response result = orderServiceImpl.addNewOrder(order, headers);
         Assert.assertEquals(new Response<>(0, "Order already exist", null), result);
     }
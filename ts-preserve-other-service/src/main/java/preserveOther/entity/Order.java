@@ -51,6 +51,11 @@ public class Order {
 
     private String price;
 
+    /**
+     * ts-order-service answers the order created first for a repeated key
+     */
+    private String idempotencyKey;
+
     public Order(){
         boughtDate = new Date(System.currentTimeMillis());
         travelDate = new Date(123456789);
@@ -92,6 +92,8 @@ public class PreserveOtherServiceImpl implements PreserveOtherService {
         Order order = new Order();
         UUID orderId = UUID.randomUUID();
         order.setId(orderId);
+        // a resent order request of this booking returns the order created first
+        order.setIdempotencyKey(orderId.toString());
         order.setTrainNumber(oti.getTripId());
         order.setAccountId(UUID.fromString(oti.getAccountId()));
 
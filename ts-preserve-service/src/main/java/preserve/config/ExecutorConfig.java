@@ -0,0 +1,44 @@
+package preserve.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * @author fdse
+ */
+@Configuration
+public class ExecutorConfig {
+
+    // a reservation has up to five calls in flight, the lookups before the order and the extras after it
+    @Value("${preserve.executor.core-pool-size:16}")
+    private int corePoolSize = 16;
+
+    @Value("${preserve.executor.max-pool-size:64}")
+    private int maxPoolSize = 64;
+
+    @Value("${preserve.executor.queue-capacity:256}")
+    private int queueCapacity = 256;
+
+    /**
+     * Runs the security check, contacts, trip detail and station id lookups of a reservation
+     * side by side, then the assurance, food, consign and account calls of the created order.
+     * Only the request thread joins them, so when the pool and its queue are full a call runs
+     * on the request thread instead.
+     */
+    @Bean
+    public Executor preserveExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(corePoolSize);
+        executor.setMaxPoolSize(maxPoolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("PreserveExecutor-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.initialize();
+        return executor;
+    }
+}
@@ -14,6 +14,9 @@ public class Ticket {
 
     private String destStation;
 
+    // hold of the seat in ts-seat-service, confirmed once the order is created or released
+    private String holdToken;
+
     public Ticket(){
         //Default Constructor.
     }
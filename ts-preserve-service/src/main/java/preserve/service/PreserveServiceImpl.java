@@ -1,6 +1,7 @@
 package preserve.service;
 
 import edu.fudan.common.util.Response;
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.ConsistencyCheckedCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,12 +12,18 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 import preserve.entity.*;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 import java.util.ArrayList;
 
 /**
@@ -28,13 +35,26 @@ public class PreserveServiceImpl implements PreserveService {
     @Autowired
     private RestTemplate restTemplate;
 
+    @Autowired
+    private Executor preserveExecutor;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(PreserveServiceImpl.class);
 
     // an unique id used to identify a single reservation request
     // it is used in distributed cache protocol to store cache keys
     private static long counter = 0;
 
-    /** Cached Functions */
+    // trip details carry the remaining tickets, ts-seat-service still checks the seat itself
+    private static final int TRIP_DETAIL_VERIFY_INTERVAL = 10;
+
+    /**
+     * Cached Functions
+     *
+     * Remaining tickets depend on orders, every Nth hit is verified and the order events
+     * of the trip and day drop them. The security check counts the account's orders and
+     * seat distribution holds a new seat on every call, neither is cached. The other
+     * lookups are read-through.
+     */
     private final BiFunction<String, HttpHeaders, Response<Contacts>> getContactsById = (contactsId, httpHeaders) -> {
         PreserveServiceImpl.LOGGER.info("[Preserve Other Service][Get Contacts By Id] Getting....");
 
@@ -110,33 +130,48 @@ public class PreserveServiceImpl implements PreserveService {
             "contactsCache", 100, true, getContactsById);
 
     private final ConsistencyCheckedCache<TripAllDetailInfo, HttpHeaders, Response<TripAllDetail>> tripDetailCache = new ConsistencyCheckedCache<TripAllDetailInfo, HttpHeaders, Response<TripAllDetail>>(
-            "tripDetailCache", 100, true, getTripAllDetailInformation);
+            "tripDetailCache", 100, true, TRIP_DETAIL_VERIFY_INTERVAL, getTripAllDetailInformation)
+            .withTags(gtdi -> Collections.singletonList(CacheTags.tripDate(gtdi.getTripId(), gtdi.getTravelDate())));
 
     private final ConsistencyCheckedCache<String, HttpHeaders, String> stationIdCache = new ConsistencyCheckedCache<String, HttpHeaders, String>(
-            "stationIdCache", 100, false, queryForStationId);
-
-    private final ConsistencyCheckedCache<String, HttpHeaders, Response> securityCache = new ConsistencyCheckedCache<String, HttpHeaders, Response>(
-            "securityCache", 100, true, checkSecurity);
+            "stationIdCache", 100, false, queryForStationId)
+            .withTags(stationName -> Collections.singletonList(CacheTags.station(stationName)));
 
     private final ConsistencyCheckedCache<Travel, HttpHeaders, TravelResult> ticketInfoCache = new ConsistencyCheckedCache<Travel, HttpHeaders, TravelResult>(
-            "ticketInfoCache", 100, false, getTicketInfo);
-
-    private final ConsistencyCheckedCache<Seat, HttpHeaders, Ticket> seatRequestCache = new ConsistencyCheckedCache<Seat, HttpHeaders, Ticket>(
-            "seatRequestCache", 100, false, seatRequestQuery);
+            "ticketInfoCache", 100, false, getTicketInfo)
+            .withTags(travel -> CacheTags.travel(String.valueOf(travel.getTrip().getTripId()),
+                    travel.getTrip().getRouteId(), travel.getTrip().getTrainTypeId(),
+                    travel.getStartingPlace(), travel.getEndPlace()));
 
     @Override
     public Response preserve(OrderTicketsInfo oti, HttpHeaders headers) {
 
         // 0.assign id
         String id = String.valueOf(counter++);
-        headers.set("invalidation_id", String.valueOf(id));
 
         PreserveServiceImpl.LOGGER.info("[Preserve Service] [Step 0] Invalidation ID assigned: {}", id);
 
+        // 1-3 and the station ids of step 4 only depend on the request, start them together
+        // and check the results in the original order so the first failure still decides the response
+        CompletableFuture<Response> securityStep = async(() -> checkSecurity.apply(oti.getAccountId(), headers));
+        CompletableFuture<Response<Contacts>> contactsStep = async(() -> contactsCache.getOrInsert(id, oti.getContactsId(), headers));
+
+        TripAllDetailInfo gtdi = new TripAllDetailInfo();
+
+        gtdi.setFrom(oti.getFrom());
+        gtdi.setTo(oti.getTo());
+
+        gtdi.setTravelDate(oti.getDate());
+        gtdi.setTripId(oti.getTripId());
+        CompletableFuture<Response<TripAllDetail>> tripDetailStep = async(() -> tripDetailCache.getOrInsert(id, gtdi, headers));
+
+        CompletableFuture<String> fromStationIdStep = async(() -> stationIdCache.getOrInsert(id, oti.getFrom(), headers));
+        CompletableFuture<String> toStationIdStep = async(() -> stationIdCache.getOrInsert(id, oti.getTo(), headers));
+
         // 1.detect ticket scalper
         PreserveServiceImpl.LOGGER.info("[Preserve Service] [Step 1] Check Security");
 
-        Response result = securityCache.getOrInsert(id, oti.getAccountId(), headers);
+        Response result = await(securityStep);
         if (result.getStatus() == 0) {
             return new Response<>(0, result.getMsg(), null);
         }
@@ -146,7 +181,7 @@ public class PreserveServiceImpl implements PreserveService {
         PreserveServiceImpl.LOGGER.info("[Preserve Service] [Step 2] Find contacts");
         PreserveServiceImpl.LOGGER.info("[Preserve Service] [Step 2] Contacts Id: {}", oti.getContactsId());
 
-        Response<Contacts> gcr = contactsCache.getOrInsert(id, oti.getContactsId(), headers);
+        Response<Contacts> gcr = await(contactsStep);
         if (gcr.getStatus() == 0) {
             PreserveServiceImpl.LOGGER.info("[Preserve Service][Get Contacts] Fail. {}", gcr.getMsg());
             return new Response<>(0, gcr.getMsg(), null);
@@ -154,16 +189,9 @@ public class PreserveServiceImpl implements PreserveService {
         PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 2] Complete");
         // 3.Check the info of train and the number of remaining tickets
         PreserveServiceImpl.LOGGER.info("[Preserve Service] [Step 3] Check tickets num");
-        TripAllDetailInfo gtdi = new TripAllDetailInfo();
-
-        gtdi.setFrom(oti.getFrom());
-        gtdi.setTo(oti.getTo());
-
-        gtdi.setTravelDate(oti.getDate());
-        gtdi.setTripId(oti.getTripId());
         PreserveServiceImpl.LOGGER.info("[Preserve Service] [Step 3] TripId: {}", oti.getTripId());
 
-        Response<TripAllDetail> response = tripDetailCache.getOrInsert(id, gtdi, headers);
+        Response<TripAllDetail> response = await(tripDetailStep);
         TripAllDetail gtdr = response.getData();
         if (gtdr == null)
             return new Response<>(1, "Get TripAllDetail failed.", "");
@@ -204,8 +232,8 @@ public class PreserveServiceImpl implements PreserveService {
         order.setTrainNumber(oti.getTripId());
         order.setAccountId(UUID.fromString(oti.getAccountId()));
 
-        String fromStationId = stationIdCache.getOrInsert(id, oti.getFrom(), headers);
-        String toStationId = stationIdCache.getOrInsert(id, oti.getTo(), headers);
+        String fromStationId = await(fromStationIdStep);
+        String toStationId = await(toStationIdStep);
 
         order.setFrom(fromStationId);
         order.setTo(toStationId);
@@ -221,73 +249,70 @@ public class PreserveServiceImpl implements PreserveService {
         query.setEndPlace(oti.getTo());
         query.setDepartureTime(new Date());
 
-        TravelResult resultForTravel = ticketInfoCache.getOrInsert(id, query, headers);
+        // the ticket info needs the trip and the seat only the station ids, fetch both at once
+        CompletableFuture<TravelResult> ticketInfoStep = async(() -> ticketInfoCache.getOrInsert(id, query, headers));
 
         order.setSeatClass(oti.getSeatType());
         PreserveServiceImpl.LOGGER.info("[Preserve Service][Order] Order Travel Date: {}", oti.getDate().toString());
         order.setTravelDate(oti.getDate());
         order.setTravelTime(gtdr.getTripResponse().getStartingTime());
 
-        // Dispatch the seat
-        if (oti.getSeatType() == SeatClass.FIRSTCLASS.getCode()) {
-            Ticket ticket = dipatchSeat(id, oti.getDate(),
-                    order.getTrainNumber(), fromStationId, toStationId,
-                    SeatClass.FIRSTCLASS.getCode(), headers);
-            order.setSeatNumber("" + ticket.getSeatNo());
-            order.setSeatClass(SeatClass.FIRSTCLASS.getCode());
-            order.setPrice(resultForTravel.getPrices().get("confortClass"));
-        } else {
-            Ticket ticket = dipatchSeat(id, oti.getDate(),
-                    order.getTrainNumber(), fromStationId, toStationId,
-                    SeatClass.SECONDCLASS.getCode(), headers);
-            order.setSeatClass(SeatClass.SECONDCLASS.getCode());
-            order.setSeatNumber("" + ticket.getSeatNo());
-            order.setPrice(resultForTravel.getPrices().get("economyClass"));
+        // Dispatch the seat, ts-seat-service holds it until the order is created or fails
+        int seatClass = oti.getSeatType() == SeatClass.FIRSTCLASS.getCode()
+                ? SeatClass.FIRSTCLASS.getCode() : SeatClass.SECONDCLASS.getCode();
+        Ticket ticket = dipatchSeat(id, oti.getDate(),
+                order.getTrainNumber(), fromStationId, toStationId,
+                seatClass, headers);
+        if (ticket == null) {
+            PreserveServiceImpl.LOGGER.info("[Preserve Service][Dispatch Seat] No seat left");
+            return new Response<>(0, "Seat Not Enough", null);
         }
-
-        PreserveServiceImpl.LOGGER.info("[Preserve Service][Order Price] Price is: {}", order.getPrice());
-
-        Response<Order> cor = createOrder(order, headers);
-        if (cor.getStatus() == 0) {
-            PreserveServiceImpl.LOGGER.info("[Preserve Service][Create Order Fail] Create Order Fail.  Reason: {}",
-                    cor.getMsg());
-            return new Response<>(0, cor.getMsg(), null);
+        Response<Order> cor;
+        boolean orderCreated = false;
+        try {
+            TravelResult resultForTravel = await(ticketInfoStep);
+            order.setSeatClass(seatClass);
+            order.setSeatNumber("" + ticket.getSeatNo());
+            // one order per held seat, however often the order request is sent
+            order.setIdempotencyKey(ticket.getHoldToken());
+            order.setPrice(resultForTravel.getPrices().get(
+                    seatClass == SeatClass.FIRSTCLASS.getCode() ? "confortClass" : "economyClass"));
+
+            PreserveServiceImpl.LOGGER.info("[Preserve Service][Order Price] Price is: {}", order.getPrice());
+
+            cor = createOrder(order, headers);
+            if (cor.getStatus() == 0) {
+                PreserveServiceImpl.LOGGER.info("[Preserve Service][Create Order Fail] Create Order Fail.  Reason: {}",
+                        cor.getMsg());
+                return new Response<>(0, cor.getMsg(), null);
+            }
+            orderCreated = true;
+        } finally {
+            // the seat stays held only for a created order, any other exit gives it back
+            if (!orderCreated) {
+                releaseSeat(ticket, headers);
+            }
         }
         PreserveServiceImpl.LOGGER.info("[Preserve Service] [Step 4] Do Order Complete");
+        CompletableFuture<Boolean> seatStep = async(() -> confirmSeat(ticket, headers));
 
         Response returnResponse = new Response<>(1, "Success.", cor.getMsg());
 
+        // ts-order-service publishes the sold tickets change of this train and day on the invalidation bus,
+        // which drops the cached trip details and seats here and in ts-travel-service and ts-seat-service
 
-        // order creation succeed, recursively invalidate next level caches
-        headers.set("invalidation", "true");
-        tripDetailCache.invalidate(id, gtdi, headers, true);
-
-        if (oti.getSeatType() == SeatClass.FIRSTCLASS.getCode()) {
-            dipatchSeat(id, oti.getDate(),
-                order.getTrainNumber(), fromStationId, toStationId,
-                SeatClass.FIRSTCLASS.getCode(), headers);
-        } else {
-            dipatchSeat(id, oti.getDate(),
-                order.getTrainNumber(), fromStationId, toStationId,
-                SeatClass.SECONDCLASS.getCode(), headers);
-        }
-
+        // 5-8 only depend on the created order, send them together and apply the
+        // results in the original order so a later failure message still wins
 
         // 5.Check insurance options
-        if (oti.getAssurance() == 0) {
-            PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 5] Do not need to buy assurance");
-        } else {
-            Response addAssuranceResult = addAssuranceForOrder(
-                    oti.getAssurance(), cor.getData().getId().toString(), headers);
-            if (addAssuranceResult.getStatus() == 1) {
-                PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 5] Buy Assurance Success");
-            } else {
-                PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 5] Buy Assurance Fail.");
-                returnResponse.setMsg("Success.But Buy Assurance Fail.");
-            }
+        CompletableFuture<Response> assuranceStep = null;
+        if (oti.getAssurance() != 0) {
+            assuranceStep = async(() -> addAssuranceForOrder(
+                    oti.getAssurance(), cor.getData().getId().toString(), headers));
         }
 
         // 6.Increase the food order
+        CompletableFuture<Response> foodStep = null;
         if (oti.getFoodType() != 0) {
 
             FoodOrder foodOrder = new FoodOrder();
@@ -302,18 +327,11 @@ public class PreserveServiceImpl implements PreserveService {
                 PreserveServiceImpl.LOGGER.info("[Food Service]!!!!!!!!!!!!!!!foodstore= {}   {}   {}",
                         foodOrder.getFoodType(), foodOrder.getStationName(), foodOrder.getStoreName());
             }
-            Response afor = createFoodOrder(foodOrder, headers);
-            if (afor.getStatus() == 1) {
-                PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 6] Buy Food Success");
-            } else {
-                PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 6] Buy Food Fail.");
-                returnResponse.setMsg("Success.But Buy Food Fail.");
-            }
-        } else {
-            PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 6] Do not need to buy food");
+            foodStep = async(() -> createFoodOrder(foodOrder, headers));
         }
 
         // 7.add consign
+        CompletableFuture<Response> consignStep = null;
         if (null != oti.getConsigneeName() && !"".equals(oti.getConsigneeName())) {
 
             Consign consignRequest = new Consign();
@@ -328,21 +346,52 @@ public class PreserveServiceImpl implements PreserveService {
             consignRequest.setWeight(oti.getConsigneeWeight());
             consignRequest.setWithin(oti.isWithin());
             LOGGER.info("CONSIGN INFO : " + consignRequest.toString());
-            Response icresult = createConsign(consignRequest, headers);
+            consignStep = async(() -> createConsign(consignRequest, headers));
+        }
+
+        // 8.send notification
+        CompletableFuture<User> accountStep = async(() -> getAccount(order.getAccountId().toString(), headers));
+
+        if (assuranceStep == null) {
+            PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 5] Do not need to buy assurance");
+        } else {
+            Response addAssuranceResult = await(assuranceStep);
+            if (addAssuranceResult.getStatus() == 1) {
+                PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 5] Buy Assurance Success");
+            } else {
+                PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 5] Buy Assurance Fail.");
+                returnResponse.setMsg("Success.But Buy Assurance Fail.");
+            }
+        }
+
+        if (foodStep == null) {
+            PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 6] Do not need to buy food");
+        } else {
+            Response afor = await(foodStep);
+            if (afor.getStatus() == 1) {
+                PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 6] Buy Food Success");
+            } else {
+                PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 6] Buy Food Fail.");
+                returnResponse.setMsg("Success.But Buy Food Fail.");
+            }
+        }
+
+        if (consignStep == null) {
+            PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 7] Do not need to consign");
+        } else {
+            Response icresult = await(consignStep);
             if (icresult.getStatus() == 1) {
                 PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 7] Consign Success");
             } else {
                 PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 7] Consign Fail.");
                 returnResponse.setMsg("Consign Fail.");
             }
-        } else {
-            PreserveServiceImpl.LOGGER.info("[Preserve Service][Step 7] Do not need to consign");
         }
 
-        // 8.send notification
         PreserveServiceImpl.LOGGER.info("[Preserve Service]");
 
-        getAccount(order.getAccountId().toString(), headers);
+        await(seatStep);
+        await(accountStep);
 
         // NotifyInfo notifyInfo = new NotifyInfo();
         // notifyInfo.setDate(new Date().toString());
@@ -363,6 +412,27 @@ public class PreserveServiceImpl implements PreserveService {
         return returnResponse;
     }
 
+    private <T> CompletableFuture<T> async(Supplier<T> step) {
+        return CompletableFuture.supplyAsync(step, preserveExecutor);
+    }
+
+    /**
+     * Waits for a step and rethrows its own exception, as if it had run on the request thread
+     */
+    private static <T> T await(CompletableFuture<T> step) {
+        try {
+            return step.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
     public Ticket dipatchSeat(String id, Date date, String tripId, String startStationId, String endStataionId, int seatType,
             HttpHeaders httpHeaders) {
         Seat seatRequest = new Seat();
@@ -372,13 +442,41 @@ public class PreserveServiceImpl implements PreserveService {
         seatRequest.setDestStation(endStataionId);
         seatRequest.setSeatType(seatType);
 
-        if (httpHeaders.containsKey("invalidation")) {
-            PreserveServiceImpl.LOGGER.info("[Preserve Service][dispatchSeat: sending invalidation request]");
-            seatRequestCache.invalidate(id, seatRequest, httpHeaders, true);
-            return null;
-        }
+        // every call holds a different seat, so the answer is never cached or shared between requests
+        return seatRequestQuery.apply(seatRequest, httpHeaders);
+    }
 
-        return seatRequestCache.getOrInsert(id, seatRequest, httpHeaders);
+    /**
+     * Keeps the held seat of a created order. A failure only logs, the hold then
+     * expires while the order already counts among the sold tickets.
+     */
+    private boolean confirmSeat(Ticket ticket, HttpHeaders httpHeaders) {
+        return sendSeatHold(ticket, HttpMethod.PUT, httpHeaders);
+    }
+
+    /**
+     * Frees the held seat of an order that was not created
+     */
+    private boolean releaseSeat(Ticket ticket, HttpHeaders httpHeaders) {
+        return sendSeatHold(ticket, HttpMethod.DELETE, httpHeaders);
+    }
+
+    private boolean sendSeatHold(Ticket ticket, HttpMethod method, HttpHeaders httpHeaders) {
+        if (ticket == null || ticket.getHoldToken() == null) {
+            return false;
+        }
+        try {
+            ResponseEntity<Response> re = restTemplate.exchange(
+                    "http://ts-seat-service:18898/api/v1/seatservice/seats/holds/" + ticket.getHoldToken(),
+                    method,
+                    new HttpEntity(httpHeaders),
+                    Response.class);
+            return re.getBody().getStatus() == 1;
+        } catch (RestClientException e) {
+            PreserveServiceImpl.LOGGER.warn("[Preserve Service][Seat Hold] {} {} failed: {}", method,
+                    ticket.getHoldToken(), e.getMessage());
+            return false;
+        }
     }
 
     public boolean sendEmail(NotifyInfo notifyInfo, HttpHeaders httpHeaders) {
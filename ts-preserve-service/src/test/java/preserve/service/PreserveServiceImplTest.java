@@ -1,23 +1,36 @@
 package preserve.service;
 
 import edu.fudan.common.util.Response;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.stubbing.Answer;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.*;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 import preserve.entity.*;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(JUnit4.class)
 public class PreserveServiceImplTest {
@@ -31,13 +44,132 @@ public class PreserveServiceImplTest {
     private HttpHeaders headers = new HttpHeaders();
     private HttpEntity requestEntity = new HttpEntity(headers);
 
+    private ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    // url prefix to the step its calls belong to, see testPreserveOverlapsIndependentSteps
+    private final Map<String, CountDownLatch> steps = new HashMap<>();
+
+    // calls that gave up waiting for the other calls of their step
+    private final List<String> ranAlone = Collections.synchronizedList(new ArrayList<>());
+
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.setField(preserveServiceImpl, "preserveExecutor", executor);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
     }
 
     @Test
     public void testPreserve() {
+        OrderTicketsInfo oti = stubBooking();
+        Response result = preserveServiceImpl.preserve(oti, headers);
+        Assert.assertEquals(new Response<>(1, "Success.", null), result);
+    }
+
+    @Test
+    public void testPreserveConfirmsHeldSeat() {
+        OrderTicketsInfo oti = stubBooking();
+        preserveServiceImpl.preserve(oti, headers);
+        Mockito.verify(restTemplate).exchange(
+                Mockito.eq("http://ts-seat-service:18898/api/v1/seatservice/seats/holds/G1255_2_hold"),
+                Mockito.eq(HttpMethod.PUT),
+                Mockito.any(HttpEntity.class),
+                Mockito.eq(Response.class));
+
+        // the order is created at most once for the held seat
+        ArgumentCaptor<HttpEntity> order = ArgumentCaptor.forClass(HttpEntity.class);
+        Mockito.verify(restTemplate).exchange(
+                Mockito.eq("http://ts-order-service:12031/api/v1/orderservice/order"),
+                Mockito.eq(HttpMethod.POST),
+                order.capture(),
+                Mockito.any(ParameterizedTypeReference.class));
+        Assert.assertEquals("G1255_2_hold", ((Order) order.getValue().getBody()).getIdempotencyKey());
+    }
+
+    @Test
+    public void testPreserveReleasesHeldSeatWhenOrderFails() {
+        OrderTicketsInfo oti = stubBooking();
+        stub("http://ts-order-service", ParameterizedTypeReference.class,
+                new ResponseEntity<>(new Response<>(0, "Order already exists", null), HttpStatus.OK));
+        Response result = preserveServiceImpl.preserve(oti, headers);
+        Assert.assertEquals(new Response<>(0, "Order already exists", null), result);
+        Mockito.verify(restTemplate).exchange(
+                Mockito.eq("http://ts-seat-service:18898/api/v1/seatservice/seats/holds/G1255_2_hold"),
+                Mockito.eq(HttpMethod.DELETE),
+                Mockito.any(HttpEntity.class),
+                Mockito.eq(Response.class));
+    }
+
+    @Test
+    public void testPreserveReleasesHeldSeatWhenOrderRequestThrows() {
+        OrderTicketsInfo oti = stubBooking();
+        Mockito.when(restTemplate.exchange(
+                Mockito.startsWith("http://ts-order-service"),
+                Mockito.any(HttpMethod.class),
+                Mockito.any(HttpEntity.class),
+                Mockito.any(ParameterizedTypeReference.class)))
+                .thenThrow(new ResourceAccessException("ts-order-service unreachable"));
+        try {
+            preserveServiceImpl.preserve(oti, headers);
+            Assert.fail("the failed order request is passed on");
+        } catch (ResourceAccessException e) {
+            // expected
+        }
+        verifyHold(HttpMethod.DELETE, 1);
+        verifyHold(HttpMethod.PUT, 0);
+    }
+
+    @Test
+    public void testPreserveReleasesHeldSeatWhenTicketInfoFails() {
+        OrderTicketsInfo oti = stubBooking();
+        stub("http://ts-ticketinfo-service", ParameterizedTypeReference.class,
+                new ResponseEntity<>(new Response<>(0, "No price", null), HttpStatus.OK));
+        try {
+            preserveServiceImpl.preserve(oti, headers);
+            Assert.fail("a ticket info without prices fails the booking");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        verifyHold(HttpMethod.DELETE, 1);
+    }
+
+    @Test
+    public void testPreserveReportsFirstFailingStep() {
+        OrderTicketsInfo oti = stubBooking();
+        stub("http://ts-security-service", Response.class,
+                new ResponseEntity<>(new Response<>(0, "Too many orders", null), HttpStatus.OK));
+        stub("http://ts-contacts-service", ParameterizedTypeReference.class,
+                new ResponseEntity<>(new Response<>(0, "No contacts", null), HttpStatus.OK));
+        Response result = preserveServiceImpl.preserve(oti, headers);
+        Assert.assertEquals(new Response<>(0, "Too many orders", null), result);
+    }
+
+    @Test
+    public void testPreserveOverlapsIndependentSteps() {
+        OrderTicketsInfo oti = stubBooking();
+        // every call of a step answers only after all calls of the step have started,
+        // which they can only do side by side
+        CountDownLatch lookups = new CountDownLatch(5);
+        steps.put("http://ts-security-service", lookups);
+        steps.put("http://ts-contacts-service", lookups);
+        steps.put("http://ts-travel-service", lookups);
+        steps.put("http://ts-station-service", lookups);
+        CountDownLatch extras = new CountDownLatch(4);
+        steps.put("http://ts-assurance-service", extras);
+        steps.put("http://ts-food-service", extras);
+        steps.put("http://ts-consign-service", extras);
+        steps.put("http://ts-user-service", extras);
+
+        Response result = preserveServiceImpl.preserve(oti, headers);
+        Assert.assertEquals(new Response<>(1, "Success.", null), result);
+        Assert.assertEquals(Collections.emptyList(), ranAlone);
+    }
+
+    private OrderTicketsInfo stubBooking() {
         OrderTicketsInfo oti = OrderTicketsInfo.builder()
                 .accountId(UUID.randomUUID().toString())
                 .contactsId(UUID.randomUUID().toString())
@@ -62,17 +194,10 @@ public class PreserveServiceImplTest {
         //response for checkSecurity()、addAssuranceForOrder()、createFoodOrder()、createConsign()
         Response response1 = new Response<>(1, null, null);
         ResponseEntity<Response> re1 = new ResponseEntity<>(response1, HttpStatus.OK);
-
-        //response for sendEmail()
-        ResponseEntity<Boolean> re10 = new ResponseEntity<>(true, HttpStatus.OK);
-
-        Mockito.when(restTemplate.exchange(
-                Mockito.anyString(),
-                Mockito.any(HttpMethod.class),
-                Mockito.any(HttpEntity.class),
-                Mockito.any(Class.class)))
-                .thenReturn(re1).thenReturn(re1).thenReturn(re1).thenReturn(re1).thenReturn(re10);
-
+        stub("http://ts-security-service", Response.class, re1);
+        stub("http://ts-assurance-service", Response.class, re1);
+        stub("http://ts-food-service", Response.class, re1);
+        stub("http://ts-consign-service", Response.class, re1);
 
         //response for getContactsById()
         Contacts contacts = new Contacts();
@@ -81,6 +206,7 @@ public class PreserveServiceImplTest {
         contacts.setDocumentType(1);
         Response<Contacts> response2 = new Response<>(1, null, contacts);
         ResponseEntity<Response<Contacts>> re2 = new ResponseEntity<>(response2, HttpStatus.OK);
+        stub("http://ts-contacts-service", ParameterizedTypeReference.class, re2);
 
         //response for getTripAllDetailInformation()
         TripResponse tripResponse = new TripResponse();
@@ -89,22 +215,29 @@ public class PreserveServiceImplTest {
         TripAllDetail tripAllDetail = new TripAllDetail(true, "message", tripResponse, new Trip());
         Response<TripAllDetail> response3 = new Response<>(1, null, tripAllDetail);
         ResponseEntity<Response<TripAllDetail>> re3 = new ResponseEntity<>(response3, HttpStatus.OK);
+        stub("http://ts-travel-service", ParameterizedTypeReference.class, re3);
 
         //response for queryForStationId()
         Response<String> response4 = new Response<>(null, null, "");
         ResponseEntity<Response<String>> re4 = new ResponseEntity<>(response4, HttpStatus.OK);
+        stub("http://ts-station-service", ParameterizedTypeReference.class, re4);
 
         //response for travel result
         TravelResult travelResult = new TravelResult();
         travelResult.setPrices( new HashMap<String, String>(){{ put("confortClass", "1.0"); }} );
         Response<TravelResult> response5 = new Response<>(null, null, travelResult);
         ResponseEntity<Response<TravelResult>> re5 = new ResponseEntity<>(response5, HttpStatus.OK);
+        stub("http://ts-ticketinfo-service", ParameterizedTypeReference.class, re5);
 
         //response for dipatchSeat()
         Ticket ticket = new Ticket();
         ticket.setSeatNo(1);
+        ticket.setHoldToken("G1255_2_hold");
         Response<Ticket> response6 = new Response<>(null, null, ticket);
         ResponseEntity<Response<Ticket>> re6 = new ResponseEntity<>(response6, HttpStatus.OK);
+        stub("http://ts-seat-service", ParameterizedTypeReference.class, re6);
+        //response for confirmSeat() and releaseSeat()
+        stub("http://ts-seat-service", Response.class, re1);
 
         //response for createOrder()
         Order order = new Order();
@@ -115,6 +248,7 @@ public class PreserveServiceImplTest {
         order.setTo("to_station");
         Response<Order> response7 = new Response<>(1, null, order);
         ResponseEntity<Response<Order>> re7 = new ResponseEntity<>(response7, HttpStatus.OK);
+        stub("http://ts-order-service", ParameterizedTypeReference.class, re7);
 
         //response for getAccount()
         User user = new User();
@@ -122,16 +256,45 @@ public class PreserveServiceImplTest {
         user.setUserName("user_name");
         Response<User> response9 = new Response<>(1, null, user);
         ResponseEntity<Response<User>> re9 = new ResponseEntity<>(response9, HttpStatus.OK);
+        stub("http://ts-user-service", ParameterizedTypeReference.class, re9);
 
-        Mockito.when(restTemplate.exchange(
-                Mockito.anyString(),
-                Mockito.any(HttpMethod.class),
+        return oti;
+    }
+
+    private void verifyHold(HttpMethod method, int times) {
+        Mockito.verify(restTemplate, Mockito.times(times)).exchange(
+                Mockito.eq("http://ts-seat-service:18898/api/v1/seatservice/seats/holds/G1255_2_hold"),
+                Mockito.eq(method),
                 Mockito.any(HttpEntity.class),
-                Mockito.any(ParameterizedTypeReference.class)))
-                .thenReturn(re2).thenReturn(re3).thenReturn(re4).thenReturn(re4).thenReturn(re5).thenReturn(re6).thenReturn(re7).thenReturn(re9);
+                Mockito.eq(Response.class));
+    }
 
-        Response result = preserveServiceImpl.preserve(oti, headers);
-        Assert.assertEquals(new Response<>(1, "Success.", null), result);
+    private void stub(String urlPrefix, Class<?> responseType, ResponseEntity<?> re) {
+        Answer<ResponseEntity<?>> answer = invocation -> {
+            CountDownLatch step = steps.get(urlPrefix);
+            if (step != null) {
+                step.countDown();
+                if (!step.await(5, TimeUnit.SECONDS)) {
+                    ranAlone.add((String) invocation.getArguments()[0]);
+                }
+            }
+            return re;
+        };
+        if (responseType == ParameterizedTypeReference.class) {
+            Mockito.when(restTemplate.exchange(
+                    Mockito.startsWith(urlPrefix),
+                    Mockito.any(HttpMethod.class),
+                    Mockito.any(HttpEntity.class),
+                    Mockito.any(ParameterizedTypeReference.class)))
+                    .thenAnswer(answer);
+        } else {
+            Mockito.when(restTemplate.exchange(
+                    Mockito.startsWith(urlPrefix),
+                    Mockito.any(HttpMethod.class),
+                    Mockito.any(HttpEntity.class),
+                    Mockito.any(Class.class)))
+                    .thenAnswer(answer);
+        }
     }
 
     @Test
@@ -147,7 +310,7 @@ public class PreserveServiceImplTest {
                 requestEntityTicket,
                 new ParameterizedTypeReference<Response<Ticket>>() {
                 })).thenReturn(reTicket);
-        Ticket result = preserveServiceImpl.dipatchSeat(new Date(mills), "G1234", "start_station", "dest_station", 2, headers);
+        Ticket result = preserveServiceImpl.dipatchSeat("0", new Date(mills), "G1234", "start_station", "dest_station", 2, headers);
         Assert.assertNull(result);
     }
 
@@ -3,11 +3,13 @@ package price;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
 import org.springframework.integration.annotation.IntegrationComponentScan;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.filter.ShallowEtagHeaderFilter;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
 /**
@@ -28,4 +30,14 @@ public class PriceApplication {
     public RestTemplate restTemplate(RestTemplateBuilder builder) {
         return builder.build();
     }
+
+    /**
+     * ETag on price config reads, so that caching clients can revalidate with If-None-Match
+     */
+    @Bean
+    public FilterRegistrationBean etagFilter() {
+        FilterRegistrationBean registration = new FilterRegistrationBean(new ShallowEtagHeaderFilter());
+        registration.addUrlPatterns("/api/v1/priceservice/prices/*");
+        return registration;
+    }
 }
\ No newline at end of file
@@ -1,5 +1,7 @@
 package price.service;
 
+import edu.fudan.common.invalidation.InvalidationPublisher;
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -23,6 +25,9 @@ public class PriceServiceImpl implements PriceService {
     @Autowired
     private PriceConfigRepository priceConfigRepository;
 
+    @Autowired
+    private InvalidationPublisher invalidationPublisher;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(PriceServiceImpl.class);
 
     String noThatConfig = "No that config";
@@ -40,22 +45,31 @@ public class PriceServiceImpl implements PriceService {
             priceConfig.setRouteId(createAndModifyPriceConfig.getRouteId());
             priceConfig.setTrainType(createAndModifyPriceConfig.getTrainType());
             priceConfigRepository.save(priceConfig);
+            publishChange(priceConfig);
         } else {
             // modify
             priceConfig = priceConfigRepository.findById(createAndModifyPriceConfig.getId());
             if (priceConfig == null) {
                 priceConfig = new PriceConfig();
                 priceConfig.setId(createAndModifyPriceConfig.getId());
+            } else {
+                publishChange(priceConfig);
             }
             priceConfig.setBasicPriceRate(createAndModifyPriceConfig.getBasicPriceRate());
             priceConfig.setFirstClassPriceRate(createAndModifyPriceConfig.getFirstClassPriceRate());
             priceConfig.setRouteId(createAndModifyPriceConfig.getRouteId());
             priceConfig.setTrainType(createAndModifyPriceConfig.getTrainType());
             priceConfigRepository.save(priceConfig);
+            publishChange(priceConfig);
         }
         return new Response<>(1, "Create success", priceConfig);
     }
 
+    private void publishChange(PriceConfig priceConfig) {
+        invalidationPublisher.publish(CacheTags.PRICE,
+                CacheTags.priceKey(priceConfig.getRouteId(), priceConfig.getTrainType()));
+    }
+
     @Override
     public PriceConfig findById(String id, HttpHeaders headers) {
         PriceServiceImpl.LOGGER.info("[Price Service][Find By Id] ID: {}", id);
@@ -104,6 +118,7 @@ public class PriceServiceImpl implements PriceService {
             pc.setBasicPriceRate(c.getBasicPriceRate());
             pc.setFirstClassPriceRate(c.getFirstClassPriceRate());
             priceConfigRepository.delete(pc);
+            publishChange(priceConfig);
             return new Response<>(1, "Delete success", pc);
         }
     }
@@ -114,12 +129,15 @@ public class PriceServiceImpl implements PriceService {
         if (priceConfig == null) {
             return new Response<>(0, noThatConfig, null);
         } else {
+            // the route or train type may change, drop what was cached under the old pair too
+            publishChange(priceConfig);
             priceConfig.setId(c.getId());
             priceConfig.setBasicPriceRate(c.getBasicPriceRate());
             priceConfig.setFirstClassPriceRate(c.getFirstClassPriceRate());
             priceConfig.setRouteId(c.getRouteId());
             priceConfig.setTrainType(c.getTrainType());
             priceConfigRepository.save(priceConfig);
+            publishChange(priceConfig);
             return new Response<>(1, "Update success", priceConfig);
         }
     }
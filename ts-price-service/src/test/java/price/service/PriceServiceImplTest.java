@@ -1,5 +1,6 @@
 package price.service;
 
+import edu.fudan.common.invalidation.InvalidationPublisher;
 import edu.fudan.common.util.Response;
 import org.junit.Assert;
 import org.junit.Before;
@@ -27,6 +28,9 @@ public class PriceServiceImplTest {
     @Mock
     private PriceConfigRepository priceConfigRepository;
 
+    @Mock
+    private InvalidationPublisher invalidationPublisher;
+
     private HttpHeaders headers = new HttpHeaders();
 
     @Before
@@ -0,0 +1,44 @@
+package plan.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * @author fdse
+ */
+@Configuration
+public class ExecutorConfig {
+
+    // every step of a plan asks ts-travel-service and ts-travel2-service, two calls per request at a time
+    @Value("${route-plan.executor.core-pool-size:8}")
+    private int corePoolSize = 8;
+
+    @Value("${route-plan.executor.max-pool-size:32}")
+    private int maxPoolSize = 32;
+
+    @Value("${route-plan.executor.queue-capacity:128}")
+    private int queueCapacity = 128;
+
+    /**
+     * Runs the two calls of each step of a route plan at once: the searches of both travel
+     * services, the ids of both stations, the trips of the routes and their details. A plan
+     * waits for both before its next step, so when the pool and its queue are full a call
+     * runs on the request thread instead.
+     */
+    @Bean
+    public Executor routePlanExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(corePoolSize);
+        executor.setMaxPoolSize(maxPoolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix("RoutePlanExecutor-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.initialize();
+        return executor;
+    }
+}
@@ -14,7 +14,13 @@ import org.springframework.web.client.RestTemplate;
 import plan.entity.*;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 /**
  * @author fdse
@@ -24,6 +30,10 @@ public class RoutePlanServiceImpl implements RoutePlanService {
 
     @Autowired
     private RestTemplate restTemplate;
+
+    @Autowired
+    private Executor routePlanExecutor;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(RoutePlanServiceImpl.class);
 
     @Override
@@ -35,8 +45,10 @@ public class RoutePlanServiceImpl implements RoutePlanService {
         queryInfo.setEndPlace(info.getToStationName());
         queryInfo.setDepartureTime(info.getTravelDate());
 
-        ArrayList<TripResponse> highSpeed = getTripFromHighSpeedTravelServive(queryInfo, headers);
-        ArrayList<TripResponse> normalTrain = getTripFromNormalTrainTravelService(queryInfo, headers);
+        CompletableFuture<ArrayList<TripResponse>> highSpeedStep = async(() -> getTripFromHighSpeedTravelServive(queryInfo, headers));
+        CompletableFuture<ArrayList<TripResponse>> normalTrainStep = async(() -> getTripFromNormalTrainTravelService(queryInfo, headers));
+        ArrayList<TripResponse> highSpeed = await(highSpeedStep);
+        ArrayList<TripResponse> normalTrain = await(normalTrainStep);
 
         //2.Sort by second-class seats
         ArrayList<TripResponse> finalResult = new ArrayList<>();
@@ -62,6 +74,7 @@ public class RoutePlanServiceImpl implements RoutePlanService {
         }
 
 
+        Map<String, List<String>> stopStations = getStationLists(returnResult, headers);
         ArrayList<RoutePlanResultUnit> units = new ArrayList<>();
         for (int i = 0; i < returnResult.size(); i++) {
             TripResponse tempResponse = returnResult.get(i);
@@ -71,7 +84,7 @@ public class RoutePlanServiceImpl implements RoutePlanService {
             tempUnit.setTrainTypeId(tempResponse.getTrainTypeId());
             tempUnit.setFromStationName(tempResponse.getStartingStation());
             tempUnit.setToStationName(tempResponse.getTerminalStation());
-            tempUnit.setStopStations(getStationList(tempResponse.getTripId().toString(), headers));
+            tempUnit.setStopStations(stopStations.get(tempResponse.getTripId().toString()));
             tempUnit.setPriceForSecondClassSeat(tempResponse.getPriceForEconomyClass());
             tempUnit.setPriceForFirstClassSeat(tempResponse.getPriceForConfortClass());
             tempUnit.setEndTime(tempResponse.getEndTime());
@@ -92,8 +105,10 @@ public class RoutePlanServiceImpl implements RoutePlanService {
         queryInfo.setEndPlace(info.getToStationName());
         queryInfo.setDepartureTime(info.getTravelDate());
 
-        ArrayList<TripResponse> highSpeed = getTripFromHighSpeedTravelServive(queryInfo, headers);
-        ArrayList<TripResponse> normalTrain = getTripFromNormalTrainTravelService(queryInfo, headers);
+        CompletableFuture<ArrayList<TripResponse>> highSpeedStep = async(() -> getTripFromHighSpeedTravelServive(queryInfo, headers));
+        CompletableFuture<ArrayList<TripResponse>> normalTrainStep = async(() -> getTripFromNormalTrainTravelService(queryInfo, headers));
+        ArrayList<TripResponse> highSpeed = await(highSpeedStep);
+        ArrayList<TripResponse> normalTrain = await(normalTrainStep);
 
         //2.Sort by time
         ArrayList<TripResponse> finalResult = new ArrayList<>();
@@ -125,6 +140,7 @@ public class RoutePlanServiceImpl implements RoutePlanService {
         }
 
 
+        Map<String, List<String>> stopStations = getStationLists(returnResult, headers);
         ArrayList<RoutePlanResultUnit> units = new ArrayList<>();
         for (int i = 0; i < returnResult.size(); i++) {
             TripResponse tempResponse = returnResult.get(i);
@@ -135,7 +151,7 @@ public class RoutePlanServiceImpl implements RoutePlanService {
             tempUnit.setFromStationName(tempResponse.getStartingStation());
             tempUnit.setToStationName(tempResponse.getTerminalStation());
 
-            tempUnit.setStopStations(getStationList(tempResponse.getTripId().toString(), headers));
+            tempUnit.setStopStations(stopStations.get(tempResponse.getTripId().toString()));
 
             tempUnit.setPriceForSecondClassSeat(tempResponse.getPriceForEconomyClass());
             tempUnit.setPriceForFirstClassSeat(tempResponse.getPriceForConfortClass());
@@ -148,8 +164,10 @@ public class RoutePlanServiceImpl implements RoutePlanService {
 
     @Override
     public Response searchMinStopStations(RoutePlanInfo info, HttpHeaders headers) {
-        String fromStationId = queryForStationId(info.getFormStationName(), headers);
-        String toStationId = queryForStationId(info.getToStationName(), headers);
+        CompletableFuture<String> fromStationIdStep = async(() -> queryForStationId(info.getFormStationName(), headers));
+        CompletableFuture<String> toStationIdStep = async(() -> queryForStationId(info.getToStationName(), headers));
+        String fromStationId = await(fromStationIdStep);
+        String toStationId = await(toStationIdStep);
         RoutePlanServiceImpl.LOGGER.info("From Id: {} To: {}", fromStationId , toStationId);
         //1.Get the route through the two stations
 
@@ -164,6 +182,11 @@ public class RoutePlanServiceImpl implements RoutePlanService {
 
         ArrayList<Route> routeList = re.getBody().getData();
         RoutePlanServiceImpl.LOGGER.info("[Route Plan Service] Candidate Route Number: {}", routeList.size());
+        // the stop stations of the picked trips come from these routes, no need to fetch them again
+        Map<String, Route> routesById = new HashMap<>();
+        for (Route route : routeList) {
+            routesById.put(route.getId(), route);
+        }
         //2.Calculate how many stops there are between the two stations
         ArrayList<Integer> gapList = new ArrayList<>();
         for (int i = 0; i < routeList.size(); i++) {
@@ -188,24 +211,13 @@ public class RoutePlanServiceImpl implements RoutePlanService {
             gapList.remove(minIndex);
         }
         //4.Depending on the route, go to travel-service or travel2service to get the train information
-        requestEntity = new HttpEntity(resultRoutes, headers);
-        ResponseEntity<Response<ArrayList<ArrayList<Trip>>>> re2 = restTemplate.exchange(
-                "http://ts-travel-service:12346/api/v1/travelservice/trips/routes",
-                HttpMethod.POST,
-                requestEntity,
-                new ParameterizedTypeReference<Response<ArrayList<ArrayList<Trip>>>>() {
-                });
-
-        ArrayList<ArrayList<Trip>> travelTrips = re2.getBody().getData();
-
-
-        re2 = restTemplate.exchange(
-                "http://ts-travel2-service:16346/api/v1/travel2service/trips/routes",
-                HttpMethod.POST,
-                requestEntity,
-                new ParameterizedTypeReference<Response<ArrayList<ArrayList<Trip>>>>() {
-                });
-        ArrayList<ArrayList<Trip>> travel2Trips = re2.getBody().getData();
+        HttpEntity tripsRequestEntity = new HttpEntity(resultRoutes, headers);
+        CompletableFuture<ArrayList<ArrayList<Trip>>> travelTripsStep = async(() -> getTripsByRouteIds(
+                "http://ts-travel-service:12346/api/v1/travelservice/trips/routes", tripsRequestEntity));
+        CompletableFuture<ArrayList<ArrayList<Trip>>> travel2TripsStep = async(() -> getTripsByRouteIds(
+                "http://ts-travel2-service:16346/api/v1/travel2service/trips/routes", tripsRequestEntity));
+        ArrayList<ArrayList<Trip>> travelTrips = await(travelTripsStep);
+        ArrayList<ArrayList<Trip>> travel2Trips = await(travel2TripsStep);
 
         //Merge query results
         ArrayList<ArrayList<Trip>> finalTripResult = new ArrayList<>();
@@ -220,32 +232,40 @@ public class RoutePlanServiceImpl implements RoutePlanService {
         for (ArrayList<Trip> tempTrips : finalTripResult) {
             trips.addAll(tempTrips);
         }
-        ArrayList<RoutePlanResultUnit> tripResponses = new ArrayList<>();
 
-        ResponseEntity<Response<TripAllDetail>> re3;
+        // one batched trip detail request per travel service instead of one request per trip
+        ArrayList<TripAllDetailInfo> highSpeedInfos = new ArrayList<>();
+        ArrayList<TripAllDetailInfo> normalTrainInfos = new ArrayList<>();
         for (Trip trip : trips) {
-            TripResponse tripResponse;
             TripAllDetailInfo allDetailInfo = new TripAllDetailInfo();
             allDetailInfo.setTripId(trip.getTripId().toString());
             allDetailInfo.setTravelDate(info.getTravelDate());
             allDetailInfo.setFrom(info.getFormStationName());
             allDetailInfo.setTo(info.getToStationName());
-            requestEntity = new HttpEntity(allDetailInfo, headers);
-            String requestUrl = "";
-            if (trip.getTripId().toString().charAt(0) == 'D' || trip.getTripId().toString().charAt(0) == 'G') {
-                requestUrl = "http://ts-travel-service:12346/api/v1/travelservice/trip_detail";
+            if (isHighSpeed(trip.getTripId().toString())) {
+                highSpeedInfos.add(allDetailInfo);
             } else {
-                requestUrl = "http://ts-travel2-service:16346/api/v1/travel2service/trip_detail";
+                normalTrainInfos.add(allDetailInfo);
             }
-            re3 = restTemplate.exchange(
-                    requestUrl,
-                    HttpMethod.POST,
-                    requestEntity,
-                    new ParameterizedTypeReference<Response<TripAllDetail>>() {
-                    });
+        }
+        CompletableFuture<List<TripAllDetail>> highSpeedDetailStep = async(() -> getTripAllDetails(
+                "http://ts-travel-service:12346/api/v1/travelservice/trip_details", highSpeedInfos, headers));
+        CompletableFuture<List<TripAllDetail>> normalTrainDetailStep = async(() -> getTripAllDetails(
+                "http://ts-travel2-service:16346/api/v1/travel2service/trip_details", normalTrainInfos, headers));
+        List<TripAllDetail> highSpeedDetails = await(highSpeedDetailStep);
+        List<TripAllDetail> normalTrainDetails = await(normalTrainDetailStep);
 
-            TripAllDetail tripAllDetail = re3.getBody().getData();
-            tripResponse = tripAllDetail.getTripResponse();
+        ArrayList<RoutePlanResultUnit> tripResponses = new ArrayList<>();
+        int highSpeedIndex = 0;
+        int normalTrainIndex = 0;
+        for (Trip trip : trips) {
+            TripAllDetail tripAllDetail;
+            if (isHighSpeed(trip.getTripId().toString())) {
+                tripAllDetail = highSpeedDetails.get(highSpeedIndex++);
+            } else {
+                tripAllDetail = normalTrainDetails.get(normalTrainIndex++);
+            }
+            TripResponse tripResponse = tripAllDetail.getTripResponse();
 
 
             RoutePlanResultUnit unit = new RoutePlanResultUnit();
@@ -258,8 +278,7 @@ public class RoutePlanServiceImpl implements RoutePlanService {
             unit.setPriceForFirstClassSeat(tripResponse.getPriceForConfortClass());
             unit.setPriceForSecondClassSeat(tripResponse.getPriceForEconomyClass());
             //Go get the roadmap according to routeid
-            String routeId = trip.getRouteId();
-            Route tripRoute = getRouteByRouteId(routeId, headers);
+            Route tripRoute = routesById.get(trip.getRouteId());
             if (tripRoute != null) {
                 unit.setStopStations(tripRoute.getStations());
             }
@@ -283,24 +302,29 @@ public class RoutePlanServiceImpl implements RoutePlanService {
         return re.getBody().getData();
     }
 
-    private Route getRouteByRouteId(String routeId, HttpHeaders headers) {
-        RoutePlanServiceImpl.LOGGER.info("[Route Plan Service][Get Route By Id] Route ID：{}", routeId);
-        HttpEntity requestEntity = new HttpEntity(headers);
-        ResponseEntity<Response<Route>> re = restTemplate.exchange(
-                "http://ts-route-service:11178/api/v1/routeservice/routes/" + routeId,
-                HttpMethod.GET,
+    private ArrayList<ArrayList<Trip>> getTripsByRouteIds(String url, HttpEntity requestEntity) {
+        ResponseEntity<Response<ArrayList<ArrayList<Trip>>>> re = restTemplate.exchange(
+                url,
+                HttpMethod.POST,
                 requestEntity,
-                new ParameterizedTypeReference<Response<Route>>() {
+                new ParameterizedTypeReference<Response<ArrayList<ArrayList<Trip>>>>() {
                 });
-        Response<Route> result = re.getBody();
-
-        if (result.getStatus() == 0) {
-            RoutePlanServiceImpl.LOGGER.info("[Travel Service][Get Route By Id] Fail. {}", result.getMsg());
-            return null;
-        } else {
-            RoutePlanServiceImpl.LOGGER.info("[Travel Service][Get Route By Id] Success.");
-            return result.getData();
+        return re.getBody().getData();
+    }
+
+    private List<TripAllDetail> getTripAllDetails(String url, ArrayList<TripAllDetailInfo> infos, HttpHeaders headers) {
+        if (infos.isEmpty()) {
+            return new ArrayList<>();
         }
+        RoutePlanServiceImpl.LOGGER.info("[Route Plan Service][Get Trip All Details] Trips Num: {}", infos.size());
+        HttpEntity requestEntity = new HttpEntity(infos, headers);
+        ResponseEntity<Response<ArrayList<TripAllDetail>>> re = restTemplate.exchange(
+                url,
+                HttpMethod.POST,
+                requestEntity,
+                new ParameterizedTypeReference<Response<ArrayList<TripAllDetail>>>() {
+                });
+        return re.getBody().getData();
     }
 
     private ArrayList<TripResponse> getTripFromHighSpeedTravelServive(TripInfo info, HttpHeaders headers) {
@@ -332,22 +356,74 @@ public class RoutePlanServiceImpl implements RoutePlanService {
         return list;
     }
 
-    private List<String> getStationList(String tripId, HttpHeaders headers) {
+    /**
+     * Stop stations of every trip, asking each travel service once for all of its trips
+     */
+    private Map<String, List<String>> getStationLists(List<TripResponse> tripResponses, HttpHeaders headers) {
+        ArrayList<String> highSpeedIds = new ArrayList<>();
+        ArrayList<String> normalTrainIds = new ArrayList<>();
+        for (TripResponse tripResponse : tripResponses) {
+            String tripId = tripResponse.getTripId().toString();
+            if (isHighSpeed(tripId)) {
+                highSpeedIds.add(tripId);
+            } else {
+                normalTrainIds.add(tripId);
+            }
+        }
+        CompletableFuture<List<Route>> highSpeedStep = async(() -> getRoutesByTripIds(
+                "http://ts-travel-service:12346/api/v1/travelservice/routes", highSpeedIds, headers));
+        CompletableFuture<List<Route>> normalTrainStep = async(() -> getRoutesByTripIds(
+                "http://ts-travel2-service:16346/api/v1/travel2service/routes", normalTrainIds, headers));
+
+        Map<String, List<String>> stationLists = new HashMap<>();
+        putStations(stationLists, highSpeedIds, await(highSpeedStep));
+        putStations(stationLists, normalTrainIds, await(normalTrainStep));
+        return stationLists;
+    }
+
+    private static void putStations(Map<String, List<String>> stationLists, List<String> tripIds, List<Route> routes) {
+        for (int i = 0; i < tripIds.size(); i++) {
+            Route route = routes.get(i);
+            stationLists.put(tripIds.get(i), route == null ? null : route.getStations());
+        }
+    }
 
-        String path;
-        if (tripId.charAt(0) == 'G' || tripId.charAt(0) == 'D') {
-            path = "http://ts-travel-service:12346/api/v1/travelservice/routes/" + tripId;
-        } else {
-            path = "http://ts-travel2-service:16346/api/v1/travel2service/routes/" + tripId;
+    private List<Route> getRoutesByTripIds(String url, ArrayList<String> tripIds, HttpHeaders headers) {
+        if (tripIds.isEmpty()) {
+            return new ArrayList<>();
         }
-        HttpEntity requestEntity = new HttpEntity(headers);
-        ResponseEntity<Response<Route>> re = restTemplate.exchange(
-                path,
-                HttpMethod.GET,
+        HttpEntity requestEntity = new HttpEntity(tripIds, headers);
+        ResponseEntity<Response<ArrayList<Route>>> re = restTemplate.exchange(
+                url,
+                HttpMethod.POST,
                 requestEntity,
-                new ParameterizedTypeReference<Response<Route>>() {
+                new ParameterizedTypeReference<Response<ArrayList<Route>>>() {
                 });
-        Route route = re.getBody().getData();
-        return route.getStations();
+        return re.getBody().getData();
+    }
+
+    private static boolean isHighSpeed(String tripId) {
+        return tripId.charAt(0) == 'G' || tripId.charAt(0) == 'D';
+    }
+
+    private <T> CompletableFuture<T> async(Supplier<T> step) {
+        return CompletableFuture.supplyAsync(step, routePlanExecutor);
+    }
+
+    /**
+     * Waits for a step and rethrows its own exception, as if it had run on the request thread
+     */
+    private static <T> T await(CompletableFuture<T> step) {
+        try {
+            return step.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
     }
 }
@@ -1,6 +1,7 @@
 package plan.service;
 
 import edu.fudan.common.util.Response;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -12,14 +13,17 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.*;
+import org.springframework.test.util.ReflectionTestUtils;
 import org.springframework.web.client.RestTemplate;
-import plan.entity.Route;
-import plan.entity.RoutePlanInfo;
-import plan.entity.Trip;
-import plan.entity.TripResponse;
+import plan.entity.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 @RunWith(JUnit4.class)
 public class RoutePlanServiceImplTest {
@@ -32,9 +36,17 @@ public class RoutePlanServiceImplTest {
 
     private HttpHeaders headers = new HttpHeaders();
 
+    private ExecutorService executor = Executors.newFixedThreadPool(4);
+
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
+        ReflectionTestUtils.setField(routePlanServiceImpl, "routePlanExecutor", executor);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
     }
 
     @Test
@@ -77,22 +89,97 @@ public class RoutePlanServiceImplTest {
 
         Response<String> response = new Response(null, null, "");
         ResponseEntity<Response<String>> re = new ResponseEntity<>(response, HttpStatus.OK);
+        stub("http://ts-station-service", re);
 
         ArrayList<Route> routeArrayList = new ArrayList<>();
         Response<ArrayList<Route>> response2 = new Response<>(null, null, routeArrayList);
         ResponseEntity<Response<ArrayList<Route>>> re2 = new ResponseEntity<>(response2, HttpStatus.OK);
+        stub("http://ts-route-service", re2);
 
         ArrayList<ArrayList<Trip>> tripLists = new ArrayList<>();
         Response<ArrayList<ArrayList<Trip>>> response3 = new Response<>(null, null, tripLists);
         ResponseEntity<Response<ArrayList<ArrayList<Trip>>>> re3 = new ResponseEntity<>(response3, HttpStatus.OK);
+        stub("http://ts-travel-service", re3);
+        stub("http://ts-travel2-service", re3);
+        Response result = routePlanServiceImpl.searchMinStopStations(info, headers);
+        Assert.assertEquals("Success.", result.getMsg());
+    }
+
+    @Test
+    public void testSearchMinStopStationsBatchesTripDetails() {
+        RoutePlanInfo info = new RoutePlanInfo("form_station", "to_station", new Date(), 1);
+        stub("http://ts-station-service:12345/api/v1/stationservice/stations/id/form_station",
+                new ResponseEntity<>(new Response<>(1, null, "form_id"), HttpStatus.OK));
+        stub("http://ts-station-service:12345/api/v1/stationservice/stations/id/to_station",
+                new ResponseEntity<>(new Response<>(1, null, "to_id"), HttpStatus.OK));
+
+        Route route = new Route();
+        route.setId("route_id");
+        route.setStations(Arrays.asList("form_id", "middle_id", "to_id"));
+        stub("http://ts-route-service", new ResponseEntity<>(
+                new Response<>(1, null, new ArrayList<>(Collections.singletonList(route))), HttpStatus.OK));
+
+        stub("http://ts-travel-service:12346/api/v1/travelservice/trips/routes",
+                new ResponseEntity<>(new Response<>(1, null, tripsOf(trip(Type.G, "1234"), trip(Type.D, "1345"))), HttpStatus.OK));
+        stub("http://ts-travel2-service:16346/api/v1/travel2service/trips/routes",
+                new ResponseEntity<>(new Response<>(1, null, tripsOf(trip(Type.K, "1235"))), HttpStatus.OK));
+        stub("http://ts-travel-service:12346/api/v1/travelservice/trip_details",
+                new ResponseEntity<>(new Response<>(1, null, new ArrayList<>(Arrays.asList(detail("GaoTieOne"), detail("DongCheOne")))), HttpStatus.OK));
+        stub("http://ts-travel2-service:16346/api/v1/travel2service/trip_details",
+                new ResponseEntity<>(new Response<>(1, null, new ArrayList<>(Collections.singletonList(detail("KuaiSu")))), HttpStatus.OK));
+
+        Response result = routePlanServiceImpl.searchMinStopStations(info, headers);
+        List<RoutePlanResultUnit> units = (List<RoutePlanResultUnit>) result.getData();
+        Assert.assertEquals(3, units.size());
+        Assert.assertEquals("K1235", units.get(0).getTripId());
+        Assert.assertEquals("KuaiSu", units.get(0).getTrainTypeId());
+        Assert.assertEquals("G1234", units.get(1).getTripId());
+        Assert.assertEquals("GaoTieOne", units.get(1).getTrainTypeId());
+        Assert.assertEquals("DongCheOne", units.get(2).getTrainTypeId());
+        Assert.assertEquals(route.getStations(), units.get(2).getStopStations());
+
+        // one detail request per travel service and no route lookup per trip
+        verifyCalled("http://ts-travel-service:12346/api/v1/travelservice/trip_details", 1);
+        verifyCalled("http://ts-travel2-service:16346/api/v1/travel2service/trip_details", 1);
+        verifyCalled("http://ts-route-service", 1);
+    }
+
+    private static Trip trip(Type type, String number) {
+        TripId tripId = new TripId();
+        tripId.setType(type);
+        tripId.setNumber(number);
+        return new Trip(tripId, null, "route_id");
+    }
+
+    private static ArrayList<ArrayList<Trip>> tripsOf(Trip... trips) {
+        ArrayList<ArrayList<Trip>> tripLists = new ArrayList<>();
+        tripLists.add(new ArrayList<>(Arrays.asList(trips)));
+        return tripLists;
+    }
+
+    private static TripAllDetail detail(String trainTypeId) {
+        TripResponse tripResponse = new TripResponse();
+        tripResponse.setTrainTypeId(trainTypeId);
+        TripAllDetail tripAllDetail = new TripAllDetail();
+        tripAllDetail.setTripResponse(tripResponse);
+        return tripAllDetail;
+    }
+
+    private void stub(String urlPrefix, ResponseEntity<?> re) {
         Mockito.when(restTemplate.exchange(
-                Mockito.anyString(),
+                Mockito.startsWith(urlPrefix),
                 Mockito.any(HttpMethod.class),
                 Mockito.any(HttpEntity.class),
                 Mockito.any(ParameterizedTypeReference.class)))
-                .thenReturn(re).thenReturn(re).thenReturn(re2).thenReturn(re3).thenReturn(re3);
-        Response result = routePlanServiceImpl.searchMinStopStations(info, headers);
-        Assert.assertEquals("Success.", result.getMsg());
+                .thenReturn((ResponseEntity) re);
+    }
+
+    private void verifyCalled(String urlPrefix, int times) {
+        Mockito.verify(restTemplate, Mockito.times(times)).exchange(
+                Mockito.startsWith(urlPrefix),
+                Mockito.any(HttpMethod.class),
+                Mockito.any(HttpEntity.class),
+                Mockito.any(ParameterizedTypeReference.class));
     }
 
 }
@@ -1,5 +1,7 @@
 package route.service;
 
+import edu.fudan.common.invalidation.InvalidationPublisher;
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +24,9 @@ public class RouteServiceImpl implements RouteService {
 
     @Autowired
     private RouteRepository routeRepository;
+
+    @Autowired
+    private InvalidationPublisher invalidationPublisher;
     private static final Logger LOGGER = LoggerFactory.getLogger(RouteServiceImpl.class);
 
     String success = "Success";
@@ -67,6 +72,7 @@ public class RouteServiceImpl implements RouteService {
             route.setStations(stationList);
             route.setDistances(distanceList);
             routeRepository.save(route);
+            invalidationPublisher.publish(CacheTags.ROUTE, route.getId());
             RouteServiceImpl.LOGGER.info("Modify success");
             return new Response<>(1, "Modify success", route);
         }
@@ -75,6 +81,7 @@ public class RouteServiceImpl implements RouteService {
     @Override
     public Response deleteRoute(String routeId, HttpHeaders headers) {
         routeRepository.removeRouteById(routeId);
+        invalidationPublisher.publish(CacheTags.ROUTE, routeId);
         Route route = routeRepository.findById(routeId);
         if (route == null) {
             return new Response<>(1, "Delete Success", routeId);
@@ -1,5 +1,7 @@
 package route.service;
 
+import edu.fudan.common.invalidation.InvalidationPublisher;
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.Response;
 import org.junit.Assert;
 import org.junit.Before;
@@ -27,6 +29,9 @@ public class RouteServiceImplTest {
     @Mock
     private RouteRepository routeRepository;
 
+    @Mock
+    private InvalidationPublisher invalidationPublisher;
+
     private HttpHeaders headers = new HttpHeaders();
 
     @Before
@@ -64,6 +69,7 @@ public class RouteServiceImplTest {
         Mockito.when(routeRepository.findById(Mockito.anyString())).thenReturn(null);
         Response result = routeServiceImpl.deleteRoute("route_id", headers);
         Assert.assertEquals(new Response<>(1, "Delete Success", "route_id"), result);
+        Mockito.verify(invalidationPublisher).publish(CacheTags.ROUTE, "route_id");
     }
 
     @Test
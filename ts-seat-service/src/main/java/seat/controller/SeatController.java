@@ -7,6 +7,8 @@ import org.springframework.web.bind.annotation.*;
 import seat.entity.Seat;
 import seat.service.SeatService;
 
+import java.util.ArrayList;
+
 import static org.springframework.http.ResponseEntity.ok;
 
 /**
@@ -52,4 +54,47 @@ public class SeatController {
         return ok(seatService.getLeftTicketOfInterval(seatRequest, headers));
     }
 
+    /**
+     * get left tickets of many intervals
+     * the counts are returned in the order of the requests
+     *
+     * @param seatRequests seat requests
+     * @param headers headers
+     * @return HttpEntity
+     */
+    @CrossOrigin(origins = "*")
+    @PostMapping(value = "/seats/left_tickets/batch")
+    public HttpEntity getLeftTicketsOfIntervals(@RequestBody ArrayList<Seat> seatRequests, @RequestHeader HttpHeaders headers) {
+        // List<Integer>
+        return ok(seatService.getLeftTicketsOfIntervals(seatRequests, headers));
+    }
+
+    /**
+     * confirm seat hold
+     * keeps the seat handed out with the hold token, its order was created
+     *
+     * @param holdToken hold token of the assigned ticket
+     * @param headers headers
+     * @return HttpEntity
+     */
+    @CrossOrigin(origins = "*")
+    @PutMapping(value = "/seats/holds/{holdToken}")
+    public HttpEntity confirmSeatHold(@PathVariable String holdToken, @RequestHeader HttpHeaders headers) {
+        return ok(seatService.confirmSeatHold(holdToken, headers));
+    }
+
+    /**
+     * release seat hold
+     * frees the seat handed out with the hold token, its order was not created
+     *
+     * @param holdToken hold token of the assigned ticket
+     * @param headers headers
+     * @return HttpEntity
+     */
+    @CrossOrigin(origins = "*")
+    @DeleteMapping(value = "/seats/holds/{holdToken}")
+    public HttpEntity releaseSeatHold(@PathVariable String holdToken, @RequestHeader HttpHeaders headers) {
+        return ok(seatService.releaseSeatHold(holdToken, headers));
+    }
+
 }
@@ -0,0 +1,28 @@
+package seat.entity;
+
+import lombok.Data;
+
+import java.util.Date;
+
+/**
+ * A ticket sold (count 1) or given back (count -1) on a train and travel date,
+ * published by ts-order-service with the trip event after the order write succeeded
+ *
+ * @author fdse
+ */
+@Data
+public class SoldTicketChange {
+
+    private String trainNumber;
+
+    private Date travelDate;
+
+    private Ticket ticket;
+
+    private int count;
+
+    public SoldTicketChange(){
+        //Default Constructor
+    }
+
+}
@@ -1,11 +1,13 @@
 package seat.entity;
 
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 
 /**
  * @author fdse
  */
 @Data
+@EqualsAndHashCode(exclude = "holdToken")
 public class Ticket {
 
     private int seatNo;
@@ -14,6 +16,9 @@ public class Ticket {
 
     private String destStation;
 
+    // set on a ticket handed out by distributeSeat, confirmed or released with the order
+    private String holdToken;
+
     public Ticket(){
         //Default Constructor
     }
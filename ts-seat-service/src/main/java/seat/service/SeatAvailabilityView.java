@@ -0,0 +1,216 @@
+package seat.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import seat.entity.LeftTicketInfo;
+import seat.entity.SoldTicketChange;
+import seat.entity.Ticket;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Seat availability of each train and travel date, kept in memory so that counting
+ * the left tickets of an interval does not fetch and scan the sold ticket set.
+ *
+ * An entry is built from the sold tickets in ts-order-service on its first read and
+ * then follows the changes ts-order-service publishes with every order write. Every
+ * verifyInterval-th read of an entry rebuilds it, which repairs a change that got lost.
+ *
+ * @author fdse
+ */
+public class SeatAvailabilityView {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SeatAvailabilityView.class);
+
+    private final int maxEntries;
+
+    private final int verifyInterval;
+
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+    private final AtomicLong loadCount = new AtomicLong();
+
+    private final AtomicLong divergeCount = new AtomicLong();
+
+    public SeatAvailabilityView(int maxEntries, int verifyInterval) {
+        if (maxEntries <= 0 || verifyInterval <= 0) {
+            throw new IllegalArgumentException("maxEntries and verifyInterval must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.verifyInterval = verifyInterval;
+    }
+
+    /**
+     * ts-order-service matches the exact travel date of an order, so does the view
+     */
+    public static String key(String trainNumber, Date travelDate) {
+        return trainNumber + "@" + (travelDate == null ? "" : String.valueOf(travelDate.getTime()));
+    }
+
+    /**
+     * @param stations stations of the train's route, the entry follows a changed route
+     * @param loader   answers the sold tickets of the train and date, null when nothing was sold
+     */
+    public Availability get(String key, List<String> stations, Supplier<LeftTicketInfo> loader) {
+        Slot slot = slots.computeIfAbsent(key, k -> new Slot());
+        long seenChanges;
+        synchronized (slot) {
+            if (slot.availability != null && ++slot.reads % verifyInterval != 0) {
+                slot.availability.reindex(stations);
+                return slot.availability;
+            }
+            seenChanges = slot.changes;
+        }
+
+        // first read or sampled verification, rebuilt from ts-order-service
+        LeftTicketInfo leftTicketInfo = loader.get();
+        Availability loaded = Availability.of(stations, leftTicketInfo);
+        synchronized (slot) {
+            loadCount.incrementAndGet();
+            // a change that arrived meanwhile may or may not be part of the loaded tickets,
+            // the entry then stays as it is and the next read loads again
+            if (slot.changes == seenChanges) {
+                if (slot.availability != null && !slot.availability.hasSameTickets(loaded)) {
+                    divergeCount.incrementAndGet();
+                    SeatAvailabilityView.LOGGER.warn("[SeatAvailabilityView] diverged, key: {}, view: {}, actual: {}",
+                            key, slot.availability.soldCount(), loaded.soldCount());
+                }
+                slot.availability = loaded;
+            }
+        }
+        evictIfFull();
+        return loaded;
+    }
+
+    public void apply(SoldTicketChange change) {
+        Slot slot = slots.get(key(change.getTrainNumber(), change.getTravelDate()));
+        if (slot == null) {
+            // not read yet, the first read loads the tickets including this change
+            return;
+        }
+        synchronized (slot) {
+            slot.changes++;
+            if (slot.availability != null) {
+                slot.availability.apply(change.getTicket(), change.getCount());
+            }
+        }
+    }
+
+    public void invalidate(String key) {
+        slots.remove(key);
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    public long getDivergeCount() {
+        return divergeCount.get();
+    }
+
+    private void evictIfFull() {
+        // any entry can go, it is loaded again on its next read
+        Iterator<String> keys = slots.keySet().iterator();
+        while (slots.size() > maxEntries && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    private static final class Slot {
+
+        private long changes = 0;
+
+        private long reads = 0;
+
+        private Availability availability;
+    }
+
+    /**
+     * Sold tickets of one train and travel date, indexed by the position of their
+     * destination on the route
+     */
+    public static final class Availability {
+
+        private List<String> stations;
+
+        // distinct sold tickets and how many orders hold each, ts-order-service answers them as a set
+        private final Map<Ticket, Integer> soldTickets = new HashMap<>();
+
+        // endings[i + 1] counts the distinct sold tickets ending at station i, endings[0] the ones ending off the route
+        private int[] endings;
+
+        private Availability(List<String> stations) {
+            this.stations = stations == null ? new ArrayList<>() : new ArrayList<>(stations);
+            this.endings = new int[this.stations.size() + 1];
+        }
+
+        public static Availability of(List<String> stations, LeftTicketInfo leftTicketInfo) {
+            Availability availability = new Availability(stations);
+            if (leftTicketInfo != null && leftTicketInfo.getSoldTickets() != null) {
+                for (Ticket ticket : leftTicketInfo.getSoldTickets()) {
+                    availability.apply(ticket, 1);
+                }
+            }
+            return availability;
+        }
+
+        /**
+         * Left tickets of an interval starting at startStation: tickets sold for an interval
+         * ending before it can be sold again, plus the unsold part of the interval's quota
+         */
+        public synchronized int leftTickets(String startStation, int quota) {
+            int start = stations.indexOf(startStation);
+            int reusable = 0;
+            for (int i = 0; i <= start; i++) {
+                reusable += endings[i];
+            }
+            return reusable + quota - soldTickets.size();
+        }
+
+        public synchronized int soldCount() {
+            return soldTickets.size();
+        }
+
+        synchronized void apply(Ticket ticket, int count) {
+            int before = soldTickets.getOrDefault(ticket, 0);
+            int after = Math.max(0, before + count);
+            if (after == 0) {
+                soldTickets.remove(ticket);
+            } else {
+                soldTickets.put(ticket, after);
+            }
+            if (before == 0 && after > 0) {
+                endings[stations.indexOf(ticket.getDestStation()) + 1]++;
+            } else if (before > 0 && after == 0) {
+                endings[stations.indexOf(ticket.getDestStation()) + 1]--;
+            }
+        }
+
+        synchronized void reindex(List<String> routeStations) {
+            if (routeStations == null || routeStations.equals(stations)) {
+                return;
+            }
+            stations = new ArrayList<>(routeStations);
+            endings = new int[stations.size() + 1];
+            for (Ticket ticket : soldTickets.keySet()) {
+                endings[stations.indexOf(ticket.getDestStation()) + 1]++;
+            }
+        }
+
+        synchronized boolean hasSameTickets(Availability other) {
+            return soldTickets.keySet().equals(other.ticketSet());
+        }
+
+        private synchronized Set<Ticket> ticketSet() {
+            return new HashSet<>(soldTickets.keySet());
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package seat.service;
+
+import seat.entity.Ticket;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Seat x route segment occupancy of one train, travel date and seat class.
+ *
+ * Every seat has a mask of the route segments it is taken on, segment i running
+ * from station i to station i + 1. A seat is claimed with a compare-and-set on its
+ * mask, so concurrent requests never get overlapping intervals of the same seat
+ * and no lock is taken on the way. A bitmap of seats per segment follows the masks
+ * and lets a request find the seats free on its whole interval with a few word
+ * operations per segment instead of scanning the sold tickets.
+ *
+ * A claimed seat is held under a token until ts-preserve-service confirms it once
+ * the order is created, releases it when the order fails, or the hold expires.
+ *
+ * An occupancy without holds can be retired to drop it. A retired occupancy hands out
+ * no seat, so a request racing the retirement allocates on its successor, which knows
+ * every seat that was held.
+ *
+ * @author fdse
+ */
+public class SeatOccupancy {
+
+    // routes with more segments share the last bit for their tail, which only makes it stricter
+    private static final int MAX_SEGMENTS = 64;
+
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    // station id -> position on the route, the first stop of a station passed twice like indexOf
+    private final Map<String, Integer> positions = new HashMap<>();
+
+    private final int segments;
+
+    private final int seatCount;
+
+    private final int words;
+
+    // masks[seat - 1], bit s set when the seat is taken on segment s, every claim goes through it
+    private final AtomicLongArray masks;
+
+    // index[segment * words + w], bit b of the word set when seat w * 64 + b + 1 is taken on the
+    // segment. It follows the masks and may lag for a moment, a claim never relies on it alone
+    private final AtomicLongArray index;
+
+    // masks of the sold tickets last synced, per seat
+    private volatile long[] soldMasks;
+
+    // nothing synced yet, not even an empty set of sold tickets
+    private volatile Object source = new Object();
+
+    private final Map<String, Hold> holds = new ConcurrentHashMap<>();
+
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    // serializes syncs and releases, which rebuild a mask from the sold tickets and holds
+    private final Object syncLock = new Object();
+
+    // set while retireIfIdle looks for holds, allocations back out meanwhile
+    private volatile boolean retiring = false;
+
+    private volatile boolean retired = false;
+
+    public SeatOccupancy(List<String> stations, int seatCount) {
+        int stationCount = stations == null ? 0 : stations.size();
+        for (int i = 0; i < stationCount; i++) {
+            positions.putIfAbsent(stations.get(i), i);
+        }
+        // a route without stations still has one segment, every ticket then takes the whole route
+        this.segments = Math.min(Math.max(stationCount - 1, 1), MAX_SEGMENTS);
+        this.seatCount = Math.max(seatCount, 0);
+        this.words = (this.seatCount + 63) >>> 6;
+        this.masks = new AtomicLongArray(this.seatCount);
+        this.index = new AtomicLongArray(segments * words);
+        this.soldMasks = new long[this.seatCount];
+    }
+
+    public static SeatOccupancy of(List<String> stations, int seatCount, Collection<Ticket> soldTickets, Object source) {
+        SeatOccupancy occupancy = new SeatOccupancy(stations, seatCount);
+        occupancy.sync(soldTickets, source);
+        return occupancy;
+    }
+
+    /**
+     * Brings the occupancy to the given sold tickets, keeping the seats held meanwhile.
+     * Nothing is done when the tickets are the same object as last time.
+     *
+     * @param source identifies the sold tickets, e.g. the cached LeftTicketInfo they come from
+     */
+    public void sync(Collection<Ticket> soldTickets, Object source) {
+        if (this.source == source) {
+            return;
+        }
+        synchronized (syncLock) {
+            if (this.source == source) {
+                return;
+            }
+            long[] next = new long[seatCount];
+            if (soldTickets != null) {
+                for (Ticket ticket : soldTickets) {
+                    if (ticket.getSeatNo() >= 1 && ticket.getSeatNo() <= seatCount) {
+                        next[ticket.getSeatNo() - 1] |= intervalMask(ticket.getStartStation(), ticket.getDestStation());
+                    }
+                }
+            }
+            long[] previous = soldMasks;
+            soldMasks = next;
+            for (int i = 0; i < seatCount; i++) {
+                if (next[i] != previous[i]) {
+                    // tickets of deleted or moved orders free their segments unless a hold keeps them
+                    rewrite(i, previous[i] & ~next[i], next[i]);
+                }
+            }
+            // confirmed holds are part of the sold tickets now
+            holds.values().removeIf(hold -> hold.confirmed && (next[hold.seat] & hold.mask) == hold.mask);
+            this.source = source;
+        }
+    }
+
+    /**
+     * Claims a seat free on every segment between the two stations and holds it for ttlMillis.
+     *
+     * Seats whose taken segments end where the interval starts and start where it ends
+     * come first, then seats closed on one side, then seats already in use, so the free
+     * intervals left on a seat stay long enough to be sold again. Bounded by
+     * O(segments * seats / 64) plus one compare-and-set per seat lost to a concurrent claim.
+     *
+     * @return the claimed seat, seat number 0 when no seat is free on the whole interval,
+     *         null when the occupancy was retired
+     */
+    public Allocation allocate(String startStation, String destStation, long ttlMillis) {
+        if (retiring || retired) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        expireHolds(now);
+
+        long mask = intervalMask(startStation, destStation);
+        int low = Long.numberOfTrailingZeros(mask);
+        int high = 63 - Long.numberOfLeadingZeros(mask);
+
+        long[][] tiers = new long[5][words];
+        for (int w = 0; w < words; w++) {
+            long taken = 0;
+            long used = 0;
+            for (int segment = 0; segment < segments; segment++) {
+                long word = index.get(segment * words + w);
+                used |= word;
+                if ((mask & (1L << segment)) != 0) {
+                    taken |= word;
+                }
+            }
+            long free = ~taken & validBits(w);
+            // the ends of the route close an interval like a sold ticket does
+            long closedBefore = low == 0 ? -1L : index.get((low - 1) * words + w);
+            long closedAfter = high == segments - 1 ? -1L : index.get((high + 1) * words + w);
+            tiers[0][w] = free & closedBefore & closedAfter;
+            tiers[1][w] = free & (closedBefore | closedAfter) & used;
+            tiers[2][w] = free & (closedBefore | closedAfter);
+            tiers[3][w] = free & used;
+            tiers[4][w] = free;
+        }
+
+        // concurrent requests start at different words so they do not all race for the same seat
+        int offset = words == 0 ? 0 : ThreadLocalRandom.current().nextInt(words);
+        for (long[] tier : tiers) {
+            for (int k = 0; k < words; k++) {
+                int w = (offset + k) % words;
+                long candidates = tier[w];
+                while (candidates != 0) {
+                    int seat = (w << 6) + Long.numberOfTrailingZeros(candidates);
+                    Allocation allocation = tryHold(seat, mask, now + ttlMillis);
+                    if (allocation != null) {
+                        return keptUnlessRetired(allocation);
+                    }
+                    candidates &= candidates - 1;
+                }
+            }
+        }
+        // the index may still show a seat released a moment ago as taken, ask the masks themselves
+        for (int seat = 0; seat < seatCount; seat++) {
+            Allocation allocation = tryHold(seat, mask, now + ttlMillis);
+            if (allocation != null) {
+                return keptUnlessRetired(allocation);
+            }
+        }
+        return new Allocation(0, false, null);
+    }
+
+    /**
+     * Keeps a held seat taken, its order was created
+     *
+     * @return whether the hold was still there
+     */
+    public boolean confirm(String holdToken) {
+        Hold hold = holds.get(holdToken);
+        if (hold == null) {
+            return false;
+        }
+        hold.confirmed = true;
+        return true;
+    }
+
+    /**
+     * Frees a held seat whose order was not created
+     *
+     * @return whether the hold was still there and not confirmed
+     */
+    public boolean release(String holdToken) {
+        Hold hold = holds.get(holdToken);
+        if (hold == null || hold.confirmed || !holds.remove(holdToken, hold)) {
+            return false;
+        }
+        synchronized (syncLock) {
+            rewrite(hold.seat, hold.mask, soldMasks[hold.seat]);
+        }
+        return true;
+    }
+
+    public int holdCount() {
+        return holds.size();
+    }
+
+    /**
+     * Retires the occupancy if no seat is held, confirmed holds included
+     *
+     * @return whether it is retired, it then allocates nothing any more
+     */
+    public boolean retireIfIdle() {
+        synchronized (syncLock) {
+            retiring = true;
+            // a hold put before the flag was set is seen here, one put after sees the flag and is undone
+            retired = holds.isEmpty();
+            retiring = false;
+            return retired;
+        }
+    }
+
+    public boolean isRetired() {
+        return retired;
+    }
+
+    private Allocation keptUnlessRetired(Allocation allocation) {
+        if (!retiring && !retired) {
+            return allocation;
+        }
+        Hold hold = holds.remove(allocation.getHoldToken());
+        if (hold != null) {
+            synchronized (syncLock) {
+                rewrite(hold.seat, hold.mask, soldMasks[hold.seat]);
+            }
+        }
+        return null;
+    }
+
+    void expireHolds(long now) {
+        long due = nextSweep.get();
+        if (now < due || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL_MILLIS)) {
+            return;
+        }
+        for (Map.Entry<String, Hold> entry : holds.entrySet()) {
+            Hold hold = entry.getValue();
+            if (hold.expiresAt <= now && holds.remove(entry.getKey(), hold) && !hold.confirmed) {
+                synchronized (syncLock) {
+                    rewrite(hold.seat, hold.mask, soldMasks[hold.seat]);
+                }
+            }
+        }
+    }
+
+    private Allocation tryHold(int seat, long mask, long expiresAt) {
+        long current;
+        do {
+            current = masks.get(seat);
+            if ((current & mask) != 0) {
+                return null;
+            }
+        } while (!masks.compareAndSet(seat, current, current | mask));
+        publish(seat);
+
+        String holdToken = UUID.randomUUID().toString();
+        holds.put(holdToken, new Hold(seat, mask, expiresAt));
+        return new Allocation(seat + 1, current != 0, holdToken);
+    }
+
+    /**
+     * Clears the dropped segments of a seat, keeping the ones still sold or held
+     */
+    private void rewrite(int seat, long dropped, long sold) {
+        long keep = sold;
+        for (Hold hold : holds.values()) {
+            if (hold.seat == seat) {
+                keep |= hold.mask;
+            }
+        }
+        long current;
+        long next;
+        do {
+            current = masks.get(seat);
+            next = (current & ~dropped) | keep;
+        } while (current != next && !masks.compareAndSet(seat, current, next));
+        publish(seat);
+    }
+
+    /**
+     * Copies the mask of a seat into the segment bitmaps, again if it moved on meanwhile
+     */
+    private void publish(int seat) {
+        int w = seat >>> 6;
+        long bit = 1L << (seat & 63);
+        long mask;
+        do {
+            mask = masks.get(seat);
+            for (int segment = 0; segment < segments; segment++) {
+                int slot = segment * words + w;
+                if ((mask & (1L << segment)) != 0) {
+                    index.accumulateAndGet(slot, bit, (word, b) -> word | b);
+                } else {
+                    index.accumulateAndGet(slot, bit, (word, b) -> word & ~b);
+                }
+            }
+        } while (masks.get(seat) != mask);
+    }
+
+    private long intervalMask(String startStation, String destStation) {
+        Integer from = positions.get(startStation);
+        Integer to = positions.get(destStation);
+        if (from == null || to == null || to <= from) {
+            // not on the route as indexed, take the seat on the whole route
+            return segments == MAX_SEGMENTS ? -1L : (1L << segments) - 1;
+        }
+        int low = Math.min(from, MAX_SEGMENTS - 1);
+        int high = Math.min(to - 1, MAX_SEGMENTS - 1);
+        long upTo = high == MAX_SEGMENTS - 1 ? -1L : (1L << (high + 1)) - 1;
+        return upTo & ~((1L << low) - 1);
+    }
+
+    private long validBits(int word) {
+        int bits = seatCount - (word << 6);
+        return bits >= 64 ? -1L : (1L << bits) - 1;
+    }
+
+    private static final class Hold {
+
+        private final int seat;
+
+        private final long mask;
+
+        private final long expiresAt;
+
+        private volatile boolean confirmed = false;
+
+        Hold(int seat, long mask, long expiresAt) {
+            this.seat = seat;
+            this.mask = mask;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    public static final class Allocation {
+
+        private final int seatNo;
+
+        private final boolean reused;
+
+        private final String holdToken;
+
+        Allocation(int seatNo, boolean reused, String holdToken) {
+            this.seatNo = seatNo;
+            this.reused = reused;
+            this.holdToken = holdToken;
+        }
+
+        public int getSeatNo() {
+            return seatNo;
+        }
+
+        /**
+         * Whether the seat was already taken for another interval of the route
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        public String getHoldToken() {
+            return holdToken;
+        }
+    }
+}
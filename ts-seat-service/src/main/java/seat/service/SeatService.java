@@ -4,6 +4,8 @@ import edu.fudan.common.util.Response;
 import org.springframework.http.HttpHeaders;
 import seat.entity.Seat;
 
+import java.util.List;
+
 /**
  * @author fdse
  */
@@ -11,4 +13,7 @@ public interface SeatService {
 
     Response distributeSeat(Seat seatRequest, HttpHeaders headers);
     Response getLeftTicketOfInterval(Seat seatRequest, HttpHeaders headers);
+    Response getLeftTicketsOfIntervals(List<Seat> seatRequests, HttpHeaders headers);
+    Response confirmSeatHold(String holdToken, HttpHeaders headers);
+    Response releaseSeatHold(String holdToken, HttpHeaders headers);
 }
@@ -1,6 +1,10 @@
 package seat.service;
 
+import edu.fudan.common.invalidation.InvalidationBus;
+import edu.fudan.common.invalidation.InvalidationEvent;
+import edu.fudan.common.invalidation.InvalidationListener;
 import edu.fudan.common.util.Response;
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.ConsistencyCheckedCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,9 +18,16 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 import seat.entity.*;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiFunction;
 
 /**
@@ -29,6 +40,27 @@ public class SeatServiceImpl implements SeatService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(SeatServiceImpl.class);
 
+    // the view follows the changes published by ts-order-service, every Nth read is rebuilt to repair a lost one
+    private static final int AVAILABILITY_VERIFY_INTERVAL = 100;
+
+    // sold tickets change with every order, every Nth hit is checked against ts-order-service and the order
+    // events of the train and day drop them. Seats handed out here are held in the occupancy meanwhile.
+    private static final int TICKET_VERIFY_INTERVAL = 10;
+
+    // the proportion is an admin setting, every Nth hit is checked against ts-config-service
+    private static final int CONFIG_VERIFY_INTERVAL = 10;
+
+    private static final int MAX_OCCUPANCIES = 1000;
+
+    // a seat handed out is held this long for its order to be created
+    private static final long HOLD_TTL_MILLIS = 60000;
+
+    // routes and train types are cached by train number, which their events do not name,
+    // so a change of any route or train type drops them all
+    private static final String ANY_ROUTE = CacheTags.route("*");
+
+    private static final String ANY_TRAIN_TYPE = CacheTags.trainType("*");
+
     private BiFunction<String, HttpHeaders, Response<Route>> routeResultQuery = (trainNumber, headers) -> {
         HttpEntity requestEntity = new HttpEntity(headers);
         ResponseEntity<Response<Route>> re = restTemplate.exchange(
@@ -40,14 +72,17 @@ public class SeatServiceImpl implements SeatService {
 
     private BiFunction<Seat, HttpHeaders, LeftTicketInfo> leftTicketQuery = (seatRequest, headers) -> {
         HttpEntity requestEntity = new HttpEntity(seatRequest, headers);
-        ResponseEntity<Response<LeftTicketInfo>> re = restTemplate.exchange(
-                "http://ts-order-service:12031/api/v1/orderservice/order/tickets",
+        // the compact form lists every station once instead of repeating it in every ticket
+        ResponseEntity<Response<CompactSoldTickets>> re = restTemplate.exchange(
+                "http://ts-order-service:12031/api/v1/orderservice/order/tickets/compact",
                 HttpMethod.POST,
                 requestEntity,
-                new ParameterizedTypeReference<Response<LeftTicketInfo>>() {
+                new ParameterizedTypeReference<Response<CompactSoldTickets>>() {
                 });
-        SeatServiceImpl.LOGGER.info("Left ticket info is : {}", re.getBody().toString());
-        return re.getBody().getData();
+        LeftTicketInfo leftTicketInfo = leftTicketInfoOf(re.getBody().getData());
+        SeatServiceImpl.LOGGER.info("Left ticket info: {} sold tickets",
+                leftTicketInfo == null ? 0 : leftTicketInfo.getSoldTickets().size());
+        return leftTicketInfo;
     };
 
     private BiFunction<Seat, HttpHeaders, TrainType> trainTypeQuery = (seatRequest, headers) -> {
@@ -61,35 +96,54 @@ public class SeatServiceImpl implements SeatService {
         return re.getBody().getData();
     };
 
+    private BiFunction<String, HttpHeaders, Double> directProportionQuery = (configName, headers) -> {
+        HttpEntity requestEntity = new HttpEntity(headers);
+        ResponseEntity<Response<Config>> re = restTemplate.exchange(
+                "http://ts-config-service:15679/api/v1/configservice/configs/" + configName,
+                HttpMethod.GET,
+                requestEntity,
+                new ParameterizedTypeReference<Response<Config>>() {
+                });
+        Response<Config> configValue = re.getBody();
+        SeatServiceImpl.LOGGER.info("Configs is : {}", configValue.getData().toString());
+        return Double.parseDouble(configValue.getData().getValue());
+    };
+
     private ConsistencyCheckedCache<String, HttpHeaders, Response<Route>> routeResultCache = new ConsistencyCheckedCache<String, HttpHeaders, Response<Route>>(
-            "routeResultCache", 100, false, routeResultQuery);
+            "routeResultCache", 100, false, routeResultQuery)
+            .withTags(trainNumber -> Arrays.asList(CacheTags.trip(trainNumber), ANY_ROUTE));
 
     private ConsistencyCheckedCache<Seat, HttpHeaders, LeftTicketInfo> leftTicketCache = new ConsistencyCheckedCache<Seat, HttpHeaders, LeftTicketInfo>(
-            "leftTicketCache", 100, true, leftTicketQuery);
+            "leftTicketCache", 100, true, TICKET_VERIFY_INTERVAL, leftTicketQuery)
+            .withTags(seat -> Arrays.asList(CacheTags.trip(seat.getTrainNumber()),
+                    CacheTags.tripDate(seat.getTrainNumber(), seat.getTravelDate())));
+
     private ConsistencyCheckedCache<Seat, HttpHeaders, TrainType> trainTypeCache = new ConsistencyCheckedCache<Seat, HttpHeaders, TrainType>(
-            "trainTypeCache", 100, true, trainTypeQuery);
+            "trainTypeCache", 100, true, trainTypeQuery)
+            .withTags(seat -> Arrays.asList(CacheTags.trip(seat.getTrainNumber()), ANY_TRAIN_TYPE));
+
+    private ConsistencyCheckedCache<String, HttpHeaders, Double> directProportionCache = new ConsistencyCheckedCache<String, HttpHeaders, Double>(
+            "directProportionCache", 10, false, CONFIG_VERIFY_INTERVAL, directProportionQuery);
+
+    // left tickets of the G|D trains, whose orders are kept by ts-order-service
+    private SeatAvailabilityView availabilityView = new SeatAvailabilityView(1000, AVAILABILITY_VERIFY_INTERVAL);
+
+    private final InvalidationListener soldTicketListener = this::applySoldTicketChanges;
+
+    private final InvalidationListener routeListener = event -> routeResultCache.invalidateTag(ANY_ROUTE);
+
+    private final InvalidationListener trainTypeListener = event -> trainTypeCache.invalidateTag(ANY_TRAIN_TYPE);
+
+    // seat x segment occupancy per train, date and seat class, used to hand out and hold seats
+    private Map<String, SeatOccupancy> occupancies = new ConcurrentHashMap<>();
 
     @Override
     public Response distributeSeat(Seat seatRequest, HttpHeaders headers) {
         String id = "0";
-        if (headers.containsKey("invalidation_id")) {
-            id = headers.getFirst("invalidation_id");
-            LOGGER.info("invalidation protocol : " + id);
-        }
-
-        if (headers.containsKey("invalidation")) {
-            leftTicketCache.invalidate(id, seatRequest, headers, false);
-            return new Response<>(1, "Finish invalidation for distributeSeat", new Ticket());
-        }
-
 
         Response<Route> routeResult;
-
-        LeftTicketInfo leftTicketInfo = new LeftTicketInfo();
-        TrainType trainTypeResult = null;
-        ResponseEntity<Response<Route>> re;
-        ResponseEntity<Response<TrainType>> re2;
-        ResponseEntity<Response<LeftTicketInfo>> re3;
+        LeftTicketInfo leftTicketInfo;
+        TrainType trainTypeResult;
 
         // Distinguish G\D from other trains
         String trainNumber = seatRequest.getTrainNumber();
@@ -117,7 +171,7 @@ public class SeatServiceImpl implements SeatService {
             SeatServiceImpl.LOGGER.info("[SeatService] TrainNumber start with other capital");
             // Call the micro service to query all the station information for the trains
             HttpEntity requestEntity = new HttpEntity(headers);
-            re = restTemplate.exchange(
+            ResponseEntity<Response<Route>> re = restTemplate.exchange(
                     "http://ts-travel2-service:16346/api/v1/travel2service/routes/" + seatRequest.getTrainNumber(),
                     HttpMethod.GET,
                     requestEntity,
@@ -130,7 +184,7 @@ public class SeatServiceImpl implements SeatService {
             // Call the microservice to query for residual Ticket information: the set of
             // the Ticket sold for the specified seat type
             requestEntity = new HttpEntity(seatRequest, headers);
-            re3 = restTemplate.exchange(
+            ResponseEntity<Response<LeftTicketInfo>> re3 = restTemplate.exchange(
                     "http://ts-order-other-service:12032/api/v1/orderOtherService/orderOther/tickets",
                     HttpMethod.POST,
                     requestEntity,
@@ -142,7 +196,7 @@ public class SeatServiceImpl implements SeatService {
             // Calls the microservice to query the total number of seats specified for that
             // vehicle
             requestEntity = new HttpEntity(headers);
-            re2 = restTemplate.exchange(
+            ResponseEntity<Response<TrainType>> re2 = restTemplate.exchange(
                     "http://ts-travel2-service:16346/api/v1/travel2service/train_types/" + seatRequest.getTrainNumber(),
                     HttpMethod.GET,
                     requestEntity,
@@ -156,11 +210,7 @@ public class SeatServiceImpl implements SeatService {
                     trainTypeResponse.toString());
         }
 
-        // todo
         Ticket ticket = new Ticket();
-        if (headers.containsKey("invalidation")) {
-            return new Response<>(1, "Finish invalidation for distributeSeat", ticket);
-        }
 
         // Assign seats
         List<String> stationList = routeResult.getData().getStations();
@@ -181,94 +231,169 @@ public class SeatServiceImpl implements SeatService {
         ticket.setDestStation(seatRequest.getDestStation());
 
         // Assign new tickets
-        Random rand = new Random();
-        int range = seatTotalNum;
-        int seat = rand.nextInt(range) + 1;
-
-        if (leftTicketInfo != null) {
-            Set<Ticket> soldTickets = leftTicketInfo.getSoldTickets();
-            // Give priority to tickets already sold
-            for (Ticket soldTicket : soldTickets) {
-                String soldTicketDestStation = soldTicket.getDestStation();
-                // Tickets can be allocated if the sold ticket's end station before the start
-                // station of the request
-                if (stationList.indexOf(soldTicketDestStation) < stationList.indexOf(startStation)) {
-                    ticket.setSeatNo(soldTicket.getSeatNo());
-                    SeatServiceImpl.LOGGER.info(
-                            "[SeatService distributeSeat] Use the previous distributed seat number! {}",
-                            soldTicket.getSeatNo());
-                    return new Response<>(1, "Use the previous distributed seat number!", ticket);
-                }
-            }
-            while (isContained(soldTickets, seat)) {
-                seat = rand.nextInt(range) + 1;
-            }
+        String occupancyKey = occupancyKey(seatRequest);
+        SeatOccupancy.Allocation allocation;
+        do {
+            // an occupancy retired meanwhile allocates nothing, its successor is taken from the map
+            allocation = getOccupancy(occupancyKey, stationList, seatTotalNum, leftTicketInfo)
+                    .allocate(startStation, seatRequest.getDestStation(), HOLD_TTL_MILLIS);
+        } while (allocation == null);
+        if (allocation.getSeatNo() == 0) {
+            SeatServiceImpl.LOGGER.warn("[SeatService distributeSeat] No seat left of {} on {} from {} to {}",
+                    trainNumber, seatRequest.getTravelDate(), startStation, seatRequest.getDestStation());
+            return new Response<>(0, "No seat left.", null);
+        }
+        ticket.setSeatNo(allocation.getSeatNo());
+        ticket.setHoldToken(occupancyKey + "_" + allocation.getHoldToken());
+        if (allocation.isReused()) {
+            // Tickets already sold for another interval of the seat are given priority
+            SeatServiceImpl.LOGGER.info("[SeatService distributeSeat] Use the previous distributed seat number! {}",
+                    allocation.getSeatNo());
+            return new Response<>(1, "Use the previous distributed seat number!", ticket);
         }
-        ticket.setSeatNo(seat);
-        SeatServiceImpl.LOGGER.info("[SeatService distributeSeat] Use a new seat number! {}", seat);
+        SeatServiceImpl.LOGGER.info("[SeatService distributeSeat] Use a new seat number! {}", allocation.getSeatNo());
         return new Response<>(1, "Use a new seat number!", ticket);
     }
 
-    private boolean isContained(Set<Ticket> soldTickets, int seat) {
-        // Check that the seat number has been used
-        boolean result = false;
-        for (Ticket soldTicket : soldTickets) {
-            if (soldTicket.getSeatNo() == seat) {
-                return true;
+    @Override
+    public Response confirmSeatHold(String holdToken, HttpHeaders headers) {
+        SeatOccupancy occupancy = occupancyOfHold(holdToken);
+        if (occupancy == null || !occupancy.confirm(holdToken.substring(holdToken.lastIndexOf('_') + 1))) {
+            SeatServiceImpl.LOGGER.warn("[SeatService confirmSeatHold] Seat hold not found, it may have expired: {}",
+                    holdToken);
+            return new Response<>(0, "Seat Hold Not Found", holdToken);
+        }
+        return new Response<>(1, "Confirm Seat Hold Success", holdToken);
+    }
+
+    @Override
+    public Response releaseSeatHold(String holdToken, HttpHeaders headers) {
+        SeatOccupancy occupancy = occupancyOfHold(holdToken);
+        if (occupancy == null || !occupancy.release(holdToken.substring(holdToken.lastIndexOf('_') + 1))) {
+            return new Response<>(0, "Seat Hold Not Found", holdToken);
+        }
+        SeatServiceImpl.LOGGER.info("[SeatService releaseSeatHold] Seat hold released: {}", holdToken);
+        return new Response<>(1, "Release Seat Hold Success", holdToken);
+    }
+
+    private SeatOccupancy occupancyOfHold(String holdToken) {
+        int separator = holdToken == null ? -1 : holdToken.lastIndexOf('_');
+        return separator < 0 ? null : occupancies.get(holdToken.substring(0, separator));
+    }
+
+    private SeatOccupancy getOccupancy(String key, List<String> stationList, int seatTotalNum,
+            LeftTicketInfo leftTicketInfo) {
+        // the occupancy outlives the cached sold tickets so the seats held meanwhile are kept,
+        // it follows them whenever the cache hands out a newly loaded LeftTicketInfo
+        SeatOccupancy occupancy = occupancies.get(key);
+        if (occupancy == null || occupancy.isRetired()) {
+            if (occupancies.size() >= MAX_OCCUPANCIES) {
+                occupancies.values().removeIf(SeatOccupancy::retireIfIdle);
             }
+            occupancy = occupancies.compute(key, (k, current) -> current == null || current.isRetired()
+                    ? new SeatOccupancy(stationList, seatTotalNum) : current);
+        }
+        occupancy.sync(leftTicketInfo == null ? null : leftTicketInfo.getSoldTickets(), leftTicketInfo);
+        return occupancy;
+    }
+
+    private static LeftTicketInfo leftTicketInfoOf(CompactSoldTickets compactSoldTickets) {
+        if (compactSoldTickets == null) {
+            return null;
         }
-        return result;
+        List<String> stations = compactSoldTickets.getStations();
+        int[] seatNumbers = compactSoldTickets.getSeatNumbers();
+        Set<Ticket> soldTickets = new HashSet<>(seatNumbers.length * 2);
+        for (int i = 0; i < seatNumbers.length; i++) {
+            Ticket ticket = new Ticket();
+            ticket.setSeatNo(seatNumbers[i]);
+            ticket.setStartStation(stations.get(compactSoldTickets.getStartStations()[i]));
+            ticket.setDestStation(stations.get(compactSoldTickets.getDestStations()[i]));
+            soldTickets.add(ticket);
+        }
+        LeftTicketInfo leftTicketInfo = new LeftTicketInfo();
+        leftTicketInfo.setSoldTickets(soldTickets);
+        return leftTicketInfo;
+    }
+
+    private static String occupancyKey(Seat seatRequest) {
+        // no '#', '/' or '.' so that hold tokens built from it can be a path variable
+        return SeatAvailabilityView.key(seatRequest.getTrainNumber(), seatRequest.getTravelDate()) + "_"
+                + seatRequest.getSeatType();
     }
 
     @Override
     public Response getLeftTicketOfInterval(Seat seatRequest, HttpHeaders headers) {
         String id = "0";
 
-        if (headers.containsKey("invalidation")) {
-            leftTicketCache.invalidate(id, seatRequest, headers, false);
-            return new Response<>(1, "Finish invalidation for getLeftTicketOfInterval", 0);
+        SeatServiceImpl.LOGGER.info("Seat request To String: {}", seatRequest.toString());
+        Response<Route> routeResult = getRoute(id, seatRequest, headers);
+        SeatAvailabilityView.Availability availability = getAvailability(seatRequest, routeResult.getData(), headers);
+        TrainType trainTypeResult = getTrainType(id, seatRequest, headers);
+
+        int numOfLeftTicket = countLeftTickets(seatRequest, routeResult.getData(), trainTypeResult, availability,
+                getDirectProportion(headers));
+        return new Response<>(1, "Get Left Ticket of Internal Success", numOfLeftTicket);
+    }
+
+    @Override
+    public Response getLeftTicketsOfIntervals(List<Seat> seatRequests, HttpHeaders headers) {
+        String id = "0";
+        List<Integer> leftTickets = new ArrayList<>(seatRequests.size());
+
+        if (seatRequests.isEmpty()) {
+            return new Response<>(1, "Get Left Tickets of Intervals Success", leftTickets);
         }
 
-        int numOfLeftTicket = 0;
-        Response<Route> routeResult;
-        TrainType trainTypeResult;
-        LeftTicketInfo leftTicketInfo = new LeftTicketInfo();
+        // Route and train type belong to the train, sold tickets to the train on one date and
+        // the proportion to the whole system, so each of them is fetched once per batch
+        double directProportion = getDirectProportion(headers);
+        Map<String, Response<Route>> routeResults = new HashMap<>();
+        Map<String, TrainType> trainTypeResults = new HashMap<>();
+        Map<Seat, SeatAvailabilityView.Availability> availabilities = new HashMap<>();
+        for (Seat seatRequest : seatRequests) {
+            String trainNumber = seatRequest.getTrainNumber();
+            if (!routeResults.containsKey(trainNumber)) {
+                routeResults.put(trainNumber, getRoute(id, seatRequest, headers));
+                trainTypeResults.put(trainNumber, getTrainType(id, seatRequest, headers));
+            }
+            Seat soldTicketRequest = soldTicketRequest(seatRequest);
+            if (!availabilities.containsKey(soldTicketRequest)) {
+                availabilities.put(soldTicketRequest,
+                        getAvailability(soldTicketRequest, routeResults.get(trainNumber).getData(), headers));
+            }
+            leftTickets.add(countLeftTickets(seatRequest, routeResults.get(trainNumber).getData(),
+                    trainTypeResults.get(trainNumber), availabilities.get(soldTicketRequest), directProportion));
+        }
+        SeatServiceImpl.LOGGER.info("[SeatService getLeftTicketsOfIntervals] {} intervals of {} trains on {} dates",
+                seatRequests.size(), routeResults.size(), availabilities.size());
+        return new Response<>(1, "Get Left Tickets of Intervals Success", leftTickets);
+    }
 
-        ResponseEntity<Response<Route>> re;
-        ResponseEntity<Response<TrainType>> re2;
-        ResponseEntity<Response<LeftTicketInfo>> re3;
+    /**
+     * The sold ticket set depends only on the train and the travel date, so requests for other
+     * seat classes and intervals of the same train share one lookup
+     */
+    private Seat soldTicketRequest(Seat seatRequest) {
+        Seat soldTicketRequest = new Seat();
+        soldTicketRequest.setTrainNumber(seatRequest.getTrainNumber());
+        soldTicketRequest.setTravelDate(seatRequest.getTravelDate());
+        return soldTicketRequest;
+    }
 
+    private Response<Route> getRoute(String id, Seat seatRequest, HttpHeaders headers) {
         // Distinguish G\D from other trains
         String trainNumber = seatRequest.getTrainNumber();
-        SeatServiceImpl.LOGGER.info("Seat request To String: {}", seatRequest.toString());
+        Response<Route> routeResult;
         if (trainNumber.startsWith("G") || trainNumber.startsWith("D")) {
-            SeatServiceImpl.LOGGER.info("[SeatService getLeftTicketOfInterval] TrainNumber start with G|D {}",
-                    trainNumber);
-
             // Call the micro service to query all the station information for the trains
             routeResult = routeResultCache.getOrInsert(id, trainNumber, headers);
             SeatServiceImpl.LOGGER.info("[SeatService getLeftTicketOfInterval] The result of getRouteResult is {}",
                     routeResult.getMsg());
-
-            // Call the micro service to query for residual Ticket information: the set of
-            // the Ticket sold for the specified seat type
-            if (headers.containsKey("invalidation")) {
-                leftTicketCache.invalidate(id, seatRequest, headers, false);
-            } else {
-                leftTicketInfo = leftTicketCache.getOrInsert(id, seatRequest, headers);
-            }
-
-            // Calls the microservice to query the total number of seats specified for that
-            // vehicle
-            trainTypeResult = trainTypeCache.getOrInsert(id, seatRequest, headers);
-            SeatServiceImpl.LOGGER.info("[SeatService getLeftTicketOfInterval] The result of getTrainTypeResult is {}",
-                    trainTypeResult == null ? "null" : trainTypeResult.toString());
         } else {
-            SeatServiceImpl.LOGGER.info("[SeatService getLeftTicketOfInterval] TrainNumber start with other capital");
-            // Call the micro service to query all the station information for the trains
             HttpEntity requestEntity = new HttpEntity(headers);
-            re = restTemplate.exchange(
-                    "http://ts-travel2-service:16346/api/v1/travel2service/routes/" + seatRequest.getTrainNumber(),
+            ResponseEntity<Response<Route>> re = restTemplate.exchange(
+                    "http://ts-travel2-service:16346/api/v1/travel2service/routes/" + trainNumber,
                     HttpMethod.GET,
                     requestEntity,
                     new ParameterizedTypeReference<Response<Route>>() {
@@ -276,42 +401,89 @@ public class SeatServiceImpl implements SeatService {
             routeResult = re.getBody();
             SeatServiceImpl.LOGGER.info("[SeatService getLeftTicketOfInterval] The result of getRouteResult is {}",
                     routeResult.toString());
+        }
+        return routeResult;
+    }
 
-            // Call the micro service to query for residual Ticket information: the set of
-            // the Ticket sold for the specified seat type
-            requestEntity = new HttpEntity(seatRequest, headers);
-            re3 = restTemplate.exchange(
-                    "http://ts-order-other-service:12032/api/v1/orderOtherService/orderOther/tickets",
-                    HttpMethod.POST,
-                    requestEntity,
-                    new ParameterizedTypeReference<Response<LeftTicketInfo>>() {
-                    });
-            SeatServiceImpl.LOGGER.info("Get Order tickets result is : {}", re3);
-            leftTicketInfo = re3.getBody().getData();
+    /**
+     * ts-order-service sends the sold ticket changes of every order write with the
+     * trip event of its train and day, ts-route-service and ts-train-service the
+     * ids of the routes and train types they changed
+     */
+    @PostConstruct
+    void listen() {
+        InvalidationBus.listen(CacheTags.TRIP, soldTicketListener);
+        InvalidationBus.listen(CacheTags.ROUTE, routeListener);
+        InvalidationBus.listen(CacheTags.TRAIN_TYPE, trainTypeListener);
+    }
 
-            // Calls the microservice to query the total number of seats specified for that
-            // vehicle
-            requestEntity = new HttpEntity(headers);
-            re2 = restTemplate.exchange(
-                    "http://ts-travel2-service:16346/api/v1/travel2service/train_types/" + seatRequest.getTrainNumber(),
+    @PreDestroy
+    void stopListening() {
+        InvalidationBus.unlisten(CacheTags.TRIP, soldTicketListener);
+        InvalidationBus.unlisten(CacheTags.ROUTE, routeListener);
+        InvalidationBus.unlisten(CacheTags.TRAIN_TYPE, trainTypeListener);
+    }
+
+    void applySoldTicketChanges(InvalidationEvent event) {
+        List<SoldTicketChange> changes = event.changesAs(SoldTicketChange.class);
+        for (SoldTicketChange change : changes) {
+            availabilityView.apply(change);
+        }
+        if (!changes.isEmpty()) {
+            SeatServiceImpl.LOGGER.debug("[SeatService applySoldTicketChanges] {} changes of {} applied",
+                    changes.size(), event.getKey());
+        }
+    }
+
+    private SeatAvailabilityView.Availability getAvailability(Seat seatRequest, Route route, HttpHeaders headers) {
+        // Call the micro service to query for residual Ticket information: the set of
+        // the Ticket sold for the specified seat type
+        String trainNumber = seatRequest.getTrainNumber();
+        if (trainNumber.startsWith("G") || trainNumber.startsWith("D")) {
+            return availabilityView.get(SeatAvailabilityView.key(trainNumber, seatRequest.getTravelDate()),
+                    route.getStations(), () -> leftTicketQuery.apply(soldTicketRequest(seatRequest), headers));
+        }
+        return SeatAvailabilityView.Availability.of(route.getStations(), getOtherSoldTickets(seatRequest, headers));
+    }
+
+    private LeftTicketInfo getOtherSoldTickets(Seat seatRequest, HttpHeaders headers) {
+        HttpEntity requestEntity = new HttpEntity(seatRequest, headers);
+        ResponseEntity<Response<LeftTicketInfo>> re3 = restTemplate.exchange(
+                "http://ts-order-other-service:12032/api/v1/orderOtherService/orderOther/tickets",
+                HttpMethod.POST,
+                requestEntity,
+                new ParameterizedTypeReference<Response<LeftTicketInfo>>() {
+                });
+        SeatServiceImpl.LOGGER.info("Get Order tickets result is : {}", re3);
+        return re3.getBody().getData();
+    }
+
+    private TrainType getTrainType(String id, Seat seatRequest, HttpHeaders headers) {
+        // Calls the microservice to query the total number of seats specified for that
+        // vehicle
+        String trainNumber = seatRequest.getTrainNumber();
+        TrainType trainTypeResult;
+        if (trainNumber.startsWith("G") || trainNumber.startsWith("D")) {
+            trainTypeResult = trainTypeCache.getOrInsert(id, seatRequest, headers);
+        } else {
+            HttpEntity requestEntity = new HttpEntity(headers);
+            ResponseEntity<Response<TrainType>> re2 = restTemplate.exchange(
+                    "http://ts-travel2-service:16346/api/v1/travel2service/train_types/" + trainNumber,
                     HttpMethod.GET,
                     requestEntity,
                     new ParameterizedTypeReference<Response<TrainType>>() {
                     });
-
-            Response<TrainType> trainTypeResponse = re2
-                    .getBody();
-            trainTypeResult = trainTypeResponse.getData();
-            SeatServiceImpl.LOGGER.info("[SeatService getLeftTicketOfInterval] The result of getTrainTypeResult is {}",
-                    trainTypeResponse.toString());
-        }
-
-        if (headers.containsKey("invalidation")) {
-            return new Response<>(1, "Finish invalidation for getLeftTicketOfInterval", numOfLeftTicket);
+            trainTypeResult = re2.getBody().getData();
         }
+        SeatServiceImpl.LOGGER.info("[SeatService getLeftTicketOfInterval] The result of getTrainTypeResult is {}",
+                trainTypeResult == null ? "null" : trainTypeResult.toString());
+        return trainTypeResult;
+    }
 
+    private int countLeftTickets(Seat seatRequest, Route route, TrainType trainTypeResult,
+            SeatAvailabilityView.Availability availability, double directProportion) {
         // Counting the seats remaining in certain sections
-        List<String> stationList = routeResult.getData().getStations();
+        List<String> stationList = route.getStations();
         int seatTotalNum;
         if (seatRequest.getSeatType() == SeatClass.FIRSTCLASS.getCode()) {
             seatTotalNum = trainTypeResult.getConfortClass();
@@ -325,54 +497,21 @@ public class SeatServiceImpl implements SeatService {
                     seatTotalNum);
         }
 
-        int solidTicketSize = 0;
-        if (leftTicketInfo != null) {
-            String startStation = seatRequest.getStartStation();
-            Set<Ticket> soldTickets = leftTicketInfo.getSoldTickets();
-            solidTicketSize = soldTickets.size();
-            // To find out if tickets already sold are available
-            for (Ticket soldTicket : soldTickets) {
-                String soldTicketDestStation = soldTicket.getDestStation();
-                // Tickets can be allocated if the sold ticket's end station before the start
-                // station of the request
-                if (stationList.indexOf(soldTicketDestStation) < stationList.indexOf(startStation)) {
-                    SeatServiceImpl.LOGGER.info(
-                            "[SeatService getLeftTicketOfInterval] The previous distributed seat number is usable! {}",
-                            soldTicket.getSeatNo());
-                    numOfLeftTicket++;
-                }
-            }
-        }
         // Count the unsold tickets
 
-        double direstPart = getDirectProportion(headers);
-        Route route = routeResult
-                .getData();
-        if (route.getStations().get(0).equals(seatRequest.getStartStation())
-                && route.getStations().get(route.getStations().size() - 1).equals(seatRequest.getDestStation())) {
+        double direstPart = directProportion;
+        if (stationList.get(0).equals(seatRequest.getStartStation())
+                && stationList.get(stationList.size() - 1).equals(seatRequest.getDestStation())) {
             // do nothing
         } else {
             direstPart = 1.0 - direstPart;
         }
 
-        int unusedNum = (int) (seatTotalNum * direstPart) - solidTicketSize;
-        numOfLeftTicket += unusedNum;
-
-        return new Response<>(1, "Get Left Ticket of Internal Success", numOfLeftTicket);
+        // Tickets sold for intervals ending before the start station can be sold again
+        return availability.leftTickets(seatRequest.getStartStation(), (int) (seatTotalNum * direstPart));
     }
 
     private double getDirectProportion(HttpHeaders headers) {
-
-        String configName = "DirectTicketAllocationProportion";
-        HttpEntity requestEntity = new HttpEntity(headers);
-        ResponseEntity<Response<Config>> re = restTemplate.exchange(
-                "http://ts-config-service:15679/api/v1/configservice/configs/" + configName,
-                HttpMethod.GET,
-                requestEntity,
-                new ParameterizedTypeReference<Response<Config>>() {
-                });
-        Response<Config> configValue = re.getBody();
-        SeatServiceImpl.LOGGER.info("Configs is : {}", configValue.getData().toString());
-        return Double.parseDouble(configValue.getData().getValue());
+        return directProportionCache.getOrInsert("0", "DirectTicketAllocationProportion", headers);
     }
 }
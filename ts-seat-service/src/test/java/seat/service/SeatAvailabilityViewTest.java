@@ -0,0 +1,137 @@
+package seat.service;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import seat.entity.LeftTicketInfo;
+import seat.entity.SoldTicketChange;
+import seat.entity.Ticket;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class SeatAvailabilityViewTest {
+
+    private static final List<String> STATIONS = Arrays.asList("shanghai", "suzhou", "nanjing", "taiyuan");
+
+    private SeatAvailabilityView view;
+
+    private Date travelDate = new Date();
+
+    private String key = SeatAvailabilityView.key("G1234", travelDate);
+
+    private Set<Ticket> sold = new HashSet<>();
+
+    private AtomicInteger loads = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        view = new SeatAvailabilityView(10, 100);
+        sold.add(ticket(1, "shanghai", "suzhou"));
+        sold.add(ticket(2, "suzhou", "taiyuan"));
+    }
+
+    @Test
+    public void testLeftTicketsCountReusableSeats() {
+        SeatAvailabilityView.Availability availability = read();
+        // seat 1 is free again for intervals starting after suzhou, seat 2 is taken
+        Assert.assertEquals(10 - 2, availability.leftTickets("shanghai", 10));
+        Assert.assertEquals(10 - 2, availability.leftTickets("suzhou", 10));
+        Assert.assertEquals(10 + 1 - 2, availability.leftTickets("nanjing", 10));
+        Assert.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testChangesUpdateWithoutReload() {
+        read();
+        view.apply(change(ticket(3, "shanghai", "nanjing"), 1));
+        view.apply(change(ticket(1, "shanghai", "suzhou"), -1));
+        SeatAvailabilityView.Availability availability = read();
+        Assert.assertEquals(2, availability.soldCount());
+        Assert.assertEquals(10 - 2, availability.leftTickets("suzhou", 10));
+        Assert.assertEquals(10 + 1 - 2, availability.leftTickets("taiyuan", 10));
+        Assert.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testChangeOfUnreadTrainIsSkipped() {
+        view.apply(change(ticket(3, "shanghai", "nanjing"), 1));
+        Assert.assertEquals(0, view.size());
+    }
+
+    @Test
+    public void testSampledReloadRepairsLostChange() {
+        view = new SeatAvailabilityView(10, 3);
+        read();
+        // ts-order-service sold a ticket but the change never arrived
+        sold.add(ticket(3, "shanghai", "nanjing"));
+        Assert.assertEquals(2, read().soldCount());
+        Assert.assertEquals(2, read().soldCount());
+        // the third hit is reloaded
+        Assert.assertEquals(3, read().soldCount());
+        Assert.assertEquals(2, loads.get());
+        Assert.assertEquals(1, view.getDivergeCount());
+    }
+
+    @Test
+    public void testChangeDuringLoadKeepsEntryCold() {
+        SeatAvailabilityView.Availability availability = view.get(key, STATIONS, () -> {
+            // the order was written after these tickets were read
+            LeftTicketInfo info = info();
+            view.apply(change(ticket(3, "shanghai", "nanjing"), 1));
+            return info;
+        });
+        Assert.assertEquals(2, availability.soldCount());
+        sold.add(ticket(3, "shanghai", "nanjing"));
+        Assert.assertEquals(3, read().soldCount());
+    }
+
+    @Test
+    public void testRouteChangeReindexesEndings() {
+        read();
+        SeatAvailabilityView.Availability availability = view.get(key,
+                Arrays.asList("shanghai", "nanjing", "suzhou", "taiyuan"), this::info);
+        // suzhou is now after nanjing, seat 1 is not free yet at nanjing
+        Assert.assertEquals(10 - 2, availability.leftTickets("nanjing", 10));
+        Assert.assertEquals(10 + 1 - 2, availability.leftTickets("taiyuan", 10));
+    }
+
+    @Test
+    public void testEvictsBeyondMaxEntries() {
+        for (int i = 0; i < 20; i++) {
+            view.get(SeatAvailabilityView.key("G" + i, travelDate), STATIONS, this::info);
+        }
+        Assert.assertEquals(10, view.size());
+    }
+
+    private SeatAvailabilityView.Availability read() {
+        return view.get(key, STATIONS, this::info);
+    }
+
+    private LeftTicketInfo info() {
+        loads.incrementAndGet();
+        LeftTicketInfo info = new LeftTicketInfo();
+        info.setSoldTickets(new HashSet<>(sold));
+        return info;
+    }
+
+    private SoldTicketChange change(Ticket ticket, int count) {
+        SoldTicketChange change = new SoldTicketChange();
+        change.setTrainNumber("G1234");
+        change.setTravelDate(travelDate);
+        change.setTicket(ticket);
+        change.setCount(count);
+        return change;
+    }
+
+    private static Ticket ticket(int seatNo, String startStation, String destStation) {
+        Ticket ticket = new Ticket();
+        ticket.setSeatNo(seatNo);
+        ticket.setStartStation(startStation);
+        ticket.setDestStation(destStation);
+        return ticket;
+    }
+}
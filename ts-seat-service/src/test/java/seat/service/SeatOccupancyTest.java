@@ -0,0 +1,221 @@
+package seat.service;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import seat.entity.Ticket;
+
+import java.util.*;
+
+@RunWith(JUnit4.class)
+public class SeatOccupancyTest {
+
+    private static final long TTL = 60000;
+
+    private static final List<String> STATIONS = Arrays.asList("shanghai", "suzhou", "nanjing", "xuzhou", "taiyuan");
+
+    @Test
+    public void testAllocatesSeatFreeOnWholeInterval() {
+        SeatOccupancy occupancy = SeatOccupancy.of(STATIONS, 3, Arrays.asList(
+                ticket(1, "shanghai", "nanjing"),
+                ticket(2, "suzhou", "xuzhou")), null);
+        SeatOccupancy.Allocation allocation = occupancy.allocate("suzhou", "taiyuan", TTL);
+        Assert.assertEquals(3, allocation.getSeatNo());
+        Assert.assertFalse(allocation.isReused());
+    }
+
+    @Test
+    public void testPrefersSeatClosedOnBothSides() {
+        // seat 1 leaves xuzhou-taiyuan free, seat 2 leaves nanjing-taiyuan free, seat 3 is empty
+        SeatOccupancy occupancy = SeatOccupancy.of(STATIONS, 3, Arrays.asList(
+                ticket(1, "shanghai", "xuzhou"),
+                ticket(2, "shanghai", "nanjing")), null);
+        SeatOccupancy.Allocation allocation = occupancy.allocate("nanjing", "taiyuan", TTL);
+        Assert.assertEquals(2, allocation.getSeatNo());
+        Assert.assertTrue(allocation.isReused());
+        allocation = occupancy.allocate("xuzhou", "taiyuan", TTL);
+        Assert.assertEquals(1, allocation.getSeatNo());
+    }
+
+    @Test
+    public void testPrefersUsedSeatOverEmptyOne() {
+        // seat 2 is free from suzhou on, taking it keeps seat 1 free for the whole route
+        SeatOccupancy occupancy = SeatOccupancy.of(STATIONS, 2, Collections.singletonList(
+                ticket(2, "shanghai", "suzhou")), null);
+        Assert.assertEquals(2, occupancy.allocate("nanjing", "xuzhou", TTL).getSeatNo());
+    }
+
+    @Test
+    public void testAllocatedSeatIsHeld() {
+        SeatOccupancy occupancy = SeatOccupancy.of(STATIONS, 2, null, null);
+        Assert.assertEquals(1, occupancy.allocate("shanghai", "nanjing", TTL).getSeatNo());
+        Assert.assertEquals(2, occupancy.allocate("suzhou", "taiyuan", TTL).getSeatNo());
+        Assert.assertEquals(1, occupancy.allocate("nanjing", "taiyuan", TTL).getSeatNo());
+        Assert.assertEquals(2, occupancy.allocate("shanghai", "suzhou", TTL).getSeatNo());
+        Assert.assertEquals(0, occupancy.allocate("shanghai", "suzhou", TTL).getSeatNo());
+    }
+
+    @Test
+    public void testUnknownStationsTakeWholeRoute() {
+        SeatOccupancy occupancy = SeatOccupancy.of(STATIONS, 2, Collections.singletonList(
+                ticket(1, "beijing", "nanjing")), null);
+        Assert.assertEquals(2, occupancy.allocate("xuzhou", "taiyuan", TTL).getSeatNo());
+        Assert.assertEquals(0, occupancy.allocate("xuzhou", "taiyuan", TTL).getSeatNo());
+    }
+
+    @Test
+    public void testReleasedHoldFreesSeat() {
+        SeatOccupancy occupancy = SeatOccupancy.of(STATIONS, 1, null, null);
+        SeatOccupancy.Allocation allocation = occupancy.allocate("shanghai", "nanjing", TTL);
+        Assert.assertEquals(0, occupancy.allocate("suzhou", "xuzhou", TTL).getSeatNo());
+        Assert.assertTrue(occupancy.release(allocation.getHoldToken()));
+        Assert.assertFalse(occupancy.release(allocation.getHoldToken()));
+        Assert.assertEquals(1, occupancy.allocate("suzhou", "xuzhou", TTL).getSeatNo());
+    }
+
+    @Test
+    public void testConfirmedHoldOutlivesSyncUntilSold() {
+        SeatOccupancy occupancy = SeatOccupancy.of(STATIONS, 1, null, null);
+        SeatOccupancy.Allocation allocation = occupancy.allocate("shanghai", "nanjing", TTL);
+        Assert.assertTrue(occupancy.confirm(allocation.getHoldToken()));
+        Assert.assertFalse(occupancy.release(allocation.getHoldToken()));
+
+        // the sold tickets were read before the order was written
+        occupancy.sync(new HashSet<>(), new Object());
+        Assert.assertEquals(0, occupancy.allocate("suzhou", "xuzhou", TTL).getSeatNo());
+        Assert.assertEquals(1, occupancy.holdCount());
+
+        occupancy.sync(Collections.singleton(ticket(1, "shanghai", "nanjing")), new Object());
+        Assert.assertEquals(0, occupancy.holdCount());
+        Assert.assertEquals(1, occupancy.allocate("nanjing", "taiyuan", TTL).getSeatNo());
+    }
+
+    @Test
+    public void testSyncFreesDeletedTicketsButKeepsHolds() {
+        Set<Ticket> sold = new HashSet<>(Arrays.asList(ticket(1, "shanghai", "taiyuan"), ticket(2, "shanghai", "nanjing")));
+        SeatOccupancy occupancy = SeatOccupancy.of(STATIONS, 2, sold, sold);
+        SeatOccupancy.Allocation held = occupancy.allocate("nanjing", "taiyuan", TTL);
+        Assert.assertEquals(2, held.getSeatNo());
+
+        occupancy.sync(Collections.singleton(ticket(1, "shanghai", "taiyuan")), new Object());
+        Assert.assertEquals(2, occupancy.allocate("shanghai", "nanjing", TTL).getSeatNo());
+        Assert.assertEquals(0, occupancy.allocate("xuzhou", "taiyuan", TTL).getSeatNo());
+    }
+
+    @Test
+    public void testExpiredHoldIsReleased() {
+        SeatOccupancy occupancy = SeatOccupancy.of(STATIONS, 1, null, null);
+        SeatOccupancy.Allocation allocation = occupancy.allocate("shanghai", "nanjing", TTL);
+        occupancy.expireHolds(System.currentTimeMillis() + TTL + 1);
+        Assert.assertEquals(0, occupancy.holdCount());
+        Assert.assertFalse(occupancy.confirm(allocation.getHoldToken()));
+        Assert.assertEquals(1, occupancy.allocate("shanghai", "nanjing", TTL).getSeatNo());
+    }
+
+    @Test
+    public void testOccupancyIsRetiredOnlyWithoutHolds() {
+        SeatOccupancy occupancy = SeatOccupancy.of(STATIONS, 2, null, null);
+        SeatOccupancy.Allocation allocation = occupancy.allocate("shanghai", "nanjing", TTL);
+        Assert.assertFalse(occupancy.retireIfIdle());
+
+        // the order is created but not among the sold tickets yet, the hold still counts
+        Assert.assertTrue(occupancy.confirm(allocation.getHoldToken()));
+        Assert.assertFalse(occupancy.retireIfIdle());
+        Assert.assertFalse(occupancy.isRetired());
+        SeatOccupancy.Allocation second = occupancy.allocate("shanghai", "nanjing", TTL);
+        Assert.assertEquals(2, second.getSeatNo());
+        Assert.assertTrue(occupancy.release(second.getHoldToken()));
+
+        occupancy.sync(Collections.singleton(ticket(1, "shanghai", "nanjing")), new Object());
+        Assert.assertTrue(occupancy.retireIfIdle());
+        Assert.assertTrue(occupancy.isRetired());
+        Assert.assertNull(occupancy.allocate("nanjing", "taiyuan", TTL));
+        Assert.assertEquals(0, occupancy.holdCount());
+    }
+
+    @Test
+    public void testConcurrentHoldsNeverShareSeat() throws Exception {
+        // a flash sale on one train, every thread keeps booking random intervals until the train is full
+        List<String> stations = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            stations.add("station_" + i);
+        }
+        int seats = 500;
+        SeatOccupancy occupancy = new SeatOccupancy(stations, seats);
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        List<List<int[]>> booked = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            List<int[]> mine = new ArrayList<>();
+            booked.add(mine);
+            workers.add(new Thread(() -> {
+                Random rand = new Random();
+                int misses = 0;
+                while (misses < 50) {
+                    int from = rand.nextInt(9);
+                    int to = from + 1 + rand.nextInt(9 - from);
+                    SeatOccupancy.Allocation allocation = occupancy.allocate(stations.get(from), stations.get(to), TTL);
+                    if (allocation.getSeatNo() == 0) {
+                        misses++;
+                    } else if (rand.nextInt(10) == 0) {
+                        occupancy.release(allocation.getHoldToken());
+                    } else {
+                        mine.add(new int[]{allocation.getSeatNo(), from, to});
+                    }
+                }
+            }));
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        int[][] taken = new int[seats + 1][9];
+        int holds = 0;
+        for (List<int[]> mine : booked) {
+            for (int[] hold : mine) {
+                holds++;
+                for (int segment = hold[1]; segment < hold[2]; segment++) {
+                    taken[hold[0]][segment]++;
+                    Assert.assertEquals("seat " + hold[0] + " segment " + segment, 1, taken[hold[0]][segment]);
+                }
+            }
+        }
+        Assert.assertEquals(holds, occupancy.holdCount());
+    }
+
+    @Test
+    public void testAllocatesTheLastFreeSeatsAtHighOccupancy() {
+        // 20 stations, 99% of 1000 seats sold on the whole route
+        List<String> stations = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            stations.add("station_" + i);
+        }
+        int seats = 1000;
+        Set<Ticket> sold = new HashSet<>();
+        for (int seat = 1; seat <= 990; seat++) {
+            sold.add(ticket(seat, "station_0", "station_19"));
+        }
+
+        // the free seats are found directly instead of probing random seats
+        SeatOccupancy occupancy = SeatOccupancy.of(stations, seats, sold, sold);
+        Set<Integer> allocated = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            int seatNo = occupancy.allocate("station_3", "station_12", TTL).getSeatNo();
+            Assert.assertTrue("seat " + seatNo, seatNo > 990);
+            Assert.assertTrue("seat " + seatNo + " twice", allocated.add(seatNo));
+        }
+        Assert.assertEquals(0, occupancy.allocate("station_3", "station_12", TTL).getSeatNo());
+    }
+
+    private static Ticket ticket(int seatNo, String startStation, String destStation) {
+        Ticket ticket = new Ticket();
+        ticket.setSeatNo(seatNo);
+        ticket.setStartStation(startStation);
+        ticket.setDestStation(destStation);
+        return ticket;
+    }
+}
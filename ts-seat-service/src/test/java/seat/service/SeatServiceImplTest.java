@@ -1,5 +1,10 @@
 package seat.service;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.fudan.common.invalidation.InvalidationEvent;
+import edu.fudan.common.invalidation.InvalidationPublisher;
+import edu.fudan.common.invalidation.LocalInvalidationTransport;
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.Response;
 import org.junit.Assert;
 import org.junit.Before;
@@ -16,6 +21,10 @@ import org.springframework.web.client.RestTemplate;
 import seat.entity.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 
 @RunWith(JUnit4.class)
 public class SeatServiceImplTest {
@@ -93,6 +102,48 @@ public class SeatServiceImplTest {
         Assert.assertEquals("Use a new seat number!", result.getMsg());
     }
 
+    @Test
+    public void testDistributeSeatHoldsHandedOutSeats() {
+        Seat seat = stubHoldableTrain(2);
+        // the sold tickets stay the same until the order is written, the seats handed out meanwhile are held
+        Assert.assertEquals(1, ((Ticket) seatServiceImpl.distributeSeat(seat, headers).getData()).getSeatNo());
+        Assert.assertEquals(2, ((Ticket) seatServiceImpl.distributeSeat(seat, headers).getData()).getSeatNo());
+        Response result = seatServiceImpl.distributeSeat(seat, headers);
+        Assert.assertEquals(new Response<>(0, "No seat left.", null), result);
+    }
+
+    @Test
+    public void testReleasedSeatHoldIsHandedOutAgain() {
+        Seat seat = stubHoldableTrain(1);
+        Ticket held = (Ticket) seatServiceImpl.distributeSeat(seat, headers).getData();
+        Assert.assertEquals(0, seatServiceImpl.distributeSeat(seat, headers).getStatus().intValue());
+        Assert.assertEquals(1, seatServiceImpl.releaseSeatHold(held.getHoldToken(), headers).getStatus().intValue());
+        Assert.assertEquals(0, seatServiceImpl.confirmSeatHold(held.getHoldToken(), headers).getStatus().intValue());
+
+        Ticket again = (Ticket) seatServiceImpl.distributeSeat(seat, headers).getData();
+        Assert.assertEquals(1, again.getSeatNo());
+        Assert.assertEquals(1, seatServiceImpl.confirmSeatHold(again.getHoldToken(), headers).getStatus().intValue());
+        Assert.assertEquals(0, seatServiceImpl.releaseSeatHold(again.getHoldToken(), headers).getStatus().intValue());
+    }
+
+    private Seat stubHoldableTrain(int confortClass) {
+        Route route = new Route();
+        route.setStations(Arrays.asList("shanghai", "suzhou", "nanjing"));
+        TrainType trainType = new TrainType();
+        trainType.setConfortClass(confortClass);
+        stub("http://ts-travel-service:12346/api/v1/travelservice/routes/", new Response<>(1, null, route));
+        stub("http://ts-travel-service:12346/api/v1/travelservice/train_types/", new Response<>(1, null, trainType));
+        stub("http://ts-order-service:12031/api/v1/orderservice/order/tickets/compact",
+                new Response<>(1, null, compact()));
+
+        Seat seat = new Seat();
+        seat.setTrainNumber("G1234");
+        seat.setSeatType(2);
+        seat.setStartStation("shanghai");
+        seat.setDestStation("nanjing");
+        return seat;
+    }
+
     @Test
     public void testGetLeftTicketOfInterval() {
         Seat seat = new Seat();
@@ -163,4 +214,158 @@ public class SeatServiceImplTest {
         Assert.assertEquals(new Response<>(1, "Get Left Ticket of Internal Success", 1), result);
     }
 
+    @Test
+    public void testGetLeftTicketsOfIntervals() {
+        Date travelDate = new Date();
+        Route route = new Route();
+        route.setStations(Arrays.asList("station_a", "station_b", "station_c"));
+        TrainType trainType = new TrainType();
+        trainType.setConfortClass(10);
+        trainType.setEconomyClass(20);
+        CompactSoldTickets soldTickets = compact(1, "station_a", "station_b");
+        Config config = new Config();
+        config.setValue("0");
+
+        stub("http://ts-travel-service:12346/api/v1/travelservice/routes/", new Response<>(1, null, route));
+        stub("http://ts-travel2-service:16346/api/v1/travel2service/routes/", new Response<>(1, null, route));
+        stub("http://ts-travel-service:12346/api/v1/travelservice/train_types/", new Response<>(1, null, trainType));
+        stub("http://ts-travel2-service:16346/api/v1/travel2service/train_types/", new Response<>(1, null, trainType));
+        stub("http://ts-order-service:12031/api/v1/orderservice/order/tickets/compact", new Response<>(1, null, soldTickets));
+        stub("http://ts-order-other-service:12032/api/v1/orderOtherService/orderOther/tickets", new Response<>());
+        stub("http://ts-config-service:15679/api/v1/configservice/configs/", new Response<>(1, null, config));
+
+        Response result = seatServiceImpl.getLeftTicketsOfIntervals(Arrays.asList(
+                seat("G1234", travelDate, SeatClass.FIRSTCLASS.getCode()),
+                seat("G1234", travelDate, SeatClass.SECONDCLASS.getCode()),
+                seat("K1234", travelDate, SeatClass.SECONDCLASS.getCode())), headers);
+        Assert.assertEquals(new Response<>(1, "Get Left Tickets of Intervals Success", Arrays.asList(9, 19, 20)), result);
+
+        // both seat classes of G1234 share the route, train type and sold tickets of the train
+        verifyCalled("http://ts-travel-service:12346/api/v1/travelservice/routes/", 1);
+        verifyCalled("http://ts-travel-service:12346/api/v1/travelservice/train_types/", 1);
+        verifyCalled("http://ts-order-service:12031/api/v1/orderservice/order/tickets/compact", 1);
+        verifyCalled("http://ts-order-other-service:12032/api/v1/orderOtherService/orderOther/tickets", 1);
+        verifyCalled("http://ts-config-service:15679/api/v1/configservice/configs/", 1);
+    }
+
+    @Test
+    public void testPostedTripEventChangesTheView() throws Exception {
+        Date travelDate = new Date();
+        Route route = new Route();
+        route.setStations(Arrays.asList("station_a", "station_b", "station_c"));
+        TrainType trainType = new TrainType();
+        trainType.setConfortClass(10);
+        Config config = new Config();
+        config.setValue("0");
+        stub("http://ts-travel-service:12346/api/v1/travelservice/routes/", new Response<>(1, null, route));
+        stub("http://ts-travel-service:12346/api/v1/travelservice/train_types/", new Response<>(1, null, trainType));
+        stub("http://ts-order-service:12031/api/v1/orderservice/order/tickets/compact",
+                new Response<>(1, null, compact(1, "station_a", "station_b")));
+        stub("http://ts-config-service:15679/api/v1/configservice/configs/", new Response<>(1, null, config));
+        List<Seat> firstClass = Collections.singletonList(seat("G1234", travelDate, SeatClass.FIRSTCLASS.getCode()));
+        Assert.assertEquals(Collections.singletonList(9), seatServiceImpl.getLeftTicketsOfIntervals(firstClass, headers).getData());
+
+        Ticket ticket = new Ticket();
+        ticket.setSeatNo(2);
+        ticket.setStartStation("station_a");
+        ticket.setDestStation("station_c");
+        SoldTicketChange change = new SoldTicketChange();
+        change.setTrainNumber("G1234");
+        change.setTravelDate(travelDate);
+        change.setTicket(ticket);
+        change.setCount(1);
+        ObjectMapper mapper = new ObjectMapper();
+        InvalidationEvent posted = mapper.readValue(mapper.writeValueAsString(new InvalidationEvent(CacheTags.TRIP,
+                CacheTags.tripDateKey("G1234", travelDate), Collections.singletonList(change))), InvalidationEvent.class);
+        seatServiceImpl.applySoldTicketChanges(posted);
+
+        Assert.assertEquals(Collections.singletonList(8), seatServiceImpl.getLeftTicketsOfIntervals(firstClass, headers).getData());
+        // the view took the change, the sold tickets were not loaded again
+        verifyCalled("http://ts-order-service:12031/api/v1/orderservice/order/tickets/compact", 1);
+    }
+
+    @Test
+    public void testRouteEventDropsTheRoutesOfEveryTrain() {
+        Date travelDate = new Date();
+        Route route = new Route();
+        route.setStations(Arrays.asList("station_a", "station_b", "station_c"));
+        TrainType trainType = new TrainType();
+        trainType.setConfortClass(10);
+        Config config = new Config();
+        config.setValue("0");
+        stub("http://ts-travel-service:12346/api/v1/travelservice/routes/", new Response<>(1, null, route));
+        stub("http://ts-travel-service:12346/api/v1/travelservice/train_types/", new Response<>(1, null, trainType));
+        stub("http://ts-order-service:12031/api/v1/orderservice/order/tickets/compact", new Response<>(1, null, compact()));
+        stub("http://ts-config-service:15679/api/v1/configservice/configs/", new Response<>(1, null, config));
+        List<Seat> firstClass = Collections.singletonList(seat("D1345", travelDate, SeatClass.FIRSTCLASS.getCode()));
+
+        seatServiceImpl.listen();
+        try {
+            seatServiceImpl.getLeftTicketsOfIntervals(firstClass, headers);
+            new InvalidationPublisher(new LocalInvalidationTransport()).publish(CacheTags.ROUTE, "route_of_d1345");
+            seatServiceImpl.getLeftTicketsOfIntervals(firstClass, headers);
+        } finally {
+            seatServiceImpl.stopListening();
+        }
+        // the route event does not name the train, its route was loaded again while its train type was kept
+        verifyCalled("http://ts-travel-service:12346/api/v1/travelservice/routes/", 2);
+        verifyCalled("http://ts-travel-service:12346/api/v1/travelservice/train_types/", 1);
+    }
+
+    private Seat seat(String trainNumber, Date travelDate, int seatType) {
+        Seat seat = new Seat();
+        seat.setTrainNumber(trainNumber);
+        seat.setTravelDate(travelDate);
+        seat.setSeatType(seatType);
+        seat.setStartStation("station_b");
+        seat.setDestStation("station_c");
+        return seat;
+    }
+
+    /**
+     * Sold tickets as ts-order-service encodes them, given as seat number, start and dest station
+     */
+    private static CompactSoldTickets compact(Object... tickets) {
+        List<String> stations = new ArrayList<>();
+        int count = tickets.length / 3;
+        int[] seatNumbers = new int[count];
+        int[] startStations = new int[count];
+        int[] destStations = new int[count];
+        for (int i = 0; i < count; i++) {
+            seatNumbers[i] = (Integer) tickets[3 * i];
+            startStations[i] = positionOf((String) tickets[3 * i + 1], stations);
+            destStations[i] = positionOf((String) tickets[3 * i + 2], stations);
+        }
+        CompactSoldTickets compactSoldTickets = new CompactSoldTickets();
+        compactSoldTickets.setStations(stations);
+        compactSoldTickets.setSeatNumbers(seatNumbers);
+        compactSoldTickets.setStartStations(startStations);
+        compactSoldTickets.setDestStations(destStations);
+        return compactSoldTickets;
+    }
+
+    private static int positionOf(String station, List<String> stations) {
+        if (!stations.contains(station)) {
+            stations.add(station);
+        }
+        return stations.indexOf(station);
+    }
+
+    private void stub(String urlPrefix, Response response) {
+        Mockito.when(restTemplate.exchange(
+                Mockito.startsWith(urlPrefix),
+                Mockito.any(HttpMethod.class),
+                Mockito.any(HttpEntity.class),
+                Mockito.any(ParameterizedTypeReference.class)))
+                .thenReturn(new ResponseEntity<>(response, HttpStatus.OK));
+    }
+
+    private void verifyCalled(String urlPrefix, int times) {
+        Mockito.verify(restTemplate, Mockito.times(times)).exchange(
+                Mockito.startsWith(urlPrefix),
+                Mockito.any(HttpMethod.class),
+                Mockito.any(HttpEntity.class),
+                Mockito.any(ParameterizedTypeReference.class));
+    }
+
 }
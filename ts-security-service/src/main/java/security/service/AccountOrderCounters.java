@@ -0,0 +1,197 @@
+package security.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import security.entity.AccountOrderChange;
+import security.entity.OrderSecurity;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Order counts of each account, kept in memory so that the security check does not
+ * ask ts-order-service and ts-order-other-service to scan the account's orders.
+ *
+ * An entry is built from the order services on the first check of an account and then
+ * follows the changes they send after every order write. The orders of the last hour
+ * are kept in a ring of one minute buckets. Every verifyInterval-th check of an entry
+ * rebuilds it, which repairs a change that got lost.
+ *
+ * @author fdse
+ */
+public class AccountOrderCounters {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccountOrderCounters.class);
+
+    static final long BUCKET_MILLIS = 60 * 1000L;
+
+    // an hour of buckets plus the one the hour starts in, an order counts up to a minute longer, never shorter
+    static final int BUCKETS = 61;
+
+    private final int maxEntries;
+
+    private final int verifyInterval;
+
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+
+    private final AtomicLong loadCount = new AtomicLong();
+
+    private final AtomicLong divergeCount = new AtomicLong();
+
+    public AccountOrderCounters(int maxEntries, int verifyInterval) {
+        if (maxEntries <= 0 || verifyInterval <= 0) {
+            throw new IllegalArgumentException("maxEntries and verifyInterval must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.verifyInterval = verifyInterval;
+    }
+
+    /**
+     * @param loader answers the orders of the account in both order services, with the
+     *               bought dates of the orders of the last hour
+     */
+    public OrderSecurity get(String accountId, Supplier<OrderSecurity> loader) {
+        return get(accountId, loader, System.currentTimeMillis());
+    }
+
+    OrderSecurity get(String accountId, Supplier<OrderSecurity> loader, long now) {
+        Slot slot = slots.computeIfAbsent(accountId, k -> new Slot());
+        long seenChanges;
+        synchronized (slot) {
+            if (slot.counts != null && ++slot.reads % verifyInterval != 0) {
+                return slot.counts.toOrderSecurity(now);
+            }
+            seenChanges = slot.changes;
+        }
+
+        // first check or sampled verification, rebuilt from the order services
+        Counts loaded = Counts.of(loader.get(), now);
+        synchronized (slot) {
+            loadCount.incrementAndGet();
+            // a change that arrived meanwhile may or may not be part of the loaded orders,
+            // the entry then stays as it is and the next check loads again
+            if (slot.changes == seenChanges) {
+                if (slot.counts != null && !slot.counts.toOrderSecurity(now).equals(loaded.toOrderSecurity(now))) {
+                    divergeCount.incrementAndGet();
+                    AccountOrderCounters.LOGGER.warn("[AccountOrderCounters] diverged, account: {}, view: {}, actual: {}",
+                            accountId, slot.counts.toOrderSecurity(now), loaded.toOrderSecurity(now));
+                }
+                slot.counts = loaded;
+            }
+        }
+        evictIfFull();
+        return loaded.toOrderSecurity(now);
+    }
+
+    public void apply(AccountOrderChange change) {
+        Slot slot = slots.get(change.getAccountId());
+        if (slot == null) {
+            // not checked yet, the first check loads the orders including this change
+            return;
+        }
+        synchronized (slot) {
+            slot.changes++;
+            if (slot.counts != null) {
+                slot.counts.apply(change, System.currentTimeMillis());
+            }
+        }
+    }
+
+    public int size() {
+        return slots.size();
+    }
+
+    public long getLoadCount() {
+        return loadCount.get();
+    }
+
+    public long getDivergeCount() {
+        return divergeCount.get();
+    }
+
+    private void evictIfFull() {
+        // any entry can go, it is loaded again on its next check
+        Iterator<String> keys = slots.keySet().iterator();
+        while (slots.size() > maxEntries && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    private static final class Slot {
+
+        private long changes = 0;
+
+        private long reads = 0;
+
+        private Counts counts;
+    }
+
+    /**
+     * Orders of one account: a ring of per minute counts for the last hour and the number
+     * of valid orders, guarded by the slot
+     */
+    static final class Counts {
+
+        // minute (epoch millis / BUCKET_MILLIS) each bucket currently counts
+        private final long[] minutes = new long[BUCKETS];
+
+        private final int[] orders = new int[BUCKETS];
+
+        private int validOrders;
+
+        static Counts of(OrderSecurity orderSecurity, long now) {
+            Counts counts = new Counts();
+            if (orderSecurity == null) {
+                return counts;
+            }
+            counts.validOrders = orderSecurity.getOrderNumOfValidOrder();
+            if (orderSecurity.getBoughtDatesInLastOneHour() != null) {
+                for (Date boughtDate : orderSecurity.getBoughtDatesInLastOneHour()) {
+                    counts.add(boughtDate, 1, now);
+                }
+            } else {
+                // an order service that only answers the count, the orders count from now on
+                counts.add(new Date(now), orderSecurity.getOrderNumInLastOneHour(), now);
+            }
+            return counts;
+        }
+
+        void apply(AccountOrderChange change, long now) {
+            add(change.getBoughtDate(), change.getCount(), now);
+            if (change.isValid()) {
+                validOrders = Math.max(0, validOrders + change.getCount());
+            }
+        }
+
+        OrderSecurity toOrderSecurity(long now) {
+            long current = now / BUCKET_MILLIS;
+            int inLastHour = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                if (minutes[i] > current - BUCKETS) {
+                    inLastHour += orders[i];
+                }
+            }
+            return new OrderSecurity(inLastHour, validOrders);
+        }
+
+        private void add(Date boughtDate, int count, long now) {
+            long current = now / BUCKET_MILLIS;
+            // an order bought "in the future" by a skewed clock counts from now
+            long minute = boughtDate == null ? current : Math.min(boughtDate.getTime() / BUCKET_MILLIS, current);
+            if (minute <= current - BUCKETS) {
+                return;
+            }
+            int bucket = (int) (minute % BUCKETS);
+            if (minutes[bucket] != minute) {
+                minutes[bucket] = minute;
+                orders[bucket] = 0;
+            }
+            orders[bucket] = Math.max(0, orders[bucket] + count);
+        }
+    }
+}
@@ -1,5 +1,11 @@
 package security.service;
 
+import edu.fudan.common.invalidation.InvalidationBus;
+import edu.fudan.common.invalidation.InvalidationEvent;
+import edu.fudan.common.invalidation.InvalidationListener;
+import edu.fudan.common.invalidation.InvalidationPublisher;
+import edu.fudan.common.util.CacheTags;
+import edu.fudan.common.util.ConsistencyCheckedCache;
 import edu.fudan.common.util.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,10 +20,14 @@ import org.springframework.web.client.RestTemplate;
 import security.entity.*;
 import security.repository.SecurityRepository;
 
-
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
+import java.util.function.BiFunction;
 
 /**
  * @author fdse
@@ -31,10 +41,28 @@ public class SecurityServiceImpl implements SecurityService {
     @Autowired
     RestTemplate restTemplate;
 
+    @Autowired
+    private InvalidationPublisher invalidationPublisher;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(SecurityServiceImpl.class);
 
+    // every 100th check of an account recounts its orders in the order services
+    private static final int COUNTS_VERIFY_INTERVAL = 100;
+
     String success = "Success";
 
+    private final BiFunction<String, HttpHeaders, SecurityConfig> securityConfigQuery = (name, headers) ->
+            securityRepository.findByName(name);
+
+    // configs are changed through this service, which publishes every change
+    private final ConsistencyCheckedCache<String, HttpHeaders, SecurityConfig> securityConfigCache = new ConsistencyCheckedCache<String, HttpHeaders, SecurityConfig>(
+            "securityConfigCache", 10, false, securityConfigQuery)
+            .withTags(name -> Collections.singletonList(CacheTags.securityConfig(name)));
+
+    private AccountOrderCounters accountOrderCounters = new AccountOrderCounters(10000, COUNTS_VERIFY_INTERVAL);
+
+    private final InvalidationListener orderChangeListener = this::applyOrderChanges;
+
     @Override
     public Response findAllSecurityConfig(HttpHeaders headers) {
         ArrayList<SecurityConfig> securityConfigs = securityRepository.findAll();
@@ -56,6 +84,7 @@ public class SecurityServiceImpl implements SecurityService {
             config.setValue(info.getValue());
             config.setDescription(info.getDescription());
             securityRepository.save(config);
+            invalidationPublisher.publish(CacheTags.SECURITY_CONFIG, config.getName());
             return new Response<>(1, success, config);
         }
     }
@@ -66,17 +95,24 @@ public class SecurityServiceImpl implements SecurityService {
         if (sc == null) {
             return new Response<>(0, "Security Config Not Exist", null);
         } else {
+            String oldName = sc.getName();
             sc.setName(info.getName());
             sc.setValue(info.getValue());
             sc.setDescription(info.getDescription());
             securityRepository.save(sc);
+            invalidationPublisher.publish(CacheTags.SECURITY_CONFIG, oldName);
+            invalidationPublisher.publish(CacheTags.SECURITY_CONFIG, sc.getName());
             return new Response<>(1, success, sc);
         }
     }
 
     @Override
     public Response deleteSecurityConfig(String id, HttpHeaders headers) {
+        SecurityConfig deleted = securityRepository.findById(UUID.fromString(id));
         securityRepository.deleteById(UUID.fromString(id));
+        if (deleted != null) {
+            invalidationPublisher.publish(CacheTags.SECURITY_CONFIG, deleted.getName());
+        }
         SecurityConfig sc = securityRepository.findById(UUID.fromString(id));
         if (sc == null) {
             return new Response<>(1, success, id);
@@ -89,14 +125,13 @@ public class SecurityServiceImpl implements SecurityService {
     public Response check(String accountId, HttpHeaders headers) {
         //1.Get the orders in the past one hour and the total effective votes
         SecurityServiceImpl.LOGGER.info("[Security Service][Get Order Num Info]");
-        OrderSecurity orderResult = getSecurityOrderInfoFromOrder(new Date(), accountId, headers);
-        OrderSecurity orderOtherResult = getSecurityOrderOtherInfoFromOrder(new Date(), accountId, headers);
-        int orderInOneHour = orderOtherResult.getOrderNumInLastOneHour() + orderResult.getOrderNumInLastOneHour();
-        int totalValidOrder = orderOtherResult.getOrderNumOfValidOrder() + orderResult.getOrderNumOfValidOrder();
+        OrderSecurity counts = accountOrderCounters.get(accountId, () -> getOrderCounts(accountId, headers));
+        int orderInOneHour = counts.getOrderNumInLastOneHour();
+        int totalValidOrder = counts.getOrderNumOfValidOrder();
         //2. get critical configuration information
         SecurityServiceImpl.LOGGER.info("[Security Service][Get Security Config Info]");
-        SecurityConfig configMaxInHour = securityRepository.findByName("max_order_1_hour");
-        SecurityConfig configMaxNotUse = securityRepository.findByName("max_order_not_use");
+        SecurityConfig configMaxInHour = securityConfigCache.getOrInsert("0", "max_order_1_hour", headers);
+        SecurityConfig configMaxNotUse = securityConfigCache.getOrInsert("0", "max_order_not_use", headers);
         SecurityServiceImpl.LOGGER.info("[Security Service] Max In One Hour: {}  Max Not Use: {}", configMaxInHour.getValue(), configMaxNotUse.getValue());
         int oneHourLine = Integer.parseInt(configMaxInHour.getValue());
         int totalValidLine = Integer.parseInt(configMaxNotUse.getValue());
@@ -107,6 +142,46 @@ public class SecurityServiceImpl implements SecurityService {
         }
     }
 
+    /**
+     * ts-order-service and ts-order-other-service publish the order changes of an account after every write
+     */
+    @PostConstruct
+    void listenOrderChanges() {
+        InvalidationBus.listen(CacheTags.ACCOUNT_ORDERS, orderChangeListener);
+    }
+
+    @PreDestroy
+    void stopListening() {
+        InvalidationBus.unlisten(CacheTags.ACCOUNT_ORDERS, orderChangeListener);
+    }
+
+    void applyOrderChanges(InvalidationEvent event) {
+        List<AccountOrderChange> changes = event.changesAs(AccountOrderChange.class);
+        for (AccountOrderChange change : changes) {
+            accountOrderCounters.apply(change);
+        }
+        SecurityServiceImpl.LOGGER.debug("[Security Service][Apply Order Changes] {} changes of {} applied",
+                changes.size(), event.getKey());
+    }
+
+    /**
+     * Counts of the account in both order services, only asked on the first check of an
+     * account and on the sampled verification of its counts
+     */
+    private OrderSecurity getOrderCounts(String accountId, HttpHeaders headers) {
+        OrderSecurity orderResult = getSecurityOrderInfoFromOrder(new Date(), accountId, headers);
+        OrderSecurity orderOtherResult = getSecurityOrderOtherInfoFromOrder(new Date(), accountId, headers);
+        OrderSecurity counts = new OrderSecurity(
+                orderOtherResult.getOrderNumInLastOneHour() + orderResult.getOrderNumInLastOneHour(),
+                orderOtherResult.getOrderNumOfValidOrder() + orderResult.getOrderNumOfValidOrder());
+        if (orderResult.getBoughtDatesInLastOneHour() != null && orderOtherResult.getBoughtDatesInLastOneHour() != null) {
+            List<Date> boughtDates = new ArrayList<>(orderResult.getBoughtDatesInLastOneHour());
+            boughtDates.addAll(orderOtherResult.getBoughtDatesInLastOneHour());
+            counts.setBoughtDatesInLastOneHour(boughtDates);
+        }
+        return counts;
+    }
+
     private OrderSecurity getSecurityOrderInfoFromOrder(Date checkDate, String accountId, HttpHeaders headers) {
         SecurityServiceImpl.LOGGER.info("[Security Service][Get Order Info For Security] Getting....");
         HttpEntity requestEntity = new HttpEntity(headers);
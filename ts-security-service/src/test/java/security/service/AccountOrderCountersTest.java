@@ -0,0 +1,105 @@
+package security.service;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import security.entity.AccountOrderChange;
+import security.entity.OrderSecurity;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(JUnit4.class)
+public class AccountOrderCountersTest {
+
+    private static final long MINUTE = AccountOrderCounters.BUCKET_MILLIS;
+
+    private AccountOrderCounters counters;
+
+    private long now = System.currentTimeMillis();
+
+    private List<Date> boughtDates = new ArrayList<>();
+
+    private int validOrders = 0;
+
+    private AtomicInteger loads = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        counters = new AccountOrderCounters(10, 100);
+        boughtDates.add(new Date(now - 10 * MINUTE));
+        boughtDates.add(new Date(now - 50 * MINUTE));
+        validOrders = 2;
+    }
+
+    @Test
+    public void testOrdersLeaveTheWindowAfterAnHour() {
+        Assert.assertEquals(new OrderSecurity(2, 2), read(now));
+        // the older order is out of the hour, the newer one still in
+        Assert.assertEquals(new OrderSecurity(1, 2), read(now + 12 * MINUTE));
+        Assert.assertEquals(new OrderSecurity(0, 2), read(now + 52 * MINUTE));
+        Assert.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testChangesUpdateWithoutReload() {
+        read(now);
+        counters.apply(new AccountOrderChange("account_id", new Date(now), true, 1));
+        Assert.assertEquals(new OrderSecurity(3, 3), read(now));
+        // the order was paid and used, it is no longer valid
+        counters.apply(new AccountOrderChange("account_id", new Date(now), true, -1));
+        counters.apply(new AccountOrderChange("account_id", new Date(now), false, 1));
+        Assert.assertEquals(new OrderSecurity(3, 2), read(now));
+        Assert.assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testChangeOfUncheckedAccountIsSkipped() {
+        counters.apply(new AccountOrderChange("account_id", new Date(now), true, 1));
+        Assert.assertEquals(0, counters.size());
+    }
+
+    @Test
+    public void testSampledReloadRepairsLostChange() {
+        counters = new AccountOrderCounters(10, 3);
+        read(now);
+        // ts-order-service created an order but the change never arrived
+        boughtDates.add(new Date(now));
+        validOrders++;
+        Assert.assertEquals(new OrderSecurity(2, 2), read(now));
+        Assert.assertEquals(new OrderSecurity(2, 2), read(now));
+        // the third check is reloaded
+        Assert.assertEquals(new OrderSecurity(3, 3), read(now));
+        Assert.assertEquals(2, counters.getLoadCount());
+        Assert.assertEquals(1, counters.getDivergeCount());
+    }
+
+    @Test
+    public void testCountsWithoutBoughtDatesStartNow() {
+        OrderSecurity counts = counters.get("account_id", () -> new OrderSecurity(4, 5), now);
+        Assert.assertEquals(new OrderSecurity(4, 5), counts);
+        Assert.assertEquals(new OrderSecurity(4, 5), counters.get("account_id", () -> null, now + 59 * MINUTE));
+        Assert.assertEquals(new OrderSecurity(0, 5), counters.get("account_id", () -> null, now + 62 * MINUTE));
+    }
+
+    @Test
+    public void testEvictsBeyondMaxEntries() {
+        for (int i = 0; i < 20; i++) {
+            counters.get("account_" + i, this::load, now);
+        }
+        Assert.assertEquals(10, counters.size());
+    }
+
+    private OrderSecurity read(long at) {
+        return counters.get("account_id", this::load, at);
+    }
+
+    private OrderSecurity load() {
+        loads.incrementAndGet();
+        return new OrderSecurity(boughtDates.size(), validOrders, new ArrayList<>(boughtDates));
+    }
+}
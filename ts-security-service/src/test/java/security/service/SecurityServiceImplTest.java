@@ -1,5 +1,8 @@
 package security.service;
 
+import edu.fudan.common.invalidation.InvalidationEvent;
+import edu.fudan.common.invalidation.InvalidationPublisher;
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.Response;
 import org.junit.Assert;
 import org.junit.Before;
@@ -13,11 +16,14 @@ import org.mockito.MockitoAnnotations;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.*;
 import org.springframework.web.client.RestTemplate;
+import security.entity.AccountOrderChange;
 import security.entity.OrderSecurity;
 import security.entity.SecurityConfig;
 import security.repository.SecurityRepository;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.UUID;
 
 @RunWith(JUnit4.class)
@@ -32,6 +38,9 @@ public class SecurityServiceImplTest {
     @Mock
     private RestTemplate restTemplate;
 
+    @Mock
+    private InvalidationPublisher invalidationPublisher;
+
     private HttpHeaders headers = new HttpHeaders();
 
     @Before
@@ -89,6 +98,18 @@ public class SecurityServiceImplTest {
         Assert.assertEquals(new Response<>(1, "Success", sc), result);
     }
 
+    @Test
+    public void testModifySecurityConfigPublishesBothNames() {
+        SecurityConfig sc = new SecurityConfig();
+        sc.setName("max_order_1_hour");
+        SecurityConfig info = new SecurityConfig();
+        info.setName("max_order_not_use");
+        Mockito.when(securityRepository.findById(Mockito.any(UUID.class))).thenReturn(sc);
+        securityServiceImpl.modifySecurityConfig(info, headers);
+        Mockito.verify(invalidationPublisher).publish(CacheTags.SECURITY_CONFIG, "max_order_1_hour");
+        Mockito.verify(invalidationPublisher).publish(CacheTags.SECURITY_CONFIG, "max_order_not_use");
+    }
+
     @Test
     public void testDeleteSecurityConfig1() {
         UUID id = UUID.randomUUID();
@@ -128,4 +149,34 @@ public class SecurityServiceImplTest {
         Assert.assertEquals(new Response<>(1, "Success.r", "account_id"), result);
     }
 
+    @Test
+    public void testCheckFollowsOrderChangesWithoutAskingOrderServices() {
+        OrderSecurity orderSecurity = new OrderSecurity(1, 1, new ArrayList<>(Collections.singletonList(new Date())));
+        Response<OrderSecurity> response1 = new Response<>(null, null, orderSecurity);
+        ResponseEntity<Response<OrderSecurity>> re1 = new ResponseEntity<>(response1, HttpStatus.OK);
+        Mockito.when(restTemplate.exchange(
+                Mockito.anyString(),
+                Mockito.any(HttpMethod.class),
+                Mockito.any(HttpEntity.class),
+                Mockito.any(ParameterizedTypeReference.class)))
+                .thenReturn(re1);
+        SecurityConfig securityConfig = new SecurityConfig();
+        securityConfig.setValue("2");
+        Mockito.when(securityRepository.findByName(Mockito.anyString())).thenReturn(securityConfig);
+
+        Assert.assertEquals(1, (int) securityServiceImpl.check("account_changes", headers).getStatus());
+        // a third valid order within the hour
+        securityServiceImpl.applyOrderChanges(new InvalidationEvent(CacheTags.ACCOUNT_ORDERS, "account_changes",
+                Collections.singletonList(new AccountOrderChange("account_changes", new Date(), true, 1))));
+        Response result = securityServiceImpl.check("account_changes", headers);
+        Assert.assertEquals(new Response<>(0, "Too much order in last one hour or too much valid order", "account_changes"), result);
+        // both order services were asked once, the configs were read once
+        Mockito.verify(restTemplate, Mockito.times(2)).exchange(
+                Mockito.anyString(),
+                Mockito.any(HttpMethod.class),
+                Mockito.any(HttpEntity.class),
+                Mockito.any(ParameterizedTypeReference.class));
+        Mockito.verify(securityRepository, Mockito.times(2)).findByName(Mockito.anyString());
+    }
+
 }
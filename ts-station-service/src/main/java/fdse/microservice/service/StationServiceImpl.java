@@ -1,5 +1,7 @@
 package fdse.microservice.service;
 
+import edu.fudan.common.invalidation.InvalidationPublisher;
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.Response;
 import fdse.microservice.entity.*;
 import fdse.microservice.repository.StationRepository;
@@ -17,6 +19,9 @@ public class StationServiceImpl implements StationService {
     @Autowired
     private StationRepository repository;
 
+    @Autowired
+    private InvalidationPublisher invalidationPublisher;
+
     String success = "Success";
 
     @Override
@@ -24,6 +29,8 @@ public class StationServiceImpl implements StationService {
         if (repository.findById(station.getId()) == null) {
             station.setStayTime(station.getStayTime());
             repository.save(station);
+            // consumers also cache that a name does not exist
+            invalidationPublisher.publish(CacheTags.STATION, station.getName());
             return new Response<>(1, "Create success", station);
         }
         return new Response<>(0, "Already exists", station);
@@ -42,12 +49,15 @@ public class StationServiceImpl implements StationService {
     @Override
     public Response update(Station info, HttpHeaders headers) {
 
-        if (repository.findById(info.getId()) == null) {
+        Station oldStation = repository.findById(info.getId());
+        if (oldStation == null) {
             return new Response<>(0, "Station not exist", null);
         } else {
             Station station = new Station(info.getId(), info.getName());
             station.setStayTime(info.getStayTime());
             repository.save(station);
+            invalidationPublisher.publish(CacheTags.STATION, oldStation.getName());
+            invalidationPublisher.publish(CacheTags.STATION, station.getName());
             return new Response<>(1, "Update success", station);
         }
     }
@@ -55,9 +65,11 @@ public class StationServiceImpl implements StationService {
     @Override
     public Response delete(Station info, HttpHeaders headers) {
 
-        if (repository.findById(info.getId()) != null) {
+        Station oldStation = repository.findById(info.getId());
+        if (oldStation != null) {
             Station station = new Station(info.getId(), info.getName());
             repository.delete(station);
+            invalidationPublisher.publish(CacheTags.STATION, oldStation.getName());
             return new Response<>(1, "Delete success", station);
         }
         return new Response<>(0, "Station not exist", null);
@@ -1,5 +1,6 @@
 package fdse.microservice.service;
 
+import edu.fudan.common.invalidation.InvalidationPublisher;
 import edu.fudan.common.util.Response;
 import fdse.microservice.entity.Station;
 import fdse.microservice.repository.StationRepository;
@@ -26,6 +27,9 @@ public class StationServiceImplTest {
     @Mock
     private StationRepository repository;
 
+    @Mock
+    private InvalidationPublisher invalidationPublisher;
+
     private HttpHeaders headers = new HttpHeaders();
 
     @Before
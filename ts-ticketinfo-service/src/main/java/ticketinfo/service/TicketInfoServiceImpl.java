@@ -1,5 +1,6 @@
 package ticketinfo.service;
 
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.Response;
 import edu.fudan.common.util.ConsistencyCheckedCache;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -11,6 +12,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 import ticketinfo.entity.Travel;
 
+import java.util.Collections;
 import java.util.function.BiFunction;
 
 /**
@@ -44,26 +46,24 @@ public class TicketInfoServiceImpl implements TicketInfoService {
     };
 
     private ConsistencyCheckedCache<Travel, HttpHeaders, Response> travelCache = new ConsistencyCheckedCache<Travel, HttpHeaders, Response>(
-            "travelCache", 100, false, travelQuery);
+            "travelCache", 100, false, travelQuery)
+            .withTags(info -> CacheTags.travel(String.valueOf(info.getTrip().getTripId()),
+                    info.getTrip().getRouteId(), info.getTrip().getTrainTypeId(),
+                    info.getStartingPlace(), info.getEndPlace()));
 
     private ConsistencyCheckedCache<String, HttpHeaders, Response> stationCache = new ConsistencyCheckedCache<String, HttpHeaders, Response>(
-            "stationCache", 100, false, stationQuery);
+            "stationCache", 100, false, stationQuery)
+            .withTags(name -> Collections.singletonList(CacheTags.station(name)));
 
     @Override
     public Response queryForTravel(Travel info, HttpHeaders headers) {
         String id = "0";
-        if (headers.containsKey("invalidation_id")) {
-            id = headers.getFirst("invalidation_id");
-        }
         return travelCache.getOrInsert(id, info, headers);
     }
 
     @Override
     public Response queryForStationId(String name, HttpHeaders headers) {
         String id = "0";
-        if (headers.containsKey("invalidation_id")) {
-            id = headers.getFirst("invalidation_id");
-        }
         return stationCache.getOrInsert(id, name, headers);
     }
 }
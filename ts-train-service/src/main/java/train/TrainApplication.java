@@ -2,9 +2,12 @@ package train;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.EnableAspectJAutoProxy;
 import org.springframework.integration.annotation.IntegrationComponentScan;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.web.filter.ShallowEtagHeaderFilter;
 import springfox.documentation.swagger2.annotations.EnableSwagger2;
 
 @SpringBootApplication
@@ -18,4 +21,13 @@ public class TrainApplication {
         SpringApplication.run(TrainApplication.class, args);
     }
 
+    /**
+     * ETag on train type reads, so that caching clients can revalidate with If-None-Match
+     */
+    @Bean
+    public FilterRegistrationBean etagFilter() {
+        FilterRegistrationBean registration = new FilterRegistrationBean(new ShallowEtagHeaderFilter());
+        registration.addUrlPatterns("/api/v1/trainservice/trains/*");
+        return registration;
+    }
 }
@@ -1,5 +1,7 @@
 package train.service;
 
+import edu.fudan.common.invalidation.InvalidationPublisher;
+import edu.fudan.common.util.CacheTags;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Service;
@@ -14,6 +16,9 @@ public class TrainServiceImpl implements TrainService {
     @Autowired
     private TrainTypeRepository repository;
 
+    @Autowired
+    private InvalidationPublisher invalidationPublisher;
+
 
     @Override
     public boolean create(TrainType trainType, HttpHeaders headers) {
@@ -22,6 +27,7 @@ public class TrainServiceImpl implements TrainService {
             TrainType type = new TrainType(trainType.getId(), trainType.getEconomyClass(), trainType.getConfortClass());
             type.setAverageSpeed(trainType.getAverageSpeed());
             repository.save(type);
+            invalidationPublisher.publish(CacheTags.TRAIN_TYPE, type.getId());
             result = true;
         }
         return result;
@@ -43,6 +49,7 @@ public class TrainServiceImpl implements TrainService {
             TrainType type = new TrainType(trainType.getId(), trainType.getEconomyClass(), trainType.getConfortClass());
             type.setAverageSpeed(trainType.getAverageSpeed());
             repository.save(type);
+            invalidationPublisher.publish(CacheTags.TRAIN_TYPE, type.getId());
             result = true;
         }
         return result;
@@ -53,6 +60,7 @@ public class TrainServiceImpl implements TrainService {
         boolean result = false;
         if (repository.findById(id) != null) {
             repository.deleteById(id);
+            invalidationPublisher.publish(CacheTags.TRAIN_TYPE, id);
             result = true;
         }
         return result;
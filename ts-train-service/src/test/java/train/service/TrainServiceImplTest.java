@@ -1,5 +1,6 @@
 package train.service;
 
+import edu.fudan.common.invalidation.InvalidationPublisher;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -22,6 +23,9 @@ public class TrainServiceImplTest {
     @Mock
     private TrainTypeRepository repository;
 
+    @Mock
+    private InvalidationPublisher invalidationPublisher;
+
     private HttpHeaders headers = new HttpHeaders();
 
     @Before
@@ -15,7 +15,9 @@ import travelplan.entity.*;
 
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author fdse
@@ -79,6 +81,7 @@ public class TravelPlanServiceImpl implements TravelPlanService {
         ArrayList<RoutePlanResultUnit> routePlanResultUnits = getRoutePlanResultCheapest(routePlanInfo, headers);
 
         if (!routePlanResultUnits.isEmpty()) {
+            List<Integer> restTickets = getRestTicketNumbers(info.getDepartureTime(), routePlanResultUnits, headers);
             ArrayList<TravelAdvanceResultUnit> lists = new ArrayList<>();
             for (int i = 0; i < routePlanResultUnits.size(); i++) {
                 RoutePlanResultUnit tempUnit = routePlanResultUnits.get(i);
@@ -94,13 +97,8 @@ public class TravelPlanServiceImpl implements TravelPlanService {
                 newUnit.setPriceForSecondClassSeat(tempUnit.getPriceForSecondClassSeat());
                 newUnit.setStartingTime(tempUnit.getStartingTime());
                 newUnit.setEndTime(tempUnit.getEndTime());
-                int first = getRestTicketNumber(info.getDepartureTime(), tempUnit.getTripId(),
-                        tempUnit.getFromStationName(), tempUnit.getToStationName(), SeatClass.FIRSTCLASS.getCode(), headers);
-
-                int second = getRestTicketNumber(info.getDepartureTime(), tempUnit.getTripId(),
-                        tempUnit.getFromStationName(), tempUnit.getToStationName(), SeatClass.SECONDCLASS.getCode(), headers);
-                newUnit.setNumberOfRestTicketFirstClass(first);
-                newUnit.setNumberOfRestTicketSecondClass(second);
+                newUnit.setNumberOfRestTicketFirstClass(restTickets.get(2 * i));
+                newUnit.setNumberOfRestTicketSecondClass(restTickets.get(2 * i + 1));
                 lists.add(newUnit);
             }
 
@@ -122,6 +120,7 @@ public class TravelPlanServiceImpl implements TravelPlanService {
 
         if (!routePlanResultUnits.isEmpty()) {
 
+            List<Integer> restTickets = getRestTicketNumbers(info.getDepartureTime(), routePlanResultUnits, headers);
             ArrayList<TravelAdvanceResultUnit> lists = new ArrayList<>();
             for (int i = 0; i < routePlanResultUnits.size(); i++) {
                 RoutePlanResultUnit tempUnit = routePlanResultUnits.get(i);
@@ -138,13 +137,8 @@ public class TravelPlanServiceImpl implements TravelPlanService {
                 newUnit.setPriceForSecondClassSeat(tempUnit.getPriceForSecondClassSeat());
                 newUnit.setStartingTime(tempUnit.getStartingTime());
                 newUnit.setEndTime(tempUnit.getEndTime());
-                int first = getRestTicketNumber(info.getDepartureTime(), tempUnit.getTripId(),
-                        tempUnit.getFromStationName(), tempUnit.getToStationName(), SeatClass.FIRSTCLASS.getCode(), headers);
-
-                int second = getRestTicketNumber(info.getDepartureTime(), tempUnit.getTripId(),
-                        tempUnit.getFromStationName(), tempUnit.getToStationName(), SeatClass.SECONDCLASS.getCode(), headers);
-                newUnit.setNumberOfRestTicketFirstClass(first);
-                newUnit.setNumberOfRestTicketSecondClass(second);
+                newUnit.setNumberOfRestTicketFirstClass(restTickets.get(2 * i));
+                newUnit.setNumberOfRestTicketSecondClass(restTickets.get(2 * i + 1));
                 lists.add(newUnit);
             }
             return new Response<>(1, success, lists);
@@ -164,6 +158,7 @@ public class TravelPlanServiceImpl implements TravelPlanService {
 
         if (!routePlanResultUnits.isEmpty()) {
 
+            List<Integer> restTickets = getRestTicketNumbers(info.getDepartureTime(), routePlanResultUnits, headers);
             ArrayList<TravelAdvanceResultUnit> lists = new ArrayList<>();
             for (int i = 0; i < routePlanResultUnits.size(); i++) {
                 RoutePlanResultUnit tempUnit = routePlanResultUnits.get(i);
@@ -181,13 +176,8 @@ public class TravelPlanServiceImpl implements TravelPlanService {
                 newUnit.setEndTime(tempUnit.getEndTime());
                 newUnit.setStartingTime(tempUnit.getStartingTime());
 
-                int first = getRestTicketNumber(info.getDepartureTime(), tempUnit.getTripId(),
-                        tempUnit.getFromStationName(), tempUnit.getToStationName(), SeatClass.FIRSTCLASS.getCode(), headers);
-
-                int second = getRestTicketNumber(info.getDepartureTime(), tempUnit.getTripId(),
-                        tempUnit.getFromStationName(), tempUnit.getToStationName(), SeatClass.SECONDCLASS.getCode(), headers);
-                newUnit.setNumberOfRestTicketFirstClass(first);
-                newUnit.setNumberOfRestTicketSecondClass(second);
+                newUnit.setNumberOfRestTicketFirstClass(restTickets.get(2 * i));
+                newUnit.setNumberOfRestTicketSecondClass(restTickets.get(2 * i + 1));
                 lists.add(newUnit);
             }
             return new Response<>(1, success, lists);
@@ -196,28 +186,48 @@ public class TravelPlanServiceImpl implements TravelPlanService {
         }
     }
 
-    private int getRestTicketNumber(Date travelDate, String trainNumber, String startStationName, String endStationName, int seatType, HttpHeaders headers) {
-        Seat seatRequest = new Seat();
+    /**
+     * Left tickets of both seat classes of every unit, counted by ts-seat-service in one request.
+     * The counts of unit i are at 2 * i (first class) and 2 * i + 1 (second class)
+     */
+    private List<Integer> getRestTicketNumbers(Date travelDate, List<RoutePlanResultUnit> units, HttpHeaders headers) {
+        Map<String, String> stationIds = new HashMap<>();
+        List<Seat> seatRequests = new ArrayList<>();
+        for (RoutePlanResultUnit unit : units) {
+            String fromName = unit.getFromStationName();
+            String toName = unit.getToStationName();
+            if (!stationIds.containsKey(fromName)) {
+                stationIds.put(fromName, queryForStationId(fromName, headers));
+            }
+            if (!stationIds.containsKey(toName)) {
+                stationIds.put(toName, queryForStationId(toName, headers));
+            }
+            seatRequests.add(seatRequest(travelDate, unit.getTripId(), stationIds.get(fromName), stationIds.get(toName),
+                    SeatClass.FIRSTCLASS.getCode()));
+            seatRequests.add(seatRequest(travelDate, unit.getTripId(), stationIds.get(fromName), stationIds.get(toName),
+                    SeatClass.SECONDCLASS.getCode()));
+        }
+
+        TravelPlanServiceImpl.LOGGER.info("Seat Requests are: {}", seatRequests.toString());
+        HttpEntity requestEntity = new HttpEntity(seatRequests, headers);
+        ResponseEntity<Response<List<Integer>>> re = restTemplate.exchange(
+                "http://ts-seat-service:18898/api/v1/seatservice/seats/left_tickets/batch",
+                HttpMethod.POST,
+                requestEntity,
+                new ParameterizedTypeReference<Response<List<Integer>>>() {
+                });
 
-        String fromId = queryForStationId(startStationName, headers);
-        String toId = queryForStationId(endStationName, headers);
+        return re.getBody().getData();
+    }
 
+    private Seat seatRequest(Date travelDate, String trainNumber, String fromId, String toId, int seatType) {
+        Seat seatRequest = new Seat();
         seatRequest.setDestStation(toId);
         seatRequest.setStartStation(fromId);
         seatRequest.setTrainNumber(trainNumber);
         seatRequest.setTravelDate(travelDate);
         seatRequest.setSeatType(seatType);
-
-        TravelPlanServiceImpl.LOGGER.info("Seat Request is: {}", seatRequest.toString());
-        HttpEntity requestEntity = new HttpEntity(seatRequest, headers);
-        ResponseEntity<Response<Integer>> re = restTemplate.exchange(
-                "http://ts-seat-service:18898/api/v1/seatservice/seats/left_tickets",
-                HttpMethod.POST,
-                requestEntity,
-                new ParameterizedTypeReference<Response<Integer>>() {
-                });
-
-        return re.getBody().getData();
+        return seatRequest;
     }
 
     private ArrayList<RoutePlanResultUnit> getRoutePlanResultCheapest(RoutePlanInfo info, HttpHeaders headers) {
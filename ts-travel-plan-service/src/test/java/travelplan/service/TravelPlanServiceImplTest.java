@@ -16,6 +16,7 @@ import org.springframework.web.client.RestTemplate;
 import travelplan.entity.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 
@@ -72,18 +73,17 @@ public class TravelPlanServiceImplTest {
         Response<String> response3 = new Response<>(null, null, "");
         ResponseEntity<Response<String>> re3 = new ResponseEntity<>(response3, HttpStatus.OK);
 
-        //response for getRestTicketNumber()
-        Response<Integer> response4 = new Response<>(null, null, 0);
-        ResponseEntity<Response<Integer>> re4 = new ResponseEntity<>(response4, HttpStatus.OK);
+        //response for getRestTicketNumbers()
+        Response<List<Integer>> response4 = new Response<>(null, null, Arrays.asList(0, 0));
+        ResponseEntity<Response<List<Integer>>> re4 = new ResponseEntity<>(response4, HttpStatus.OK);
         Mockito.when(restTemplate.exchange(
                 Mockito.anyString(),
                 Mockito.any(HttpMethod.class),
                 Mockito.any(HttpEntity.class),
                 Mockito.any(ParameterizedTypeReference.class)))
                 .thenReturn(re1)
-                .thenReturn(re2)
                 .thenReturn(re3).thenReturn(re3).thenReturn(re4)
-                .thenReturn(re3).thenReturn(re3).thenReturn(re4);
+                .thenReturn(re2);
 
         Response result = travelPlanServiceImpl.getCheapest(info, headers);
         Assert.assertEquals("Success", result.getMsg());
@@ -108,18 +108,17 @@ public class TravelPlanServiceImplTest {
         Response<String> response3 = new Response<>(null, null, "");
         ResponseEntity<Response<String>> re3 = new ResponseEntity<>(response3, HttpStatus.OK);
 
-        //response for getRestTicketNumber()
-        Response<Integer> response4 = new Response<>(null, null, 0);
-        ResponseEntity<Response<Integer>> re4 = new ResponseEntity<>(response4, HttpStatus.OK);
+        //response for getRestTicketNumbers()
+        Response<List<Integer>> response4 = new Response<>(null, null, Arrays.asList(0, 0));
+        ResponseEntity<Response<List<Integer>>> re4 = new ResponseEntity<>(response4, HttpStatus.OK);
         Mockito.when(restTemplate.exchange(
                 Mockito.anyString(),
                 Mockito.any(HttpMethod.class),
                 Mockito.any(HttpEntity.class),
                 Mockito.any(ParameterizedTypeReference.class)))
                 .thenReturn(re1)
-                .thenReturn(re2)
                 .thenReturn(re3).thenReturn(re3).thenReturn(re4)
-                .thenReturn(re3).thenReturn(re3).thenReturn(re4);
+                .thenReturn(re2);
 
         Response result = travelPlanServiceImpl.getQuickest(info, headers);
         Assert.assertEquals("Success", result.getMsg());
@@ -144,18 +143,17 @@ public class TravelPlanServiceImplTest {
         Response<String> response3 = new Response<>(null, null, "");
         ResponseEntity<Response<String>> re3 = new ResponseEntity<>(response3, HttpStatus.OK);
 
-        //response for getRestTicketNumber()
-        Response<Integer> response4 = new Response<>(null, null, 0);
-        ResponseEntity<Response<Integer>> re4 = new ResponseEntity<>(response4, HttpStatus.OK);
+        //response for getRestTicketNumbers()
+        Response<List<Integer>> response4 = new Response<>(null, null, Arrays.asList(0, 0));
+        ResponseEntity<Response<List<Integer>>> re4 = new ResponseEntity<>(response4, HttpStatus.OK);
         Mockito.when(restTemplate.exchange(
                 Mockito.anyString(),
                 Mockito.any(HttpMethod.class),
                 Mockito.any(HttpEntity.class),
                 Mockito.any(ParameterizedTypeReference.class)))
                 .thenReturn(re1)
-                .thenReturn(re2)
                 .thenReturn(re3).thenReturn(re3).thenReturn(re4)
-                .thenReturn(re3).thenReturn(re3).thenReturn(re4);
+                .thenReturn(re2);
 
         Response result = travelPlanServiceImpl.getMinStation(info, headers);
         Assert.assertEquals("Success", result.getMsg());
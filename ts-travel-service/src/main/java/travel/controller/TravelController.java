@@ -48,6 +48,13 @@ public class TravelController {
         return ok(travelService.getRouteByTripId(tripId, headers));
     }
 
+    @PostMapping(value = "/routes")
+    public HttpEntity getRoutesByTripIds(@RequestBody ArrayList<String> tripIds,
+                                         @RequestHeader HttpHeaders headers) {
+        // ArrayList<Route>, in the order of the trip ids
+        return ok(travelService.getRouteByTripIds(tripIds, headers));
+    }
+
     @PostMapping(value = "/trips/routes")
     public HttpEntity getTripsByRouteId(@RequestBody ArrayList<String> routeIds,
                                         @RequestHeader HttpHeaders headers) {
@@ -126,6 +133,20 @@ public class TravelController {
         return ok(travelService.getTripAllDetailInfo(gtdi, headers));
     }
 
+    /**
+     * Return the Trip and the remaining tickets of every query in one round trip
+     *
+     * @param gtdis trip all detail infos
+     * @param headers headers
+     * @return HttpEntity
+     */
+    @CrossOrigin(origins = "*")
+    @PostMapping(value = "/trip_details")
+    public HttpEntity getTripAllDetailInfos(@RequestBody ArrayList<TripAllDetailInfo> gtdis, @RequestHeader HttpHeaders headers) {
+        // ArrayList<TripAllDetail>, in the order of the queries
+        return ok(travelService.getTripAllDetailInfos(gtdis, headers));
+    }
+
     @CrossOrigin(origins = "*")
     @GetMapping(value = "/trips")
     public HttpEntity queryAll(@RequestHeader HttpHeaders headers) {
@@ -24,8 +24,12 @@ public interface TravelService {
 
     Response getTripAllDetailInfo(TripAllDetailInfo gtdi, HttpHeaders headers);
 
+    Response getTripAllDetailInfos(ArrayList<TripAllDetailInfo> gtdis, HttpHeaders headers);
+
     Response getRouteByTripId(String tripId, HttpHeaders headers);
 
+    Response getRouteByTripIds(ArrayList<String> tripIds, HttpHeaders headers);
+
     Response getTrainTypeByTripId(String tripId, HttpHeaders headers);
 
     Response queryAll(HttpHeaders headers);
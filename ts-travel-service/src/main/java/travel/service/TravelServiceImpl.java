@@ -1,11 +1,19 @@
 package travel.service;
 
+import edu.fudan.common.invalidation.InvalidationBus;
+import edu.fudan.common.invalidation.InvalidationListener;
+import edu.fudan.common.util.CacheTags;
+import edu.fudan.common.util.ConditionalGet;
+import edu.fudan.common.util.ConditionalLoader;
 import edu.fudan.common.util.ConsistencyCheckedCache;
 import edu.fudan.common.util.JsonUtils;
+import edu.fudan.common.util.eviction.WindowTinyLfuPolicy;
 import edu.fudan.common.util.Response;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
@@ -16,6 +24,8 @@ import org.springframework.web.client.RestTemplate;
 import travel.entity.*;
 import travel.repository.TripRepository;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.util.*;
 import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.function.BiFunction;
@@ -34,6 +44,9 @@ public class TravelServiceImpl implements TravelService {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TravelServiceImpl.class);
 
+    // ticket counts change with every order, so every Nth hit is checked against the owning service
+    private static final int TICKET_VERIFY_INTERVAL = 10;
+
     private BiFunction<String, HttpHeaders, TrainType> trainTypeQuery = (trainTypeId, headers) -> {
         HttpEntity requestEntity = new HttpEntity(headers);
         ResponseEntity<Response<TrainType>> re = restTemplate.exchange(
@@ -85,50 +98,95 @@ public class TravelServiceImpl implements TravelService {
         return JsonUtils.conveterObject(re.getBody().getData(), TravelResult.class);
     };
 
-    private BiFunction<SimpleImmutableEntry<Trip, Date>, HttpHeaders, Response<SoldTicket>> soldTicketQuery = (entry,
-            headers) -> {
-        HttpEntity requestEntity = new HttpEntity(headers);
-        ResponseEntity<Response<SoldTicket>> re2 = restTemplate.exchange(
-                "http://ts-order-service:12031/api/v1/orderservice/order/" + entry.getValue() + "/"
-                        + entry.getKey().getTripId().toString(),
-                HttpMethod.GET, requestEntity, new ParameterizedTypeReference<Response<SoldTicket>>() {
-                });
-
-        return re2.getBody();
-    };
-
-    private BiFunction<Seat, HttpHeaders, Response<Integer>> restTicketQuery = (seatRequest, headers) -> {
-        HttpEntity requestEntity = new HttpEntity(seatRequest, headers);
-        ResponseEntity<Response<Integer>> re = restTemplate.exchange(
-                "http://ts-seat-service:18898/api/v1/seatservice/seats/left_tickets",
+    // sent with the cached ETag on verification, ts-order-service answers 304 while nothing was sold
+    private ConditionalLoader<SimpleImmutableEntry<Trip, Date>, HttpHeaders, Response<SoldTicket>> soldTicketQuery = (entry,
+            headers, etag) -> ConditionalGet.exchange(restTemplate,
+                    "http://ts-order-service:12031/api/v1/orderservice/order/" + entry.getValue() + "/"
+                            + entry.getKey().getTripId().toString(),
+                    headers, etag, new ParameterizedTypeReference<Response<SoldTicket>>() {
+                    });
+
+    // ts-seat-service counts the left tickets of many intervals in one request
+    private BiFunction<List<Seat>, HttpHeaders, List<Integer>> restTicketsQuery = (seatRequests, headers) -> {
+        HttpEntity requestEntity = new HttpEntity(seatRequests, headers);
+        ResponseEntity<Response<List<Integer>>> re = restTemplate.exchange(
+                "http://ts-seat-service:18898/api/v1/seatservice/seats/left_tickets/batch",
                 HttpMethod.POST,
                 requestEntity,
-                new ParameterizedTypeReference<Response<Integer>>() {
+                new ParameterizedTypeReference<Response<List<Integer>>>() {
                 });
-        return re.getBody();
+        TravelServiceImpl.LOGGER.info("Get Rest tickets num is: {}", re.getBody().toString());
+        return re.getBody().getData();
     };
 
+    private BiFunction<Seat, HttpHeaders, Integer> restTicketQuery = (seatRequest, headers) ->
+            restTicketsQuery.apply(Collections.singletonList(seatRequest), headers).get(0);
+
     private ConsistencyCheckedCache<String, HttpHeaders, TrainType> trainTypeCache = new ConsistencyCheckedCache<String, HttpHeaders, TrainType>(
-            "trainTypeCache", 100, true, trainTypeQuery);
+            "trainTypeCache", 100, true, trainTypeQuery)
+            .withTags(trainTypeId -> Collections.singletonList(CacheTags.trainType(trainTypeId)));
 
     private ConsistencyCheckedCache<String, HttpHeaders, String> stationIdCache = new ConsistencyCheckedCache<String, HttpHeaders, String>(
-            "stationIdCache", 100, false, stationIdQuery);
+            "stationIdCache", 100, false, stationIdQuery)
+            .withTags(stationName -> Collections.singletonList(CacheTags.station(stationName)));
 
     private ConsistencyCheckedCache<String, HttpHeaders, Route> routeCache = new ConsistencyCheckedCache<String, HttpHeaders, Route>(
-            "routeCache", 100, false, routeQuery);
+            "routeCache", 100, false, routeQuery)
+            .withTags(routeId -> Collections.singletonList(CacheTags.route(routeId)));
 
+    // travel result and ticket keys embed dates and station pairs, W-TinyLFU keeps a sweep
+    // over many of them (adminQueryAll, crawlers) from flushing the popular trips
     private ConsistencyCheckedCache<Travel, HttpHeaders, TravelResult> travelResultCache = new ConsistencyCheckedCache<Travel, HttpHeaders, TravelResult>(
-            "travelResultCache", 100, false, travelResultQuery);
+            "travelResultCache", 100, false, travelResultQuery)
+            .withEvictionPolicy(WindowTinyLfuPolicy::new)
+            .withTags(query -> CacheTags.travel(String.valueOf(query.getTrip().getTripId()),
+                    query.getTrip().getRouteId(), query.getTrip().getTrainTypeId(),
+                    query.getStartingPlace(), query.getEndPlace()));
 
     private ConsistencyCheckedCache<SimpleImmutableEntry<Trip, Date>, HttpHeaders, Response<SoldTicket>> soldTicketCache = new ConsistencyCheckedCache<SimpleImmutableEntry<Trip, Date>, HttpHeaders, Response<SoldTicket>>(
-            "soldTicketCache", 100, false, soldTicketQuery);
+            "soldTicketCache", 100, false, TICKET_VERIFY_INTERVAL, soldTicketQuery)
+            .withEvictionPolicy(WindowTinyLfuPolicy::new)
+            .withTags(entry -> Arrays.asList(CacheTags.trip(String.valueOf(entry.getKey().getTripId())),
+                    CacheTags.tripDate(String.valueOf(entry.getKey().getTripId()), entry.getValue())));
 
-    private ConsistencyCheckedCache<Seat, HttpHeaders, Response<Integer>> restTicketCache = new ConsistencyCheckedCache<Seat, HttpHeaders, Response<Integer>>(
-            "restTicketCache", 100, true, restTicketQuery);
+    private ConsistencyCheckedCache<Seat, HttpHeaders, Integer> restTicketCache = new ConsistencyCheckedCache<Seat, HttpHeaders, Integer>(
+            "restTicketCache", 100, true, TICKET_VERIFY_INTERVAL, restTicketQuery)
+            .withEvictionPolicy(WindowTinyLfuPolicy::new)
+            .withTags(seat -> Arrays.asList(CacheTags.trip(seat.getTrainNumber()),
+                    CacheTags.tripDate(seat.getTrainNumber(), seat.getTravelDate())));
+
+    // searches look up the trips serving both stations here instead of scanning every trip
+    private TripStationIndex tripStationIndex = new TripStationIndex();
+
+    // the bus has already dropped the cached route, the next search re-indexes it
+    private final InvalidationListener routeListener = event -> tripStationIndex.markRouteStale(event.getKey());
 
     String success = "Success";
     String noContent = "No Content";
 
+    /**
+     * Builds the station index once the trips of InitData are saved. If ts-route-service
+     * is not reachable yet, the first search builds it instead.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void buildTripStationIndex() {
+        try {
+            ensureTripStationIndex("0", new HttpHeaders());
+        } catch (RuntimeException e) {
+            TravelServiceImpl.LOGGER.warn("[TravelService] trip station index not built at startup: {}", e.getMessage());
+        }
+    }
+
+    @PostConstruct
+    void listen() {
+        InvalidationBus.listen(CacheTags.ROUTE, routeListener);
+    }
+
+    @PreDestroy
+    void stopListening() {
+        InvalidationBus.unlisten(CacheTags.ROUTE, routeListener);
+    }
+
     @Override
     public Response create(TravelInfo info, HttpHeaders headers) {
         TripId ti = new TripId(info.getTripId());
@@ -137,6 +195,7 @@ public class TravelServiceImpl implements TravelService {
                     info.getStationsId(), info.getTerminalStationId(), info.getStartingTime(), info.getEndTime());
             trip.setRouteId(info.getRouteId());
             repository.save(trip);
+            indexTrip(trip, headers);
             return new Response<>(1, "Create trip:" + ti.toString() + ".", null);
         } else {
             return new Response<>(1, "Trip " + info.getTripId().toString() + " already exists", null);
@@ -161,13 +220,18 @@ public class TravelServiceImpl implements TravelService {
         }
     }
 
+    @Override
+    public Response getRouteByTripIds(ArrayList<String> tripIds, HttpHeaders headers) {
+        ArrayList<Route> routes = new ArrayList<>();
+        for (String tripId : tripIds) {
+            routes.add((Route) getRouteByTripId(tripId, headers).getData());
+        }
+        return new Response<>(1, success, routes);
+    }
+
     @Override
     public Response getTrainTypeByTripId(String tripId, HttpHeaders headers) {
         String id = "0";
-        if (headers.containsKey("invalidation_id")) {
-            id = headers.getFirst("invalidation_id");
-            LOGGER.info("invalidation protocol : " + id);
-        }
 
         TripId tripId1 = new TripId(tripId);
         TrainType trainType = null;
@@ -218,6 +282,7 @@ public class TravelServiceImpl implements TravelService {
                     info.getStationsId(), info.getTerminalStationId(), info.getStartingTime(), info.getEndTime());
             trip.setRouteId(info.getRouteId());
             repository.save(trip);
+            indexTrip(trip, headers);
             return new Response<>(1, "Update trip:" + ti.toString(), trip);
         } else {
             return new Response<>(1, "Trip" + info.getTripId().toString() + "doesn 't exists", null);
@@ -229,6 +294,7 @@ public class TravelServiceImpl implements TravelService {
         TripId ti = new TripId(tripId);
         if (repository.findByTripId(ti) != null) {
             repository.deleteByTripId(ti);
+            tripStationIndex.remove(ti);
             return new Response<>(1, "Delete trip:" + tripId + ".", tripId);
         } else {
             return new Response<>(0, "Trip " + tripId + " doesn't exist.", null);
@@ -240,11 +306,6 @@ public class TravelServiceImpl implements TravelService {
 
         String id = "0";
 
-        if (headers.containsKey("invalidation_id")) {
-            id = headers.getFirst("invalidation_id");
-            TravelServiceImpl.LOGGER.info("[TravelService] [TripAllDetailInfo] invalidation protocol: id: {}", id);
-        }
-
         // Gets the start and arrival stations of the train number to query. The
         // originating and arriving stations received here are both station names, so
         // two requests need to be sent to convert to station ids
@@ -256,11 +317,20 @@ public class TravelServiceImpl implements TravelService {
         // This is the final result
         List<TripResponse> list = new ArrayList<>();
 
-        // Check all train info
-        List<Trip> allTripList = repository.findAll();
-        for (Trip tempTrip : allTripList) {
+        // Check the trains whose indexed route stops at both stations
+        ensureTripStationIndex(id, headers);
+        long staleMark = tripStationIndex.staleMark();
+        List<Trip> candidateTripList = tripStationIndex.tripsBetween(startingPlaceId, endPlaceId);
+        List<Trip> tripList = new ArrayList<>();
+        List<Route> routeList = new ArrayList<>();
+        for (Trip tempTrip : candidateTripList) {
             // Get the detailed route list of this train
             Route tempRoute = getRouteByRouteId(id, tempTrip.getRouteId(), headers);
+            // The cached route is the current one, a route changed or not found since it was indexed is re-indexed
+            tripStationIndex.updateRoute(tempTrip.getRouteId(), tempRoute.getStations(), staleMark);
+            if (tempRoute.getStations() == null) {
+                continue;
+            }
             // Check the route list for this train. Check that the required start and
             // arrival stations are in the list of stops that are not on the route, and
             // check that the location of the start station is before the stop
@@ -268,13 +338,21 @@ public class TravelServiceImpl implements TravelService {
             if (tempRoute.getStations().contains(startingPlaceId) &&
                     tempRoute.getStations().contains(endPlaceId) &&
                     tempRoute.getStations().indexOf(startingPlaceId) < tempRoute.getStations().indexOf(endPlaceId)) {
-                TripResponse response = getTickets(id, tempTrip, tempRoute, startingPlaceId, endPlaceId, startingPlaceName,
-                        endPlaceName, info.getDepartureTime(), headers);
-                if (response == null) {
-                    return new Response<>(0, "No Trip info content", null);
-                }
-                list.add(response);
+                tripList.add(tempTrip);
+                routeList.add(tempRoute);
+            }
+        }
+
+        // The left tickets of both seat classes of every matching train are counted in one request
+        Map<Seat, Integer> restTickets = getRestTicketNumbers(id, tripList, startingPlaceId, endPlaceId,
+                info.getDepartureTime(), headers);
+        for (int i = 0; i < tripList.size(); i++) {
+            TripResponse response = getTickets(id, tripList.get(i), routeList.get(i), startingPlaceId, endPlaceId,
+                    startingPlaceName, endPlaceName, info.getDepartureTime(), restTickets, headers);
+            if (response == null) {
+                return new Response<>(0, "No Trip info content", null);
             }
+            list.add(response);
         }
         return new Response<>(1, success, list);
     }
@@ -282,18 +360,6 @@ public class TravelServiceImpl implements TravelService {
     @Override
     public Response getTripAllDetailInfo(TripAllDetailInfo gtdi, HttpHeaders headers) {
         String id = "0";
-        if (headers.containsKey("invalidation_id")) {
-            id = headers.getFirst("invalidation_id");
-        }
-
-        TravelServiceImpl.LOGGER.info("[TravelService] [TripAllDetailInfo] invalidation protocol: id: {}", id);
-
-        if (headers.containsKey("invalidation")) {
-            restTicketCache.invalidate(id, new Seat(), headers, true);
-            trainTypeCache.invalidate(id, "G", headers, false);
-            new Response<>(1, success, new TripAllDetail());
-        }
-
 
         TripAllDetail gtdr = new TripAllDetail();
         TravelServiceImpl.LOGGER.info("[TravelService] [TripAllDetailInfo] TripId: {}", gtdi.getTripId());
@@ -307,9 +373,11 @@ public class TravelServiceImpl implements TravelService {
             String startingPlaceId = queryForStationId(id, startingPlaceName, headers);
             String endPlaceId = queryForStationId(id, endPlaceName, headers);
             Route tempRoute = getRouteByRouteId(id, trip.getRouteId(), headers);
+            Map<Seat, Integer> restTickets = getRestTicketNumbers(id, Collections.singletonList(trip), startingPlaceId,
+                    endPlaceId, gtdi.getTravelDate(), headers);
 
             TripResponse tripResponse = getTickets(id, trip, tempRoute, startingPlaceId, endPlaceId, gtdi.getFrom(),
-                    gtdi.getTo(), gtdi.getTravelDate(), headers);
+                    gtdi.getTo(), gtdi.getTravelDate(), restTickets, headers);
             if (tripResponse == null) {
                 gtdr.setTripResponse(null);
                 gtdr.setTrip(null);
@@ -321,8 +389,18 @@ public class TravelServiceImpl implements TravelService {
         return new Response<>(1, success, gtdr);
     }
 
+    @Override
+    public Response getTripAllDetailInfos(ArrayList<TripAllDetailInfo> gtdis, HttpHeaders headers) {
+        ArrayList<TripAllDetail> details = new ArrayList<>();
+        for (TripAllDetailInfo gtdi : gtdis) {
+            details.add((TripAllDetail) getTripAllDetailInfo(gtdi, headers).getData());
+        }
+        return new Response<>(1, success, details);
+    }
+
     private TripResponse getTickets(String id, Trip trip, Route route, String startingPlaceId, String endPlaceId,
-            String startingPlaceName, String endPlaceName, Date departureTime, HttpHeaders headers) {
+            String startingPlaceName, String endPlaceName, Date departureTime, Map<Seat, Integer> restTickets,
+            HttpHeaders headers) {
 
         // Determine if the date checked is the same day and after
         if (!afterToday(departureTime)) {
@@ -352,11 +430,11 @@ public class TravelServiceImpl implements TravelService {
         response.setConfortClass(50);
         response.setEconomyClass(50);
 
-        int first = getRestTicketNumber(id, departureTime, trip.getTripId().toString(),
-                startingPlaceName, endPlaceName, SeatClass.FIRSTCLASS.getCode(), headers);
+        int first = restTickets.get(seatRequest(trip.getTripId().toString(), departureTime,
+                startingPlaceId, endPlaceId, SeatClass.FIRSTCLASS.getCode()));
 
-        int second = getRestTicketNumber(id, departureTime, trip.getTripId().toString(),
-                startingPlaceName, endPlaceName, SeatClass.SECONDCLASS.getCode(), headers);
+        int second = restTickets.get(seatRequest(trip.getTripId().toString(), departureTime,
+                startingPlaceId, endPlaceId, SeatClass.SECONDCLASS.getCode()));
         response.setConfortClass(first);
         response.setEconomyClass(second);
 
@@ -370,7 +448,6 @@ public class TravelServiceImpl implements TravelService {
         int distanceEnd = route.getDistances().get(indexEnd) - route.getDistances().get(0);
 
         TrainType trainType = getTrainType(id, trip.getTrainTypeId(), headers);
-        // this might be a invalidation message
         if (trainType == null)
             return null;
 
@@ -433,10 +510,6 @@ public class TravelServiceImpl implements TravelService {
     }
 
     private TrainType getTrainType(String id, String trainTypeId, HttpHeaders headers) {
-        if (headers.containsKey("invalidation")) {
-            trainTypeCache.invalidate(id, trainTypeId, headers, true);
-            return null;
-        }
         return trainTypeCache.getOrInsert(id, trainTypeId, headers);
     }
 
@@ -448,36 +521,80 @@ public class TravelServiceImpl implements TravelService {
         return routeCache.getOrInsert(id, routeId, headers);
     }
 
-    private int getRestTicketNumber(String id, Date travelDate, String trainNumber, String startStationName, String endStationName,
-            int seatType, HttpHeaders headers) {
-        Seat seatRequest = new Seat();
+    private void ensureTripStationIndex(String id, HttpHeaders headers) {
+        if (tripStationIndex.isBuilt()) {
+            return;
+        }
+        synchronized (tripStationIndex) {
+            if (!tripStationIndex.isBuilt()) {
+                List<Trip> trips = repository.findAll();
+                tripStationIndex.rebuild(trips == null ? new ArrayList<>() : trips,
+                        routeId -> getRouteByRouteId(id, routeId, headers));
+                TravelServiceImpl.LOGGER.info("[TravelService] trip station index built, trips: {}",
+                        tripStationIndex.size());
+            }
+        }
+    }
 
-        String fromId = queryForStationId(id, startStationName, headers);
-        String toId = queryForStationId(id, endStationName, headers);
+    private void indexTrip(Trip trip, HttpHeaders headers) {
+        // trips saved before the index is built are picked up by the build
+        if (!tripStationIndex.isBuilt()) {
+            return;
+        }
+        Route route = null;
+        if (trip.getRouteId() != null) {
+            try {
+                route = getRouteByRouteId("0", trip.getRouteId(), headers);
+            } catch (RuntimeException e) {
+                // the trip is saved, its route is looked up again by the next search
+                TravelServiceImpl.LOGGER.warn("[TravelService] route {} of trip {} not indexed: {}",
+                        trip.getRouteId(), trip.getTripId(), e.getMessage());
+            }
+        }
+        tripStationIndex.put(trip, route);
+    }
+
+    /**
+     * Left tickets of both seat classes of the trips between two stations, cached counts are
+     * reused and the rest is fetched from ts-seat-service in one batch
+     */
+    private Map<Seat, Integer> getRestTicketNumbers(String id, List<Trip> trips, String startStationId,
+            String endStationId, Date travelDate, HttpHeaders headers) {
+        Map<Seat, Integer> restTickets = new HashMap<>();
+        // getTickets answers nothing for past dates, so their tickets are not counted
+        if (trips.isEmpty() || !afterToday(travelDate)) {
+            return restTickets;
+        }
+        List<Seat> seatRequests = new ArrayList<>();
+        for (Trip trip : trips) {
+            seatRequests.add(seatRequest(trip.getTripId().toString(), travelDate, startStationId, endStationId,
+                    SeatClass.FIRSTCLASS.getCode()));
+            seatRequests.add(seatRequest(trip.getTripId().toString(), travelDate, startStationId, endStationId,
+                    SeatClass.SECONDCLASS.getCode()));
+        }
 
-        seatRequest.setDestStation(toId);
-        seatRequest.setStartStation(fromId);
+        List<Integer> counts = restTicketCache.getAllOrInsert(id, seatRequests, headers, restTicketsQuery);
+        for (int i = 0; i < seatRequests.size(); i++) {
+            restTickets.put(seatRequests.get(i), counts.get(i));
+        }
+        TravelServiceImpl.LOGGER.info("Get Rest tickets num of {} seat requests", seatRequests.size());
+        return restTickets;
+    }
+
+    private Seat seatRequest(String trainNumber, Date travelDate, String startStationId, String endStationId,
+            int seatType) {
+        Seat seatRequest = new Seat();
+        seatRequest.setDestStation(endStationId);
+        seatRequest.setStartStation(startStationId);
         seatRequest.setTrainNumber(trainNumber);
         seatRequest.setTravelDate(travelDate);
         seatRequest.setSeatType(seatType);
-
-        TravelServiceImpl.LOGGER.info("Seat request To String: {}", seatRequest.toString());
-
-        Response<Integer> re = new Response<>();
-
-        re = restTicketCache.getOrInsert(id, seatRequest, headers);
-        TravelServiceImpl.LOGGER.info("Get Rest tickets num is: {}", re.toString());
-
-        return re.getData();
+        return seatRequest;
     }
 
     @Override
     public Response adminQueryAll(HttpHeaders headers) {
         String id = "0";
-        if (headers.containsKey("invalidation_id")) {
-            id = headers.getFirst("invalidation_id");
-            LOGGER.info("invalidation protocol : " + id);
-        }
 
         List<Trip> trips = repository.findAll();
         ArrayList<AdminTrip> adminTrips = new ArrayList<>();
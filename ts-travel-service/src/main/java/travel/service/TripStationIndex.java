@@ -0,0 +1,304 @@
+package travel.service;
+
+import travel.entity.Route;
+import travel.entity.Trip;
+import travel.entity.TripId;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * In-memory inverted index from station id to the trips that stop there, so a
+ * search between two stations only looks at the trips serving both of them in
+ * the right order instead of every trip in the repository.
+ *
+ * Trips of one route share its station list, so the index keeps the position of
+ * every station once per route and the trips running on each route.
+ *
+ * A route whose stations are not known, because its lookup failed or it changed in
+ * ts-route-service, is stale: its trips are returned by every search until the search
+ * passes its current stations to updateRoute.
+ *
+ * @author fdse
+ */
+public class TripStationIndex {
+
+    // station id -> route id -> position of the station on the route
+    private final Map<String, Map<String, Integer>> stationPositions = new HashMap<>();
+
+    // route id -> stations of the route as indexed
+    private final Map<String, List<String>> routeStations = new HashMap<>();
+
+    // route id -> trips running on the route
+    private final Map<String, Map<TripId, Trip>> routeTrips = new HashMap<>();
+
+    // trip id -> route id
+    private final Map<TripId, String> tripRoutes = new HashMap<>();
+
+    // stale route id -> mark at which it became stale
+    private final Map<String, Long> staleRoutes = new HashMap<>();
+
+    private long staleMarks = 0;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private volatile boolean built = false;
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    /**
+     * Replaces the content of the index with the given trips
+     *
+     * @param routeLookup answers the route of a route id, called once per distinct route
+     */
+    public void rebuild(Collection<Trip> trips, Function<String, Route> routeLookup) {
+        // routes are fetched before taking the lock, searches keep using the old content meanwhile
+        long fetchedAt = staleMark();
+        Map<String, List<String>> stations = new HashMap<>();
+        for (Trip trip : trips) {
+            String routeId = trip.getRouteId();
+            if (routeId != null && !stations.containsKey(routeId)) {
+                stations.put(routeId, stationsOf(routeLookup.apply(routeId)));
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            stationPositions.clear();
+            routeStations.clear();
+            routeTrips.clear();
+            tripRoutes.clear();
+            // routes marked stale while fetching may have been fetched before they changed
+            Map<String, Long> changedDuringFetch = new HashMap<>();
+            for (Map.Entry<String, Long> entry : staleRoutes.entrySet()) {
+                if (entry.getValue() > fetchedAt) {
+                    changedDuringFetch.put(entry.getKey(), entry.getValue());
+                }
+            }
+            staleRoutes.clear();
+            for (Trip trip : trips) {
+                addTrip(trip);
+            }
+            for (Map.Entry<String, List<String>> entry : stations.entrySet()) {
+                indexOrMarkStale(entry.getKey(), entry.getValue());
+            }
+            for (Map.Entry<String, Long> entry : changedDuringFetch.entrySet()) {
+                if (routeTrips.containsKey(entry.getKey())) {
+                    staleRoutes.put(entry.getKey(), entry.getValue());
+                }
+            }
+            built = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds a created trip or moves an updated one to its route
+     *
+     * @param route null if the lookup failed, the route is then stale
+     */
+    public void put(Trip trip, Route route) {
+        lock.writeLock().lock();
+        try {
+            removeTrip(trip.getTripId());
+            addTrip(trip);
+            if (trip.getRouteId() != null) {
+                indexOrMarkStale(trip.getRouteId(), stationsOf(route));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(TripId tripId) {
+        lock.writeLock().lock();
+        try {
+            removeTrip(tripId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks a route that changed in ts-route-service as stale, its trips are searched
+     * until their current stations are passed to updateRoute
+     */
+    public void markRouteStale(String routeId) {
+        lock.writeLock().lock();
+        try {
+            if (routeTrips.containsKey(routeId)) {
+                staleRoutes.put(routeId, ++staleMarks);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the current mark, routes marked stale later are not refreshed by stations fetched now
+     */
+    public long staleMark() {
+        lock.readLock().lock();
+        try {
+            return staleMarks;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Re-indexes a route with stations fetched just now
+     *
+     * @return whether the indexed stations changed
+     */
+    public boolean updateRoute(String routeId, List<String> stations) {
+        return updateRoute(routeId, stations, staleMark());
+    }
+
+    /**
+     * Re-indexes a route whose stations differ from the indexed ones or that is stale,
+     * e.g. after the route changed in ts-route-service and its cache entry was invalidated
+     *
+     * @param fetchedAt staleMark() before the stations were fetched, a route marked stale
+     *                  after it may have changed since and stays stale
+     * @return whether the indexed stations changed
+     */
+    public boolean updateRoute(String routeId, List<String> stations, long fetchedAt) {
+        if (stations == null) {
+            // the lookup failed, the route stays as it is
+            return false;
+        }
+        lock.readLock().lock();
+        try {
+            if (!routeTrips.containsKey(routeId) || (!staleRoutes.containsKey(routeId)
+                    && stations.equals(routeStations.get(routeId)))) {
+                return false;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            if (!routeTrips.containsKey(routeId)) {
+                return false;
+            }
+            Long staleMark = staleRoutes.get(routeId);
+            boolean changed = !stations.equals(routeStations.get(routeId));
+            if (staleMark != null && staleMark > fetchedAt) {
+                // fetched before the route changed, it stays stale until a later search
+                return false;
+            }
+            indexRoute(routeId, new ArrayList<>(stations));
+            return changed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Trips whose route stops at the start station before the end station, and the
+     * trips of stale routes, which the caller checks against their current stations
+     */
+    public List<Trip> tripsBetween(String startStationId, String endStationId) {
+        List<Trip> trips = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Set<String> routes = new LinkedHashSet<>(staleRoutes.keySet());
+            Map<String, Integer> startRoutes = stationPositions.get(startStationId);
+            Map<String, Integer> endRoutes = stationPositions.get(endStationId);
+            if (startRoutes != null && endRoutes != null) {
+                for (Map.Entry<String, Integer> entry : startRoutes.entrySet()) {
+                    Integer endPosition = endRoutes.get(entry.getKey());
+                    if (endPosition != null && entry.getValue() < endPosition) {
+                        routes.add(entry.getKey());
+                    }
+                }
+            }
+            for (String routeId : routes) {
+                trips.addAll(routeTrips.get(routeId).values());
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return trips;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return tripRoutes.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void addTrip(Trip trip) {
+        String routeId = trip.getRouteId();
+        if (routeId == null) {
+            return;
+        }
+        tripRoutes.put(trip.getTripId(), routeId);
+        routeTrips.computeIfAbsent(routeId, k -> new LinkedHashMap<>()).put(trip.getTripId(), trip);
+    }
+
+    private void removeTrip(TripId tripId) {
+        String routeId = tripRoutes.remove(tripId);
+        if (routeId == null) {
+            return;
+        }
+        Map<TripId, Trip> trips = routeTrips.get(routeId);
+        trips.remove(tripId);
+        if (trips.isEmpty()) {
+            // no trip runs on the route any more, its stations are not needed
+            routeTrips.remove(routeId);
+            staleRoutes.remove(routeId);
+            unindexRoute(routeId);
+        }
+    }
+
+    private void indexOrMarkStale(String routeId, List<String> stations) {
+        if (stations == null) {
+            unindexRoute(routeId);
+            staleRoutes.put(routeId, ++staleMarks);
+        } else {
+            indexRoute(routeId, stations);
+        }
+    }
+
+    private void indexRoute(String routeId, List<String> stations) {
+        staleRoutes.remove(routeId);
+        unindexRoute(routeId);
+        routeStations.put(routeId, stations);
+        for (int i = 0; i < stations.size(); i++) {
+            // a route passing a station twice is matched by its first stop, like indexOf
+            stationPositions.computeIfAbsent(stations.get(i), k -> new LinkedHashMap<>()).putIfAbsent(routeId, i);
+        }
+    }
+
+    private void unindexRoute(String routeId) {
+        List<String> stations = routeStations.remove(routeId);
+        if (stations == null) {
+            return;
+        }
+        for (String station : stations) {
+            Map<String, Integer> routes = stationPositions.get(station);
+            if (routes != null) {
+                routes.remove(routeId);
+                if (routes.isEmpty()) {
+                    stationPositions.remove(station);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return null if the route is not known
+     */
+    private static List<String> stationsOf(Route route) {
+        return route == null || route.getStations() == null ? null : new ArrayList<>(route.getStations());
+    }
+}
@@ -1,6 +1,10 @@
 package travel.service;
 
+import edu.fudan.common.invalidation.InvalidationBus;
+import edu.fudan.common.invalidation.InvalidationEvent;
+import edu.fudan.common.util.CacheTags;
 import edu.fudan.common.util.Response;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -17,6 +21,7 @@ import travel.entity.*;
 import travel.repository.TripRepository;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 
 @RunWith(JUnit4.class)
@@ -38,6 +43,12 @@ public class TravelServiceImplTest {
     @Before
     public void setUp() {
         MockitoAnnotations.initMocks(this);
+        travelServiceImpl.listen();
+    }
+
+    @After
+    public void tearDown() {
+        travelServiceImpl.stopListening();
     }
 
     @Test
@@ -65,6 +76,14 @@ public class TravelServiceImplTest {
         Assert.assertEquals("Success", result.getMsg());
     }
 
+    @Test
+    public void testGetRouteByTripIds() {
+        Mockito.when(repository.findByTripId(Mockito.any(TripId.class))).thenReturn(null);
+        ArrayList<String> tripIds = new ArrayList<>(Arrays.asList("K1255", "Z1255"));
+        Response result = travelServiceImpl.getRouteByTripIds(tripIds, headers);
+        Assert.assertEquals(Arrays.asList(null, null), result.getData());
+    }
+
     @Test
     public void testGetTrainTypeByTripId() {
         Trip trip = new Trip();
@@ -205,6 +224,47 @@ public class TravelServiceImplTest {
         Assert.assertEquals(new Response<>(1, "Success", new ArrayList<>()), result);
     }
 
+    @Test
+    public void testRouteEventIndexesTheAddedStation() {
+        stubStationId("shanghai");
+        stubStationId("suzhou");
+        stubStationId("nanjing");
+        Trip trip = new Trip(new TripId("G1234"), "GaoTieOne", "route_1");
+        Mockito.when(repository.findAll()).thenReturn(new ArrayList<>(Arrays.asList(trip)));
+        stubRoute("shanghai", "suzhou");
+
+        // a past date answers no tickets, so a trip found between the stations ends the search with no content
+        TripInfo info = new TripInfo("shanghai", "nanjing", new Date(System.currentTimeMillis() - 86400000));
+        Assert.assertEquals(new Response<>(1, success, new ArrayList<>()), travelServiceImpl.query(info, headers));
+
+        stubRoute("shanghai", "suzhou", "nanjing");
+        InvalidationBus.deliver(new InvalidationEvent(CacheTags.ROUTE, "route_1"));
+        Assert.assertEquals("No Trip info content", travelServiceImpl.query(info, headers).getMsg());
+    }
+
+    private void stubStationId(String stationName) {
+        Response<String> response = new Response<>(1, null, stationName);
+        Mockito.when(restTemplate.exchange(
+                Mockito.eq("http://ts-ticketinfo-service:15681/api/v1/ticketinfoservice/ticketinfo/" + stationName),
+                Mockito.any(HttpMethod.class),
+                Mockito.any(HttpEntity.class),
+                Mockito.any(ParameterizedTypeReference.class)))
+                .thenReturn(new ResponseEntity<>(response, HttpStatus.OK));
+    }
+
+    private void stubRoute(String... stations) {
+        Route route = new Route();
+        route.setId("route_1");
+        route.setStations(Arrays.asList(stations));
+        Response response = new Response(1, null, route);
+        Mockito.when(restTemplate.exchange(
+                Mockito.eq("http://ts-route-service:11178/api/v1/routeservice/routes/route_1"),
+                Mockito.any(HttpMethod.class),
+                Mockito.any(HttpEntity.class),
+                Mockito.eq(Response.class)))
+                .thenReturn(new ResponseEntity<>(response, HttpStatus.OK));
+    }
+
     @Test
     public void testGetTripAllDetailInfo() {
         TripAllDetailInfo gtdi = new TripAllDetailInfo();
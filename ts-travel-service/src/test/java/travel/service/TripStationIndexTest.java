@@ -0,0 +1,151 @@
+package travel.service;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import travel.entity.Route;
+import travel.entity.Trip;
+import travel.entity.TripId;
+
+import java.util.*;
+
+@RunWith(JUnit4.class)
+public class TripStationIndexTest {
+
+    private TripStationIndex index;
+
+    private Map<String, Route> routes = new HashMap<>();
+
+    @Before
+    public void setUp() {
+        index = new TripStationIndex();
+        routes.put("route_1", route("route_1", "shanghai", "suzhou", "nanjing"));
+        routes.put("route_2", route("route_2", "nanjing", "suzhou", "shanghai"));
+        index.rebuild(Arrays.asList(trip("G1234", "route_1"), trip("G1235", "route_1"), trip("D1345", "route_2")),
+                routes::get);
+    }
+
+    @Test
+    public void testTripsBetweenKeepsStationOrder() {
+        Assert.assertEquals(Arrays.asList("G1234", "G1235"), tripIds(index.tripsBetween("shanghai", "nanjing")));
+        Assert.assertEquals(Collections.singletonList("D1345"), tripIds(index.tripsBetween("nanjing", "shanghai")));
+        Assert.assertTrue(index.tripsBetween("shanghai", "beijing").isEmpty());
+    }
+
+    @Test
+    public void testPutMovesTripToNewRoute() {
+        index.put(trip("G1235", "route_2"), routes.get("route_2"));
+        Assert.assertEquals(Collections.singletonList("G1234"), tripIds(index.tripsBetween("shanghai", "nanjing")));
+        Assert.assertEquals(Arrays.asList("D1345", "G1235"), tripIds(index.tripsBetween("nanjing", "shanghai")));
+        Assert.assertEquals(3, index.size());
+    }
+
+    @Test
+    public void testRemoveDropsTripAndUnusedRoute() {
+        index.remove(new TripId("D1345"));
+        Assert.assertTrue(index.tripsBetween("nanjing", "shanghai").isEmpty());
+        Assert.assertFalse(index.updateRoute("route_2", Arrays.asList("nanjing", "shanghai")));
+        Assert.assertEquals(2, index.size());
+    }
+
+    @Test
+    public void testUpdateRouteReindexesChangedStations() {
+        Assert.assertFalse(index.updateRoute("route_1", Arrays.asList("shanghai", "suzhou", "nanjing")));
+        Assert.assertTrue(index.updateRoute("route_1", Arrays.asList("shanghai", "wuxi", "suzhou")));
+        Assert.assertTrue(index.tripsBetween("shanghai", "nanjing").isEmpty());
+        Assert.assertEquals(Arrays.asList("G1234", "G1235"), tripIds(index.tripsBetween("wuxi", "suzhou")));
+    }
+
+    @Test
+    public void testRouteNotFoundIsSearchedUntilUpdated() {
+        index.put(trip("K1345", "route_3"), null);
+        Assert.assertEquals(Arrays.asList("G1234", "G1235", "K1345"), tripIds(index.tripsBetween("shanghai", "nanjing")));
+        Assert.assertEquals(Collections.singletonList("K1345"), tripIds(index.tripsBetween("beijing", "tianjin")));
+
+        Assert.assertFalse(index.updateRoute("route_3", null));
+        Assert.assertTrue(index.updateRoute("route_3", Arrays.asList("beijing", "tianjin")));
+        Assert.assertEquals(Arrays.asList("G1234", "G1235"), tripIds(index.tripsBetween("shanghai", "nanjing")));
+        Assert.assertEquals(Collections.singletonList("K1345"), tripIds(index.tripsBetween("beijing", "tianjin")));
+    }
+
+    @Test
+    public void testStaleRouteKeepsStaleForStationsFetchedBefore() {
+        long fetchedAt = index.staleMark();
+        index.markRouteStale("route_1");
+        Assert.assertEquals(Arrays.asList("G1234", "G1235"), tripIds(index.tripsBetween("beijing", "tianjin")));
+
+        // a search that read the route before it changed leaves it stale
+        Assert.assertFalse(index.updateRoute("route_1", Arrays.asList("shanghai", "suzhou", "nanjing"), fetchedAt));
+        Assert.assertEquals(Arrays.asList("G1234", "G1235"), tripIds(index.tripsBetween("beijing", "tianjin")));
+
+        Assert.assertTrue(index.updateRoute("route_1", Arrays.asList("shanghai", "suzhou", "nanjing", "wuxi"),
+                index.staleMark()));
+        Assert.assertTrue(index.tripsBetween("beijing", "tianjin").isEmpty());
+        Assert.assertEquals(Arrays.asList("G1234", "G1235"), tripIds(index.tripsBetween("nanjing", "wuxi")));
+    }
+
+    @Test
+    public void testSearchAmongTenThousandTrips() {
+        // 1000 routes over a line of 200 stations, each route stops at 20 of them, 10 trips per route
+        List<Trip> trips = new ArrayList<>();
+        Map<String, Route> lineRoutes = new HashMap<>();
+        for (int r = 0; r < 1000; r++) {
+            String[] stations = new String[20];
+            for (int i = 0; i < stations.length; i++) {
+                stations[i] = "station_" + ((r + i * 10) % 200);
+            }
+            lineRoutes.put("route_" + r, route("route_" + r, stations));
+            for (int t = 0; t < 10; t++) {
+                trips.add(trip("G" + (r * 10 + t), "route_" + r));
+            }
+        }
+        index.rebuild(trips, lineRoutes::get);
+        Assert.assertEquals(10000, index.size());
+
+        // every returned trip stops at both stations in order, checked against a full scan
+        int found = 0;
+        for (int i = 0; i < 200; i++) {
+            String from = "station_" + i;
+            String to = "station_" + ((i + 30) % 200);
+            List<String> expected = tripIds(scan(trips, lineRoutes, from, to));
+            Assert.assertEquals(expected, tripIds(index.tripsBetween(from, to)));
+            found += expected.size();
+        }
+        Assert.assertTrue(found > 0);
+    }
+
+    private static List<Trip> scan(List<Trip> trips, Map<String, Route> routes, String fromStation, String toStation) {
+        List<Trip> matching = new ArrayList<>();
+        for (Trip trip : trips) {
+            List<String> stations = routes.get(trip.getRouteId()).getStations();
+            int from = stations.indexOf(fromStation);
+            int to = stations.indexOf(toStation);
+            if (from >= 0 && to >= 0 && from < to) {
+                matching.add(trip);
+            }
+        }
+        return matching;
+    }
+
+    private static Trip trip(String tripId, String routeId) {
+        return new Trip(new TripId(tripId), "GaoTieOne", routeId);
+    }
+
+    private static Route route(String id, String... stations) {
+        Route route = new Route();
+        route.setId(id);
+        route.setStations(Arrays.asList(stations));
+        return route;
+    }
+
+    private static List<String> tripIds(List<Trip> trips) {
+        List<String> ids = new ArrayList<>();
+        for (Trip trip : trips) {
+            ids.add(trip.getTripId().toString());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+}
@@ -47,6 +47,13 @@ public class Travel2Controller {
         return ok(service.getRouteByTripId(tripId, headers));
     }
 
+    @PostMapping(value = "/routes")
+    public HttpEntity getRoutesByTripIds(@RequestBody ArrayList<String> tripIds,
+                                         @RequestHeader HttpHeaders headers) {
+        // ArrayList<Route>, in the order of the trip ids
+        return ok(service.getRouteByTripIds(tripIds, headers));
+    }
+
     @PostMapping(value = "/trips/routes")
     public HttpEntity getTripsByRouteId(@RequestBody ArrayList<String> routeIds,
                                         @RequestHeader HttpHeaders headers) {
@@ -123,6 +130,20 @@ public class Travel2Controller {
         return ok(service.getTripAllDetailInfo(gtdi, headers));
     }
 
+    /**
+     * Return the Trip and the remaining tickets of every query in one round trip
+     *
+     * @param gtdis trip all detail infos
+     * @param headers headers
+     * @return HttpEntity
+     */
+    @CrossOrigin(origins = "*")
+    @PostMapping(value = "/trip_details")
+    public HttpEntity getTripAllDetailInfos(@RequestBody ArrayList<TripAllDetailInfo> gtdis, @RequestHeader HttpHeaders headers) {
+        // ArrayList<TripAllDetail>, in the order of the queries
+        return ok(service.getTripAllDetailInfos(gtdis, headers));
+    }
+
     @CrossOrigin(origins = "*")
     @GetMapping(value = "/trips")
     public HttpEntity queryAll(@RequestHeader HttpHeaders headers) {
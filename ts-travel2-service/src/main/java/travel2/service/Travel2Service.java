@@ -23,8 +23,12 @@ public interface Travel2Service {
 
     Response getTripAllDetailInfo(TripAllDetailInfo gtdi, HttpHeaders headers);
 
+    Response getTripAllDetailInfos(ArrayList<TripAllDetailInfo> gtdis, HttpHeaders headers);
+
     Response getRouteByTripId(String tripId, HttpHeaders headers);
 
+    Response getRouteByTripIds(ArrayList<String> tripIds, HttpHeaders headers);
+
     Response getTrainTypeByTripId(String tripId, HttpHeaders headers);
 
     Response queryAll(HttpHeaders headers);
@@ -54,6 +54,15 @@ public class Travel2ServiceImpl implements Travel2Service {
     }
 
 
+    @Override
+    public Response getRouteByTripIds(ArrayList<String> tripIds, HttpHeaders headers) {
+        ArrayList<Route> routes = new ArrayList<>();
+        for (String tripId : tripIds) {
+            routes.add((Route) getRouteByTripId(tripId, headers).getData());
+        }
+        return new Response<>(1, success, routes);
+    }
+
     @Override
     public Response getTrainTypeByTripId(String tripId, HttpHeaders headers) {
         TripId tripId1 = new TripId(tripId);
@@ -150,6 +159,8 @@ public class Travel2ServiceImpl implements Travel2Service {
 
         //Check all train info
         ArrayList<Trip> allTripList = repository.findAll();
+        List<Trip> tripList = new ArrayList<>();
+        List<Route> routeList = new ArrayList<>();
         for (Trip tempTrip : allTripList) {
             //Get the detailed route list of this train
             Route tempRoute = getRouteByRouteId(tempTrip.getRouteId(), headers);
@@ -158,12 +169,19 @@ public class Travel2ServiceImpl implements Travel2Service {
             if (tempRoute.getStations().contains(startingPlaceId) &&
                     tempRoute.getStations().contains(endPlaceId) &&
                     tempRoute.getStations().indexOf(startingPlaceId) < tempRoute.getStations().indexOf(endPlaceId)) {
-                TripResponse response = getTickets(tempTrip, tempRoute, startingPlaceId, endPlaceId, startingPlaceName, endPlaceName, info.getDepartureTime(), headers);
-                if (response == null) {
-                    return new Response<>(0, noCnontent, null);
-                }
-                list.add(response);
+                tripList.add(tempTrip);
+                routeList.add(tempRoute);
+            }
+        }
+
+        //The left tickets of both seat classes of every matching train are counted in one request
+        Map<Seat, Integer> restTickets = getRestTicketNumbers(tripList, startingPlaceId, endPlaceId, info.getDepartureTime(), headers);
+        for (int i = 0; i < tripList.size(); i++) {
+            TripResponse response = getTickets(tripList.get(i), routeList.get(i), startingPlaceId, endPlaceId, startingPlaceName, endPlaceName, info.getDepartureTime(), restTickets, headers);
+            if (response == null) {
+                return new Response<>(0, noCnontent, null);
             }
+            list.add(response);
         }
         return new Response<>(1, "Success Query", list);
     }
@@ -183,7 +201,8 @@ public class Travel2ServiceImpl implements Travel2Service {
             String endPlaceId = queryForStationId(endPlaceName, headers);
             Travel2ServiceImpl.LOGGER.info("[TravelService] [getTripAllDetailInfo] endPlaceID: {}", endPlaceId);
             Route tempRoute = getRouteByRouteId(trip.getRouteId(), headers);
-            TripResponse tripResponse = getTickets(trip, tempRoute, startingPlaceId, endPlaceId, gtdi.getFrom(), gtdi.getTo(), gtdi.getTravelDate(), headers);
+            Map<Seat, Integer> restTickets = getRestTicketNumbers(Collections.singletonList(trip), startingPlaceId, endPlaceId, gtdi.getTravelDate(), headers);
+            TripResponse tripResponse = getTickets(trip, tempRoute, startingPlaceId, endPlaceId, gtdi.getFrom(), gtdi.getTo(), gtdi.getTravelDate(), restTickets, headers);
             if (tripResponse == null) {
                 gtdr.setTrip(null);
                 gtdr.setTripResponse(null);
@@ -197,8 +216,17 @@ public class Travel2ServiceImpl implements Travel2Service {
         return new Response<>(1, success, gtdr);
     }
 
+    @Override
+    public Response getTripAllDetailInfos(ArrayList<TripAllDetailInfo> gtdis, HttpHeaders headers) {
+        ArrayList<TripAllDetail> details = new ArrayList<>();
+        for (TripAllDetailInfo gtdi : gtdis) {
+            details.add((TripAllDetail) getTripAllDetailInfo(gtdi, headers).getData());
+        }
+        return new Response<>(1, success, details);
+    }
+
 
-    private TripResponse getTickets(Trip trip, Route route, String startingPlaceId, String endPlaceId, String startingPlaceName, String endPlaceName, Date departureTime, HttpHeaders headers) {
+    private TripResponse getTickets(Trip trip, Route route, String startingPlaceId, String endPlaceId, String startingPlaceName, String endPlaceName, Date departureTime, Map<Seat, Integer> restTickets, HttpHeaders headers) {
 
         //Determine if the date checked is the same day and after
         if (!afterToday(departureTime)) {
@@ -249,11 +277,11 @@ public class Travel2ServiceImpl implements Travel2Service {
             response.setEconomyClass(50);
         }
 
-        int first = getRestTicketNumber(departureTime, trip.getTripId().toString(),
-                startingPlaceName, endPlaceName, SeatClass.FIRSTCLASS.getCode(), headers);
+        int first = restTickets.get(seatRequest(trip.getTripId().toString(), departureTime,
+                startingPlaceId, endPlaceId, SeatClass.FIRSTCLASS.getCode()));
 
-        int second = getRestTicketNumber(departureTime, trip.getTripId().toString(),
-                startingPlaceName, endPlaceName, SeatClass.SECONDCLASS.getCode(), headers);
+        int second = restTickets.get(seatRequest(trip.getTripId().toString(), departureTime,
+                startingPlaceId, endPlaceId, SeatClass.SECONDCLASS.getCode()));
         response.setConfortClass(first);
         response.setEconomyClass(second);
 
@@ -368,30 +396,42 @@ public class Travel2ServiceImpl implements Travel2Service {
         }
     }
 
-    private int getRestTicketNumber(Date travelDate, String trainNumber, String startStationName, String endStationName, int seatType, HttpHeaders headers) {
-        Seat seatRequest = new Seat();
-
-        String fromId = queryForStationId(startStationName, headers);
-        String toId = queryForStationId(endStationName, headers);
-
-        seatRequest.setDestStation(toId);
-        seatRequest.setStartStation(fromId);
-        seatRequest.setTrainNumber(trainNumber);
-        seatRequest.setSeatType(seatType);
-        seatRequest.setTravelDate(travelDate);
-        Travel2ServiceImpl.LOGGER.info("Seat request To String: {}", seatRequest.toString());
+    private Map<Seat, Integer> getRestTicketNumbers(List<Trip> trips, String startStationId, String endStationId, Date travelDate, HttpHeaders headers) {
+        Map<Seat, Integer> restTickets = new HashMap<>();
+        //getTickets answers nothing for past dates, so their tickets are not counted
+        if (trips.isEmpty() || !afterToday(travelDate)) {
+            return restTickets;
+        }
+        List<Seat> seatRequests = new ArrayList<>();
+        for (Trip trip : trips) {
+            seatRequests.add(seatRequest(trip.getTripId().toString(), travelDate, startStationId, endStationId, SeatClass.FIRSTCLASS.getCode()));
+            seatRequests.add(seatRequest(trip.getTripId().toString(), travelDate, startStationId, endStationId, SeatClass.SECONDCLASS.getCode()));
+        }
 
-        HttpEntity requestEntity = new HttpEntity(seatRequest, headers);
-        ResponseEntity<Response<Integer>> re = restTemplate.exchange(
-                "http://ts-seat-service:18898/api/v1/seatservice/seats/left_tickets",
+        HttpEntity requestEntity = new HttpEntity(seatRequests, headers);
+        ResponseEntity<Response<List<Integer>>> re = restTemplate.exchange(
+                "http://ts-seat-service:18898/api/v1/seatservice/seats/left_tickets/batch",
                 HttpMethod.POST,
                 requestEntity,
-                new ParameterizedTypeReference<Response<Integer>>() {
+                new ParameterizedTypeReference<Response<List<Integer>>>() {
                 });
-        int restNumber =   re.getBody().getData();
+        List<Integer> counts = re.getBody().getData();
+        for (int i = 0; i < seatRequests.size(); i++) {
+            restTickets.put(seatRequests.get(i), counts.get(i));
+        }
 
         Travel2ServiceImpl.LOGGER.info("Get Rest tickets num is: {}", re.getBody().toString());
-        return restNumber;
+        return restTickets;
+    }
+
+    private Seat seatRequest(String trainNumber, Date travelDate, String startStationId, String endStationId, int seatType) {
+        Seat seatRequest = new Seat();
+        seatRequest.setDestStation(endStationId);
+        seatRequest.setStartStation(startStationId);
+        seatRequest.setTrainNumber(trainNumber);
+        seatRequest.setSeatType(seatType);
+        seatRequest.setTravelDate(travelDate);
+        return seatRequest;
     }
 
     @Override
@@ -17,6 +17,7 @@ import travel2.entity.*;
 import travel2.repository.TripRepository;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 
 @RunWith(JUnit4.class)
@@ -65,6 +66,14 @@ public class Travel2ServiceImplTest {
         Assert.assertEquals("[Get Route By Trip ID] Success", result.getMsg());
     }
 
+    @Test
+    public void testGetRouteByTripIds() {
+        Mockito.when(repository.findByTripId(Mockito.any(TripId.class))).thenReturn(null);
+        ArrayList<String> tripIds = new ArrayList<>(Arrays.asList("K1255", "Z1255"));
+        Response result = travel2ServiceImpl.getRouteByTripIds(tripIds, headers);
+        Assert.assertEquals(Arrays.asList(null, null), result.getData());
+    }
+
     @Test
     public void testGetTrainTypeByTripId() {
         Trip trip = new Trip();
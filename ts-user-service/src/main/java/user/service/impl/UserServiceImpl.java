@@ -28,7 +28,9 @@ public class UserServiceImpl implements UserService {
     @Autowired
     private UserRepository userRepository;
 
-    private RestTemplate restTemplate = new RestTemplate();
+    @Autowired
+    private RestTemplate restTemplate;
+
     private static final String AUTH_SERVICE_URI = "http://ts-auth-service:12340/api/v1";
 
     @Override
@@ -7,10 +7,8 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.web.bind.annotation.*;
 import verifycode.service.VerifyCodeService;
 
-import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Map;
@@ -35,13 +33,8 @@ public class VerifyCodeController {
         String simpleCaptcha = "simpleCaptcha";
         request.getSession().setAttribute(simpleCaptcha, map.get("strEnsure").toString().toLowerCase());
         request.getSession().setAttribute("codeTime", System.currentTimeMillis());
-        try {
-            ImageIO.write((BufferedImage) map.get("image"), "JPEG", os);
-        } catch (IOException e) {
-            //error
-            String error = "Can't generate verification code";
-            os.write(error.getBytes());
-        }
+        // already encoded as JPEG
+        os.write((byte[]) map.get("image"));
     }
 
     @GetMapping(value = "/verify/{verifyCode}")
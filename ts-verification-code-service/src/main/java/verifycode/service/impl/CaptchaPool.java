@@ -0,0 +1,218 @@
+package verifycode.service.impl;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CAPTCHAs rendered and encoded as JPEG ahead of the requests that show them.
+ *
+ * A daemon thread keeps the pool full, rendering at most refillPerSecond images a
+ * second and blocking while the pool is full. A request takes a ready image; when the
+ * pool is empty, or the request asks for another size, the image is rendered inline
+ * as before and an empty pool is counted as starved.
+ *
+ * @author fdse
+ */
+final class CaptchaPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CaptchaPool.class);
+
+    private static final char[] MAP_TABLE = {
+            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J',
+            'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W',
+            'X', 'Y', 'Z', '0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
+
+    private final int width;
+
+    private final int height;
+
+    private final int refillPerSecond;
+
+    private final BlockingQueue<Captcha> pool;
+
+    private final AtomicLong pooledCount = new AtomicLong();
+
+    private final AtomicLong starvedCount = new AtomicLong();
+
+    private volatile Thread producer;
+
+    CaptchaPool(int width, int height, int size, int refillPerSecond) {
+        if (width <= 0 || height <= 0 || size <= 0 || refillPerSecond <= 0) {
+            throw new IllegalArgumentException("width, height, size and refillPerSecond must be positive");
+        }
+        this.width = width;
+        this.height = height;
+        this.refillPerSecond = refillPerSecond;
+        this.pool = new ArrayBlockingQueue<>(size);
+    }
+
+    synchronized void start() {
+        if (producer != null) {
+            return;
+        }
+        producer = new Thread(this::produce, "captcha-pool");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    synchronized void stop() {
+        if (producer != null) {
+            producer.interrupt();
+            producer = null;
+        }
+    }
+
+    Captcha take(int width, int height) {
+        if (width != this.width || height != this.height) {
+            return render(width, height);
+        }
+        Captcha captcha = pool.poll();
+        if (captcha != null) {
+            pooledCount.incrementAndGet();
+            return captcha;
+        }
+        starvedCount.incrementAndGet();
+        return render(width, height);
+    }
+
+    /**
+     * Renders until the pool is full, the producer does the same at its rate
+     */
+    void fill() {
+        while (pool.remainingCapacity() > 0) {
+            pool.offer(render(width, height));
+        }
+    }
+
+    int size() {
+        return pool.size();
+    }
+
+    long getPooledCount() {
+        return pooledCount.get();
+    }
+
+    long getStarvedCount() {
+        return starvedCount.get();
+    }
+
+    void bindTo(MeterRegistry registry) {
+        Gauge.builder("captcha.pool.size", this, CaptchaPool::size)
+                .description("CAPTCHAs rendered and waiting for a request")
+                .register(registry);
+        FunctionCounter.builder("captcha.pool.takes", this, CaptchaPool::getPooledCount)
+                .tag("result", "pooled")
+                .description("Requests served a pre-rendered CAPTCHA")
+                .register(registry);
+        FunctionCounter.builder("captcha.pool.takes", this, CaptchaPool::getStarvedCount)
+                .tag("result", "starved")
+                .description("Requests that found the pool empty and rendered inline")
+                .register(registry);
+    }
+
+    private void produce() {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / refillPerSecond;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    pool.put(render(width, height));
+                } catch (RuntimeException e) {
+                    CaptchaPool.LOGGER.error("[CaptchaPool] render failed, requests render inline meanwhile", e);
+                }
+                TimeUnit.NANOSECONDS.sleep(intervalNanos);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static Captcha render(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics g = image.getGraphics();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        g.setColor(getRandColor(200, 250));
+        g.fillRect(0, 0, width, height);
+
+        g.setFont(new Font("Times New Roman", Font.PLAIN, 18));
+
+        g.setColor(getRandColor(160, 200));
+        for (int i = 0; i < 168; i++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            int xl = random.nextInt(12);
+            int yl = random.nextInt(12);
+            g.drawLine(x, y, x + xl, y + yl);
+        }
+
+        StringBuilder answer = new StringBuilder();
+        for (int i = 0; i < 4; ++i) {
+            char c = MAP_TABLE[random.nextInt(MAP_TABLE.length)];
+            answer.append(c);
+
+            g.setColor(new Color(20 + random.nextInt(110), 20 + random.nextInt(110), 20 + random.nextInt(110)));
+            g.drawString(String.valueOf(c), 13 * i + 6, 16);
+        }
+        g.dispose();
+
+        ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+        try {
+            if (!ImageIO.write(image, "JPEG", jpeg)) {
+                throw new IllegalStateException("No JPEG writer available");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Captcha(jpeg.toByteArray(), answer.toString());
+    }
+
+    static Color getRandColor(int fc, int bc) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (fc > 255) {
+            fc = 255;
+        }
+        if (bc > 255) {
+            bc = 255;
+        }
+        int r = fc + random.nextInt(bc - fc);
+        int g = fc + random.nextInt(bc - fc);
+        int b = fc + random.nextInt(bc - fc);
+        return new Color(r, g, b);
+    }
+
+    static final class Captcha {
+
+        private final byte[] jpeg;
+
+        private final String answer;
+
+        Captcha(byte[] jpeg, String answer) {
+            this.jpeg = jpeg;
+            this.answer = answer;
+        }
+
+        byte[] getJpeg() {
+            return jpeg;
+        }
+
+        String getAnswer() {
+            return answer;
+        }
+    }
+}
@@ -2,22 +2,23 @@ package verifycode.service.impl;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import io.micrometer.core.instrument.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Service;
 import verifycode.service.VerifyCodeService;
 import verifycode.util.CookieUtil;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -41,10 +42,30 @@ public class VerifyCodeServiceImpl implements VerifyCodeService {
             .expireAfterAccess(CAPTCHA_EXPIRED, TimeUnit.SECONDS)
             .build();
 
-    private static char mapTable[] = {
-            'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J',
-            'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V', 'W',
-            'X', 'Y', 'Z', '0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
+    @Value("${verifycode.pool.size:200}")
+    private int poolSize = 200;
+
+    @Value("${verifycode.pool.refill-per-second:50}")
+    private int poolRefillPerSecond = 50;
+
+    /**
+     * started with the application, without it every CAPTCHA is rendered inline
+     */
+    private CaptchaPool captchaPool;
+
+    @PostConstruct
+    void startCaptchaPool() {
+        captchaPool = new CaptchaPool(60, 20, poolSize, poolRefillPerSecond);
+        captchaPool.bindTo(Metrics.globalRegistry);
+        captchaPool.start();
+    }
+
+    @PreDestroy
+    void stopCaptchaPool() {
+        if (captchaPool != null) {
+            captchaPool.stop();
+        }
+    }
 
     @Override
     public Map<String, Object> getImageCode(int width, int height, OutputStream os, HttpServletRequest request, HttpServletResponse response, HttpHeaders headers) {
@@ -55,39 +76,9 @@ public class VerifyCodeServiceImpl implements VerifyCodeService {
         if (height <= 0) {
             height = 20;
         }
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-
-        Graphics g = image.getGraphics();
-
-        Random random = new Random(); //NOSONAR
-
-        g.setColor(getRandColor(200, 250));
-        g.fillRect(0, 0, width, height);
-
-        g.setFont(new Font("Times New Roman", Font.PLAIN, 18));
-
-        g.setColor(getRandColor(160, 200));
-        for (int i = 0; i < 168; i++) {
-            int x = random.nextInt(width);
-            int y = random.nextInt(height);
-            int xl = random.nextInt(12);
-            int yl = random.nextInt(12);
-            g.drawLine(x, y, x + xl, y + yl);
-        }
-
-        String strEnsure = "";
-
-        for (int i = 0; i < 4; ++i) {
-            strEnsure += mapTable[(int) (mapTable.length * Math.random())];
-
-            g.setColor(new Color(20 + random.nextInt(110), 20 + random.nextInt(110), 20 + random.nextInt(110)));
-
-            String str = strEnsure.substring(i, i + 1);
-            g.drawString(str, 13 * i + 6, 16);
-        }
-
-        g.dispose();
-        returnMap.put("image", image);
+        CaptchaPool.Captcha captcha = captchaPool != null ? captchaPool.take(width, height) : CaptchaPool.render(width, height);
+        String strEnsure = captcha.getAnswer();
+        returnMap.put("image", captcha.getJpeg());
         returnMap.put("strEnsure", strEnsure);
 
         Cookie cookie = CookieUtil.getCookieByName(request, ysbCaptcha);
@@ -131,19 +122,4 @@ public class VerifyCodeServiceImpl implements VerifyCodeService {
         return result;
     }
 
-
-    static Color getRandColor(int fc, int bc) {
-        Random random = new Random(); //NOSONAR
-        if (fc > 255) {
-            fc = 255;
-        }
-        if (bc > 255) {
-            bc = 255;
-        }
-        int r = fc + random.nextInt(bc - fc);
-        int g = fc + random.nextInt(bc - fc);
-        int b = fc + random.nextInt(bc - fc);
-        return new Color(r, g, b);
-    }
-
 }
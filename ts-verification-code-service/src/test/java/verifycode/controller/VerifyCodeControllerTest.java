@@ -20,7 +20,6 @@ import verifycode.service.VerifyCodeService;
 
 import javax.servlet.*;
 import javax.servlet.http.*;
-import java.awt.image.BufferedImage;
 import java.io.*;
 import java.rmi.MarshalledObject;
 import java.security.Principal;
@@ -45,11 +44,13 @@ public class VerifyCodeControllerTest {
     @Test
     public void testImageCode() throws Exception {
         Map<String, Object> map = new HashMap<>();
-        BufferedImage image = new BufferedImage(60, 20, BufferedImage.TYPE_INT_RGB);
+        byte[] image = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9};
         map.put("strEnsure", "XYZ8");
         map.put("image", image);
         Mockito.when(verifyCodeService.getImageCode(Mockito.anyInt(), Mockito.anyInt(), Mockito.any(OutputStream.class), Mockito.any(HttpServletRequest.class), Mockito.any(HttpServletResponse.class), Mockito.any(HttpHeaders.class))).thenReturn(map);
-        mockMvc.perform(MockMvcRequestBuilders.get("/api/v1/verifycode/generate")).andReturn();
+        byte[] result = mockMvc.perform(MockMvcRequestBuilders.get("/api/v1/verifycode/generate"))
+                .andReturn().getResponse().getContentAsByteArray();
+        Assert.assertArrayEquals(image, result);
         Mockito.verify(verifyCodeService, Mockito.times(1)).getImageCode(Mockito.anyInt(), Mockito.anyInt(), Mockito.any(OutputStream.class), Mockito.any(HttpServletRequest.class), Mockito.any(HttpServletResponse.class), Mockito.any(HttpHeaders.class));
     }
 
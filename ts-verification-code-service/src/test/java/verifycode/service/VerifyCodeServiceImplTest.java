@@ -561,6 +561,7 @@ public class VerifyCodeServiceImplTest {
         Map<String, Object> returnMap = verifyCodeServiceImpl.getImageCode(60, 20, os, request, response, headers);
         Assert.assertNotNull(returnMap);
         Assert.assertNotNull(returnMap.get("strEnsure"));
+        Assert.assertTrue(returnMap.get("image") instanceof byte[]);
     }
 
     @Test
@@ -0,0 +1,104 @@
+package verifycode.service.impl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+@RunWith(JUnit4.class)
+public class CaptchaPoolTest {
+
+    private CaptchaPool pool = new CaptchaPool(60, 20, 5, 1000);
+
+    @After
+    public void tearDown() {
+        pool.stop();
+    }
+
+    @Test
+    public void testRendersJpegWithAnswer() throws IOException {
+        CaptchaPool.Captcha captcha = CaptchaPool.render(60, 20);
+        Assert.assertTrue(captcha.getAnswer().matches("[A-Z0-9]{4}"));
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(captcha.getJpeg()));
+        Assert.assertEquals(60, image.getWidth());
+        Assert.assertEquals(20, image.getHeight());
+    }
+
+    @Test
+    public void testTakesPreRenderedCaptcha() {
+        pool.fill();
+        Assert.assertEquals(5, pool.size());
+        pool.take(60, 20);
+        Assert.assertEquals(4, pool.size());
+        Assert.assertEquals(1, pool.getPooledCount());
+        Assert.assertEquals(0, pool.getStarvedCount());
+    }
+
+    @Test
+    public void testEmptyPoolRendersInlineAndCountsStarvation() {
+        Assert.assertNotNull(pool.take(60, 20).getJpeg());
+        Assert.assertEquals(0, pool.getPooledCount());
+        Assert.assertEquals(1, pool.getStarvedCount());
+    }
+
+    @Test
+    public void testOtherSizeIsRenderedInline() {
+        pool.fill();
+        pool.take(120, 40);
+        Assert.assertEquals(5, pool.size());
+        Assert.assertEquals(0, pool.getStarvedCount());
+    }
+
+    @Test
+    public void testProducerRefillsUpToSize() throws InterruptedException {
+        pool.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (pool.size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(50);
+        Assert.assertEquals(5, pool.size());
+        pool.take(60, 20);
+        deadline = System.currentTimeMillis() + 10000;
+        while (pool.size() < 5 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(5, pool.size());
+    }
+
+    @Test
+    public void testMeters() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        pool.bindTo(registry);
+        pool.fill();
+        pool.take(60, 20);
+        pool.fill();
+        for (int i = 0; i < 7; i++) {
+            pool.take(60, 20);
+        }
+        Assert.assertEquals(0, registry.get("captcha.pool.size").gauge().value(), 0);
+        Assert.assertEquals(6, registry.get("captcha.pool.takes").tag("result", "pooled").functionCounter().count(), 0);
+        Assert.assertEquals(2, registry.get("captcha.pool.takes").tag("result", "starved").functionCounter().count(), 0);
+    }
+
+    @Test
+    public void testFilledPoolServesBurstWithoutRendering() {
+        int burst = 500;
+        CaptchaPool large = new CaptchaPool(60, 20, burst, 1000);
+        large.fill();
+        for (int i = 0; i < burst; i++) {
+            Assert.assertTrue(large.take(60, 20).getAnswer().matches("[A-Z0-9]{4}"));
+        }
+        // every request of the burst got a pre-rendered image, none rendered inline
+        Assert.assertEquals(burst, large.getPooledCount());
+        Assert.assertEquals(0, large.getStarvedCount());
+        Assert.assertEquals(0, large.size());
+    }
+}